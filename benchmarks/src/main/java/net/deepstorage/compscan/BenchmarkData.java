@@ -0,0 +1,55 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan;
+
+import java.util.Random;
+
+/**
+ * Test data for the benchmarks. Each byte is drawn uniformly from 2^bits distinct values, so the
+ * data has exactly bits bits per byte of entropy: 0 is all zeros, like unallocated space, and 8
+ * is random, like encrypted or already-compressed data. The seed is fixed so every run and every
+ * fork scans the same bytes.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+final class BenchmarkData {
+	private static final long SEED = 0x436F6D705363616EL; // "CompScan"
+	
+	/**
+	 * Not instantiable.
+	 */
+	private BenchmarkData() {
+	}
+	
+	/**
+	 * Generate data with a given entropy.
+	 * 
+	 * @param length Number of bytes.
+	 * @param entropyBits Entropy in bits per byte, from 0 to 8.
+	 * @return The data.
+	 */
+	static byte[] generate(int length, int entropyBits) {
+		if (entropyBits < 0 || entropyBits > 8) {
+			throw new IllegalArgumentException(String.format("Entropy must be 0 to 8 bits per byte, not %d.", entropyBits));
+		}
+		byte[] data = new byte[length];
+		Random random = new Random(SEED + entropyBits);
+		if (entropyBits == 8) {
+			random.nextBytes(data);
+		} else if (entropyBits > 0) {
+			// Spread the symbols over the byte range rather than using only the low values.
+			int symbols = 1 << entropyBits;
+			int stride = 256 / symbols;
+			for (int i = 0; i < length; i++) {
+				data[i] = (byte) ('A' + random.nextInt(symbols) * stride);
+			}
+		}
+		return data;
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.deepstorage.compscan.Compressor.BufferLengthException;
+
+/**
+ * Each codec in net.deepstorage.compscan.compress on one superblock: compress, which builds the
+ * output, and compressedSize, which is what Compressor calls and may skip building it.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+	@Param({"LZW", "Deflate", "GZIP", "LZ4", "Snappy", "None"})
+	public String format;
+	
+	@Param({"4096"})
+	public int blockSize;
+	
+	@Param({"16384", "65536"})
+	public int superblockSize;
+	
+	@Param({"0", "4", "6", "8"})
+	public int entropyBits;
+	
+	private CompressionInterface codec;
+	private byte[] superblock;
+	
+	/**
+	 * Create the codec and generate the data.
+	 */
+	@Setup
+	public void setup() {
+		codec = new CompressionFactory(format).create();
+		superblock = BenchmarkData.generate(superblockSize, entropyBits);
+	}
+	
+	/**
+	 * Release the codec.
+	 */
+	@TearDown
+	public void tearDown() {
+		codec.close();
+	}
+	
+	/**
+	 * Compress the superblock.
+	 * 
+	 * @return The compressed data.
+	 * @throws BufferLengthException never.
+	 */
+	@Benchmark
+	public byte[] compress() throws BufferLengthException {
+		codec.reset();
+		return codec.compress(superblock, blockSize);
+	}
+	
+	/**
+	 * Measure the compressed size of the superblock, with no early exit.
+	 * 
+	 * @return The compressed size.
+	 * @throws BufferLengthException never.
+	 */
+	@Benchmark
+	public int compressedSize() throws BufferLengthException {
+		codec.reset();
+		return codec.compressedSize(superblock, 0, superblockSize, blockSize, Integer.MAX_VALUE);
+	}
+}
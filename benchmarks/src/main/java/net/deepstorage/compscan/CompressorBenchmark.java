@@ -0,0 +1,101 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.deepstorage.compscan.Compressor.BufferLengthException;
+import net.deepstorage.compscan.Compressor.CompressionInfo;
+
+/**
+ * The per-superblock work of the Compressor: hashBuffer alone, and feedData, which hashes,
+ * measures the entropy of, and compresses a batch of superblocks.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressorBenchmark {
+	// Superblocks per feedData call, about what one default read buffer holds.
+	private static final int BATCH = 64;
+	
+	@Param({"4096", "8192"})
+	public int blockSize;
+	
+	@Param({"16384", "65536"})
+	public int superblockSize;
+	
+	@Param({"0", "4", "6", "8"})
+	public int entropyBits;
+	
+	@Param({"LZW"})
+	public String format;
+	
+	private Compressor compressor;
+	private byte[] buffer;
+	private byte[] superblock;
+	
+	/**
+	 * Create the compressor and generate the data.
+	 */
+	@Setup
+	public void setup() {
+		compressor = new Compressor(blockSize, superblockSize, format);
+		buffer = BenchmarkData.generate(BATCH * superblockSize, entropyBits);
+		superblock = Arrays.copyOf(buffer, superblockSize);
+	}
+	
+	/**
+	 * Release the codecs.
+	 */
+	@TearDown
+	public void tearDown() {
+		compressor.close();
+	}
+	
+	/**
+	 * Hash the blocks of one superblock.
+	 * 
+	 * @return Table of block hashes to counts.
+	 * @throws BufferLengthException never.
+	 */
+	@Benchmark
+	public FingerprintTable hashBuffer() throws BufferLengthException {
+		return compressor.hashBuffer(superblock);
+	}
+	
+	/**
+	 * Scan a batch of superblocks. Divide the score by BATCH for superblocks per second.
+	 * 
+	 * @return The results of each superblock.
+	 * @throws BufferLengthException never.
+	 */
+	@Benchmark
+	public CompressionInfo[] feedData() throws BufferLengthException {
+		return compressor.feedData(buffer, 0, BATCH);
+	}
+}
@@ -0,0 +1,66 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan;
+
+import java.io.UnsupportedEncodingException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Block fingerprinting: SHA1Encoder.encode on one block.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark {
+	@Param({"4096", "8192", "65536"})
+	public int blockSize;
+	
+	@Param({"0", "4", "8"})
+	public int entropyBits;
+	
+	private byte[] block;
+	
+	/**
+	 * Generate the block.
+	 */
+	@Setup
+	public void setup() {
+		block = BenchmarkData.generate(blockSize, entropyBits);
+	}
+	
+	/**
+	 * Fingerprint the block.
+	 * 
+	 * @return The hex digest.
+	 * @throws NoSuchAlgorithmException if SHA-1 isn't available.
+	 * @throws UnsupportedEncodingException never.
+	 */
+	@Benchmark
+	public String encode() throws NoSuchAlgorithmException, UnsupportedEncodingException {
+		return SHA1Encoder.encode(block);
+	}
+}
@@ -0,0 +1,130 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.deepstorage.compscan.CompScan.Results;
+
+/**
+ * The hash bookkeeping of Results: updateHashes, which folds the hashes of one read buffer into
+ * the scan's table, and getHashCounters, which builds the repeat-count histogram at the end, at
+ * full and truncated fingerprint widths.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResultsBenchmark {
+	// Distinct batches cycled through by updateHashes.
+	private static final int BATCHES = 256;
+	
+	// Hashes per updateHashes batch; one 1 MB buffer of 4 KiB blocks.
+	@Param({"256"})
+	public int batchSize;
+	
+	// Unique hashes in the table getHashCounters summarizes.
+	@Param({"100000", "1000000"})
+	public int uniqueHashes;
+	
+	// Fingerprint width in bits.
+	@Param({"64", "160"})
+	public int fingerprintBits;
+	
+	private List<FingerprintTable> batches;
+	private int next;
+	private Results updated;
+	private Results full;
+	
+	/**
+	 * Generate the batches and the full table.
+	 */
+	@Setup
+	public void setup() {
+		Random random = new Random(0L);
+		batches = new ArrayList<>(BATCHES);
+		for (int i = 0; i < BATCHES; i++) {
+			FingerprintTable batch = new FingerprintTable(fingerprintBits, batchSize);
+			while (batch.size() < batchSize) {
+				batch.add(hash(random), 1L);
+			}
+			batches.add(batch);
+		}
+		full = new Results("benchmark", new Date());
+		for (int i = 0; i < uniqueHashes; i++) {
+			// Most blocks are unique; a few repeat a lot, as in real data.
+			full.updateHash(hash(random), 1L + (long) Math.pow(random.nextDouble(), 8) * 1000);
+		}
+	}
+	
+	/**
+	 * Start each iteration with an empty table, so the first pass inserts and later passes update.
+	 */
+	@Setup(Level.Iteration)
+	public void resetUpdated() {
+		updated = new Results("benchmark", new Date());
+		next = 0;
+	}
+	
+	/**
+	 * Fold one buffer's hashes into the table.
+	 * 
+	 * @return The results, so the work isn't optimized away.
+	 */
+	@Benchmark
+	public Results updateHashes() {
+		updated.updateHashes(batches.get(next));
+		next = (next + 1) % BATCHES;
+		return updated;
+	}
+	
+	/**
+	 * Build the repeat-count histogram.
+	 * 
+	 * @return The histogram.
+	 */
+	@Benchmark
+	public Map<Long, Long> getHashCounters() {
+		return full.getHashCounters();
+	}
+	
+	/**
+	 * Generate a random digest of the fingerprint width.
+	 * 
+	 * @param random Source of randomness.
+	 * @return The digest.
+	 */
+	private byte[] hash(Random random) {
+		byte[] digest = new byte[fingerprintBits / 8];
+		random.nextBytes(digest);
+		return digest;
+	}
+}
@@ -0,0 +1,106 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan;
+
+import java.nio.file.Paths;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.deepstorage.compscan.CompScan.MutableCounter;
+import net.deepstorage.compscan.CompScan.Results;
+import net.deepstorage.compscan.CompScan.ScanMode;
+import net.deepstorage.compscan.Compressor.BufferLengthException;
+
+/**
+ * FileScanner.scanBuffer on one full read buffer: the Compressor's work plus folding the results
+ * and hashes of every superblock into a Results object.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanBenchmark {
+	// Superblocks per read buffer.
+	private static final int SUPERBLOCKS = 64;
+	
+	@Param({"4096", "8192"})
+	public int blockSize;
+	
+	@Param({"16384", "65536"})
+	public int superblockSize;
+	
+	@Param({"0", "4", "6", "8"})
+	public int entropyBits;
+	
+	@Param({"LZW"})
+	public String format;
+	
+	private Compressor compressor;
+	private FileScanner scanner;
+	private byte[] buffer;
+	private Results results;
+	
+	/**
+	 * Create the scanner and generate the data.
+	 */
+	@Setup
+	public void setup() {
+		compressor = new Compressor(blockSize, superblockSize, format);
+		buffer = BenchmarkData.generate(SUPERBLOCKS * superblockSize, entropyBits);
+		// The root is never walked; only scanBuffer is called.
+		scanner = new FileScanner(Paths.get("."), ScanMode.NORMAL, blockSize, buffer.length, CompScan.UNLIMITED,
+				compressor, new Results("benchmark", new Date()), new MutableCounter(), false);
+	}
+	
+	/**
+	 * Start each iteration with empty results, so the hash map doesn't carry over.
+	 */
+	@Setup(Level.Iteration)
+	public void resetResults() {
+		results = new Results("benchmark", new Date());
+	}
+	
+	/**
+	 * Release the codecs.
+	 */
+	@TearDown
+	public void tearDown() {
+		compressor.close();
+	}
+	
+	/**
+	 * Scan the buffer.
+	 * 
+	 * @return The results, so the work isn't optimized away.
+	 * @throws BufferLengthException never.
+	 */
+	@Benchmark
+	public Results scanBuffer() throws BufferLengthException {
+		scanner.scanBuffer(buffer, buffer.length, results);
+		return results;
+	}
+}
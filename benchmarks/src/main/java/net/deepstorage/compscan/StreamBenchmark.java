@@ -0,0 +1,137 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading the dataset through FileWalkerStream: getBytes, which allocates a new buffer for every
+ * call, and read, which fills the caller's buffer. The files are written to a temporary directory
+ * once per trial and will usually be read from the page cache, so this measures the stream's own
+ * overhead, which matters most for small files.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamBenchmark {
+	// Total size of the files written for the trial.
+	private static final int DATASET_SIZE = 64 << 20;
+	
+	@Param({"4096"})
+	public int blockSize;
+	
+	@Param({"1015808"})
+	public int bufferSize;
+	
+	@Param({"6000", "1048576"})
+	public int fileSize;
+	
+	private Path dir;
+	private FileWalkerStream stream;
+	private byte[] buffer;
+	
+	/**
+	 * Write the files and open the stream.
+	 * 
+	 * @throws IOException if the files couldn't be written.
+	 */
+	@Setup
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("compscan-bench");
+		byte[] data = BenchmarkData.generate(fileSize, 6);
+		for (int i = 0; i < DATASET_SIZE / fileSize; i++) {
+			Files.write(dir.resolve(String.format("f%06d", i)), data);
+		}
+		buffer = new byte[bufferSize];
+		open();
+	}
+	
+	/**
+	 * Close the stream and delete the files.
+	 * 
+	 * @throws IOException if the files couldn't be deleted.
+	 */
+	@TearDown
+	public void tearDown() throws IOException {
+		stream.close();
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+			for (Path f : ds) {
+				Files.delete(f);
+			}
+		}
+		Files.delete(dir);
+	}
+	
+	/**
+	 * Read the next buffer into a new array, starting over once the files run out.
+	 * 
+	 * @return The buffer.
+	 * @throws IOException if a read failed.
+	 */
+	@Benchmark
+	public byte[] getBytes() throws IOException {
+		rewindIfDone();
+		return stream.getBytes();
+	}
+	
+	/**
+	 * Read the next buffer into the same array, starting over once the files run out.
+	 * 
+	 * @return The number of bytes filled.
+	 * @throws IOException if a read failed.
+	 */
+	@Benchmark
+	public int read() throws IOException {
+		rewindIfDone();
+		return stream.read(buffer);
+	}
+	
+	/**
+	 * Reopen the stream at the first file once it has run out.
+	 * 
+	 * @throws IOException if the stream couldn't be reopened.
+	 */
+	private void rewindIfDone() throws IOException {
+		if (!stream.hasMore()) {
+			stream.close();
+			open();
+		}
+	}
+	
+	/**
+	 * Open a stream over the files.
+	 * 
+	 * @throws IOException if the stream couldn't be opened.
+	 */
+	private void open() throws IOException {
+		stream = new FileWalkerStream(new FileWalker(dir, false), blockSize, bufferSize, CompScan.UNLIMITED, false);
+	}
+}
@@ -0,0 +1,125 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan.compress;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.params.provider.Arguments;
+
+/**
+ * Inputs shared by the codec tests: the kinds of superblock a scan meets (zeros, text-like data,
+ * random data and mixtures of them) at sizes around the points where the codecs change behavior,
+ * such as LZ4's 64KB table layout and Snappy's 64KB fragments.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+final class CodecTestData {
+	private static final int[] SIZES = {0, 1, 4, 12, 13, 14, 15, 16, 100, 4096, 16384, 65535, 65536, 65546, 65547,
+			65548, 131072, 200003};
+	private static final String[] WORDS = {"the", "block", "superblock", "compress", "of", "a", "dataset",
+			"dedupe", "and", "size", "in", "to", "hash", "LZ4", "Snappy", "LZW", "\n", ", ", ". "};
+	
+	/**
+	 * Static class; not instantiable.
+	 */
+	private CodecTestData() {
+	}
+	
+	/**
+	 * Every input, for parameterized tests.
+	 * 
+	 * @return Arguments of a name describing the input and the input itself.
+	 */
+	static Stream<Arguments> inputs() {
+		List<Arguments> inputs = new ArrayList<>();
+		for (int size : SIZES) {
+			inputs.add(Arguments.of("zeros " + size, new byte[size]));
+			inputs.add(Arguments.of("text " + size, text(size, size)));
+			inputs.add(Arguments.of("random " + size, random(size, size, 256)));
+			inputs.add(Arguments.of("4 symbols " + size, random(size, size, 4)));
+			inputs.add(Arguments.of("mixed " + size, mixed(size, size)));
+		}
+		return inputs.stream();
+	}
+	
+	/**
+	 * Random bytes drawn from the first few byte values.
+	 * 
+	 * @param size Number of bytes.
+	 * @param seed Random seed.
+	 * @param symbols Number of distinct byte values, up to 256.
+	 * @return The bytes.
+	 */
+	static byte[] random(int size, long seed, int symbols) {
+		Random r = new Random(seed);
+		byte[] b = new byte[size];
+		for (int i = 0; i < size; i++) {
+			b[i] = (byte) r.nextInt(symbols);
+		}
+		return b;
+	}
+	
+	/**
+	 * Text-like bytes: words from a small vocabulary, which compress well but not to nothing.
+	 * 
+	 * @param size Number of bytes.
+	 * @param seed Random seed.
+	 * @return The bytes.
+	 */
+	static byte[] text(int size, long seed) {
+		Random r = new Random(seed);
+		StringBuilder sb = new StringBuilder(size + 16);
+		while (sb.length() < size) {
+			sb.append(WORDS[r.nextInt(WORDS.length)]).append(' ');
+		}
+		byte[] b = new byte[size];
+		System.arraycopy(sb.toString().getBytes(StandardCharsets.US_ASCII), 0, b, 0, size);
+		return b;
+	}
+	
+	/**
+	 * Runs of text, random bytes and zeros, with some runs repeated from far back, as in a file
+	 * holding both compressed and uncompressed data.
+	 * 
+	 * @param size Number of bytes.
+	 * @param seed Random seed.
+	 * @return The bytes.
+	 */
+	static byte[] mixed(int size, long seed) {
+		Random r = new Random(seed);
+		byte[] b = new byte[size];
+		int pos = 0;
+		while (pos < size) {
+			int run = Math.min(size - pos, 1 + r.nextInt(3000));
+			switch (r.nextInt(4)) {
+			case 0:
+				System.arraycopy(text(run, r.nextLong()), 0, b, pos, run);
+				break;
+			case 1:
+				System.arraycopy(random(run, r.nextLong(), 256), 0, b, pos, run);
+				break;
+			case 2:
+				// Zeros, which the array already holds.
+				break;
+			default:
+				if (pos > 0) {
+					int from = r.nextInt(pos);
+					run = Math.min(run, pos - from);
+					System.arraycopy(b, from, b, pos, run);
+				}
+			}
+			pos += run;
+		}
+		return b;
+	}
+}
@@ -0,0 +1,142 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan.compress;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.Timeout.ThreadMode;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+/**
+ * Tests for the LZ4 codec. The output is decoded by a minimal LZ4 block decoder, which also
+ * checks the end-of-block rules the reference decoder relies on.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+// A broken encoder can loop; fail the test then rather than hang the build.
+@Timeout(value = 10, threadMode = ThreadMode.SEPARATE_THREAD)
+class LZ4Test {
+	private static final int BLOCK_SIZE = 4096;
+	// The reference format's end-of-block rules; see LZ4.
+	private static final int MF_LIMIT = 12;
+	private static final int LAST_LITERALS = 5;
+	
+	/**
+	 * The output decodes back to the input.
+	 * 
+	 * @param name Description of the input.
+	 * @param data The input.
+	 */
+	@ParameterizedTest(name = "{0}")
+	@MethodSource("net.deepstorage.compscan.compress.CodecTestData#inputs")
+	void roundTrip(String name, byte[] data) {
+		assertArrayEquals(data, decode(new LZ4().compress(data, BLOCK_SIZE), data.length));
+	}
+	
+	/**
+	 * compressedSize gives the length of compress's output when it is within the limit, wherever
+	 * the data is in the buffer, and more than the limit otherwise.
+	 * 
+	 * @param name Description of the input.
+	 * @param data The input.
+	 */
+	@ParameterizedTest(name = "{0}")
+	@MethodSource("net.deepstorage.compscan.compress.CodecTestData#inputs")
+	void compressedSizeMatchesCompress(String name, byte[] data) {
+		LZ4 lz4 = new LZ4();
+		int n = lz4.compress(data, BLOCK_SIZE).length;
+		assertEquals(n, lz4.compressedSize(data, 0, data.length, BLOCK_SIZE, Integer.MAX_VALUE));
+		assertEquals(n, lz4.compressedSize(data, 0, data.length, BLOCK_SIZE, n));
+		assertTrue(lz4.compressedSize(data, 0, data.length, BLOCK_SIZE, n - 1) > n - 1);
+		assertTrue(lz4.compressedSize(data, 0, data.length, BLOCK_SIZE, n / 2) > n / 2);
+		
+		byte[] padded = CodecTestData.random(data.length + 64, data.length, 256);
+		System.arraycopy(data, 0, padded, 23, data.length);
+		assertEquals(n, lz4.compressedSize(padded, 23, data.length, BLOCK_SIZE, Integer.MAX_VALUE));
+	}
+	
+	/**
+	 * One instance gives the same output for an input whatever it compressed before, since it
+	 * reuses its hash table and output buffer.
+	 */
+	@Test
+	void reusedInstance() {
+		LZ4 lz4 = new LZ4();
+		Random r = new Random(1);
+		for (int i = 0; i < 50; i++) {
+			byte[] data = CodecTestData.mixed(r.nextInt(100000), i);
+			byte[] out = lz4.compress(data, BLOCK_SIZE);
+			assertArrayEquals(new LZ4().compress(data, BLOCK_SIZE), out);
+			assertArrayEquals(data, decode(out, data.length));
+		}
+	}
+	
+	/**
+	 * Decode an LZ4 block.
+	 * 
+	 * @param in The block.
+	 * @param length Expected length of the decoded data.
+	 * @return The decoded data.
+	 */
+	private static byte[] decode(byte[] in, int length) {
+		byte[] out = new byte[length];
+		int ip = 0;
+		int op = 0;
+		int lastMatchEnd = -1;
+		while (true) {
+			int token = in[ip++] & 0xFF;
+			int literals = token >>> 4;
+			if (literals == 15) {
+				int b;
+				do {
+					b = in[ip++] & 0xFF;
+					literals += b;
+				} while (b == 255);
+			}
+			System.arraycopy(in, ip, out, op, literals);
+			ip += literals;
+			op += literals;
+			if (ip == in.length) {
+				// The last sequence is literals only.
+				break;
+			}
+			
+			int offset = (in[ip] & 0xFF) | (in[ip + 1] & 0xFF) << 8;
+			ip += 2;
+			assertTrue(offset > 0 && offset <= op, "match offset " + offset + " at " + op);
+			int matchLength = token & 15;
+			if (matchLength == 15) {
+				int b;
+				do {
+					b = in[ip++] & 0xFF;
+					matchLength += b;
+				} while (b == 255);
+			}
+			matchLength += 4;
+			assertTrue(op <= length - MF_LIMIT, "match starts too close to the end at " + op);
+			// Byte by byte, since a match may overlap its own output.
+			for (int i = 0; i < matchLength; i++, op++) {
+				out[op] = out[op - offset];
+			}
+			lastMatchEnd = op;
+		}
+		assertEquals(length, op);
+		if (lastMatchEnd >= 0) {
+			assertTrue(length - lastMatchEnd >= LAST_LITERALS, "fewer than 5 literals after the last match");
+		}
+		return out;
+	}
+}
@@ -0,0 +1,203 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan.compress;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.Timeout.ThreadMode;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+/**
+ * Tests for the LZW codec. The output is decoded by a separate LZW decoder written from the
+ * format: 9- to 16-bit codes packed LSB first, code 256 clearing the dictionary, and the width
+ * growing as soon as the next code to be assigned no longer fits.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+// A broken encoder can loop; fail the test then rather than hang the build.
+@Timeout(value = 10, threadMode = ThreadMode.SEPARATE_THREAD)
+class LZWTest {
+	private static final int BLOCK_SIZE = 4096;
+	private static final int MIN_WIDTH = 9;
+	private static final int MAX_WIDTH = 16;
+	private static final int MAX_CODES = 1 << MAX_WIDTH;
+	private static final int CLEAR_CODE = 256;
+	private static final int FIRST_CODE = 257;
+	
+	/**
+	 * The output decodes back to the input.
+	 * 
+	 * @param name Description of the input.
+	 * @param data The input.
+	 */
+	@ParameterizedTest(name = "{0}")
+	@MethodSource("net.deepstorage.compscan.compress.CodecTestData#inputs")
+	void roundTrip(String name, byte[] data) {
+		assertArrayEquals(data, new Decoder(new LZW().compress(data, BLOCK_SIZE)).decode());
+	}
+	
+	/**
+	 * Inputs long enough to fill the dictionary are cleared and decode back, whether the strings
+	 * are short (random data) or long (low-entropy data), and one instance handles them one after
+	 * another.
+	 */
+	@Test
+	void dictionaryReset() {
+		LZW lzw = new LZW();
+		for (int symbols : new int[] {256, 16, 2}) {
+			byte[] data = CodecTestData.random(1 << 22, symbols, symbols);
+			Decoder decoder = new Decoder(lzw.compress(data, BLOCK_SIZE));
+			assertArrayEquals(data, decoder.decode());
+			assertTrue(decoder.codes > MAX_CODES, "only " + decoder.codes + " codes");
+			assertTrue(decoder.clears > 0, "no dictionary reset");
+		}
+	}
+	
+	/**
+	 * compressedSize gives the length of compress's output when it is within the limit, wherever
+	 * the data is in the buffer, and more than the limit otherwise.
+	 * 
+	 * @param name Description of the input.
+	 * @param data The input.
+	 */
+	@ParameterizedTest(name = "{0}")
+	@MethodSource("net.deepstorage.compscan.compress.CodecTestData#inputs")
+	void compressedSizeMatchesCompress(String name, byte[] data) {
+		LZW lzw = new LZW();
+		int n = lzw.compress(data, BLOCK_SIZE).length;
+		assertEquals(n, lzw.compressedSize(data, 0, data.length, BLOCK_SIZE, Integer.MAX_VALUE));
+		assertEquals(n, lzw.compressedSize(data, 0, data.length, BLOCK_SIZE, n));
+		if (n > 0) {
+			assertTrue(lzw.compressedSize(data, 0, data.length, BLOCK_SIZE, n - 1) > n - 1);
+		}
+		
+		byte[] padded = CodecTestData.random(data.length + 64, data.length, 256);
+		System.arraycopy(data, 0, padded, 23, data.length);
+		assertEquals(n, lzw.compressedSize(padded, 23, data.length, BLOCK_SIZE, Integer.MAX_VALUE));
+	}
+	
+	/**
+	 * One instance gives the same output for an input whatever it compressed before, since it
+	 * clears its dictionary by generation rather than by emptying the table.
+	 */
+	@Test
+	void reusedInstance() {
+		LZW lzw = new LZW();
+		Random r = new Random(1);
+		for (int i = 0; i < 50; i++) {
+			byte[] data = CodecTestData.mixed(r.nextInt(200000), i);
+			byte[] out = lzw.compress(data, BLOCK_SIZE);
+			assertArrayEquals(new LZW().compress(data, BLOCK_SIZE), out);
+			assertArrayEquals(data, new Decoder(out).decode());
+		}
+	}
+	
+	/**
+	 * A straightforward LZW decoder with a dictionary of byte strings.
+	 */
+	private static class Decoder {
+		private final byte[] in;
+		private final long totalBits;
+		private long bitPos;
+		private final byte[][] dictionary;
+		int codes;
+		int clears;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param in The encoded data.
+		 */
+		Decoder(byte[] in) {
+			this.in = in;
+			totalBits = 8L * in.length;
+			bitPos = 0L;
+			dictionary = new byte[MAX_CODES][];
+			for (int i = 0; i < 256; i++) {
+				dictionary[i] = new byte[] {(byte) i};
+			}
+			codes = 0;
+			clears = 0;
+		}
+		
+		/**
+		 * Decode all of the input.
+		 * 
+		 * @return The decoded data.
+		 */
+		byte[] decode() {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			int width = MIN_WIDTH;
+			int nextCode = FIRST_CODE;
+			byte[] previous = null;
+			// Fewer bits than a code left means only the padding of the last byte.
+			while (totalBits - bitPos >= width) {
+				int code = read(width);
+				codes++;
+				if (code == CLEAR_CODE) {
+					// Only sent in place of the entry that no longer fits.
+					assertEquals(MAX_CODES, nextCode, "clear code before the dictionary was full");
+					width = MIN_WIDTH;
+					nextCode = FIRST_CODE;
+					previous = null;
+					clears++;
+					continue;
+				}
+				byte[] string;
+				if (previous == null) {
+					assertTrue(code < 256, "first code " + code + " after a reset is not a byte");
+					string = dictionary[code];
+				} else {
+					// The encoder added an entry for the previous string plus this string's first
+					// byte; the code can be that very entry.
+					assertTrue(code <= nextCode, "code " + code + " is not in the dictionary of " + nextCode);
+					byte[] head = (code == nextCode ? previous : dictionary[code]);
+					byte[] entry = new byte[previous.length + 1];
+					System.arraycopy(previous, 0, entry, 0, previous.length);
+					entry[previous.length] = head[0];
+					if (nextCode < MAX_CODES) {
+						dictionary[nextCode++] = entry;
+					}
+					string = dictionary[code];
+				}
+				out.write(string, 0, string.length);
+				previous = string;
+				// The encoder widens its codes as soon as the code it will assign next no longer
+				// fits, which is one entry ahead of this decoder.
+				if (nextCode + 1 > (1 << width) && width < MAX_WIDTH) {
+					width++;
+				}
+			}
+			return out.toByteArray();
+		}
+		
+		/**
+		 * Read a code, LSB first.
+		 * 
+		 * @param width Width of the code in bits.
+		 * @return The code.
+		 */
+		private int read(int width) {
+			int code = 0;
+			for (int i = 0; i < width; i++, bitPos++) {
+				int bit = (in[(int) (bitPos >>> 3)] >>> (bitPos & 7)) & 1;
+				code |= bit << i;
+			}
+			return code;
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan.compress;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.iq80.snappy.CorruptionException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.Timeout.ThreadMode;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+/**
+ * Tests for the Snappy codec. The output is decoded by the iq80 Snappy library, an independent
+ * implementation of the reference format.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+// Corrupt output can send the decoder into a loop; fail the test then rather than hang the build.
+@Timeout(value = 10, threadMode = ThreadMode.SEPARATE_THREAD)
+class SnappyTest {
+	private static final int BLOCK_SIZE = 4096;
+	
+	/**
+	 * The output decodes back to the input.
+	 * 
+	 * @param name Description of the input.
+	 * @param data The input.
+	 * @throws CorruptionException if the output isn't a valid Snappy stream.
+	 */
+	@ParameterizedTest(name = "{0}")
+	@MethodSource("net.deepstorage.compscan.compress.CodecTestData#inputs")
+	void roundTrip(String name, byte[] data) throws CorruptionException {
+		byte[] out = new Snappy().compress(data, BLOCK_SIZE);
+		assertArrayEquals(data, org.iq80.snappy.Snappy.uncompress(out, 0, out.length));
+	}
+	
+	/**
+	 * compressedSize gives the length of compress's output when it is within the limit, wherever
+	 * the data is in the buffer, and more than the limit otherwise.
+	 * 
+	 * @param name Description of the input.
+	 * @param data The input.
+	 */
+	@ParameterizedTest(name = "{0}")
+	@MethodSource("net.deepstorage.compscan.compress.CodecTestData#inputs")
+	void compressedSizeMatchesCompress(String name, byte[] data) {
+		Snappy snappy = new Snappy();
+		int n = snappy.compress(data, BLOCK_SIZE).length;
+		assertEquals(n, snappy.compressedSize(data, 0, data.length, BLOCK_SIZE, Integer.MAX_VALUE));
+		assertEquals(n, snappy.compressedSize(data, 0, data.length, BLOCK_SIZE, n));
+		assertTrue(snappy.compressedSize(data, 0, data.length, BLOCK_SIZE, n - 1) > n - 1);
+		assertTrue(snappy.compressedSize(data, 0, data.length, BLOCK_SIZE, n / 2) > n / 2);
+		
+		byte[] padded = CodecTestData.random(data.length + 64, data.length, 256);
+		System.arraycopy(data, 0, padded, 23, data.length);
+		assertEquals(n, snappy.compressedSize(padded, 23, data.length, BLOCK_SIZE, Integer.MAX_VALUE));
+	}
+	
+	/**
+	 * One instance gives the same output for an input whatever it compressed before, since it
+	 * reuses its hash table and output buffer.
+	 * 
+	 * @throws CorruptionException if the output isn't a valid Snappy stream.
+	 */
+	@Test
+	void reusedInstance() throws CorruptionException {
+		Snappy snappy = new Snappy();
+		Random r = new Random(1);
+		for (int i = 0; i < 50; i++) {
+			byte[] data = CodecTestData.mixed(r.nextInt(200000), i);
+			byte[] out = snappy.compress(data, BLOCK_SIZE);
+			assertArrayEquals(new Snappy().compress(data, BLOCK_SIZE), out);
+			assertArrayEquals(data, org.iq80.snappy.Snappy.uncompress(out, 0, out.length));
+		}
+	}
+}
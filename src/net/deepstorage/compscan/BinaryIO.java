@@ -0,0 +1,113 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Helpers for the compact binary files CompScan writes, such as checkpoints.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+public final class BinaryIO {
+	private BinaryIO() {
+		// Static helpers only.
+	}
+	
+	/**
+	 * Write a nonnegative long as a little-endian base-128 varint (1 byte for values below 128).
+	 * 
+	 * @param out Destination.
+	 * @param v Value to write. Must be nonnegative.
+	 * @throws IOException if the write failed.
+	 */
+	public static void writeVarLong(DataOutput out, long v) throws IOException {
+		while ((v & ~0x7FL) != 0L) {
+			out.writeByte((int) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.writeByte((int) v);
+	}
+	
+	/**
+	 * Read a varint written by writeVarLong.
+	 * 
+	 * @param in Source.
+	 * @return The value read.
+	 * @throws IOException if the read failed or the varint is malformed.
+	 */
+	public static long readVarLong(DataInput in) throws IOException {
+		long v = 0L;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			v |= ((long) (b & 0x7F)) << shift;
+			if ((b & 0x80) == 0) {
+				return v;
+			}
+		}
+		throw new IOException("Malformed varint.");
+	}
+	
+	/**
+	 * Compare two digests as unsigned byte strings, the order in which fingerprint files are sorted.
+	 * 
+	 * @param a First digest.
+	 * @param b Second digest, of the same length.
+	 * @return Negative, zero or positive as a is less than, equal to or greater than b.
+	 */
+	public static int compareUnsigned(byte[] a, byte[] b) {
+		for (int i = 0; i < a.length; i++) {
+			int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return 0;
+	}
+	
+	/**
+	 * Flush a file to stable storage and move it over its final name in one step, so readers
+	 * see either the old file or the complete new one.
+	 * 
+	 * @param out Stream of the temporary file. Closed by this method.
+	 * @param tmp Path of the temporary file.
+	 * @param target Final path.
+	 * @throws IOException if the sync or move failed.
+	 */
+	public static void commit(FileOutputStream out, Path tmp, Path target) throws IOException {
+		try {
+			out.flush();
+			out.getChannel().force(true);
+		} finally {
+			out.close();
+		}
+		Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+	
+	/**
+	 * Close and delete a temporary file that won't be committed, such as after a failed write.
+	 * 
+	 * @param out Stream of the temporary file. May already be closed.
+	 * @param tmp Path of the temporary file.
+	 * @throws IOException if the file couldn't be closed or deleted.
+	 */
+	public static void discard(FileOutputStream out, Path tmp) throws IOException {
+		try {
+			out.close();
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+}
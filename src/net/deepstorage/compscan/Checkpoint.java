@@ -0,0 +1,316 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.deepstorage.compscan.CompScan.Results;
+
+/**
+ * Periodic checkpoints of a running scan, so that a scan which dies can be resumed.
+ * 
+ * A checkpoint directory holds a state file and a series of journal segments. Each segment
+ * contains the hash counter increments made since the previous checkpoint, so taking a checkpoint
+ * only costs the scanning thread a snapshot of the counters and a swap of the increment map; the
+ * segment and the state file are written by a background thread. The state file records the
+ * configuration, the counters, the position in the stream, and how many segments belong to the
+ * checkpoint. It is replaced atomically after its segments are on disk, so a crash at any point
+ * leaves the previous checkpoint intact.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+public class Checkpoint implements AutoCloseable {
+	// Default checkpoint directory name, created inside pathOut.
+	public static final String DIRECTORY_NAME = "compscan.checkpoint";
+	
+	private static final int STATE_MAGIC = 0x43534350; // "CSCP"
+	private static final int JOURNAL_MAGIC = 0x43534A4C; // "CSJL"
+	private static final int VERSION = 3;
+	private static final String STATE_FILE = "state";
+	private static final String JOURNAL_PREFIX = "journal.";
+	private static final String TMP_SUFFIX = ".tmp";
+	
+	private final Path dir;
+	private final String config;
+	private final ExecutorService writer;
+	private Future<?> pending;
+	private int segments;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param dir Checkpoint directory. Created if it doesn't exist.
+	 * @param config Description of the scan configuration. A checkpoint can only be resumed by a
+	 *               scan with the same configuration.
+	 * @throws IOException if the directory couldn't be created.
+	 */
+	public Checkpoint(Path dir, String config) throws IOException {
+		this.dir = dir;
+		this.config = config;
+		Files.createDirectories(dir);
+		writer = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "CompScan checkpoint writer");
+			t.setDaemon(true);
+			return t;
+		});
+		pending = null;
+		segments = 0;
+	}
+	
+	/**
+	 * Check whether a checkpoint directory holds a usable checkpoint.
+	 * 
+	 * @param dir Checkpoint directory.
+	 * @return True if the state file exists.
+	 */
+	public static boolean exists(Path dir) {
+		return Files.isRegularFile(dir.resolve(STATE_FILE));
+	}
+	
+	/**
+	 * Load the last checkpoint into a Results object and return the position at which to resume.
+	 * 
+	 * @param r Results object to restore. Its counters are replaced and the journaled hash
+	 *          counts are added to it.
+	 * @return Position at which to resume the scan.
+	 * @throws IOException if the checkpoint is unreadable or was written by a different configuration.
+	 */
+	public Position load(Results r) throws IOException {
+		Position p;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				Files.newInputStream(dir.resolve(STATE_FILE))))) {
+			if (in.readInt() != STATE_MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Checkpoint state file is not recognized.");
+			}
+			String savedConfig = in.readUTF();
+			if (!savedConfig.equals(config)) {
+				throw new IOException(
+						String.format(
+								"Checkpoint was written by a different configuration:%n    saved:   %s%n    current: %s",
+								savedConfig, config));
+			}
+			int keys = in.readInt();
+			for (int i = 0; i < keys; i++) {
+				r.set(in.readUTF(), in.readLong());
+			}
+			long filesDone = in.readLong();
+			long offset = in.readLong();
+			String current = in.readUTF();
+			segments = in.readInt();
+			p = new Position(filesDone, offset, current.isEmpty() ? null : current);
+		}
+		
+		for (int i = 0; i < segments; i++) {
+			readSegment(dir.resolve(JOURNAL_PREFIX + i), r);
+		}
+		// Remove segments left behind by a checkpoint that never got its state file written.
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, JOURNAL_PREFIX + "*")) {
+			for (Path f : ds) {
+				String suffix = f.getFileName().toString().substring(JOURNAL_PREFIX.length());
+				if (!suffix.matches("\\d+") || Integer.parseInt(suffix) >= segments) {
+					Files.delete(f);
+				}
+			}
+		}
+		return p;
+	}
+	
+	/**
+	 * Take a checkpoint. The counters and the hash increments are captured immediately; the
+	 * files are written in the background. If the previous checkpoint is still being written,
+	 * this waits for it first.
+	 * 
+	 * @param r Results object being scanned into. Must be tracking hash changes.
+	 * @param p Position in the stream up to which r is complete.
+	 * @throws IOException if the previous checkpoint failed to write.
+	 */
+	public void save(Results r, Position p) throws IOException {
+		awaitPending();
+		final Map<String, Long> counters = r.getCounters();
+		final FingerprintTable changes = r.takeHashChanges();
+		final int segment = segments++;
+		pending = writer.submit(() -> {
+			writeSegment(segment, changes);
+			writeState(counters, p, segment + 1);
+			return null;
+		});
+	}
+	
+	/**
+	 * Remove the checkpoint once the scan has completed and its results are saved.
+	 * 
+	 * @throws IOException if the files couldn't be removed.
+	 */
+	public void delete() throws IOException {
+		awaitPending();
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+			for (Path f : ds) {
+				Files.delete(f);
+			}
+		}
+		Files.delete(dir);
+	}
+	
+	@Override
+	public void close() throws IOException {
+		try {
+			awaitPending();
+		} finally {
+			writer.shutdown();
+		}
+	}
+	
+	/**
+	 * Wait for the checkpoint being written in the background, if any.
+	 * 
+	 * @throws IOException if it failed.
+	 */
+	private void awaitPending() throws IOException {
+		if (pending == null) {
+			return;
+		}
+		try {
+			pending.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing checkpoint.", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Unable to write checkpoint.", e.getCause());
+		} finally {
+			pending = null;
+		}
+	}
+	
+	/**
+	 * Write one journal segment.
+	 * 
+	 * @param segment Segment number.
+	 * @param changes Hash counter increments to write.
+	 * @throws IOException if the write failed.
+	 */
+	private void writeSegment(int segment, FingerprintTable changes) throws IOException {
+		Path target = dir.resolve(JOURNAL_PREFIX + segment);
+		Path tmp = dir.resolve(JOURNAL_PREFIX + segment + TMP_SUFFIX);
+		FileOutputStream fos = new FileOutputStream(tmp.toFile());
+		boolean committed = false;
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+			out.writeInt(JOURNAL_MAGIC);
+			out.writeInt(changes.isEmpty() ? 0 : changes.getDigestLength());
+			out.writeLong(changes.size());
+			changes.visit((digest, count) -> {
+				out.write(digest);
+				BinaryIO.writeVarLong(out, count);
+			});
+			out.flush();
+			BinaryIO.commit(fos, tmp, target);
+			committed = true;
+		} finally {
+			if (!committed) {
+				// Don't leave a partial segment behind.
+				BinaryIO.discard(fos, tmp);
+			}
+		}
+	}
+	
+	/**
+	 * Read one journal segment into a Results object.
+	 * 
+	 * @param f Segment file.
+	 * @param r Results object to update.
+	 * @throws IOException if the segment is unreadable.
+	 */
+	private static void readSegment(Path f, Results r) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(f), 1 << 16))) {
+			if (in.readInt() != JOURNAL_MAGIC) {
+				throw new IOException(String.format("Checkpoint journal \"%s\" is not recognized.", f));
+			}
+			byte[] digest = new byte[in.readInt()];
+			long entries = in.readLong();
+			for (long i = 0; i < entries; i++) {
+				in.readFully(digest);
+				r.updateHash(digest, BinaryIO.readVarLong(in));
+			}
+		}
+	}
+	
+	/**
+	 * Write the state file that makes a checkpoint current.
+	 * 
+	 * @param counters Counters to save.
+	 * @param p Position in the stream.
+	 * @param segments Number of journal segments that belong to this checkpoint.
+	 * @throws IOException if the write failed.
+	 */
+	private void writeState(Map<String, Long> counters, Position p, int segments) throws IOException {
+		Path target = dir.resolve(STATE_FILE);
+		Path tmp = dir.resolve(STATE_FILE + TMP_SUFFIX);
+		FileOutputStream fos = new FileOutputStream(tmp.toFile());
+		boolean committed = false;
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+			out.writeInt(STATE_MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(config);
+			out.writeInt(counters.size());
+			for (Map.Entry<String, Long> e : counters.entrySet()) {
+				out.writeUTF(e.getKey());
+				out.writeLong(e.getValue());
+			}
+			out.writeLong(p.filesDone);
+			out.writeLong(p.offset);
+			out.writeUTF(p.current == null ? "" : p.current);
+			out.writeInt(segments);
+			out.flush();
+			BinaryIO.commit(fos, tmp, target);
+			committed = true;
+		} finally {
+			if (!committed) {
+				// Don't leave a partial state file behind.
+				BinaryIO.discard(fos, tmp);
+			}
+		}
+	}
+	
+	/**
+	 * A position in a FileWalkerStream: the number of files fully read, plus the number of bytes
+	 * read from the next one.
+	 */
+	public static class Position {
+		public final long filesDone;
+		public final long offset;
+		public final String current;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param filesDone Number of files handed out by the walker and fully read.
+		 * @param offset Bytes already read from the next file.
+		 * @param current Path of the next file if offset > 0, used to detect a changed datastore.
+		 */
+		public Position(long filesDone, long offset, String current) {
+			this.filesDone = filesDone;
+			this.offset = offset;
+			this.current = current;
+		}
+	}
+}
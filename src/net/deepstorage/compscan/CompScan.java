@@ -9,13 +9,16 @@ package net.deepstorage.compscan;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -26,6 +29,8 @@ import java.util.stream.Collectors;
 import net.deepstorage.compscan.Compressor.BufferLengthException;
 import net.deepstorage.compscan.Compressor.CompressionInfo;
 import net.deepstorage.compscan.FileScanner.NoNextFileException;
+import net.deepstorage.compscan.FingerprintExport.ExportMode;
+import net.deepstorage.compscan.HardLinkTracker.HardLinkPolicy;
 
 /**
  * CompScan's main class.
@@ -43,10 +48,28 @@ public class CompScan {
 	};
 	// Symbolic constant representing unthrottled IO rate.
 	public static final double UNLIMITED = 0.0;
+	// Symbolic constant representing a full (unsampled) scan.
+	public static final double FULL_SCAN = 0.0;
+	// Symbolic constant for disabling checkpoints.
+	public static final double NO_CHECKPOINTS = 0.0;
+	// Symbolic constant for compressing every superblock regardless of entropy (8 bits/byte is the maximum).
+	public static final double NO_ENTROPY_SKIP = 8.0;
+	// Symbolic constant for disabling the superblock size cache.
+	public static final int NO_SIZE_CACHE = 0;
+	// Default number of superblock sizes to cache (about 20 MB).
+	public static final int DEFAULT_SIZE_CACHE_ENTRIES = 1 << 20;
+	// Symbolic constant for running the scan in this process rather than coordinating workers.
+	public static final int NO_COORDINATOR = -1;
+	// Minutes between checkpoints when --resume is given without --checkpoint.
+	public static final double DEFAULT_CHECKPOINT_MINUTES = 10.0;
 	// Subpackage prefix for the compression package.
 	public static final String COMPRESSION_SUBPACKAGE = "compress";
 	// Symbolic constant for 1 million bytes (1 MB), the default input buffer size.
 	public static final int ONE_MB = 1_000_000;
+	// Alignment of every read in DEVICE mode, in bytes.
+	public static final int DEVICE_ALIGNMENT = 4096;
+	// Default input buffer size in DEVICE mode (8 MiB), so the device sees large sequential reads.
+	public static final int DEVICE_BUFFER_SIZE = 8 * 1024 * 1024;
 	
 	private final Date date;
 	
@@ -65,13 +88,31 @@ public class CompScan {
 	private boolean verbose;
 	private MutableCounter hashCounter;
 	private boolean printUsage;
+	private double sampleFraction;
+	private long sampleSeed;
+	private double checkpointMinutes;
+	private boolean resume;
+	private Path cachePath;
+	private HardLinkPolicy hardLinkPolicy;
+	private double entropyThreshold;
+	private int sizeCacheEntries;
+	private ExportMode exportMode;
+	private SuperblockTable superblockTable;
+	private int coordinatorPort;
+	private boolean progress;
+	private GroupReport groupReport;
+	private WalkFilter walkFilter;
+	private int fingerprintBits;
+	private boolean quiet;
+	private List<Results> diskResults;
 	
 	/**
-	 * Default constructor.
+	 * Default constructor. Deliberately package-private so ScanService can create scans.
 	 * 
 	 * @param args CLI arguments.
+	 * @throws IllegalArgumentException if an argument is invalid or unrecognized.
 	 */
-	private CompScan(String[] args) throws IllegalArgumentException {
+	CompScan(String[] args) throws IllegalArgumentException {
 		ioRate = UNLIMITED;
 		pathIn = null;
 		pathOut = null;
@@ -84,6 +125,23 @@ public class CompScan {
 		printHashes = false;
 		verbose = false;
 		printUsage = false;
+		sampleFraction = FULL_SCAN;
+		sampleSeed = 0L;
+		checkpointMinutes = NO_CHECKPOINTS;
+		resume = false;
+		cachePath = null;
+		hardLinkPolicy = HardLinkPolicy.READ;
+		entropyThreshold = NO_ENTROPY_SKIP;
+		sizeCacheEntries = DEFAULT_SIZE_CACHE_ENTRIES;
+		exportMode = ExportMode.NONE;
+		superblockTable = null;
+		coordinatorPort = NO_COORDINATOR;
+		progress = false;
+		groupReport = null;
+		walkFilter = null;
+		fingerprintBits = FingerprintTable.DEFAULT_BITS;
+		quiet = false;
+		diskResults = null;
 		
 		setupLock = false;
 		date = Calendar.getInstance().getTime();
@@ -106,11 +164,28 @@ public class CompScan {
 	 * @param printHashes Whether or not to print the hash table.
 	 * @param verbose Whether or not to enable verbose console logging.
 	 * @param printUsage Whether or not to include estimated memory usage in console output.
+	 * @param sampleFraction Fraction of superblocks to sample (FULL_SCAN = read everything).
+	 * @param sampleSeed Seed for choosing the sampled superblocks.
+	 * @param checkpointMinutes Minutes between checkpoints (NO_CHECKPOINTS = never).
+	 * @param resume Whether to resume from the last checkpoint.
+	 * @param cachePath Per-file cache for incremental rescans, or null to scan everything.
+	 * @param hardLinkPolicy What to do with repeated hard links.
+	 * @param entropyThreshold Entropy in bits per byte above which superblocks aren't compressed.
+	 * @param sizeCacheEntries Number of superblock sizes to cache (NO_SIZE_CACHE = none).
+	 * @param exportMode What to export to the fingerprint file at the end of the scan.
+	 * @param coordinatorPort Port on which to coordinate workers (NO_COORDINATOR = scan in this process).
+	 * @param progress Whether to pre-walk the dataset to show the percentage done and an ETA, and keep a progress file.
+	 * @param groupReport Per-group breakdown of the results, or null for totals only.
+	 * @param walkFilter Include/exclude rules applied during the walk, or null to walk everything.
+	 * @param fingerprintBits Number of bits of each block's SHA-1 digest to keep as its fingerprint.
 	 * @throws Exception if called more than once.
 	 */
 	void setup(double ioRate, Path pathIn, Path pathOut, ScanMode scanMode, int blockSize, int superblockSize,
 			int bufferSize, boolean overwriteOK, Compressor compressor, boolean printHashes, boolean verbose,
-			boolean printUsage) {
+			boolean printUsage, double sampleFraction, long sampleSeed, double checkpointMinutes, boolean resume,
+			Path cachePath, HardLinkPolicy hardLinkPolicy, double entropyThreshold, int sizeCacheEntries,
+			ExportMode exportMode, int coordinatorPort, boolean progress, GroupReport groupReport,
+			WalkFilter walkFilter, int fingerprintBits) {
 		if (setupLock) {
 			System.err.println("CompScan.setup cannot be called more than once.");
 			System.exit(1);
@@ -127,29 +202,48 @@ public class CompScan {
 		this.printHashes = printHashes;
 		this.verbose = verbose;
 		this.printUsage = printUsage;
+		this.sampleFraction = sampleFraction;
+		this.sampleSeed = sampleSeed;
+		this.checkpointMinutes = checkpointMinutes;
+		this.resume = resume;
+		this.cachePath = cachePath;
+		this.hardLinkPolicy = hardLinkPolicy;
+		this.entropyThreshold = entropyThreshold;
+		this.sizeCacheEntries = sizeCacheEntries;
+		this.exportMode = exportMode;
+		this.coordinatorPort = coordinatorPort;
+		this.progress = progress;
+		this.groupReport = groupReport;
+		this.walkFilter = walkFilter;
+		this.fingerprintBits = fingerprintBits;
 		setupLock = true;
 	}
 	
 	/**
-	 * Run scan.
+	 * Suppress the interactive progress line and the final printout of the results, for scans
+	 * run as jobs of the ScanService. The progress file is still written if requested.
+	 * 
+	 * @param quiet Whether to suppress the console output.
+	 */
+	void setQuiet(boolean quiet) {
+		this.quiet = quiet;
+	}
+	
+	/**
+	 * Getter for the per-disk results of a VMDK-mode scan.
+	 * 
+	 * @return Results of each virtual disk, or null if the scan wasn't in VMDK mode.
+	 */
+	List<Results> getDiskResults() {
+		return diskResults;
+	}
+	
+	/**
+	 * Run scan, exiting with an error message if it fails.
 	 */
 	private void run() {
-		System.out.format("Starting run.%n%n");
-
-		Results results = new Results(pathOut.getFileName().toString(), date);
-		results.set("block size", blockSize);
-		results.set("superblock size", superblockSize);
-		
-		hashCounter = new MutableCounter();
-		ConsoleDisplayThread cdt = new ConsoleDisplayThread(results, hashCounter, printUsage);
-
 		try {
-			FileScanner fs = new FileScanner(pathIn, blockSize, bufferSize, ioRate, compressor, results, hashCounter, verbose);
-			cdt.start();
-			fs.scan();
-			if (printHashes) {
-				results.printHashes();
-			}
+			scan();
 		} catch (IOException e) {
 			System.err.format("A filesystem IO error ocurred.%n%n");
 			e.printStackTrace();
@@ -162,33 +256,235 @@ public class CompScan {
 			System.err.println(e.getMessage());
 			System.exit(1);
 		}
+	}
+	
+	/**
+	 * Run the scan in the selected mode and save the output. Deliberately package-private so that
+	 * the ScanService can run it without the process exiting on an error.
+	 * 
+	 * @return Results object with the totals.
+	 * @throws IOException if an IO error occurred while scanning or saving the output.
+	 * @throws BufferLengthException if the buffer is the wrong size.
+	 * @throws NoNextFileException if pathIn contains nothing to scan.
+	 */
+	Results scan() throws IOException, BufferLengthException, NoNextFileException {
+		return (scanMode == ScanMode.VMDK ? runVMDKMode() : runNormalMode());
+	}
+	
+	/**
+	 * Run a scan in NORMAL or DEVICE mode.
+	 * 
+	 * @return Results object with the totals.
+	 * @throws IOException if an IO error occurred while scanning or saving the output.
+	 * @throws BufferLengthException if the buffer is the wrong size.
+	 * @throws NoNextFileException if pathIn contains nothing to scan.
+	 */
+	private Results runNormalMode() throws IOException, BufferLengthException, NoNextFileException {
+		System.out.format("Starting run.%n%n");
+
+		Results results = new Results(pathOut.getFileName().toString(), date);
+		results.set("block size", blockSize);
+		results.set("superblock size", superblockSize);
 		
-		cdt.interrupt();
+		hashCounter = new MutableCounter();
+		compressor.setEntropyThreshold(entropyThreshold);
+		compressor.setFingerprintBits(fingerprintBits);
+		// The workers of a distributed scan have their own size caches and report their hits.
+		SizeCache sizeCache = (sizeCacheEntries != NO_SIZE_CACHE && coordinatorPort == NO_COORDINATOR ?
+				new SizeCache(sizeCacheEntries) : null);
+		compressor.setSizeCache(sizeCache);
+		if (exportMode == ExportMode.SIZES) {
+			superblockTable = new SuperblockTable();
+			compressor.setSuperblockTable(superblockTable);
+		}
+		ConsoleDisplayThread cdt = new ConsoleDisplayThread(results, hashCounter, printUsage);
+		cdt.setQuiet(quiet);
+		setProgress(cdt);
+		Checkpoint checkpoint = null;
+		ScanCache cache = null;
+
 		try {
-			cdt.join();
-		} catch (InterruptedException e) {
-			// Nothing to do.
+			if (coordinatorPort != NO_COORDINATOR) {
+				Coordinator coordinator = new Coordinator(pathIn, scanMode,
+						(hardLinkPolicy != HardLinkPolicy.READ
+								? new HardLinkTracker(hardLinkPolicy, blockSize, fingerprintBits) : null),
+						verbose, compressor, bufferSize, ioRate, entropyThreshold, sizeCacheEntries);
+				coordinator.setWalkFilter(walkFilter);
+				cdt.start();
+				coordinator.run(coordinatorPort, results, hashCounter);
+			} else {
+				FileScanner fs = new FileScanner(pathIn, scanMode, blockSize, bufferSize, ioRate, compressor, results, hashCounter, verbose);
+				fs.setSampling(sampleFraction, sampleSeed);
+				if (hardLinkPolicy != HardLinkPolicy.READ) {
+					fs.setHardLinkTracker(new HardLinkTracker(hardLinkPolicy, blockSize, fingerprintBits));
+				}
+				fs.setGroupReport(groupReport);
+				fs.setWalkFilter(walkFilter);
+				if (checkpointMinutes != NO_CHECKPOINTS || resume) {
+					checkpoint = openCheckpoint(results, fs);
+				}
+				if (cachePath != null) {
+					cache = new ScanCache(cachePath, String.format("%d|%d|%s|%s%s",
+							blockSize, superblockSize, compressor.getFormatString(), entropyThreshold, bitsConfig()));
+					fs.setCache(cache);
+				}
+				cdt.start();
+				fs.scan();
+				if (cache != null) {
+					cache.commit();
+				}
+			}
+			reportEntropySkipped(results);
+			reportFingerprintBits(results, results.getHashes().size(), fingerprintBits);
+			if (sizeCache != null) {
+				sizeCache.report(results);
+			}
+			if (printHashes) {
+				results.printHashes();
+			}
+		} finally {
+			// Release everything even if the scan failed, since a ScanService keeps running.
+			if (checkpoint != null) {
+				checkpoint.close();
+			}
+			if (cache != null) {
+				cache.close();
+			}
+			stopDisplay(cdt);
+			compressor.close();
 		}
 		
 		// Save results.
 		try {
 			writeResults("totals.csv", results.toString(), overwriteOK);
-			writeResults("hashes.csv", results.makeHashCounterString(), overwriteOK);
+			writeResults("hashes.csv", results::writeHashCounters, overwriteOK);
+			writeFingerprints(FingerprintExport.FILE_NAME, results);
+			writeResults("entropy.csv", compressor.makeEntropyString(), overwriteOK);
+			if (groupReport != null) {
+				writeResults(GroupReport.FILE_NAME, groupReport::write, overwriteOK);
+			}
 			System.out.println(
 					String.format(
 							"%n--> Output saved in \"%s\".%n", pathOut));
+			if (checkpoint != null) {
+				checkpoint.delete();
+			}
 		} catch (IOException e) {
 			System.err.println("Unable to save output.");
-			e.printStackTrace();
+			throw e;
 		} finally {
-			System.out.println(results.toString());
+			if (!quiet) {
+				System.out.println(results.toString());
+			}
 		}
+		return results;
+	}
+	
+	/**
+	 * Stop the console display and wait for it to write its last progress.
+	 * 
+	 * @param cdt ConsoleDisplayThread of the scan.
+	 */
+	private void stopDisplay(ConsoleDisplayThread cdt) {
+		cdt.interrupt();
+		try {
+			cdt.join();
+		} catch (InterruptedException e) {
+			// Nothing to do.
+		}
+	}
+	
+	/**
+	 * Attach a pre-walk and the progress file to the console display, if progress was requested.
+	 * 
+	 * @param cdt ConsoleDisplayThread of the scan.
+	 */
+	private void setProgress(ConsoleDisplayThread cdt) {
+		if (progress) {
+			cdt.setProgress(new PreWalker(pathIn, scanMode, blockSize, superblockSize, walkFilter),
+					(sampleFraction != FULL_SCAN ? sampleFraction : 1.0),
+					pathOut.resolve(ConsoleDisplayThread.PROGRESS_FILE));
+		}
+	}
+	
+	/**
+	 * Record how many superblocks the entropy threshold kept from being compressed.
+	 * 
+	 * @param results Results object to add the count to.
+	 */
+	private void reportEntropySkipped(Results results) {
+		if (entropyThreshold != NO_ENTROPY_SKIP) {
+			results.setExtra("entropy skipped superblocks", String.valueOf(compressor.getEntropySkipped()));
+		}
+	}
+	
+	/**
+	 * Record the fingerprint width and the number of unique blocks it is expected to have merged
+	 * by mistake, if the fingerprints were truncated. Deliberately package-private so that
+	 * FingerprintMerge can report the same for merged exports.
+	 * 
+	 * @param results Results object to add the columns to.
+	 * @param unique Number of unique fingerprints in the scan.
+	 * @param fingerprintBits Width of the fingerprints in bits.
+	 */
+	static void reportFingerprintBits(Results results, long unique, int fingerprintBits) {
+		if (fingerprintBits != FingerprintTable.DEFAULT_BITS) {
+			double falseMerges = FingerprintTable.expectedFalseMerges(unique, fingerprintBits);
+			results.setExtra("fingerprint bits", String.valueOf(fingerprintBits));
+			results.setExtra("expected false merges", String.valueOf(falseMerges));
+			results.setExtra("false merge rate", String.valueOf(unique == 0 ? 0.0 : falseMerges / unique));
+		}
+	}
+	
+	/**
+	 * Describe the fingerprint width for the checkpoint and cache configurations, which only
+	 * mention it if it isn't the default so that existing checkpoints and caches stay valid.
+	 * 
+	 * @return "|BITS", or an empty string for full digests.
+	 */
+	private String bitsConfig() {
+		return (fingerprintBits != FingerprintTable.DEFAULT_BITS ? "|" + fingerprintBits : "");
+	}
+	
+	/**
+	 * Open the checkpoint directory inside pathOut and attach it to a FileScanner, loading the
+	 * last checkpoint into the results first if resuming.
+	 * 
+	 * @param results Results object the scan will update.
+	 * @param fs FileScanner that will run the scan.
+	 * @return The open Checkpoint.
+	 * @throws IOException if the checkpoint couldn't be opened or loaded.
+	 */
+	private Checkpoint openCheckpoint(Results results, FileScanner fs) throws IOException {
+		Path dir = pathOut.resolve(Checkpoint.DIRECTORY_NAME);
+		String config = String.format("%s|%s|%d|%d|%s|%s%s%s",
+				pathIn.toAbsolutePath(), scanMode, blockSize, superblockSize, compressor.getFormatString(),
+				entropyThreshold, bitsConfig(), (walkFilter != null ? "|" + walkFilter : ""));
+		Checkpoint checkpoint = new Checkpoint(dir, config);
+		Checkpoint.Position start = null;
+		if (resume) {
+			if (!Checkpoint.exists(dir)) {
+				throw new IOException(String.format("No checkpoint to resume from in \"%s\".", dir));
+			}
+			start = checkpoint.load(results);
+			System.out.format("Resuming after %d files and %d bytes read.%n%n",
+					start.filesDone, results.get("bytes read"));
+		}
+		results.trackHashChanges();
+		double minutes = (checkpointMinutes != NO_CHECKPOINTS ? checkpointMinutes : DEFAULT_CHECKPOINT_MINUTES);
+		fs.setCheckpoint(checkpoint, (long) (minutes * 60_000), start);
+		return checkpoint;
 	}
 	
 	/**
 	 * Run VMDK-mode scan.
+	 * 
+	 * @return Results object with the totals; the per-disk results are kept for getDiskResults.
+	 * @throws IOException if an IO error occurred while scanning or saving the output.
+	 * @throws BufferLengthException if the buffer is the wrong size.
+	 * @throws NoNextFileException if pathIn contains no virtual disks.
 	 */
-	private void runVMDKMode() {
+	private Results runVMDKMode() throws IOException, BufferLengthException, NoNextFileException {
 		System.out.format("Starting run.%n%n");
 		
 		Results totals = new Results(pathOut.getFileName().toString(), date);
@@ -196,48 +492,69 @@ public class CompScan {
 		totals.set("superblock size", superblockSize);
 		
 		List<Results> allResults = new LinkedList<>();
+		diskResults = allResults;
 		
 		hashCounter = new MutableCounter();
-		ConsoleDisplayThread cdt = new ConsoleDisplayThread(totals, hashCounter, printUsage);
-		
-		try {
-			FileScanner fs = new FileScanner(pathIn, blockSize, bufferSize, ioRate, compressor, totals, hashCounter, verbose);
-			cdt.start();
-			fs.scanVMDKMode(allResults, this, printHashes);
-		} catch (IOException e) {
-			System.err.format("A filesystem IO error ocurred.%n%n");
-			e.printStackTrace();
-			System.exit(1);
-		} catch (BufferLengthException e) {
-			System.err.format("The input buffer is the wrong size.%n%n");
-			e.printStackTrace();
-			System.exit(1);
-		} catch (NoNextFileException e) {
-			System.err.println(e.getMessage());
-			System.exit(1);
+		compressor.setEntropyThreshold(entropyThreshold);
+		compressor.setFingerprintBits(fingerprintBits);
+		SizeCache sizeCache = (sizeCacheEntries != NO_SIZE_CACHE ? new SizeCache(sizeCacheEntries) : null);
+		compressor.setSizeCache(sizeCache);
+		if (exportMode == ExportMode.SIZES) {
+			superblockTable = new SuperblockTable();
+			compressor.setSuperblockTable(superblockTable);
 		}
+		// The hash counter is reset for every disk, so the dedupe factor shown is the current disk's.
+		MutableCounter blockCounter = new MutableCounter();
+		ConsoleDisplayThread cdt = new ConsoleDisplayThread(totals, hashCounter, printUsage);
+		cdt.setBlockCounter(blockCounter);
+		cdt.setQuiet(quiet);
+		setProgress(cdt);
 		
-		cdt.interrupt();
 		try {
-			cdt.join();
-		} catch (InterruptedException e) {
-			// Nothing to do.
+			FileScanner fs = new FileScanner(pathIn, scanMode, blockSize, bufferSize, ioRate, compressor, totals, hashCounter, verbose);
+			fs.setBlockCounter(blockCounter);
+			// Deduplicates the disks against each other on disk, since their hashes are released one by one.
+			fs.setWalkFilter(walkFilter);
+			try (DedupeIndex dedupeIndex = new DedupeIndex(pathOut, blockSize)) {
+				fs.setDedupeIndex(dedupeIndex);
+				cdt.start();
+				fs.scanVMDKMode(allResults, this, printHashes);
+				dedupeIndex.report(allResults, totals);
+			}
+			reportEntropySkipped(totals);
+			reportFingerprintBits(totals, Long.parseLong(totals.getExtra("estate unique blocks")), fingerprintBits);
+			if (sizeCache != null) {
+				sizeCache.report(totals);
+			}
+		} finally {
+			stopDisplay(cdt);
+			compressor.close();
 		}
 		
 		// Save results.
-		String resultString = makeVMDKResultString(allResults, totals);
 		try {
-			writeResults("totals.csv", resultString, overwriteOK);
+			writeResults("totals.csv", w -> writeVMDKResults(w, allResults, totals), overwriteOK);
+			writeResults("entropy.csv", compressor.makeEntropyString(), overwriteOK);
 			System.out.println(
 					String.format(
 							"%n--> Output saved in \"%s\".%n", pathOut));
 			// Hash results are saved incrementally in VMDK mode, so don't need to do anything here.
 		} catch (IOException e) {
 			System.err.println("Unable to save output.");
-			e.printStackTrace();
+			throw e;
 		} finally {
-			System.out.println(resultString);
+			if (!quiet) {
+				PrintWriter out = new PrintWriter(System.out);
+				try {
+					writeVMDKResults(out, allResults, totals);
+				} catch (IOException e) {
+					// PrintWriter doesn't throw.
+				}
+				out.println();
+				out.flush();
+			}
 		}
+		return totals;
 	}
 	
 	/**
@@ -247,17 +564,34 @@ public class CompScan {
 	 * @param totals Results object containing the aggregate results.
 	 */
 	public String makeVMDKResultString(List<Results> allResults, Results totals) {
-		List<String> lines = new LinkedList<>();
-		lines.add(totals.makeHeadingString());
-		lines.addAll(
-				allResults.stream()
-				.map(r -> r.makeValueString())
-				.collect(Collectors.toList()));
-		lines.add("");
-		lines.add("--- Totals ---");
-		lines.add(totals.makeValueString());
-		
-		return String.join(System.lineSeparator(), lines);
+		StringWriter sw = new StringWriter();
+		try {
+			writeVMDKResults(sw, allResults, totals);
+		} catch (IOException e) {
+			// StringWriter doesn't throw.
+		}
+		return sw.toString();
+	}
+	
+	/**
+	 * Write VMDK scan results in the output CSV format one row at a time.
+	 * 
+	 * @param w Writer to write to; should be buffered.
+	 * @param allResults List of Results objects containing the intermediate results.
+	 * @param totals Results object containing the aggregate results.
+	 * @throws IOException if an IO error occurred.
+	 */
+	public static void writeVMDKResults(Writer w, List<Results> allResults, Results totals) throws IOException {
+		w.write(totals.makeHeadingString());
+		for (Results r : allResults) {
+			w.write(System.lineSeparator());
+			w.write(r.makeValueString());
+		}
+		w.write(System.lineSeparator());
+		w.write(System.lineSeparator());
+		w.write("--- Totals ---");
+		w.write(System.lineSeparator());
+		w.write(totals.makeValueString());
 	}
 	
 	/**
@@ -269,6 +603,51 @@ public class CompScan {
 	 * @throws IOException if an IO error occurred.
 	 */
 	public String writeResults(String name, String resultString, boolean overwriteOK) throws IOException {
+		return writeResults(name, w -> w.write(resultString), overwriteOK);
+	}
+	
+	/**
+	 * Save the results to a CSV file, streaming them through a buffered writer so that large
+	 * outputs never have to be built up in memory.
+	 * 
+	 * @param name Filename.
+	 * @param writer Writes the contents of the file.
+	 * @return The actual path where the file was saved. Might not be the same as pathOut if pathOut already exists.
+	 * @throws IOException if an IO error occurred.
+	 */
+	public String writeResults(String name, ResultWriter writer, boolean overwriteOK) throws IOException {
+		return writeResults(pathOut, name, writer, overwriteOK);
+	}
+	
+	/**
+	 * Save results to a CSV file in a given directory.
+	 * 
+	 * @param pathOut Directory to save the file in.
+	 * @param name Filename.
+	 * @param writer Writes the contents of the file.
+	 * @param overwriteOK Whether an existing file may be replaced. If not, a number is added to the name.
+	 * @return The actual path where the file was saved.
+	 * @throws IOException if an IO error occurred.
+	 */
+	public static String writeResults(Path pathOut, String name, ResultWriter writer, boolean overwriteOK)
+			throws IOException {
+		Path writePath = resolveOutput(pathOut, name, overwriteOK);
+		try (BufferedWriter bw = Files.newBufferedWriter(writePath)) {
+			writer.write(bw);
+		}
+		return writePath.toString();
+	}
+	
+	/**
+	 * Choose the path of an output file, adding a number to the name if the file exists and
+	 * overwriting isn't allowed.
+	 * 
+	 * @param pathOut Directory to save the file in.
+	 * @param name Filename.
+	 * @param overwriteOK Whether an existing file may be replaced.
+	 * @return Path to save the file at.
+	 */
+	private static Path resolveOutput(Path pathOut, String name, boolean overwriteOK) {
 		Path writePath = pathOut.resolve(name);
 		if (Files.exists(writePath) && !overwriteOK) {
 			int i = 0;
@@ -276,18 +655,31 @@ public class CompScan {
 			while (Files.exists(writePath)) {
 				i++;
 				String pathString = (partials.length < 2 ?
-						String.format("%1$s (%2$d).%3$s", partials[0], i, partials[1]) :
-							String.format("%1$s %2$d", partials[0], i));
+						String.format("%1$s %2$d", partials[0], i) :
+							String.format("%1$s (%2$d).%3$s", partials[0], i, partials[1]));
 				writePath = pathOut.resolve(pathString);
 			}
 		}
-		
-		try (BufferedWriter bw = Files.newBufferedWriter(writePath)) {
-			bw.write(resultString);
-		} catch (IOException e) {
-			throw e;
+		return writePath;
+	}
+	
+	/**
+	 * Save the fingerprint export of a Results object, if exporting is enabled. The superblock
+	 * table is emptied afterwards, so in VMDK mode each virtual disk gets only its own superblocks.
+	 * 
+	 * @param name Filename.
+	 * @param r Results object containing the hashes.
+	 * @throws IOException if an IO error occurred.
+	 */
+	private void writeFingerprints(String name, Results r) throws IOException {
+		if (exportMode == ExportMode.NONE) {
+			return;
+		}
+		FingerprintExport.write(resolveOutput(pathOut, name, overwriteOK), r, compressor.getFormatString(),
+				superblockTable);
+		if (superblockTable != null) {
+			superblockTable.clear();
 		}
-		return writePath.toString();
 	}
 	
 	/**
@@ -299,7 +691,8 @@ public class CompScan {
 	 * @throws IOException
 	 */
 	public String writeHashResults(Results r, Path p) throws IOException {
-		return writeResults(p.getFileName() + ".hash.csv", r.makeHashCounterString(), overwriteOK);
+		writeFingerprints(p.getFileName() + "." + FingerprintExport.FILE_NAME, r);
+		return writeResults(p.getFileName() + ".hash.csv", r::writeHashCounters, overwriteOK);
 	}
 	
 	/**
@@ -318,23 +711,85 @@ public class CompScan {
 	 */
 	public static void printHelp(String custom) {
 		System.out.format(
-				"Usage: CompScan [-h] [--help] [--vmdk] [--overwrite] [--rate MB_PER_SEC] [--buffer-size BUFFER_SIZE]%n"
+				"Usage: CompScan [-h] [--help] [--vmdk] [--device] [--overwrite] [--rate MB_PER_SEC] [--buffer-size BUFFER_SIZE]%n"
+			    + "                [--sample FRACTION] [--seed SEED] [--checkpoint MINUTES] [--resume]%n"
+			    + "                [--cache CACHE_FILE] [--hardlinks read|skip|count] [--entropy-skip BITS]%n"
+			    + "                [--size-cache ENTRIES] [--export blocks|sizes] [--coordinator PORT] [--progress]%n"
+			    + "                [--group-by dir:N|ext|owner[,...]] [--include PATTERN] [--exclude PATTERN]%n"
+			    + "                [--min-size BYTES] [--max-size BYTES] [--modified-after DATE] [--modified-before DATE]%n"
+			    + "                [--one-file-system] [--fingerprint-bits 64|96|128|160]%n"
 			    + "                pathIn pathOut blockSize superblockSize format%n"
+			    + "       CompScan merge [--overwrite] pathOut export...%n"
+			    + "       CompScan worker HOST[:PORT]%n"
+			    + "       CompScan generate [--seed SEED] [--files N] [--file-size MIN:MAX] [--images N] [--image-size BYTES]%n"
+			    + "                [--duplicates F] [--zeros F] [--text F] [--pool BLOCKS] [--threads N]%n"
+			    + "                pathOut blockSize superblockSize format%n"
+			    + "       CompScan serve [--port PORT] [--threads N] [--token-file FILE]%n"
 				+ "Positional Arguments%n"
 			    + "         pathIn            path to the dataset%n"
 				+ "         pathOut           where to save the output%n"
 				+ "         blockSize         bytes per block%n"
 			    + "         superblockSize    bytes per superblock%n"
-				+ "         formatString      compression format to use%n"
+				+ "         formatString      compression format to use (LZW, Deflate[:LEVEL[:STRATEGY]], GZIP[:LEVEL[:STRATEGY]],%n"
+				+ "                           LZ4, Snappy, None)%n"
 			    + "Optional Arguments%n"
 				+ "         -h, --help        print this help message%n"
 			    + "         --verbose         enable verbose console feedback (should only be used for debugging)%n"
 				+ "         --usage           enable printing of estimated memory usage (requires wide console)%n"
 			    + "         --vmdk            whether to report individual virtual disks separately%n"
+			    + "                           (sparse VMDK, VHD and VHDX images are read through their allocation tables)%n"
+			    + "         --device          scan pathIn as a single raw block device or image file%n"
 			    + "         --overwrite       whether overwriting the output file is allowed%n"
 				+ "         --rate MB_PER_SEC maximum MB/sec we're allowed to read%n"
 			    + "         --buffer-size BUFFER_SIZE size of the internal read buffer%n"
-				+ "         --hashes          print the hash table before exiting; the hashes are never saved to disk%n"
+				+ "         --hashes          print the hash table before exiting (see --export to save them)%n"
+				+ "         --sample FRACTION estimate from a stratified random sample of this fraction of the superblocks%n"
+				+ "         --seed SEED       seed for choosing the sampled superblocks (default: 0)%n"
+				+ "         --checkpoint MINUTES save a checkpoint in pathOut this often so the scan can be resumed%n"
+				+ "         --resume          resume from the checkpoint in pathOut%n"
+				+ "         --cache CACHE_FILE reuse and update per-file results of unchanged files (incremental rescan)%n"
+				+ "         --hardlinks read|skip|count read every hard link (default), or read each inode once and%n"
+				+ "                           skip the repeated links, or count them as fully deduplicated references%n"
+				+ "                           without reading them (not with --vmdk, --sample, --checkpoint, --resume,%n"
+				+ "                           --cache or --coordinator)%n"
+				+ "         --entropy-skip BITS record superblocks above BITS bits/byte of entropy as incompressible%n"
+				+ "                           without compressing them (e.g. 7.9)%n"
+				+ "         --size-cache ENTRIES remember the compressed size of this many recent superblocks so%n"
+				+ "                           repeats aren't compressed again (default: 1048576; 0 disables)%n"
+				+ "         --export blocks|sizes save the sorted block fingerprints and counts to fingerprints.bin,%n"
+				+ "                           and with sizes also each superblock's fingerprint and compressed size%n"
+				+ "         --coordinator PORT hand the scan out to worker processes connecting on this TCP port%n"
+				+ "                           instead of reading the data here (0 = any free port)%n"
+				+ "         --progress        walk pathIn's metadata alongside the scan to show the percentage done and%n"
+				+ "                           an ETA, and keep pathOut/progress.csv up to date%n"
+				+ "         --group-by dir:N|ext|owner[,...] also report each directory N levels below pathIn, file%n"
+				+ "                           extension and/or owner in groups.csv, with estimated per-group dedupe%n"
+				+ "         --include PATTERN only scan files whose name (or, if PATTERN has a '/', path below pathIn)%n"
+				+ "                           matches this glob; \"regex:\" selects a regular expression (repeatable)%n"
+				+ "         --exclude PATTERN skip matching files and prune matching directories unread (repeatable)%n"
+				+ "         --min-size BYTES, --max-size BYTES only scan files within this size range%n"
+				+ "         --modified-after DATE, --modified-before DATE only scan files last modified in this range%n"
+				+ "                           (yyyy-MM-dd or yyyy-MM-ddTHH:mm:ss, local time)%n"
+				+ "         --one-file-system don't descend into other mounted filesystems%n"
+				+ "         --fingerprint-bits 64|96|128|160 keep this many bits of each block's SHA-1 digest (default:%n"
+				+ "                           160); fewer bits fit more blocks in memory, and totals.csv reports the%n"
+				+ "                           expected number of blocks falsely counted as duplicates%n"
+				+ "Merge%n"
+				+ "         merge combines the exports (or directories of exports) of separate scans into one%n"
+				+ "         totals.csv and hashes.csv in pathOut, deduplicated across all of them, without rescanning%n"
+				+ "Worker%n"
+				+ "         worker connects to a coordinator (default port 7077) and scans the work it hands out%n"
+				+ "Generate%n"
+				+ "         generate writes a reproducible synthetic dataset to pathOut/data (N files of log-uniform size%n"
+				+ "                           between MIN and MAX bytes, and N images), in which the fraction F of blocks%n"
+				+ "                           given by --duplicates are copies from a pool of shared blocks, --zeros are%n"
+				+ "                           zero, and --text of the rest are text-like rather than random, and writes%n"
+				+ "                           the totals.csv and hashes.csv a scan of it must produce to pathOut/expected%n"
+				+ "Serve%n"
+				+ "         serve runs scans POSTed to http://127.0.0.1:PORT/scan (default port 7078), one argument per%n"
+				+ "                           line, N at a time (default: one per CPU), and answers with the totals as JSON;%n"
+				+ "                           requests must send the token written to FILE (default:%n"
+				+ "                           ~/.compscan-service-token) in an X-CompScan-Token header%n"
 			    );
 		// Short-circuits.
 		if (custom != null && custom.length() > 0) {
@@ -355,6 +810,22 @@ public class CompScan {
 	 * @param args CLI arguments.
 	 */
 	public static void main(String[] args) {
+		if (args.length > 0 && args[0].equals("merge")) {
+			FingerprintMerge.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args.length > 0 && args[0].equals("worker")) {
+			ScanWorker.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args.length > 0 && args[0].equals("generate")) {
+			DatasetGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args.length > 0 && args[0].equals("serve")) {
+			ScanService.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
 		CompScan cs = null;
 		try {
 			cs = new CompScan(args);
@@ -365,24 +836,20 @@ public class CompScan {
 			System.exit(1);
 		}
 		
-		if (cs.scanMode == ScanMode.VMDK) {
-			cs.runVMDKMode();
-		} else {
-			cs.run();
-		}
+		cs.run();
 	}
 	
 	/**
 	 * Nested enumeration for tracking the scan mode.
 	 */
 	public static enum ScanMode {
-		NORMAL, VMDK;
+		NORMAL, VMDK, DEVICE;
 	}
 	
 	/**
 	 * A simple inner class for keeping track of the current hash count.
 	 */
-	public class MutableCounter {
+	public static class MutableCounter {
 		private long c;
 		
 		public MutableCounter() {
@@ -406,6 +873,20 @@ public class CompScan {
 		}
 	}
 	
+	/**
+	 * Writes the contents of a results file.
+	 */
+	@FunctionalInterface
+	public interface ResultWriter {
+		/**
+		 * Write the contents.
+		 * 
+		 * @param w Writer for the results file.
+		 * @throws IOException if an IO error occurred.
+		 */
+		void write(Writer w) throws IOException;
+	}
+	
 	/**
 	 * A simple static nested class for encapsulating test results.
 	 */
@@ -424,7 +905,9 @@ public class CompScan {
 		private final String name;
 		private final String timestamp;
 		private Map<String, Long> map;
-		private Map<String, Long> hashes;
+		private Map<String, String> extras;
+		private FingerprintTable hashes;
+		private FingerprintTable changes;
 		
 		/**
 		 * Convenience constructor for creating a new Results object from a name
@@ -451,7 +934,9 @@ public class CompScan {
 			for (String s : KEYS) {
 				map.put(s, 0L);
 			}
-			hashes = new HashMap<>();
+			extras = new LinkedHashMap<>();
+			hashes = new FingerprintTable(FingerprintTable.DEFAULT_BITS);
+			changes = null;
 		}
 		
 		/**
@@ -480,6 +965,45 @@ public class CompScan {
 			return map.get(k);
 		}
 		
+		/**
+		 * Set an additional column. Extra columns are appended after the compression factors and
+		 * are only present for scans that produce them, such as sampled scans.
+		 * 
+		 * @param k Column heading.
+		 * @param v Formatted value.
+		 */
+		public void setExtra(String k, String v) {
+			extras.put(k, v);
+		}
+		
+		/**
+		 * Get the value of an additional column.
+		 * 
+		 * @param k Column heading.
+		 * @return Formatted value, or null if the column was never set.
+		 */
+		public String getExtra(String k) {
+			return extras.get(k);
+		}
+		
+		/**
+		 * Get a copy of all additional columns, in column order.
+		 * 
+		 * @return Map<String, String> of column headings to formatted values.
+		 */
+		public Map<String, String> getExtras() {
+			return new LinkedHashMap<>(extras);
+		}
+		
+		/**
+		 * Get a copy of all counters, in column order.
+		 * 
+		 * @return Map<String, Long> of counter names to values.
+		 */
+		public Map<String, Long> getCounters() {
+			return new LinkedHashMap<>(map);
+		}
+		
 		/**
 		 * Get the timestamp.
 		 * 
@@ -491,30 +1015,83 @@ public class CompScan {
 		
 		/**
 		 * Increase the hash counter for the specified hash. If the hash is not
-		 * already in the hashes map, it gets added first.
+		 * already in the hashes table, it gets added first.
 		 * 
-		 * @param hash Sha-1 hash to update.
+		 * @param digest Hash to update, truncated to the fingerprint width.
 		 * @param count Number to add to the hash counter.
+		 * @throws IllegalArgumentException if the digest is of a different width than the hashes
+		 *                                  already counted.
 		 */
-		public void updateHash(String hash, long count) {
-			if (!hashes.containsKey(hash)) {
-				hashes.put(hash, count);
-			} else {
-				hashes.put(hash, hashes.get(hash) + count);
+		public void updateHash(byte[] digest, long count) throws IllegalArgumentException {
+			matchWidth(digest.length * 8);
+			hashes.add(digest, count);
+			if (changes != null) {
+				changes.add(digest, count);
+			}
+		}
+		
+		/**
+		 * Start recording the increments made to the hash counters, so they can be collected
+		 * with takeHashChanges.
+		 */
+		public void trackHashChanges() {
+			if (changes == null) {
+				changes = new FingerprintTable(hashes.getBits());
+			}
+		}
+		
+		/**
+		 * Collect the hash counter increments made since tracking started or since the last call,
+		 * and start recording into a fresh table. Runs in constant time regardless of the number of
+		 * hashes, so it is safe to call from the scanning thread.
+		 * 
+		 * @return FingerprintTable of increments, or null if tracking is off.
+		 */
+		public FingerprintTable takeHashChanges() {
+			if (changes == null) {
+				return null;
 			}
+			FingerprintTable taken = changes;
+			changes = new FingerprintTable(hashes.getBits());
+			return taken;
 		}
 		
 		/**
-		 * Run updateHash on all entries in the specified map.
+		 * Add all entries of the specified table to the hash counters.
 		 * 
-		 * @param h Map<String, Long> containing counters for hash occurrences.
+		 * @param h FingerprintTable containing counters for hash occurrences.
+		 * @throws IllegalArgumentException if h is of a different width than the hashes already
+		 *                                  counted.
 		 */
-		public void updateHashes(Map<String, Long> h) {
-			if (h == null) {
+		public void updateHashes(FingerprintTable h) throws IllegalArgumentException {
+			if (h == null || h.isEmpty()) {
 				return;
 			}
-			for (Map.Entry<String, Long> e : h.entrySet()) {
-				updateHash(e.getKey(), e.getValue());
+			matchWidth(h.getBits());
+			hashes.addAll(h);
+			if (changes != null) {
+				changes.addAll(h);
+			}
+		}
+		
+		/**
+		 * Take on the fingerprint width of the first hashes counted, since it is set by the
+		 * Compressor or the file they were read from rather than by whoever creates the Results.
+		 * 
+		 * @param bits Width of the hashes about to be counted.
+		 * @throws IllegalArgumentException if hashes of another width have already been counted.
+		 */
+		private void matchWidth(int bits) throws IllegalArgumentException {
+			if (bits == hashes.getBits()) {
+				return;
+			}
+			if (!hashes.isEmpty()) {
+				throw new IllegalArgumentException(
+						String.format("Can't combine %d-bit fingerprints with %d-bit ones.", bits, hashes.getBits()));
+			}
+			hashes = new FingerprintTable(bits);
+			if (changes != null) {
+				changes = new FingerprintTable(bits);
 			}
 		}
 		
@@ -538,8 +1115,7 @@ public class CompScan {
 			addTo("compressed bytes", ci.compressedBytes);
 			addTo("compressed blocks", ci.compressedBlocks);
 			addTo("actual bytes needed", ci.actualBytes);
-			Map<String, Long> ciHashes = ci.getHashes();
-			updateHashes(ciHashes);
+			updateHashes(ci.getHashes());
 		}
 		
 		/**
@@ -555,9 +1131,9 @@ public class CompScan {
 		 * Feed another Results object into the Results to update the counters.
 		 * 
 		 * @param r Results object from which to update.
-		 * @param h Hashes map from which to update hashes.
+		 * @param h Hashes table from which to update hashes.
 		 */
-		public void feedOtherResults(Results r, Map<String, Long> h) {
+		public void feedOtherResults(Results r, FingerprintTable h) {
 			addTo("files read", r.get("files read"));
 			addTo("bytes read", r.get("bytes read"));
 			addTo("blocks read", r.get("blocks read"));
@@ -614,6 +1190,7 @@ public class CompScan {
 			headings.add(1, "timestamp");
 			headings.add("raw compression factor");
 			headings.add("superblock compression factor");
+			headings.addAll(extras.keySet());
 			return String.join(",",  headings);
 		}
 		
@@ -632,6 +1209,7 @@ public class CompScan {
 			values.add(1, timestamp);
 			values.add(String.valueOf(getRawCompressionFactor()));
 			values.add(String.valueOf(getSuperblockCompressionFactor()));
+			values.addAll(extras.values());
 			return String.join(",",  values);
 		}
 		
@@ -640,20 +1218,33 @@ public class CompScan {
 		 * 
 		 * @return A CSV-formatted string for the hash counters.
 		 */
-		public String makeHashCounterString() {			
-			Map<Long, Long> counters = getHashCounters();
-			
-			List<String> lines = new LinkedList<String>();
-			
-			lines.add("number of blocks,number of repeats");
-			lines.addAll(counters.entrySet()
-					.stream()
-					// Since the counters are returned as a mapping of no. of repeats --> no. of blocks, we need
-					// to print the values before the keys.
-					.map(e -> String.format("%d,%d", e.getValue(), e.getKey()))
-					.collect(Collectors.toList()));
-			
-			return String.join(System.lineSeparator(), lines);
+		public String makeHashCounterString() {
+			StringWriter sw = new StringWriter();
+			try {
+				writeHashCounters(sw);
+			} catch (IOException e) {
+				// StringWriter doesn't throw.
+			}
+			return sw.toString();
+		}
+		
+		/**
+		 * Write the hash counters in CSV format without building the whole output in memory.
+		 * 
+		 * @param w Writer to write to; should be buffered.
+		 * @throws IOException if an IO error occurred.
+		 */
+		public void writeHashCounters(Writer w) throws IOException {
+			getHashHistogram().write(w);
+		}
+		
+		/**
+		 * Get the histogram of hash counts, computed in parallel over the hashes table.
+		 * 
+		 * @return Histogram of the number of blocks that repeat each number of times.
+		 */
+		public HashHistogram getHashHistogram() {
+			return HashHistogram.of(hashes.counts());
 		}
 		
 		/**
@@ -664,15 +1255,11 @@ public class CompScan {
 		 */
 		public Map<Long, Long> getHashCounters() {
 			Map<Long, Long> counters = new TreeMap<Long, Long>();
-			
-			for (Iterator<Map.Entry<String, Long>> it = hashes.entrySet().iterator(); it.hasNext(); ) {
-				Map.Entry<String, Long> current = it.next();
-				long key = current.getValue();
-				long value = (counters.containsKey(key) ? counters.get(key) + 1L : 1L);
-				
-				counters.put(key, value);
+			try {
+				getHashHistogram().forEach((repeats, blocks) -> counters.put(repeats, blocks));
+			} catch (IOException e) {
+				// Nothing here throws.
 			}
-			
 			return counters;
 		}
 		
@@ -691,6 +1278,15 @@ public class CompScan {
 			map.put(k, map.get(k) + v);
 		}
 
+		/**
+		 * Getter for the name of the data set.
+		 * 
+		 * @return The name.
+		 */
+		public String getName() {
+			return name;
+		}
+		
 		/**
 		 * Getter for the timestamp string.
 		 * 
@@ -701,25 +1297,23 @@ public class CompScan {
 		}
 		
 		/**
-		 * Getter for the hash counters map.
+		 * Getter for the hash counters table.
 		 * 
-		 * @return The hash counters map.
+		 * @return The hash counters table.
 		 */
-		public Map<String, Long> getHashes() {
+		public FingerprintTable getHashes() {
 			return hashes;
 		}
 		
 		/**
-		 * Build a formatted string of the hash counters map.
+		 * Build a formatted string of the hash counters table.
 		 * 
-		 * @return Formatted string of the hash counters map.
+		 * @return Formatted string of the hash counters table.
 		 */
 		public String makeHashString() {
-			return String.join(System.lineSeparator(),
-					hashes.entrySet()
-					.stream()
-					.map(x -> String.format("%1$s -> %2$d", x.getKey(), x.getValue()))
-					.collect(Collectors.toList()));
+			List<String> lines = new ArrayList<>();
+			hashes.forEach((digest, count) -> lines.add(String.format("%1$s -> %2$d", SHA1Encoder.toHex(digest), count)));
+			return String.join(System.lineSeparator(), lines);
 		}
 		
 		/**
@@ -0,0 +1,109 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The CompressionFactory resolves a format string to a CompressionInterface implementation once
+ * and then creates as many instances of it as are needed, one for each thread that compresses.
+ * 
+ * The class is looked up by name in the compress subpackage. Anything after the first ':' in the
+ * format string is passed to the codec's String constructor as options, so "Deflate:9" selects the
+ * Deflate codec at level 9.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+public class CompressionFactory {
+	// Factories already resolved, so a long-running process looks up each format only once.
+	private static final ConcurrentMap<String, CompressionFactory> FACTORIES = new ConcurrentHashMap<>();
+	
+	private final String formatString;
+	private final Constructor<?> constructor;
+	private final String options;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param formatString Name of the compression scheme, optionally followed by ':' and options.
+	 * @throws IllegalArgumentException if there is no valid CompressionInterface for the format string.
+	 */
+	public CompressionFactory(String formatString) throws IllegalArgumentException {
+		this.formatString = formatString;
+		int colon = formatString.indexOf(':');
+		String name = (colon < 0 ? formatString : formatString.substring(0, colon));
+		options = (colon < 0 ? null : formatString.substring(colon + 1));
+		String compressName = String.join(".", getClass().getPackage().getName(), CompScan.COMPRESSION_SUBPACKAGE, name);
+		
+		Class<?> compression;
+		try {
+			compression = Class.forName(compressName);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalArgumentException(
+					String.format(
+							"Unable to locate Compressor for compression format \"%s\".", formatString));
+		}
+		if (!CompressionInterface.class.isAssignableFrom(compression)) {
+			throw new IllegalArgumentException(
+					String.format(
+							"Class \"%1$s\" found for format string \"%2$s\" but is not a valid Compressor.",
+							compression.getName(), formatString));
+		}
+		try {
+			constructor = (options == null ? compression.getConstructor() : compression.getConstructor(String.class));
+		} catch (NoSuchMethodException e) {
+			throw new IllegalArgumentException(
+					String.format(
+							(options == null ? "Compression format \"%s\" has no public no-argument constructor."
+									: "Compression format \"%s\" does not take options."), name));
+		}
+	}
+	
+	/**
+	 * Get the factory for a format string, resolving it only the first time it is asked for.
+	 * 
+	 * @param formatString Name of the compression scheme, optionally followed by ':' and options.
+	 * @return The factory.
+	 * @throws IllegalArgumentException if there is no valid CompressionInterface for the format string.
+	 */
+	public static CompressionFactory forFormat(String formatString) throws IllegalArgumentException {
+		return FACTORIES.computeIfAbsent(formatString, CompressionFactory::new);
+	}
+	
+	/**
+	 * Getter for format string.
+	 * 
+	 * @return Format string the factory was created for.
+	 */
+	public String getFormatString() {
+		return formatString;
+	}
+	
+	/**
+	 * Create a new codec instance. The caller owns it: it must not be shared between threads and
+	 * should be closed when no longer needed.
+	 * 
+	 * @return A new CompressionInterface.
+	 * @throws IllegalArgumentException if the codec rejects its options or can't be instantiated.
+	 */
+	public CompressionInterface create() throws IllegalArgumentException {
+		try {
+			return (CompressionInterface) (options == null ? constructor.newInstance() : constructor.newInstance(options));
+		} catch (InvocationTargetException e) {
+			// Surface the codec's own complaint about its options.
+			throw new IllegalArgumentException(e.getCause().getMessage(), e.getCause());
+		} catch (InstantiationException | IllegalAccessException e) {
+			throw new IllegalArgumentException(
+					String.format("Unable to instantiate compression format \"%s\".", formatString), e);
+		}
+	}
+}
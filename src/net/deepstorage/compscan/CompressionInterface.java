@@ -7,16 +7,25 @@
  */
 package net.deepstorage.compscan;
 
+import java.util.Arrays;
+
 import net.deepstorage.compscan.Compressor.BufferLengthException;
 
 /**
  * The CompressionInterface presents the necessary mechanism for a compression algorithm to
- * interface with CompScan. Its only requirement is the compress method.
+ * interface with CompScan. Its only requirement is the compress method; compressedSize may be
+ * overridden to measure a superblock without materializing its compressed form.
+ * 
+ * Lifecycle: Compressor creates instances through a CompressionFactory, one per thread, and never
+ * shares an instance between threads, so implementations need not be thread-safe and may keep
+ * buffers, tables or native state from one superblock to the next. Every superblock is compressed
+ * independently; reset is called between superblocks, and close once the instance will not be
+ * used again.
  * 
  * @author Ramon A. Lovato
  * @version 1.0
  */
-public interface CompressionInterface {
+public interface CompressionInterface extends AutoCloseable {
 	/**
 	 * Compress the data. This is the only method necessary for a compression algorithm to
 	 * interface with CompScan. It should take an array of bytes, one superblock in size,
@@ -34,4 +43,67 @@ public interface CompressionInterface {
 	 * @throws BufferLengthException if data is not 
 	 */
 	public byte[] compress(byte[] data, int blockSize) throws BufferLengthException;
+	
+	/**
+	 * Measure the compressed size of part of a buffer. This is what Compressor calls for every
+	 * superblock, since only the size of the output is needed. Once the output is known to be
+	 * larger than limit, the exact size no longer matters, so implementations may stop early and
+	 * return any value greater than limit.
+	 * 
+	 * The default implementation calls compress on a copy of the range.
+	 * 
+	 * @param data Buffer holding the data to measure.
+	 * @param offset Start of the data in the buffer.
+	 * @param length Length of the data; one superblock.
+	 * @param blockSize Size of the compression blocks.
+	 * @param limit Output size above which the exact size is not needed.
+	 * @return The compressed size in bytes, or a value greater than limit.
+	 * @throws BufferLengthException if the data is the wrong size.
+	 */
+	public default int compressedSize(byte[] data, int offset, int length, int blockSize, int limit)
+			throws BufferLengthException {
+		if (offset == 0 && length == data.length) {
+			return compress(data, blockSize).length;
+		}
+		return compress(Arrays.copyOfRange(data, offset, offset + length), blockSize).length;
+	}
+	
+	/**
+	 * Measure the compressed sizes of consecutive superblocks, each compressed independently. The
+	 * default implementation calls compressedSize for each one and reset in between; a codec can
+	 * override this to amortize setup over the batch.
+	 * 
+	 * @param data Buffer holding the superblocks.
+	 * @param offset Start of the first superblock.
+	 * @param length Length of each superblock.
+	 * @param count Number of superblocks.
+	 * @param blockSize Size of the compression blocks.
+	 * @param limit Output size above which the exact size is not needed, as for compressedSize.
+	 * @param sizes Array receiving the compressed size of each superblock, starting at index 0.
+	 * @throws BufferLengthException if the data is the wrong size.
+	 */
+	public default void compressedSizes(byte[] data, int offset, int length, int count, int blockSize, int limit,
+			int[] sizes) throws BufferLengthException {
+		for (int i = 0; i < count; i++) {
+			if (i > 0) {
+				reset();
+			}
+			sizes[i] = compressedSize(data, offset + i * length, length, blockSize, limit);
+		}
+	}
+	
+	/**
+	 * Drop any state carried over from earlier superblocks. Compressor calls this between
+	 * superblocks; the default does nothing, which suits codecs that start every call afresh.
+	 */
+	public default void reset() {
+	}
+	
+	/**
+	 * Release native memory or other resources held by the instance. It will not be used again.
+	 * The default does nothing.
+	 */
+	@Override
+	public default void close() {
+	}
 }
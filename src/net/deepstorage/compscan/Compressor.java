@@ -7,13 +7,12 @@
  */
 package net.deepstorage.compscan;
 
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.List;
 
 /**
  * The abstract Compressor class defines the procedures needed for a compression scheme to be used with CompScan.
@@ -21,8 +20,14 @@ import java.util.Set;
  * @author Ramon A. Lovato
  * @version 1.0
  */
-public class Compressor {
-	private CompressionInterface compressionInterface;
+public class Compressor implements AutoCloseable {
+	// Width of the entropy distribution bins in bits per byte.
+	public static final double ENTROPY_BIN_WIDTH = 0.25;
+	private static final int ENTROPY_BINS = (int) (8 / ENTROPY_BIN_WIDTH);
+	
+	private final CompressionFactory factory;
+	private final ThreadLocal<Worker> workers;
+	private final List<Worker> allWorkers;
 	private byte[] buffer;
 	private final int blockSize;
 	private final int superblockSize;
@@ -33,6 +38,13 @@ public class Compressor {
 	private long compressedBytes;
 	private long compressedBlocks;
 	private long actualBytes;
+	private final long[] entropyBins;
+	private final long[] skippedBins;
+	private double entropyThreshold;
+	private long entropySkipped;
+	private SizeCache sizeCache;
+	private SuperblockTable superblockTable;
+	private int fingerprintBits;
 	
 	/**
 	 * Instantiate a new Compressor.
@@ -58,16 +70,12 @@ public class Compressor {
 			throw new IllegalArgumentException("Format string cannot be null or empty string.");
 		}
 		this.formatString = formatString;
-		try {
-			compressionInterface = getCompressionInterface(formatString);
-			System.out.println(String.format("Using compression interface \"%s\".%n", formatString));
-		} catch (ClassNotFoundException e) {
-			throw new IllegalArgumentException(
-					String.format(
-							"Unable to locate Compressor for compression format \"%s\".", formatString));
-		} catch (Exception e) {
-			throw new IllegalArgumentException(e.getMessage());
-		}
+		factory = CompressionFactory.forFormat(formatString);
+		allWorkers = new ArrayList<>();
+		workers = ThreadLocal.withInitial(() -> newWorker());
+		// Create the calling thread's codec now so that bad options are reported up front.
+		workers.get();
+		System.out.println(String.format("Using compression interface \"%s\".%n", formatString));
 		bytesRead = 0L;
 		blocksRead = 0L;
 		superblocksRead = 0L;
@@ -76,6 +84,13 @@ public class Compressor {
 		actualBytes = 0L;
 		buffer = new byte[superblockSize];
 		clearBuffer();
+		entropyBins = new long[ENTROPY_BINS];
+		skippedBins = new long[ENTROPY_BINS];
+		entropyThreshold = CompScan.NO_ENTROPY_SKIP;
+		entropySkipped = 0L;
+		sizeCache = null;
+		superblockTable = null;
+		fingerprintBits = FingerprintTable.DEFAULT_BITS;
 	}
 	
 	/**
@@ -88,26 +103,29 @@ public class Compressor {
 	}
 	
 	/**
-	 * Get the CompressionInterface for the specified format string.
+	 * Create the per-thread state for the calling thread, and remember it so it can be closed.
 	 * 
-	 * @param formatString Name of the compression scheme to retrieve.
-	 * @return Method "compress(byte[] data)" associated with the CompressionInterface for formatString.
-	 * @throws IllegalArgumentException if the Compressor for the format string does not exist.
+	 * @return A new Worker.
 	 */
-	private CompressionInterface getCompressionInterface(String formatString) throws Exception {	
-		String compressName = String.join(".", getClass().getPackage().getName(), CompScan.COMPRESSION_SUBPACKAGE, formatString);
-		
-		Class<?> compression = Class.forName(compressName);
-		Set<Class<?>> interfaces = new HashSet<>(
-				Arrays.asList(
-						compression.getInterfaces()));
-		if (!interfaces.contains(CompressionInterface.class)) {
-			throw new Exception(
-					String.format(
-							"Class \"%1$s\" found for format string \"%2$s\" but is not a valid Compressor.",
-							compression.getClass().getName(), formatString));
+	private Worker newWorker() {
+		Worker w = new Worker(factory.create());
+		synchronized (allWorkers) {
+			allWorkers.add(w);
+		}
+		return w;
+	}
+	
+	/**
+	 * Close the codec instances of all threads. The Compressor can't be used afterwards.
+	 */
+	@Override
+	public void close() {
+		synchronized (allWorkers) {
+			for (Worker w : allWorkers) {
+				w.codec.close();
+			}
+			allWorkers.clear();
 		}
-		return (CompressionInterface) compression.newInstance();
 	}
 	
 	/**
@@ -146,6 +164,108 @@ public class Compressor {
 		return formatString;
 	}
 	
+	/**
+	 * Skip compression of superblocks whose order-0 entropy is above a threshold; they are recorded
+	 * as incompressible instead.
+	 * 
+	 * @param entropyThreshold Entropy in bits per byte (NO_ENTROPY_SKIP = compress everything).
+	 */
+	public void setEntropyThreshold(double entropyThreshold) {
+		this.entropyThreshold = entropyThreshold;
+	}
+	
+	/**
+	 * Reuse the compressed size of superblocks seen before instead of compressing them again.
+	 * 
+	 * @param sizeCache SizeCache to use, or null to compress every superblock.
+	 */
+	public void setSizeCache(SizeCache sizeCache) {
+		this.sizeCache = sizeCache;
+	}
+	
+	/**
+	 * Record the fingerprint and compressed size of every superblock fed, for the fingerprint
+	 * export.
+	 * 
+	 * @param superblockTable SuperblockTable to add to, or null to record nothing.
+	 */
+	public void setSuperblockTable(SuperblockTable superblockTable) {
+		this.superblockTable = superblockTable;
+	}
+	
+	/**
+	 * Truncate the block fingerprints to fewer bits, so that more of them fit in memory at the
+	 * cost of a small chance of counting different blocks as duplicates.
+	 * 
+	 * @param fingerprintBits Fingerprint width in bits: 64, 96, 128 or 160.
+	 * @throws IllegalArgumentException if the width isn't supported.
+	 */
+	public void setFingerprintBits(int fingerprintBits) throws IllegalArgumentException {
+		if (!FingerprintTable.isValidWidth(fingerprintBits)) {
+			throw new IllegalArgumentException(
+					String.format("Fingerprint width must be 64, 96, 128 or 160 bits -- %d given.", fingerprintBits));
+		}
+		this.fingerprintBits = fingerprintBits;
+	}
+	
+	/**
+	 * Getter for the fingerprint width.
+	 * 
+	 * @return Width of the block fingerprints in bits.
+	 */
+	public int getFingerprintBits() {
+		return fingerprintBits;
+	}
+	
+	/**
+	 * Get the number of superblocks recorded as incompressible without being compressed.
+	 * 
+	 * @return Superblocks skipped by the entropy threshold.
+	 */
+	public synchronized long getEntropySkipped() {
+		return entropySkipped;
+	}
+	
+	/**
+	 * Get a copy of the entropy histogram.
+	 * 
+	 * @return Two arrays of ENTROPY_BIN_WIDTH bins: the superblocks seen in each, and how many of
+	 * them were skipped.
+	 */
+	public synchronized long[][] getEntropyCounts() {
+		return new long[][] {entropyBins.clone(), skippedBins.clone()};
+	}
+	
+	/**
+	 * Add entropy counts gathered elsewhere, such as by the workers of a distributed scan.
+	 * 
+	 * @param bins Superblocks seen in each bin.
+	 * @param skipped Superblocks skipped in each bin.
+	 */
+	public synchronized void addEntropyCounts(long[] bins, long[] skipped) {
+		for (int i = 0; i < ENTROPY_BINS; i++) {
+			entropyBins[i] += bins[i];
+			skippedBins[i] += skipped[i];
+			entropySkipped += skipped[i];
+		}
+	}
+	
+	/**
+	 * Make the CSV string for the distribution of superblock entropies seen by feedData.
+	 * 
+	 * @return CSV with one row per ENTROPY_BIN_WIDTH bits per byte, counting the superblocks in each
+	 * bin and how many of them were skipped.
+	 */
+	public synchronized String makeEntropyString() {
+		StringBuilder sb = new StringBuilder(String.format("entropy from,entropy to,superblocks,skipped%n"));
+		for (int i = 0; i < ENTROPY_BINS; i++) {
+			double from = i * ENTROPY_BIN_WIDTH;
+			sb.append(String.format("%.2f,%.2f,%d,%d%n",
+					from, from + ENTROPY_BIN_WIDTH, entropyBins[i], skippedBins[i]));
+		}
+		return sb.toString();
+	}
+	
 	/**
 	 * Feed a data buffer into the Compressor.
 	 * 
@@ -160,52 +280,154 @@ public class Compressor {
 							"Compressor.feedData requires exactly one superblock of data: %1$d bytes given, %2$d bytes expected.",
 							data.length, buffer.length));
 		}
+		return feedData(data, 0);
+	}
+	
+	/**
+	 * Feed one superblock of a larger buffer into the Compressor, without copying it out.
+	 * 
+	 * @param data Data buffer containing the superblock.
+	 * @param offset Start of the superblock in data.
+	 * @return CompressionInfo with the results of the compression.
+	 * @throws BufferLengthException if data doesn't hold a full superblock at offset.
+	 */
+	public CompressionInfo feedData(byte[] data, int offset) throws BufferLengthException {
+		return feedData(data, offset, 1)[0];
+	}
+	
+	/**
+	 * Feed consecutive superblocks of a buffer into the Compressor, without copying them out. A
+	 * superblock that would not compress by at least one block is counted as stored uncompressed,
+	 * which is what a storage system would do with it, so the compressor is allowed to stop as
+	 * soon as it knows.
+	 * 
+	 * Each thread compresses with its own codec instance, so different threads may feed data at the
+	 * same time; the totals are shared.
+	 * 
+	 * @param data Data buffer containing the superblocks.
+	 * @param offset Start of the first superblock in data.
+	 * @param count Number of superblocks.
+	 * @return CompressionInfo for each superblock, in order.
+	 * @throws BufferLengthException if data doesn't hold count full superblocks at offset.
+	 */
+	public CompressionInfo[] feedData(byte[] data, int offset, int count) throws BufferLengthException {
+		return feedData(data, offset, count, (long) count * superblockSize);
+	}
+	
+	/**
+	 * Feed consecutive superblocks of a buffer into the Compressor, of which the last may be only
+	 * partly data, such as the end of a file scanned on its own. The zero padding after the data is
+	 * compressed along with it, since it costs next to nothing, but isn't hashed or counted as read,
+	 * and a partial superblock that doesn't compress by at least one block is counted as stored
+	 * uncompressed at the size of its data.
+	 * 
+	 * @param data Data buffer containing the superblocks.
+	 * @param offset Start of the first superblock in data.
+	 * @param count Number of superblocks.
+	 * @param length Bytes of data in the superblocks: a multiple of the block size that ends in the
+	 *               last superblock. The rest of the last superblock must be zeros.
+	 * @return CompressionInfo for each superblock, in order.
+	 * @throws BufferLengthException if data doesn't hold count full superblocks at offset, or
+	 *                               length doesn't end in the last of them.
+	 */
+	public CompressionInfo[] feedData(byte[] data, int offset, int count, long length) throws BufferLengthException {
+		if (offset < 0 || count < 0 || offset > data.length - (long) count * superblockSize) {
+			throw new BufferLengthException(
+					String.format(
+							"Compressor.feedData requires %4$d full superblocks: %1$d bytes given at offset %2$d, %3$d bytes expected.",
+							Math.max(0, data.length - offset), offset, (long) count * superblockSize, count));
+		}
+		if (length % blockSize != 0 || length > (long) count * superblockSize
+				|| length <= (long) (count - 1) * superblockSize) {
+			throw new BufferLengthException(
+					String.format(
+							"Compressor.feedData requires the %1$d bytes of data to be whole blocks ending in the last of %2$d superblocks.",
+							length, count));
+		}
+		Worker w = workers.get();
+		w.ensureCapacity(count);
 		
-		// We want the input data to be exactly one superblock in size. 
-		byte[] compressed = compressionInterface.compress(data, blockSize);
-
-		CompressionInfo ci = new CompressionInfo(data.length, compressed.length, hashBuffer(data));
-		bytesRead += ci.bytesRead;
-		blocksRead += ci.blocksRead;
-		superblocksRead += 1L;
-		compressedBytes += ci.compressedBytes;
-		compressedBlocks += ci.compressedBlocks;
-		actualBytes += ci.actualBytes;
-		return ci;
+		// Hashing also fills in the byte histogram and the superblock fingerprint, so the entropy and
+		// the cache lookup cost no extra pass over the data.
+		SizeCache cache = sizeCache;
+		SuperblockTable table = superblockTable;
+		boolean fingerprint = (cache != null || table != null);
+		List<FingerprintTable> hashes = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			w.lengths[i] = (int) Math.min(superblockSize, length - (long) i * superblockSize);
+			hashes.add(w.hash(data, offset + i * superblockSize, w.lengths[i], i, fingerprint));
+			double entropy = w.entropy(w.lengths[i]);
+			w.bins[i] = Math.min(ENTROPY_BINS - 1, (int) (entropy / ENTROPY_BIN_WIDTH));
+			w.skipped[i] = (entropy > entropyThreshold);
+			if (w.skipped[i]) {
+				w.sizes[i] = w.lengths[i];
+			} else {
+				w.sizes[i] = (cache != null ? cache.get(w.high[i], w.low[i]) : -1);
+			}
+		}
+		
+		// Compress each run of superblocks whose size isn't known yet in one batch.
+		int limit = superblockSize - blockSize;
+		for (int i = 0; i < count; ) {
+			if (w.sizes[i] >= 0) {
+				i++;
+				continue;
+			}
+			int j = i;
+			while (j < count && w.sizes[j] < 0) {
+				j++;
+			}
+			w.codec.compressedSizes(data, offset + i * superblockSize, superblockSize, j - i, blockSize,
+					limit, w.run);
+			w.codec.reset();
+			for (int k = i; k < j; k++) {
+				w.sizes[k] = (w.run[k - i] > w.lengths[k] - blockSize ? w.lengths[k] : w.run[k - i]);
+				if (cache != null) {
+					cache.put(w.high[k], w.low[k], w.sizes[k]);
+				}
+			}
+			i = j;
+		}
+		
+		CompressionInfo[] infos = new CompressionInfo[count];
+		synchronized (this) {
+			for (int i = 0; i < count; i++) {
+				CompressionInfo ci = new CompressionInfo(w.lengths[i], w.sizes[i], hashes.get(i));
+				bytesRead += ci.bytesRead;
+				blocksRead += ci.blocksRead;
+				superblocksRead += 1L;
+				compressedBytes += ci.compressedBytes;
+				compressedBlocks += ci.compressedBlocks;
+				actualBytes += ci.actualBytes;
+				entropyBins[w.bins[i]]++;
+				if (w.skipped[i]) {
+					skippedBins[w.bins[i]]++;
+					entropySkipped++;
+				}
+				if (table != null) {
+					table.add(w.high[i], w.low[i], w.sizes[i]);
+				}
+				infos[i] = ci;
+			}
+		}
+		return infos;
 	}
 	
 	/**
 	 * Generate SHA-1 hashes for the blocks in a superblock.
 	 * 
 	 * @param data Data buffer for which to generate hashes. Must be exactly one superblock in size.
-	 * @return Map<String, Long> with counters of hash codes.
+	 * @return FingerprintTable with counters of the truncated hashes.
 	 * @throws BufferLengthException if the buffer is the wrong size.
 	 */
-	public Map<String, Long> hashBuffer(byte[] data) throws BufferLengthException {
+	public FingerprintTable hashBuffer(byte[] data) throws BufferLengthException {
 		if (data.length != buffer.length) {
 			throw new BufferLengthException(
 					String.format(
 							"Compressor.hashBuffer requires exactly one superblock of data: %1$d bytes given, %2$d bytes expected.",
 							data.length, buffer.length));
 		}
-		Map<String, Long> counters = new HashMap<>();
-		// Since the buffer is enforced to be one superblock, an even multiple of block size, we can use simple
-		// iteration.
-		for (int i = 0; i + blockSize <= data.length; i += blockSize) {
-			try {
-				String key = SHA1Encoder.encode(Arrays.copyOfRange(data, i, i + blockSize));
-				if (!counters.containsKey(key)) {
-					counters.put(key, 1L);
-				} else {
-					counters.put(key, counters.get(key) + 1L);
-				}
-			} catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
-				// Really, this should never happen, since we know the algorithm exists.
-				e.printStackTrace();
-			}
-		}
-		
-		return counters;
+		return workers.get().hash(data, 0, superblockSize, 0, false);
 	}
 	
 	/**
@@ -213,7 +435,7 @@ public class Compressor {
 	 * 
 	 * @return CompressionInfo containing the compression info for all data fed up until now.
 	 */
-	public CompressionInfo getCompressionInfo() {
+	public synchronized CompressionInfo getCompressionInfo() {
 		return new CompressionInfo(bytesRead, blocksRead, superblocksRead, compressedBytes,
 				                   compressedBlocks, actualBytes, null);
 	}
@@ -228,7 +450,7 @@ public class Compressor {
 		public final long compressedBytes;
 		public final long compressedBlocks;
 		public final long actualBytes;
-		private final Map<String, Long> hashes;
+		private final FingerprintTable hashes;
 		public final long uniqueHashes;
 		
 		/**
@@ -240,10 +462,10 @@ public class Compressor {
 		 * @param compressedBytes Number of bytes after compression.
 		 * @param compressedBlocks Number of blocks needed to hold the comrpessed data, rounded up.
 		 * @param actualBytes Actual number of bytes needed to store compressedBlocks blocks.
-		 * @param hashes Map<String, Long> of counters for hash codes.
+		 * @param hashes FingerprintTable of counters for hash codes.
 		 */
 		private CompressionInfo(long bytesRead, long blocksRead, long superblocksRead, long compressedBytes,
-				                long compressedBlocks, long actualBytes, Map<String, Long> hashes) {
+				                long compressedBlocks, long actualBytes, FingerprintTable hashes) {
 			this.bytesRead = bytesRead;
 			this.blocksRead = blocksRead;
 			this.superblocksRead = superblocksRead;
@@ -251,7 +473,7 @@ public class Compressor {
 			this.compressedBlocks = compressedBlocks;
 			this.actualBytes = actualBytes;
 			this.hashes = hashes;
-			uniqueHashes = hashes.size();
+			uniqueHashes = (hashes == null ? 0 : hashes.size());
 		}
 		
 		/**
@@ -259,32 +481,138 @@ public class Compressor {
 		 * 
 		 * @param bytesRead Initial size of the data.
 		 * @param compressedBytes Size of the compressed data.
-		 *  * @param hashes Map<String, Long> of counters for hash codes.
+		 *  * @param hashes FingerprintTable of counters for hash codes.
 		 */
-		private CompressionInfo(long bytesRead, long compressedBytes, Map<String, Long> hashes) throws BufferLengthException {
+		private CompressionInfo(long bytesRead, long compressedBytes, FingerprintTable hashes) throws BufferLengthException {
 			this.bytesRead = bytesRead;
 			this.compressedBytes = compressedBytes;
 			
 			blocksRead = bytesRead / blockSize;
-			superblocksRead = bytesRead / superblockSize;
+			// A partial superblock at the end of a file still counts as one.
+			superblocksRead = (bytesRead + superblockSize - 1) / superblockSize;
 			
 			compressedBlocks = (compressedBytes % blockSize == 0 ?
 					compressedBytes / blockSize : compressedBytes / blockSize + 1);
 			actualBytes = compressedBlocks * blockSize;
 			this.hashes = hashes;
-			uniqueHashes = hashes.size();
+			uniqueHashes = (hashes == null ? 0 : hashes.size());
 		}
 		
 		/**
-		 * Get the hashes map.
+		 * Get the hashes table.
 		 * 
-		 * @return Map<String, Long> containing the hash counters.
+		 * @return FingerprintTable containing the hash counters.
 		 */
-		public Map<String, Long> getHashes() {
+		public FingerprintTable getHashes() {
 			return hashes;
 		}
 	}
 	
+	/**
+	 * Per-thread state: the thread's own codec instance, digest and scratch arrays.
+	 */
+	private class Worker {
+		private final CompressionInterface codec;
+		private final MessageDigest digest;
+		private final MessageDigest superblockDigest;
+		private final int[] histogram;
+		private int[] sizes;
+		private int[] lengths;
+		private int[] run;
+		private int[] bins;
+		private boolean[] skipped;
+		private long[] high;
+		private long[] low;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param codec Codec instance owned by this worker.
+		 */
+		private Worker(CompressionInterface codec) {
+			this.codec = codec;
+			try {
+				digest = MessageDigest.getInstance("SHA-1");
+				superblockDigest = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				// Every Java platform is required to support SHA-1.
+				throw new IllegalStateException(e);
+			}
+			histogram = new int[256];
+			ensureCapacity(1);
+		}
+		
+		/**
+		 * Make sure the scratch arrays can hold a batch.
+		 * 
+		 * @param count Number of superblocks in the batch.
+		 */
+		private void ensureCapacity(int count) {
+			if (sizes == null || sizes.length < count) {
+				sizes = new int[count];
+				lengths = new int[count];
+				run = new int[count];
+				bins = new int[count];
+				skipped = new boolean[count];
+				high = new long[count];
+				low = new long[count];
+			}
+		}
+		
+		/**
+		 * Generate SHA-1 hashes for the blocks in one superblock of a larger buffer, and count its
+		 * byte values into the histogram while each block is in cache.
+		 * 
+		 * @param data Data buffer containing the superblock.
+		 * @param offset Start of the superblock in data.
+		 * @param length Bytes of data at the start of the superblock; the blocks after them are
+		 *               padding and aren't hashed.
+		 * @param index Index of the superblock in the batch, for storing its fingerprint.
+		 * @param fingerprint Whether to compute the superblock fingerprint (a SHA-1 of the block
+		 * hashes, of which 128 bits are kept in high and low).
+		 * @return FingerprintTable with counters of the block hashes, truncated to fingerprintBits.
+		 */
+		private FingerprintTable hash(byte[] data, int offset, int length, int index, boolean fingerprint) {
+			FingerprintTable counters = new FingerprintTable(fingerprintBits, superblockSize / blockSize);
+			Arrays.fill(histogram, 0);
+			// Since the data is an even multiple of block size, we can use simple iteration.
+			for (int i = offset; i < offset + length; i += blockSize) {
+				for (int j = i; j < i + blockSize; j++) {
+					histogram[data[j] & 0xFF]++;
+				}
+				digest.update(data, i, blockSize);
+				byte[] blockHash = digest.digest();
+				if (fingerprint) {
+					superblockDigest.update(blockHash);
+				}
+				counters.add(blockHash, 1L);
+			}
+			if (fingerprint) {
+				ByteBuffer f = ByteBuffer.wrap(superblockDigest.digest());
+				high[index] = f.getLong();
+				low[index] = f.getLong();
+			}
+			return counters;
+		}
+		
+		/**
+		 * Compute the order-0 (byte frequency) entropy of the last superblock hashed.
+		 * 
+		 * @param length Bytes of data that were hashed.
+		 * @return Entropy in bits per byte, from 0 to 8.
+		 */
+		private double entropy(int length) {
+			double sum = 0.0;
+			for (int c : histogram) {
+				if (c > 0) {
+					sum += c * Math.log(c);
+				}
+			}
+			// H = log2(n) - sum(c log2 c) / n
+			return (Math.log(length) - sum / length) / Math.log(2);
+		}
+	}
+	
 	/**
 	 * Nested exception for invalid buffer size.
 	 */
@@ -7,6 +7,12 @@
  */
 package net.deepstorage.compscan;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
 import net.deepstorage.compscan.CompScan.MutableCounter;
 import net.deepstorage.compscan.CompScan.Results;
 
@@ -17,12 +23,26 @@ import net.deepstorage.compscan.CompScan.Results;
  * @version 1.0
  */
 public class ConsoleDisplayThread extends Thread {
+	// Name of the progress file, created inside pathOut.
+	public static final String PROGRESS_FILE = "progress.csv";
+	
+	// Number of one-second ticks the read rate is averaged over.
+	private static final int RATE_WINDOW = 30;
+	
 	private Results results;
 	private String lastString;
 	private long startTime;
 	private long elapsedTime;
 	private MutableCounter hashCounter;
+	private MutableCounter blockCounter;
 	private boolean printUsage;
+	private PreWalker preWalker;
+	private double expectedFraction;
+	private Path progressPath;
+	private final long[] windowBytes;
+	private final long[] windowTimes;
+	private int ticks;
+	private boolean quiet;
 	
 	/**
 	 * Constructor.
@@ -32,13 +52,62 @@ public class ConsoleDisplayThread extends Thread {
 	public ConsoleDisplayThread(Results results, MutableCounter hashCounter, boolean printUsage) {
 		this.results = results;
 		this.hashCounter = hashCounter;
+		blockCounter = null;
 		lastString = "";
 		startTime = System.currentTimeMillis();
 		this.printUsage = printUsage;
+		preWalker = null;
+		expectedFraction = 1.0;
+		progressPath = null;
+		windowBytes = new long[RATE_WINDOW];
+		windowTimes = new long[RATE_WINDOW];
+		ticks = 0;
+		quiet = false;
+	}
+	
+	/**
+	 * Show the percentage done and an ETA, using a pre-walk of the dataset for the total size,
+	 * and keep a machine-readable copy of the progress line in a file. The pre-walk is started
+	 * along with this thread.
+	 * 
+	 * @param preWalker PreWalker that finds the total size.
+	 * @param expectedFraction Fraction of the total size the scan is expected to read (e.g. the
+	 *                         sample fraction).
+	 * @param progressPath File to rewrite with the progress every second, or null for none.
+	 */
+	public void setProgress(PreWalker preWalker, double expectedFraction, Path progressPath) {
+		this.preWalker = preWalker;
+		this.expectedFraction = expectedFraction;
+		this.progressPath = progressPath;
+	}
+	
+	/**
+	 * Compute the dedupe factor against a block count of its own rather than the blocks read so
+	 * far, for scans in which the hash counter only covers part of the results. In VMDK mode it is
+	 * reset for every image.
+	 * 
+	 * @param blockCounter MutableCounter of the blocks the hash counter covers, or null to use the
+	 *                     blocks read.
+	 */
+	public void setBlockCounter(MutableCounter blockCounter) {
+		this.blockCounter = blockCounter;
+	}
+	
+	/**
+	 * Stop printing the progress line, for scans run in the background. The progress file is
+	 * still kept up to date.
+	 * 
+	 * @param quiet Whether to stop printing.
+	 */
+	public void setQuiet(boolean quiet) {
+		this.quiet = quiet;
 	}
 
 	@Override
 	public void run() {
+		if (preWalker != null) {
+			preWalker.start();
+		}
 		while (!isInterrupted()) {
 			try {
 				sleep(1000);
@@ -46,10 +115,15 @@ public class ConsoleDisplayThread extends Thread {
 				break;
 			}
 			elapsedTime = System.currentTimeMillis() - startTime;
-			clearLastLine();
+			if (!quiet) {
+				clearLastLine();
+			}
 			printProgress();
 		}
-		System.out.println();
+		writeProgressFile(true);
+		if (!quiet) {
+			System.out.println();
+		}
 	}
 	
 	/**
@@ -88,18 +162,133 @@ public class ConsoleDisplayThread extends Thread {
 	 * Print a progress line.
 	 */
 	private void printProgress() {
+		long bytesRead = results.get("bytes read");
+		long now = System.currentTimeMillis();
+		windowBytes[ticks % RATE_WINDOW] = bytesRead;
+		windowTimes[ticks % RATE_WINDOW] = now;
+		ticks++;
+		
 		String usageString = "";
 		if (printUsage) {
 			usageString = String.format("    Memory estimate (free/alloc/max/total): %s", getMemoryEstimates());
 		}
+		String progressString = "";
+		if (preWalker != null) {
+			long seconds = getETASeconds(bytesRead);
+			progressString = String.format("    %s    ETA: %s",
+					(preWalker.isDone() ?
+							String.format("Done: %.1f%%", getPercentDone(bytesRead)) :
+								String.format("Sizing: %.0f MB found", (double) preWalker.getBytes() / CompScan.ONE_MB)),
+					(seconds < 0 ? "unknown" :
+						String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60)));
+		}
 		String s = String.format("Elapsed time: %1$d sec    Files read: %2$d    Megabytes read: %3$.2f    " +
-								 "Unique hashes: %4$d%5$s",
+								 "MB/sec: %4$.2f    Unique hashes: %5$d    Superblock factor: %6$.4f    " +
+								 "Dedupe factor: %7$.4f%8$s%9$s",
 				elapsedTime / 1000,
 				results.get("files read"),
-				((float) results.get("bytes read"))/((float) CompScan.ONE_MB),
+				((float) bytesRead)/((float) CompScan.ONE_MB),
+				getRate() / CompScan.ONE_MB,
 				hashCounter.getCount(),
+				results.getSuperblockCompressionFactor(),
+				getDedupeFactor(),
+				progressString,
 				usageString);
 		lastString = s;
-		System.out.print(s);
+		if (!quiet) {
+			System.out.print(s);
+		}
+		writeProgressFile(false);
+	}
+	
+	/**
+	 * Read rate over the last RATE_WINDOW ticks.
+	 * 
+	 * @return Bytes per second, or 0 before the second tick.
+	 */
+	private double getRate() {
+		if (ticks < 2) {
+			return 0.0;
+		}
+		int last = (ticks - 1) % RATE_WINDOW;
+		int first = (ticks < RATE_WINDOW ? 0 : ticks % RATE_WINDOW);
+		long ms = windowTimes[last] - windowTimes[first];
+		return (ms <= 0 ? 0.0 : (windowBytes[last] - windowBytes[first]) * 1000.0 / ms);
+	}
+	
+	/**
+	 * Percentage of the expected bytes read so far.
+	 * 
+	 * @param bytesRead Bytes read so far.
+	 * @return Percentage done, at most 100, or -1 if there is no pre-walk.
+	 */
+	private double getPercentDone(long bytesRead) {
+		if (preWalker == null) {
+			return -1.0;
+		}
+		double expected = preWalker.getBytes() * expectedFraction;
+		return (expected <= 0 ? 100.0 : Math.min(100.0, 100.0 * bytesRead / expected));
+	}
+	
+	/**
+	 * Estimated time left at the current read rate.
+	 * 
+	 * @param bytesRead Bytes read so far.
+	 * @return Seconds left, or -1 if the total or the rate isn't known yet.
+	 */
+	private long getETASeconds(long bytesRead) {
+		double rate = getRate();
+		if (preWalker == null || !preWalker.isDone() || rate <= 0) {
+			return -1L;
+		}
+		return (long) Math.max(0.0, (preWalker.getBytes() * expectedFraction - bytesRead) / rate);
+	}
+	
+	/**
+	 * Current dedupe factor.
+	 * 
+	 * @return Unique hashes / blocks read, or / the block counter's count if there is one.
+	 */
+	private double getDedupeFactor() {
+		long blocksRead = (blockCounter != null ? blockCounter.getCount() : results.get("blocks read"));
+		return (blocksRead == 0 ? 0.0 : (double) hashCounter.getCount() / blocksRead);
+	}
+	
+	/**
+	 * Rewrite the progress file, if there is one. The file is replaced in one step, so readers
+	 * never see it half written.
+	 * 
+	 * @param finished Whether the scan is over.
+	 */
+	private void writeProgressFile(boolean finished) {
+		if (progressPath == null) {
+			return;
+		}
+		long bytesRead = results.get("bytes read");
+		Path tmp = progressPath.resolveSibling(progressPath.getFileName() + ".tmp");
+		try {
+			try (BufferedWriter w = Files.newBufferedWriter(tmp)) {
+				w.write("elapsed seconds,files read,bytes read,total bytes,total final,percent done,"
+						+ "MB per sec,eta seconds,unique hashes,superblock compression factor,dedupe factor,finished");
+				w.newLine();
+				w.write(String.format("%d,%d,%d,%d,%s,%s,%s,%d,%d,%s,%s,%s",
+						elapsedTime / 1000,
+						results.get("files read"),
+						bytesRead,
+						(long) (preWalker.getBytes() * expectedFraction),
+						preWalker.isDone(),
+						(finished ? 100.0 : getPercentDone(bytesRead)),
+						getRate() / CompScan.ONE_MB,
+						(finished ? 0L : getETASeconds(bytesRead)),
+						hashCounter.getCount(),
+						results.getSuperblockCompressionFactor(),
+						getDedupeFactor(),
+						finished));
+				w.newLine();
+			}
+			Files.move(tmp, progressPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			// Progress is best effort; the scan carries on.
+		}
 	}
 }
@@ -0,0 +1,456 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.deepstorage.compscan.CompScan.MutableCounter;
+import net.deepstorage.compscan.CompScan.Results;
+import net.deepstorage.compscan.CompScan.ScanMode;
+import net.deepstorage.compscan.FileScanner.NoNextFileException;
+
+/**
+ * The coordinator of a distributed scan. It walks the datastore, cuts the stream a
+ * single-process scan would read into work units (see WorkUnit), and hands them out over TCP to
+ * any number of ScanWorker processes, which read and compress the data and send back the counters,
+ * the entropy histogram and the block fingerprints of each unit. Since every superblock is the
+ * same as in a single-process scan and all the results are sums, the output is the same too. The
+ * one exception is the size cache hit and miss counts, since each worker has its own cache.
+ * 
+ * The walk is lazy, so units are only cut as fast as the workers take them. A unit is merged only
+ * once its whole result has arrived; if a worker disconnects first, the unit is handed to another
+ * worker, up to MAX_ATTEMPTS times in all. A worker that can't read a unit reports the error, which
+ * fails the scan as it would a single-process one. Workers may join at any time.
+ * 
+ * The protocol is a handshake (the worker sends MAGIC and VERSION, the coordinator answers with
+ * the same and the scan configuration), then a UNIT message from the coordinator answered by a
+ * RESULT or an ERROR from the worker, repeated until the coordinator sends DONE.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+public class Coordinator {
+	// Default TCP port.
+	public static final int DEFAULT_PORT = 7077;
+	// Size of a work unit in bytes of stream; rounded down to a whole number of superblocks.
+	public static final int DEFAULT_UNIT_SIZE = 16 * 1024 * 1024;
+	
+	static final int MAGIC = 0x43535750; // "CSWP"
+	static final int VERSION = 3;
+	static final byte DONE = 0;
+	static final byte UNIT = 1;
+	static final byte RESULT = 2;
+	static final byte ERROR = 3;
+	// Number of times a unit is handed out before the scan gives up on it.
+	static final int MAX_ATTEMPTS = 3;
+	
+	private final Path root;
+	private final ScanMode scanMode;
+	private final HardLinkTracker links;
+	private WalkFilter filter;
+	private final boolean verbose;
+	private final Compressor compressor;
+	private final int blockSize;
+	private final int superblockSize;
+	private final int bufferSize;
+	private final double ioRate;
+	private final double entropyThreshold;
+	private final int sizeCacheEntries;
+	private final long unitSize;
+	
+	private FileWalker walker;
+	private Path current;
+	private long currentSize;
+	private long position;
+	private long nextId;
+	private boolean walkDone;
+	private final Deque<WorkUnit> requeued;
+	private final Map<Long, Integer> attempts;
+	private int outstanding;
+	private IOException failure;
+	private Results results;
+	private MutableCounter hashCounter;
+	private long cacheHits;
+	private long cacheMisses;
+	private int workersSeen;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param root Root of the datastore to scan.
+	 * @param scanMode ScanMode to use. NORMAL or DEVICE.
+	 * @param links HardLinkTracker for the walk, or null to hand out every link.
+	 * @param verbose Whether or not to enable verbose logging.
+	 * @param compressor Compressor whose configuration the workers use. Only its entropy
+	 *                   histogram is updated, with the workers' results.
+	 * @param bufferSize Size of the workers' read buffers; rounded up to whole superblocks.
+	 * @param ioRate Maximum MB/sec each worker is allowed to read.
+	 * @param entropyThreshold Entropy in bits per byte above which superblocks aren't compressed.
+	 * @param sizeCacheEntries Number of superblock sizes each worker caches (CompScan.NO_SIZE_CACHE = none).
+	 */
+	public Coordinator(Path root, ScanMode scanMode, HardLinkTracker links, boolean verbose, Compressor compressor,
+			int bufferSize, double ioRate, double entropyThreshold, int sizeCacheEntries) {
+		this.root = root;
+		this.scanMode = scanMode;
+		this.links = links;
+		filter = null;
+		this.verbose = verbose;
+		this.compressor = compressor;
+		blockSize = compressor.getBlockSize();
+		superblockSize = compressor.getSuperblockSize();
+		// Whole superblocks per buffer, as FileScanner does.
+		this.bufferSize = (bufferSize + superblockSize - 1) / superblockSize * superblockSize;
+		this.ioRate = ioRate;
+		this.entropyThreshold = entropyThreshold;
+		this.sizeCacheEntries = sizeCacheEntries;
+		unitSize = Math.max(1, DEFAULT_UNIT_SIZE / superblockSize) * (long) superblockSize;
+		requeued = new ArrayDeque<>();
+		attempts = new HashMap<>();
+		outstanding = 0;
+		failure = null;
+		nextId = 0L;
+		walkDone = false;
+		cacheHits = 0L;
+		cacheMisses = 0L;
+		workersSeen = 0;
+	}
+	
+	/**
+	 * Apply include/exclude rules during the walk.
+	 * 
+	 * @param filter WalkFilter to apply, or null to walk everything.
+	 */
+	public void setWalkFilter(WalkFilter filter) {
+		this.filter = filter;
+	}
+	
+	/**
+	 * Run the scan: listen for workers and hand out units until every unit has been merged.
+	 * 
+	 * @param port TCP port to listen on (0 = any free port).
+	 * @param results Results object to merge the workers' results into.
+	 * @param hashCounter MutableCounter to keep up to date with the number of unique hashes.
+	 * @throws IOException if the walk failed or the port couldn't be opened.
+	 * @throws NoNextFileException if the root contains no data.
+	 */
+	public void run(int port, Results results, MutableCounter hashCounter) throws IOException, NoNextFileException {
+		this.results = results;
+		this.hashCounter = hashCounter;
+		walker = new FileWalker(root, scanMode, links, filter, verbose);
+		try (ServerSocket server = new ServerSocket(port)) {
+			synchronized (this) {
+				WorkUnit first = nextUnit();
+				if (first == null) {
+					throw new NoNextFileException(
+							String.format(
+									"Coordinator with root \"%s\" found no scannable data.", root));
+				}
+				requeued.add(first);
+			}
+			System.out.format("Coordinator listening on port %d; start workers with%n"
+					+ "    java -jar CompScan.jar worker HOST:%d%n%n", server.getLocalPort(), server.getLocalPort());
+			Thread acceptor = new Thread(() -> accept(server), "CompScan coordinator");
+			acceptor.setDaemon(true);
+			acceptor.start();
+			synchronized (this) {
+				while (failure == null && !(walkDone && requeued.isEmpty() && outstanding == 0)) {
+					wait();
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for workers.", e);
+		} finally {
+			walker.close();
+		}
+		results.set("files read", walker.getFilesAccessed());
+		if (links != null) {
+			links.report(results);
+		}
+		if (sizeCacheEntries != CompScan.NO_SIZE_CACHE) {
+			results.setExtra("size cache hits", String.valueOf(cacheHits));
+			results.setExtra("size cache misses", String.valueOf(cacheMisses));
+		}
+	}
+	
+	/**
+	 * Accept workers until the server socket is closed, serving each on its own thread.
+	 * 
+	 * @param server Server socket.
+	 */
+	private void accept(ServerSocket server) {
+		while (true) {
+			Socket socket;
+			try {
+				socket = server.accept();
+			} catch (IOException e) {
+				// Closed at the end of the scan.
+				return;
+			}
+			int n;
+			synchronized (this) {
+				n = ++workersSeen;
+			}
+			Thread t = new Thread(() -> serve(socket), "CompScan coordinator worker " + n);
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+	
+	/**
+	 * Serve one worker until there is no work left or it disconnects. A unit the worker was
+	 * holding when it went away is handed out again.
+	 * 
+	 * @param s Socket of the worker.
+	 */
+	private void serve(Socket s) {
+		String who = String.valueOf(s.getRemoteSocketAddress());
+		WorkUnit unit = null;
+		try (Socket socket = s) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("not a CompScan worker of this version");
+			}
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(blockSize);
+			out.writeInt(superblockSize);
+			out.writeInt(bufferSize);
+			out.writeUTF(compressor.getFormatString());
+			out.writeDouble(entropyThreshold);
+			out.writeInt(sizeCacheEntries);
+			out.writeInt(compressor.getFingerprintBits());
+			out.writeDouble(ioRate);
+			out.flush();
+			System.out.format("Worker %s connected.%n", who);
+			while ((unit = takeUnit()) != null) {
+				out.writeByte(UNIT);
+				unit.write(out);
+				out.flush();
+				receive(in, unit, who);
+				unit = null;
+			}
+			out.writeByte(DONE);
+			out.flush();
+		} catch (IOException e) {
+			System.err.format("Lost worker %s: %s%n", who, e.getMessage());
+		} finally {
+			if (unit != null) {
+				requeue(unit);
+			}
+		}
+	}
+	
+	/**
+	 * Get the next unit to hand out, waiting while the only remaining work is held by other
+	 * workers who may yet fail.
+	 * 
+	 * @return The unit, or null if there's nothing left to do.
+	 */
+	private synchronized WorkUnit takeUnit() {
+		while (failure == null) {
+			if (!requeued.isEmpty()) {
+				outstanding++;
+				return requeued.poll();
+			}
+			if (!walkDone) {
+				try {
+					WorkUnit unit = nextUnit();
+					if (unit != null) {
+						outstanding++;
+						return unit;
+					}
+					// The walk is over, which may have been all the coordinator was waiting for.
+					notifyAll();
+				} catch (IOException e) {
+					failure = e;
+					notifyAll();
+				}
+				continue;
+			}
+			if (outstanding == 0) {
+				return null;
+			}
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Put back a unit whose worker went away, or fail the scan if it has been lost too often.
+	 * 
+	 * @param unit The unit.
+	 */
+	private synchronized void requeue(WorkUnit unit) {
+		outstanding--;
+		int lost = attempts.merge(unit.getId(), 1, Integer::sum);
+		if (lost >= MAX_ATTEMPTS) {
+			failure = (failure != null ? failure : new IOException(
+					String.format("Work unit %d was lost by %d workers; giving up.", unit.getId(), lost)));
+		} else {
+			requeued.add(unit);
+		}
+		notifyAll();
+	}
+	
+	/**
+	 * Read the result of a unit and merge it. Nothing is merged unless the whole result arrives.
+	 * If the worker reports that it couldn't read the unit, the scan fails with its error.
+	 * 
+	 * @param in Stream from the worker.
+	 * @param unit The unit the result is for.
+	 * @param who Address of the worker, for the error message.
+	 * @throws IOException if the read failed or the result is for a different unit.
+	 */
+	private void receive(DataInputStream in, WorkUnit unit, String who) throws IOException {
+		byte reply = in.readByte();
+		if (reply != RESULT && reply != ERROR) {
+			throw new IOException("unexpected reply to a work unit");
+		}
+		if (in.readLong() != unit.getId()) {
+			throw new IOException("result for the wrong work unit");
+		}
+		if (reply == ERROR) {
+			String message = in.readUTF();
+			synchronized (this) {
+				outstanding--;
+				failure = (failure != null ? failure : new IOException(
+						String.format("Worker %s couldn't scan work unit %d: %s", who, unit.getId(), message)));
+				notifyAll();
+			}
+			return;
+		}
+		Results r = new Results(results.getName(), results.getTimestamp());
+		int keys = in.readInt();
+		for (int i = 0; i < keys; i++) {
+			r.set(in.readUTF(), in.readLong());
+		}
+		long[] bins = new long[in.readInt()];
+		if (bins.length != compressor.getEntropyCounts()[0].length) {
+			throw new IOException("result with a different entropy histogram");
+		}
+		long[] skipped = new long[bins.length];
+		for (int i = 0; i < bins.length; i++) {
+			bins[i] = in.readLong();
+			skipped[i] = in.readLong();
+		}
+		long hits = in.readLong();
+		long misses = in.readLong();
+		byte[] digest = new byte[in.readInt()];
+		long entries = in.readLong();
+		FingerprintTable hashes = new FingerprintTable(compressor.getFingerprintBits());
+		if (entries > 0 && digest.length != hashes.getDigestLength()) {
+			throw new IOException("result with a different fingerprint width");
+		}
+		for (long i = 0; i < entries; i++) {
+			in.readFully(digest);
+			hashes.add(digest, BinaryIO.readVarLong(in));
+		}
+		
+		synchronized (this) {
+			results.feedOtherResults(r, hashes);
+			compressor.addEntropyCounts(bins, skipped);
+			cacheHits += hits;
+			cacheMisses += misses;
+			hashCounter.setCount(results.getHashes().size());
+			outstanding--;
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * Cut the next unit from the walk.
+	 * 
+	 * @return The unit, or null if the walk is finished.
+	 * @throws IOException if the walk failed.
+	 */
+	private WorkUnit nextUnit() throws IOException {
+		WorkUnit unit = new WorkUnit(nextId);
+		long used = 0L;
+		while (used < unitSize) {
+			if (current == null && !stepFile()) {
+				break;
+			}
+			long left = currentSize - position;
+			// Each file is padded to a block boundary in the stream.
+			long padded = (left + blockSize - 1) / blockSize * blockSize;
+			if (padded <= unitSize - used) {
+				unit.add(current.toString(), position, left, true);
+				used += padded;
+				current = null;
+			} else {
+				// The unit ends on a superblock boundary, and so on a block boundary, inside this file.
+				long take = unitSize - used;
+				unit.add(current.toString(), position, take, false);
+				position += take;
+				used += take;
+			}
+		}
+		if (unit.getSegments().isEmpty()) {
+			walkDone = true;
+			return null;
+		}
+		nextId++;
+		return unit;
+	}
+	
+	/**
+	 * Advance the walk to the next nonempty file.
+	 * 
+	 * @return False if there are no more files.
+	 * @throws IOException if the walk failed or a device's size is unknown.
+	 */
+	private boolean stepFile() throws IOException {
+		while (walker.hasNext()) {
+			Path next = walker.next().toAbsolutePath();
+			long size;
+			if (Files.isRegularFile(next)) {
+				size = Files.size(next);
+			} else {
+				// Devices report a zero st_size, so ask the channel instead.
+				try (FileChannel channel = FileChannel.open(next, StandardOpenOption.READ)) {
+					size = channel.size();
+				}
+				if (size <= 0) {
+					throw new IOException(
+							String.format("Can't divide \"%s\" into work units: its size is unknown.", next));
+				}
+			}
+			if (size > 0) {
+				current = next;
+				currentSize = size;
+				position = 0L;
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,652 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.deepstorage.compscan.CompScan.Results;
+import net.deepstorage.compscan.Compressor.BufferLengthException;
+import net.deepstorage.compscan.Compressor.CompressionInfo;
+
+/**
+ * The generate subcommand: writes a reproducible synthetic datastore with a known amount of
+ * duplicate, zero, text-like and random data, together with the totals.csv and hashes.csv a
+ * correct scan of it must produce.
+ * 
+ * Every block is a pure function of the seed and its position. A block is either all zeros, a
+ * copy of one of a pool of shared blocks, or unique; unique and shared blocks are either random
+ * or text-like. The last block of a file is never a shared one, since its zero padding would make
+ * it differ from the other copies. The block counts, and so hashes.csv, are known as soon as the
+ * data is written. The compressed sizes depend on how the scan packs the files into superblocks,
+ * so they are found by regenerating the data in the order FileWalker will visit the files and
+ * passing it through the same codec.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+public class DatasetGenerator {
+	// Directory inside pathOut that receives the datastore.
+	public static final String DATA_DIRECTORY = "data";
+	// Directory inside pathOut that receives the expected results.
+	public static final String EXPECTED_DIRECTORY = "expected";
+	
+	private static final int FILES_PER_DIRECTORY = 256;
+	// Images are written in chunks of this size, so one image keeps every thread busy.
+	private static final long IMAGE_CHUNK = 64L << 20;
+	private static final int WRITE_BUFFER = 1 << 20;
+	// Superblocks passed to the compressor at once when computing the expected sizes.
+	private static final int BATCH = 64;
+	private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+	private static final long POOL_TAG = 0x506F6F6C426C6B73L;
+	private static final long UNIQUE_TAG = 0x556E697175654964L;
+	private static final long TEXT_TAG = 0x546578744B696E64L;
+	private static final byte[][] WORDS = words(
+			"the", "of", "and", "to", "in", "a", "is", "that", "for", "it", "as", "was", "with", "be", "by", "on",
+			"not", "he", "this", "are", "or", "his", "from", "at", "which", "but", "have", "an", "had", "they",
+			"you", "were", "their", "one", "all", "we", "can", "her", "has", "there", "been", "if", "more", "when",
+			"will", "would", "who", "so", "no", "storage", "data", "block", "volume", "server", "backup", "report",
+			"customer", "invoice", "total", "system", "2016,", "error", "value.", "record\n");
+	
+	private final Path pathOut;
+	private final int blockSize;
+	private final int superblockSize;
+	private final String formatString;
+	private long seed;
+	private int files;
+	private long minFileSize;
+	private long maxFileSize;
+	private int images;
+	private long imageSize;
+	private double duplicates;
+	private double zeros;
+	private double text;
+	private int poolSize;
+	private int threads;
+	
+	private List<FileModel> model;
+	private long zeroBlocks;
+	private long uniqueBlocks;
+	private long[] poolCounts;
+	private long dataBlocks;
+	private long bytesWritten;
+	
+	/**
+	 * Constructor. The generator starts with the default options.
+	 * 
+	 * @param pathOut Directory to create the datastore and the expected results in.
+	 * @param blockSize Block size of the scan to generate results for.
+	 * @param superblockSize Superblock size of the scan to generate results for.
+	 * @param formatString Compression format of the scan to generate results for.
+	 */
+	public DatasetGenerator(Path pathOut, int blockSize, int superblockSize, String formatString) {
+		this.pathOut = pathOut;
+		this.blockSize = blockSize;
+		this.superblockSize = superblockSize;
+		this.formatString = formatString;
+		seed = 0L;
+		files = 1000;
+		minFileSize = 1024L;
+		maxFileSize = 1L << 20;
+		images = 0;
+		imageSize = 256L << 20;
+		duplicates = 0.2;
+		zeros = 0.1;
+		text = 0.5;
+		poolSize = 1024;
+		threads = Runtime.getRuntime().availableProcessors();
+	}
+	
+	/**
+	 * Entry point for the generate subcommand.
+	 * 
+	 * @param args Arguments following "generate": [options] pathOut blockSize superblockSize format
+	 */
+	public static void main(String[] args) {
+		DatasetGenerator generator = null;
+		try {
+			generator = parse(args);
+		} catch (IllegalArgumentException ex) {
+			CompScan.printHelp(ex.getMessage());
+			System.exit(1);
+		}
+		try {
+			generator.run();
+		} catch (IOException | BufferLengthException ex) {
+			System.err.format("Unable to generate the dataset.%n%n");
+			ex.printStackTrace();
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Parse the arguments of the generate subcommand.
+	 * 
+	 * @param args Arguments following "generate".
+	 * @return The configured generator.
+	 * @throws IllegalArgumentException if the arguments are invalid.
+	 */
+	private static DatasetGenerator parse(String[] args) throws IllegalArgumentException {
+		Map<String, String> options = new HashMap<>();
+		int i = 0;
+		for (; i < args.length && args[i].startsWith("--"); i += 2) {
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException(
+						String.format("Reached end of arguments without finding value for %s.", args[i]));
+			}
+			options.put(args[i], args[i + 1]);
+		}
+		if (args.length - i != 4) {
+			throw new IllegalArgumentException(
+					"The generate subcommand requires pathOut, blockSize, superblockSize and format.");
+		}
+		Path pathOut = Paths.get(args[i]);
+		if (!Files.isDirectory(pathOut)) {
+			throw new IllegalArgumentException(String.format("Output path \"%s\" is not a directory.", pathOut));
+		}
+		if (Files.exists(pathOut.resolve(DATA_DIRECTORY)) || Files.exists(pathOut.resolve(EXPECTED_DIRECTORY))) {
+			throw new IllegalArgumentException(
+					String.format("\"%s\" already holds a generated dataset.", pathOut));
+		}
+		int blockSize = (int) parseLong("blockSize", args[i + 1], 1L, Integer.MAX_VALUE);
+		int superblockSize = (int) parseLong("superblockSize", args[i + 2], 1L, Integer.MAX_VALUE);
+		if (superblockSize <= blockSize || superblockSize % blockSize != 0) {
+			throw new IllegalArgumentException("Superblock size must be an even multiple of block size.");
+		}
+		DatasetGenerator g = new DatasetGenerator(pathOut, blockSize, superblockSize, args[i + 3]);
+		
+		for (Map.Entry<String, String> e : options.entrySet()) {
+			String v = e.getValue();
+			switch (e.getKey()) {
+			case "--seed":
+				g.seed = parseLong("seed", v, Long.MIN_VALUE, Long.MAX_VALUE);
+				break;
+			case "--files":
+				g.files = (int) parseLong("files", v, 0L, Integer.MAX_VALUE);
+				break;
+			case "--file-size":
+				String[] range = v.split(":", -1);
+				if (range.length != 2) {
+					throw new IllegalArgumentException("Optional parameter file-size requires MIN:MAX in bytes.");
+				}
+				g.minFileSize = parseLong("file-size", range[0], 1L, Long.MAX_VALUE);
+				g.maxFileSize = parseLong("file-size", range[1], g.minFileSize, Long.MAX_VALUE);
+				break;
+			case "--images":
+				g.images = (int) parseLong("images", v, 0L, Integer.MAX_VALUE);
+				break;
+			case "--image-size":
+				g.imageSize = parseLong("image-size", v, 1L, Long.MAX_VALUE);
+				break;
+			case "--duplicates":
+				g.duplicates = parseFraction("duplicates", v);
+				break;
+			case "--zeros":
+				g.zeros = parseFraction("zeros", v);
+				break;
+			case "--text":
+				g.text = parseFraction("text", v);
+				break;
+			case "--pool":
+				g.poolSize = (int) parseLong("pool", v, 1L, Integer.MAX_VALUE);
+				break;
+			case "--threads":
+				g.threads = (int) parseLong("threads", v, 1L, 1024L);
+				break;
+			default:
+				throw new IllegalArgumentException(String.format("Unrecognized generate option \"%s\".", e.getKey()));
+			}
+		}
+		if (g.duplicates + g.zeros > 1.0) {
+			throw new IllegalArgumentException("The duplicate and zero fractions add up to more than 1.");
+		}
+		if (g.files == 0 && g.images == 0) {
+			throw new IllegalArgumentException("Nothing to generate: both files and images are 0.");
+		}
+		return g;
+	}
+	
+	/**
+	 * Parse an integer option.
+	 * 
+	 * @param name Name of the option, for the error message.
+	 * @param v Value to parse.
+	 * @param min Smallest allowed value.
+	 * @param max Largest allowed value.
+	 * @return The value.
+	 * @throws IllegalArgumentException if the value isn't an integer in range.
+	 */
+	private static long parseLong(String name, String v, long min, long max) throws IllegalArgumentException {
+		try {
+			long n = Long.parseLong(v);
+			if (n < min || n > max) {
+				throw new NumberFormatException();
+			}
+			return n;
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException(
+					String.format("Parameter %s requires an integer from %d to %d.", name, min, max));
+		}
+	}
+	
+	/**
+	 * Parse a fraction option.
+	 * 
+	 * @param name Name of the option, for the error message.
+	 * @param v Value to parse.
+	 * @return The value.
+	 * @throws IllegalArgumentException if the value isn't a number from 0 to 1.
+	 */
+	private static double parseFraction(String name, String v) throws IllegalArgumentException {
+		try {
+			double d = Double.parseDouble(v);
+			if (!(d >= 0.0 && d <= 1.0)) {
+				throw new NumberFormatException();
+			}
+			return d;
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException(
+					String.format("Optional parameter %s requires a fraction from 0 to 1.", name));
+		}
+	}
+	
+	/**
+	 * Write the datastore and the expected results.
+	 * 
+	 * @throws IOException if a file couldn't be written.
+	 * @throws BufferLengthException if the compressor rejected a buffer.
+	 */
+	public void run() throws IOException, BufferLengthException {
+		Path data = pathOut.resolve(DATA_DIRECTORY);
+		buildModel();
+		
+		long start = System.currentTimeMillis();
+		write(data);
+		long ms = Math.max(1L, System.currentTimeMillis() - start);
+		System.out.format("Wrote %d files, %d bytes, in %.1f sec (%.1f MB/sec).%n",
+				model.size(), bytesWritten, ms / 1000.0, bytesWritten * 1000.0 / ms / CompScan.ONE_MB);
+		
+		Results expected = new Results(pathOut.getFileName().toString(), new Date());
+		expected.set("block size", blockSize);
+		expected.set("superblock size", superblockSize);
+		expected.set("files read", model.size());
+		start = System.currentTimeMillis();
+		CompressionInfo ci = compress(data);
+		expected.set("bytes read", ci.bytesRead);
+		expected.set("blocks read", ci.blocksRead);
+		expected.set("superblocks read", ci.superblocksRead);
+		expected.set("compressed bytes", ci.compressedBytes);
+		expected.set("compressed blocks", ci.compressedBlocks);
+		expected.set("actual bytes needed", ci.actualBytes);
+		System.out.format("Computed the expected compressed sizes in %.1f sec.%n",
+				(System.currentTimeMillis() - start) / 1000.0);
+		
+		// The last superblock of the scan is padded with zero blocks.
+		HashHistogram histogram = new HashHistogram();
+		long zeroCount = zeroBlocks + ci.blocksRead - dataBlocks;
+		if (zeroCount > 0) {
+			histogram.add(zeroCount);
+		}
+		for (long count : poolCounts) {
+			if (count > 0) {
+				histogram.add(count);
+			}
+		}
+		histogram.add(1L, uniqueBlocks);
+		
+		Path out = pathOut.resolve(EXPECTED_DIRECTORY);
+		Files.createDirectories(out);
+		CompScan.writeResults(out, "totals.csv", w -> w.write(expected.toString()), false);
+		CompScan.writeResults(out, "hashes.csv", histogram::write, false);
+		System.out.format("%n--> Dataset saved in \"%s\", expected results in \"%s\".%n%n", data, out);
+		System.out.println(expected.toString());
+	}
+	
+	/**
+	 * Choose the names, sizes and seeds of all files and images.
+	 */
+	private void buildModel() {
+		model = new ArrayList<>(files + images);
+		Random random = new Random(seed);
+		double logMin = Math.log(minFileSize);
+		double logMax = Math.log(maxFileSize);
+		for (int i = 0; i < files; i++) {
+			// Log-uniform, so small files are as common as in real datastores.
+			long size = Math.min(maxFileSize, Math.max(minFileSize,
+					Math.round(Math.exp(logMin + random.nextDouble() * (logMax - logMin)))));
+			model.add(new FileModel(String.format("%04d/%06d.bin", i / FILES_PER_DIRECTORY, i), size, random.nextLong()));
+		}
+		for (int i = 0; i < images; i++) {
+			model.add(new FileModel(String.format("images/disk%03d.vmdk", i), imageSize, random.nextLong()));
+		}
+		zeroBlocks = 0L;
+		uniqueBlocks = 0L;
+		poolCounts = new long[poolSize];
+		dataBlocks = 0L;
+		bytesWritten = 0L;
+	}
+	
+	/**
+	 * Write every file in parallel, counting the kinds of blocks written.
+	 * 
+	 * @param data Directory to write the datastore to.
+	 * @throws IOException if a file couldn't be written.
+	 */
+	private void write(Path data) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> tasks = new ArrayList<>();
+			for (FileModel f : model) {
+				Path p = data.resolve(f.path);
+				Files.createDirectories(p.getParent());
+				Files.createFile(p);
+				long blocks = (f.size + blockSize - 1) / blockSize;
+				long chunkBlocks = Math.max(1L, IMAGE_CHUNK / blockSize);
+				for (long b = 0; b < blocks; b += chunkBlocks) {
+					long first = b;
+					long last = Math.min(blocks, b + chunkBlocks);
+					tasks.add(pool.submit(() -> {
+						writeBlocks(p, f, first, last);
+						return null;
+					}));
+				}
+			}
+			for (Future<?> t : tasks) {
+				t.get();
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while writing the dataset.", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Write a range of blocks of one file.
+	 * 
+	 * @param p Path of the file, which already exists.
+	 * @param f The file.
+	 * @param first First block to write.
+	 * @param last Block after the last one to write.
+	 * @throws IOException if the write failed.
+	 */
+	private void writeBlocks(Path p, FileModel f, long first, long last) throws IOException {
+		long zero = 0L;
+		long unique = 0L;
+		Map<Integer, Long> shared = new HashMap<>();
+		byte[] buffer = new byte[Math.max(1, WRITE_BUFFER / blockSize) * blockSize];
+		ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+		try (FileChannel channel = FileChannel.open(p, StandardOpenOption.WRITE)) {
+			long pos = first * blockSize;
+			int filled = 0;
+			for (long b = first; b < last; b++) {
+				int len = (int) Math.min(blockSize, f.size - b * blockSize);
+				long kind = fillBlock(buffer, filled, len, f, b);
+				if (kind == 0L) {
+					zero++;
+				} else if (kind < 0L) {
+					unique++;
+				} else {
+					shared.merge((int) (kind - 1), 1L, Long::sum);
+				}
+				filled += len;
+				if (filled == buffer.length || b == last - 1) {
+					wrapped.clear().limit(filled);
+					while (wrapped.hasRemaining()) {
+						pos += channel.write(wrapped, pos);
+					}
+					filled = 0;
+				}
+			}
+		}
+		synchronized (this) {
+			zeroBlocks += zero;
+			uniqueBlocks += unique;
+			for (Map.Entry<Integer, Long> e : shared.entrySet()) {
+				poolCounts[e.getKey()] += e.getValue();
+			}
+			dataBlocks += last - first;
+			bytesWritten += Math.min(f.size, last * blockSize) - first * blockSize;
+		}
+	}
+	
+	/**
+	 * Regenerate the datastore in the order FileWalker visits it, laid out as FileWalkerStream
+	 * reads it, and compress it with the scan's format.
+	 * 
+	 * @param data Directory the datastore was written to.
+	 * @return The totals of the compressor.
+	 * @throws IOException if the datastore couldn't be walked.
+	 * @throws BufferLengthException if the compressor rejected a buffer.
+	 */
+	private CompressionInfo compress(Path data) throws IOException, BufferLengthException {
+		Map<String, FileModel> byPath = new HashMap<>();
+		for (FileModel f : model) {
+			byPath.put(f.path, f);
+		}
+		Compressor compressor = new Compressor(blockSize, superblockSize, formatString);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(2 * threads);
+		for (int i = 0; i < 2 * threads; i++) {
+			free.add(new byte[BATCH * superblockSize]);
+		}
+		List<Future<?>> tasks = new ArrayList<>();
+		try (FileWalker fw = new FileWalker(data, false)) {
+			byte[] buffer = free.take();
+			int filled = 0;
+			while (fw.hasNext()) {
+				Path p = fw.next();
+				FileModel f = byPath.get(data.relativize(p).toString().replace('\\', '/'));
+				if (f == null) {
+					throw new IOException(String.format("\"%s\" isn't part of the generated dataset.", p));
+				}
+				long blocks = (f.size + blockSize - 1) / blockSize;
+				for (long b = 0; b < blocks; b++) {
+					int len = (int) Math.min(blockSize, f.size - b * blockSize);
+					fillBlock(buffer, filled, len, f, b);
+					clear(buffer, filled + len, filled + blockSize);
+					filled += blockSize;
+					if (filled == buffer.length) {
+						tasks.add(submit(pool, compressor, buffer, BATCH, free));
+						buffer = free.take();
+						filled = 0;
+					}
+				}
+			}
+			if (filled > 0) {
+				clear(buffer, filled, buffer.length);
+				tasks.add(submit(pool, compressor, buffer, (filled + superblockSize - 1) / superblockSize, free));
+			}
+			for (Future<?> t : tasks) {
+				t.get();
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while compressing the dataset.", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof BufferLengthException) {
+				throw (BufferLengthException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+		CompressionInfo ci = compressor.getCompressionInfo();
+		compressor.close();
+		return ci;
+	}
+	
+	/**
+	 * Compress a batch of superblocks on the pool and hand the buffer back afterwards.
+	 * 
+	 * @param pool Thread pool.
+	 * @param compressor Compressor to feed.
+	 * @param buffer Buffer holding the superblocks.
+	 * @param count Number of superblocks.
+	 * @param free Queue to return the buffer to.
+	 * @return The task.
+	 */
+	private static Future<?> submit(ExecutorService pool, Compressor compressor, byte[] buffer, int count,
+			BlockingQueue<byte[]> free) {
+		return pool.submit(() -> {
+			try {
+				compressor.feedData(buffer, 0, count);
+			} finally {
+				free.add(buffer);
+			}
+			return null;
+		});
+	}
+	
+	/**
+	 * Generate one block of a file.
+	 * 
+	 * @param dst Buffer to write the block to.
+	 * @param off Offset in the buffer.
+	 * @param len Length of the block; less than the block size only for the last block of a file.
+	 * @param f The file.
+	 * @param b Index of the block in the file.
+	 * @return 0 if the block is all zeros, -1 if it is unique, or 1 + the index of the shared
+	 *         block it copies.
+	 */
+	private long fillBlock(byte[] dst, int off, int len, FileModel f, long b) {
+		long r = mix(f.seed + mix(b));
+		double u = (r >>> 11) * 0x1.0p-53;
+		if (u < zeros) {
+			clear(dst, off, off + len);
+			return 0L;
+		}
+		if (u < zeros + duplicates && len == blockSize) {
+			int index = (int) Long.remainderUnsigned(mix(r), poolSize);
+			fillContent(dst, off, len, mix(seed ^ POOL_TAG) + mix(index));
+			return index + 1L;
+		}
+		fillContent(dst, off, len, mix(r ^ UNIQUE_TAG));
+		return -1L;
+	}
+	
+	/**
+	 * Generate random or text-like content, depending on the content identifier.
+	 * 
+	 * @param dst Buffer to write the content to.
+	 * @param off Offset in the buffer.
+	 * @param len Number of bytes to write.
+	 * @param id Identifier of the content. Equal identifiers give equal content.
+	 */
+	private void fillContent(byte[] dst, int off, int len, long id) {
+		long state = id;
+		int end = off + len;
+		if ((mix(id ^ TEXT_TAG) >>> 11) * 0x1.0p-53 < text) {
+			int i = off;
+			while (i < end) {
+				state += GOLDEN;
+				long bits = mix(state);
+				// Ten words per random long.
+				for (int k = 0; k < 10 && i < end; k++, bits >>>= 6) {
+					byte[] word = WORDS[(int) (bits & 0x3F)];
+					int n = Math.min(word.length, end - i);
+					System.arraycopy(word, 0, dst, i, n);
+					i += n;
+				}
+			}
+		} else {
+			for (int i = off; i < end; ) {
+				state += GOLDEN;
+				long bits = mix(state);
+				for (int k = 0; k < 8 && i < end; k++, bits >>>= 8) {
+					dst[i++] = (byte) bits;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Zero part of a buffer.
+	 * 
+	 * @param b Buffer.
+	 * @param start First byte to clear.
+	 * @param end Byte after the last one to clear.
+	 */
+	private static void clear(byte[] b, int start, int end) {
+		for (int i = start; i < end; i++) {
+			b[i] = 0x0;
+		}
+	}
+	
+	/**
+	 * SplitMix64 finalizer: a fast, well-mixed 64-bit hash.
+	 * 
+	 * @param z Value to mix.
+	 * @return The mixed value.
+	 */
+	private static long mix(long z) {
+		z += GOLDEN;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+	
+	/**
+	 * Encode the vocabulary of the text-like content, each word followed by a space.
+	 * 
+	 * @param words The words; must be exactly 64.
+	 * @return The encoded words.
+	 */
+	private static byte[][] words(String... words) {
+		byte[][] encoded = new byte[words.length][];
+		for (int i = 0; i < words.length; i++) {
+			String w = (words[i].endsWith("\n") ? words[i] : words[i] + " ");
+			encoded[i] = w.getBytes(StandardCharsets.US_ASCII);
+		}
+		return encoded;
+	}
+	
+	/**
+	 * One generated file or image.
+	 */
+	private static class FileModel {
+		private final String path;
+		private final long size;
+		private final long seed;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param path Path relative to the data directory, with '/' separators.
+		 * @param size Size in bytes.
+		 * @param seed Seed of the file's blocks.
+		 */
+		FileModel(String path, long size, long seed) {
+			this.path = path;
+			this.size = size;
+			this.seed = seed;
+		}
+	}
+}
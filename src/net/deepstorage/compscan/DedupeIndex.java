@@ -0,0 +1,370 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import net.deepstorage.compscan.CompScan.Results;
+
+/**
+ * Disk-backed index of the block fingerprints of every virtual disk in a VMDK-mode scan, used to
+ * report how the disks dedupe against each other.
+ * 
+ * After each disk is scanned, its fingerprints are sorted and written to a run file, and the
+ * in-memory hashes of the disk can be released. Each entry of a run records the fingerprint, the
+ * first disk it was seen in, the number of disks it was seen in, and its total repeat count. At
+ * the end, the runs are merged in sorted order, at most FAN_IN at a time, so memory use doesn't
+ * depend on the number of disks or on the number of fingerprints.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+public class DedupeIndex implements AutoCloseable {
+	// Prefix of the index directory, created inside pathOut and deleted when the index is closed.
+	public static final String DIRECTORY_PREFIX = "compscan.dedupe";
+	
+	// Most runs merged at once; more than this are first merged into intermediate runs.
+	private static final int FAN_IN = 64;
+	private static final String RUN_PREFIX = "run.";
+	
+	private final Path dir;
+	private final int blockSize;
+	private final LinkedList<Path> runs;
+	private long[] blocks;
+	private int images;
+	private int digestLength;
+	private long nextRun;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param parent Directory to create the index directory in.
+	 * @param blockSize Block size of the scan in bytes.
+	 * @throws IOException if the index directory couldn't be created.
+	 */
+	public DedupeIndex(Path parent, int blockSize) throws IOException {
+		dir = Files.createTempDirectory(parent, DIRECTORY_PREFIX);
+		this.blockSize = blockSize;
+		runs = new LinkedList<>();
+		blocks = new long[16];
+		images = 0;
+		digestLength = 0;
+		nextRun = 0L;
+	}
+	
+	/**
+	 * Add the fingerprints of the next disk to the index.
+	 * 
+	 * @param hashes Table of the disk's block hashes and their repeat counts. Sorted by this method.
+	 * @throws IOException if the run couldn't be written.
+	 */
+	public void addImage(FingerprintTable hashes) throws IOException {
+		hashes.sort();
+		if (!hashes.isEmpty()) {
+			digestLength = hashes.getDigestLength();
+		}
+		
+		Path run = newRun();
+		try (DataOutputStream out = openRun(run)) {
+			out.writeLong(hashes.size());
+			hashes.visit((digest, count) -> {
+				out.write(digest);
+				BinaryIO.writeVarLong(out, images);
+				BinaryIO.writeVarLong(out, 1L);
+				BinaryIO.writeVarLong(out, count);
+			});
+		}
+		runs.add(run);
+		if (images == blocks.length) {
+			blocks = Arrays.copyOf(blocks, images * 2);
+		}
+		blocks[images++] = hashes.counts().sum();
+	}
+	
+	/**
+	 * Merge the runs and add the cross-disk dedupe columns to the results: for each disk, the
+	 * bytes in blocks no other disk has ("exclusive bytes"), the bytes in blocks at least one
+	 * other disk also has ("shared bytes"), and the bytes in blocks no earlier disk had ("estate
+	 * new bytes"); and for the totals, the same sums plus the number of unique blocks across all
+	 * disks and the estate-wide dedupe factor (unique blocks / blocks).
+	 * 
+	 * @param allResults Results of the disks, in the order they were added.
+	 * @param totals Results object containing the aggregate results.
+	 * @throws IOException if a run couldn't be read or written.
+	 */
+	public void report(List<Results> allResults, Results totals) throws IOException {
+		while (runs.size() > FAN_IN) {
+			List<Path> group = new ArrayList<>(runs.subList(0, FAN_IN));
+			runs.subList(0, FAN_IN).clear();
+			runs.add(merge(group));
+		}
+		
+		long[] exclusive = new long[images];
+		long[] fresh = new long[images];
+		long unique = 0L;
+		long total = 0L;
+		List<Cursor> cursors = open(runs);
+		try {
+			PriorityQueue<Cursor> queue = queue(cursors);
+			Entry e = new Entry(digestLength);
+			while (next(queue, e)) {
+				unique++;
+				total += e.count;
+				fresh[e.first]++;
+				if (e.images == 1) {
+					exclusive[e.first] += e.count;
+				}
+			}
+		} finally {
+			closeAll(cursors);
+		}
+		
+		long exclusiveBytes = 0L;
+		long sharedBytes = 0L;
+		for (int i = 0; i < images && i < allResults.size(); i++) {
+			Results r = allResults.get(i);
+			r.setExtra("exclusive bytes", String.valueOf(exclusive[i] * blockSize));
+			r.setExtra("shared bytes", String.valueOf((blocks[i] - exclusive[i]) * blockSize));
+			r.setExtra("estate new bytes", String.valueOf(fresh[i] * blockSize));
+			exclusiveBytes += exclusive[i] * blockSize;
+			sharedBytes += (blocks[i] - exclusive[i]) * blockSize;
+		}
+		totals.setExtra("exclusive bytes", String.valueOf(exclusiveBytes));
+		totals.setExtra("shared bytes", String.valueOf(sharedBytes));
+		totals.setExtra("estate new bytes", String.valueOf(unique * blockSize));
+		totals.setExtra("estate unique blocks", String.valueOf(unique));
+		totals.setExtra("estate dedupe factor", String.valueOf(total == 0 ? 0.0 : (double) unique / (double) total));
+	}
+	
+	/**
+	 * Delete the runs and the index directory.
+	 */
+	@Override
+	public void close() throws IOException {
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+			for (Path f : ds) {
+				Files.delete(f);
+			}
+		}
+		Files.delete(dir);
+	}
+	
+	/**
+	 * Merge runs into a new run and delete them.
+	 * 
+	 * @param group Runs to merge.
+	 * @return The merged run.
+	 * @throws IOException if a run couldn't be read or written.
+	 */
+	private Path merge(List<Path> group) throws IOException {
+		Path run = newRun();
+		long entries = 0L;
+		List<Cursor> cursors = open(group);
+		try (FileOutputStream fos = new FileOutputStream(run.toFile())) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+			// Patched once the number of entries is known.
+			out.writeLong(0L);
+			PriorityQueue<Cursor> queue = queue(cursors);
+			Entry e = new Entry(digestLength);
+			while (next(queue, e)) {
+				out.write(e.digest);
+				BinaryIO.writeVarLong(out, e.first);
+				BinaryIO.writeVarLong(out, e.images);
+				BinaryIO.writeVarLong(out, e.count);
+				entries++;
+			}
+			out.flush();
+			ByteBuffer b = ByteBuffer.allocate(Long.BYTES);
+			b.putLong(entries).flip();
+			fos.getChannel().write(b, 0L);
+		} finally {
+			closeAll(cursors);
+		}
+		for (Path p : group) {
+			Files.delete(p);
+		}
+		return run;
+	}
+	
+	/**
+	 * Take the next fingerprint from the runs, combining its entries across all of them.
+	 * 
+	 * @param queue Cursors of the runs, ordered by their current digest.
+	 * @param e Receives the combined entry.
+	 * @return False if the runs are finished.
+	 * @throws IOException if a run couldn't be read.
+	 */
+	private boolean next(PriorityQueue<Cursor> queue, Entry e) throws IOException {
+		if (queue.isEmpty()) {
+			return false;
+		}
+		Cursor c = queue.poll();
+		System.arraycopy(c.entry.digest, 0, e.digest, 0, digestLength);
+		e.first = c.entry.first;
+		e.images = 0L;
+		e.count = 0L;
+		while (true) {
+			e.first = Math.min(e.first, c.entry.first);
+			e.images += c.entry.images;
+			e.count += c.entry.count;
+			if (c.advance()) {
+				queue.add(c);
+			}
+			if (queue.isEmpty() || BinaryIO.compareUnsigned(queue.peek().entry.digest, e.digest) != 0) {
+				return true;
+			}
+			c = queue.poll();
+		}
+	}
+	
+	/**
+	 * Open runs for reading.
+	 * 
+	 * @param paths Runs to open.
+	 * @return A cursor for each run.
+	 * @throws IOException if a run couldn't be opened.
+	 */
+	private List<Cursor> open(List<Path> paths) throws IOException {
+		List<Cursor> cursors = new ArrayList<>(paths.size());
+		try {
+			for (Path p : paths) {
+				cursors.add(new Cursor(p, digestLength));
+			}
+		} catch (IOException e) {
+			closeAll(cursors);
+			throw e;
+		}
+		return cursors;
+	}
+	
+	/**
+	 * Queue the cursors that have entries, ordered by their first digest.
+	 * 
+	 * @param cursors Cursors of the runs.
+	 * @return The queue.
+	 * @throws IOException if a run couldn't be read.
+	 */
+	private static PriorityQueue<Cursor> queue(List<Cursor> cursors) throws IOException {
+		PriorityQueue<Cursor> queue = new PriorityQueue<>(Math.max(1, cursors.size()),
+				(a, b) -> BinaryIO.compareUnsigned(a.entry.digest, b.entry.digest));
+		for (Cursor c : cursors) {
+			if (c.advance()) {
+				queue.add(c);
+			}
+		}
+		return queue;
+	}
+	
+	/**
+	 * Close cursors, ignoring failures.
+	 * 
+	 * @param cursors Cursors to close.
+	 */
+	private static void closeAll(List<Cursor> cursors) {
+		for (Cursor c : cursors) {
+			try {
+				c.in.close();
+			} catch (IOException e) {
+				// Only read from; nothing to lose.
+			}
+		}
+	}
+	
+	/**
+	 * Choose the path of a new run.
+	 * 
+	 * @return Path of the run.
+	 */
+	private Path newRun() {
+		return dir.resolve(RUN_PREFIX + nextRun++);
+	}
+	
+	/**
+	 * Open a run for writing.
+	 * 
+	 * @param run Path of the run.
+	 * @return Buffered stream to the run.
+	 * @throws IOException if the run couldn't be created.
+	 */
+	private static DataOutputStream openRun(Path run) throws IOException {
+		return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), 1 << 16));
+	}
+	
+	/**
+	 * One fingerprint of the index.
+	 */
+	private static class Entry {
+		private final byte[] digest;
+		private int first;
+		private long images;
+		private long count;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param digestLength Length of the block digests.
+		 */
+		Entry(int digestLength) {
+			digest = new byte[digestLength];
+		}
+	}
+	
+	/**
+	 * Current position in one run.
+	 */
+	private static class Cursor {
+		private final DataInputStream in;
+		private final Entry entry;
+		private long left;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param run Path of the run.
+		 * @param digestLength Length of the block digests.
+		 * @throws IOException if the run couldn't be opened.
+		 */
+		Cursor(Path run, int digestLength) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run), 1 << 16));
+			entry = new Entry(digestLength);
+			left = in.readLong();
+		}
+		
+		/**
+		 * Move to the next entry.
+		 * 
+		 * @return False if there are no more entries.
+		 * @throws IOException if the run couldn't be read.
+		 */
+		boolean advance() throws IOException {
+			if (left == 0) {
+				return false;
+			}
+			left--;
+			in.readFully(entry.digest);
+			entry.first = (int) BinaryIO.readVarLong(in);
+			entry.images = BinaryIO.readVarLong(in);
+			entry.count = BinaryIO.readVarLong(in);
+			return true;
+		}
+	}
+}
@@ -4,7 +4,9 @@
 package net.deepstorage.compscan;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Arrays;
 import java.util.List;
 
@@ -13,6 +15,7 @@ import net.deepstorage.compscan.CompScan.Results;
 import net.deepstorage.compscan.CompScan.ScanMode;
 import net.deepstorage.compscan.Compressor.BufferLengthException;
 import net.deepstorage.compscan.Compressor.CompressionInfo;
+import net.deepstorage.compscan.vdisk.VirtualDisk;
 
 /**
  * The FileScanner class abstracts the necessary behavior for walking a file tree.
@@ -21,7 +24,11 @@ import net.deepstorage.compscan.Compressor.CompressionInfo;
  * @version 1.0
  */
 public class FileScanner {
+	// Read buffer of each thread, kept between scans so that a ScanService doesn't reallocate it for every job.
+	private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<>();
+	
 	private Path root;
+	private ScanMode scanMode;
 	private int blockSize;
 	private int bufferSize;
 	private Compressor compressor;
@@ -30,11 +37,27 @@ public class FileScanner {
 	private double ioRate;
 	private boolean verbose;
 	private MutableCounter hashCounter;
+	private MutableCounter blockCounter;
+	private double sampleFraction;
+	private long sampleSeed;
+	private Checkpoint checkpoint;
+	private long checkpointIntervalMS;
+	private Checkpoint.Position start;
+	private ScanCache cache;
+	private byte[] fileBuffer;
+	private long virtualBytes;
+	private long allocatedBytes;
+	private HardLinkTracker links;
+	private WalkFilter filter;
+	private DedupeIndex dedupeIndex;
+	private GroupReport groupReport;
 	
 	/**
 	 * Constructor.
 	 * 
 	 * @param root Root of the datastore to scan.
+	 * @param scanMode ScanMode to use.
+	 * @param blockSize Block size in bytes.
 	 * @param bufferSize Size of the internal read buffer.
 	 * @param ioRate Maximum IO rate in MB/s to throttle the scanning.
 	 * @param compressor Compressor to use.
@@ -42,9 +65,10 @@ public class FileScanner {
 	 * @param hashCounter MutableCounter used for tracking the number of currently active unique hashes.
 	 * @param verbose Whether or not to enable verbose logging.
 	 */
-	public FileScanner(Path root, int blockSize, int bufferSize, double ioRate, Compressor compressor,
+	public FileScanner(Path root, ScanMode scanMode, int blockSize, int bufferSize, double ioRate, Compressor compressor,
 			Results totals, MutableCounter hashCounter, boolean verbose) {
 		this.root = root;
+		this.scanMode = scanMode;
 		this.blockSize = blockSize;
 		this.bufferSize = bufferSize;
 		this.verbose = verbose;
@@ -62,8 +86,114 @@ public class FileScanner {
 		} else {
 			this.bufferSize = bufferSize;
 		}
+		// Raw devices are read with large sequential reads, so keep every read aligned as well, as
+		// long as that doesn't take more than doubling the buffer.
+		if (scanMode == ScanMode.DEVICE) {
+			long step = lcm(superblockSize, CompScan.DEVICE_ALIGNMENT);
+			long aligned = (this.bufferSize + step - 1) / step * step;
+			if (aligned <= 2L * this.bufferSize && aligned <= Integer.MAX_VALUE - 8) {
+				this.bufferSize = (int) aligned;
+			} else {
+				System.out.format("Superblock size %d doesn't fit %d-byte alignment; device reads will be unaligned.%n%n",
+						superblockSize, CompScan.DEVICE_ALIGNMENT);
+			}
+		}
 		
 		this.ioRate = ioRate;
+		sampleFraction = CompScan.FULL_SCAN;
+		sampleSeed = 0L;
+		checkpoint = null;
+		checkpointIntervalMS = 0L;
+		start = null;
+		cache = null;
+		fileBuffer = null;
+		links = null;
+		filter = null;
+		dedupeIndex = null;
+		groupReport = null;
+		blockCounter = null;
+	}
+	
+	/**
+	 * Detect hard links during the walk and handle repeated links according to the tracker's policy.
+	 * 
+	 * @param links HardLinkTracker to use, or null to read every link.
+	 */
+	public void setHardLinkTracker(HardLinkTracker links) {
+		this.links = links;
+	}
+	
+	/**
+	 * Keep a count of the blocks read from the current file next to the hash counter, for scans
+	 * in which the hash counter is reset for every file, such as VMDK mode.
+	 * 
+	 * @param blockCounter MutableCounter to update, or null for none.
+	 */
+	public void setBlockCounter(MutableCounter blockCounter) {
+		this.blockCounter = blockCounter;
+	}
+	
+	/**
+	 * Apply include/exclude rules during the walk.
+	 * 
+	 * @param filter WalkFilter to apply, or null to walk everything.
+	 */
+	public void setWalkFilter(WalkFilter filter) {
+		this.filter = filter;
+	}
+	
+	/**
+	 * Scan only a random sample of the superblocks instead of the whole datastore.
+	 * 
+	 * @param sampleFraction Fraction of superblocks to sample (CompScan.FULL_SCAN = read everything).
+	 * @param sampleSeed Seed for choosing the sampled superblocks.
+	 */
+	public void setSampling(double sampleFraction, long sampleSeed) {
+		this.sampleFraction = sampleFraction;
+		this.sampleSeed = sampleSeed;
+	}
+	
+	/**
+	 * Take periodic checkpoints during scan(), optionally resuming from an earlier one.
+	 * 
+	 * @param checkpoint Checkpoint to save to. The totals must already be tracking hash changes.
+	 * @param checkpointIntervalMS Minimum time between checkpoints in milliseconds.
+	 * @param start Position to resume from, or null to start at the beginning.
+	 */
+	public void setCheckpoint(Checkpoint checkpoint, long checkpointIntervalMS, Checkpoint.Position start) {
+		this.checkpoint = checkpoint;
+		this.checkpointIntervalMS = checkpointIntervalMS;
+		this.start = start;
+	}
+	
+	/**
+	 * Scan incrementally, reusing the cached results of unchanged files. Each file is scanned on its
+	 * own, starting on a superblock boundary, so that its contribution can be cached separately.
+	 * 
+	 * @param cache ScanCache to read from and update.
+	 */
+	public void setCache(ScanCache cache) {
+		this.cache = cache;
+	}
+	
+	/**
+	 * In VMDK mode, add the hashes of each disk to a global index before they are released, so
+	 * the disks can be deduplicated against each other afterwards.
+	 * 
+	 * @param dedupeIndex DedupeIndex to add to, or null to report each disk on its own.
+	 */
+	public void setDedupeIndex(DedupeIndex dedupeIndex) {
+		this.dedupeIndex = dedupeIndex;
+	}
+	
+	/**
+	 * Break the results down into groups. Each file is then scanned on its own, starting on a
+	 * superblock boundary, so that its results can be attributed to its groups.
+	 * 
+	 * @param groupReport GroupReport to add each file's results to, or null for totals only.
+	 */
+	public void setGroupReport(GroupReport groupReport) {
+		this.groupReport = groupReport;
 	}
 	
 	/**
@@ -74,8 +204,27 @@ public class FileScanner {
 	 * @throws NoNextFileException if file root contains no regular files.
 	 */
 	public void scan() throws IOException, BufferLengthException, NoNextFileException {
-		try (FileWalkerStream fws = new FileWalkerStream(new FileWalker(root, verbose), blockSize, bufferSize, ioRate, false)) {
-			if (!fws.hasMore()) {
+		if (sampleFraction != CompScan.FULL_SCAN) {
+			SuperblockSampler sampler = new SuperblockSampler(root, scanMode, sampleFraction, sampleSeed,
+					compressor, hashCounter, links, verbose);
+			sampler.setWalkFilter(filter);
+			sampler.sample(totals);
+			reportHardLinks();
+			return;
+		}
+		if (cache != null) {
+			scanIncremental();
+			reportHardLinks();
+			return;
+		}
+		if (groupReport != null) {
+			scanGrouped();
+			reportHardLinks();
+			return;
+		}
+		try (FileWalkerStream fws = new FileWalkerStream(new FileWalker(root, scanMode, links, filter, verbose), blockSize, bufferSize,
+				ioRate, false, start)) {
+			if (!fws.hasMore() && start == null) {
 				throw new NoNextFileException(
 						String.format(
 								"FileWalkerStream with root \"%s\" contains no scannable data.", root));
@@ -84,6 +233,81 @@ public class FileScanner {
 		} catch (IOException ex) {
 			throw ex;
 		}
+		reportHardLinks();
+	}
+	
+	/**
+	 * Add the hard link counters to the totals if hard links are being tracked.
+	 */
+	private void reportHardLinks() {
+		if (links != null) {
+			links.report(totals);
+		}
+	}
+	
+	/**
+	 * Run an incremental scan, one file at a time, using the cache for unchanged files.
+	 * 
+	 * @throws IOException if an IO error occurs.
+	 * @throws BufferLengthException if the buffer is the wrong size.
+	 * @throws NoNextFileException if file root contains no regular files.
+	 */
+	private void scanIncremental() throws IOException, BufferLengthException, NoNextFileException {
+		// scanFile will use the local verbose field, so to prevent double printing, always use false for
+		// this walker.
+		try (FileWalker fw = new FileWalker(root, scanMode, links, filter, false)) {
+			if (!fw.hasNext()) {
+				throw new NoNextFileException(
+						String.format(
+								"FileWalker with root \"%s\" contains no regular files.", root));
+			}
+			while (fw.hasNext()) {
+				Path f = fw.next();
+				BasicFileAttributes attrs = Files.readAttributes(f, BasicFileAttributes.class);
+				if (attrs.size() == 0) {
+					totals.incrementFilesRead();
+				} else if (cache.replay(f, attrs, totals)) {
+					totals.incrementFilesRead();
+				} else {
+					Results r = new Results(f.toString(), totals.getTimestamp());
+					scanFile(f, r);
+					totals.updateHashes(r.getHashes());
+					cache.store(f, attrs, r);
+				}
+				hashCounter.setCount(totals.getHashes().size());
+			}
+		}
+		totals.setExtra("cached files", String.valueOf(cache.getHits()));
+		totals.setExtra("cached bytes", String.valueOf(cache.getHitBytes()));
+	}
+	
+	/**
+	 * Run a scan one file at a time, adding each file's results to its groups.
+	 * 
+	 * @throws IOException if an IO error occurs.
+	 * @throws BufferLengthException if the buffer is the wrong size.
+	 * @throws NoNextFileException if file root contains no regular files.
+	 */
+	private void scanGrouped() throws IOException, BufferLengthException, NoNextFileException {
+		// scanFile will use the local verbose field, so to prevent double printing, always use false for
+		// this walker.
+		try (FileWalker fw = new FileWalker(root, scanMode, links, filter, false)) {
+			if (!fw.hasNext()) {
+				throw new NoNextFileException(
+						String.format(
+								"FileWalker with root \"%s\" contains no regular files.", root));
+			}
+			while (fw.hasNext()) {
+				Path f = fw.next();
+				Results r = new Results(f.toString(), totals.getTimestamp());
+				r.set("block size", totals.get("block size"));
+				r.set("superblock size", totals.get("superblock size"));
+				scanFile(f, r);
+				totals.updateHashes(r.getHashes());
+				groupReport.add(f, r);
+				hashCounter.setCount(totals.getHashes().size());
+			}
+		}
 	}
 	
 	/**
@@ -95,11 +319,17 @@ public class FileScanner {
 	 * @throws BufferLengthException if the buffer is the wrong size.
 	 */
 	private void scanStream(FileWalkerStream fws, Results r) throws IOException, BufferLengthException {
+		byte[] buffer = readBuffer();
+		long lastCheckpoint = System.currentTimeMillis();
 		while (fws.hasMore()) {
-			byte[] buffer = fws.getBytes();
-			scanBuffer(buffer, r);
+			int filled = fws.read(buffer);
+			scanBuffer(buffer, filled, r);
 			r.set("files read", fws.getFilesRead());
 			hashCounter.setCount(r.getHashes().size());
+			if (checkpoint != null && System.currentTimeMillis() - lastCheckpoint >= checkpointIntervalMS) {
+				checkpoint.save(r, fws.getPosition());
+				lastCheckpoint = System.currentTimeMillis();
+			}
 		}
 	}
 	
@@ -119,7 +349,7 @@ public class FileScanner {
 			throws IOException, BufferLengthException, NoNextFileException {
 		// scanFile will use the local verbose field, so to prevent double printing, always use false for
 		// this walker.
-		try (FileWalker fw = new FileWalker(root, ScanMode.VMDK, false)) {
+		try (FileWalker fw = new FileWalker(root, ScanMode.VMDK, links, filter, false)) {
 			if (!fw.hasNext()) {
 				throw new NoNextFileException(
 						String.format(
@@ -132,13 +362,22 @@ public class FileScanner {
 				r.set("block size", totals.get("block size"));
 				r.set("superblock size", totals.get("superblock size"));
 				hashCounter.resetCount();
+				if (blockCounter != null) {
+					blockCounter.resetCount();
+				}
 				scanFile(f, r);
 				r.set("files read", 1L);
+				totals.setExtra("virtual bytes", String.valueOf(virtualBytes));
+				totals.setExtra("allocated bytes", String.valueOf(allocatedBytes));
+				totals.setExtra("unallocated bytes", String.valueOf(virtualBytes - allocatedBytes));
 				
 				cs.writeHashResults(r, f);
 				if (printHashes) {
 					r.printHashes();
 				}
+				if (dedupeIndex != null) {
+					dedupeIndex.addImage(r.getHashes());
+				}
 				r.releaseHashes();
 				
 				fileResults.add(r);
@@ -164,56 +403,179 @@ public class FileScanner {
 		
 		totals.incrementFilesRead();
 		
+		if (fileBuffer == null) {
+			fileBuffer = readBuffer();
+		}
+		if (scanMode == ScanMode.VMDK) {
+			try (VirtualDisk vd = VirtualDisk.open(f)) {
+				if (vd != null) {
+					scanVirtualDisk(vd, f, r);
+					return;
+				}
+			}
+			long size = Files.size(f);
+			recordAllocation(r, size, size);
+		}
+		
+		// The outer walk admitted f, so if it is a first link its fingerprints are recorded here.
+		HardLinkTracker.BlockRecorder recorder = (links != null ? links.recorder(f) : null);
 		try (FileWalkerStream fws = new FileWalkerStream(new FileWalker(f, verbose), blockSize, bufferSize, ioRate, true)) {
-			byte[] buffer = new byte[bufferSize];
+			byte[] buffer = fileBuffer;
 			while (fws.hasMore()) {
-				buffer = fws.getBytes();
+				int filled = fws.read(buffer);
+				if (recorder != null) {
+					recorder.update(buffer, 0, filled);
+				}
 				Results intermediate = new Results(f.toString(), r.getTimestamp());
-				scanBuffer(buffer, intermediate);
+				scanBuffer(buffer, filled, intermediate, false);
 				r.feedOtherResults(intermediate, intermediate.getHashes());
 				totals.feedOtherResults(intermediate, null);
-				hashCounter.setCount(r.getHashes().size());;
+				updateCounters(r);
 			}
 		}
+		if (recorder != null) {
+			recorder.finish();
+		}
+	}
+	
+	/**
+	 * Scan the allocated guest data of a virtual disk image.
+	 * 
+	 * @param vd Parsed image.
+	 * @param f Path to the image.
+	 * @param r Results object to update with the scan data.
+	 * @throws IOException if an IO error occurs.
+	 * @throws BufferLengthException if the buffer is the wrong size.
+	 */
+	private void scanVirtualDisk(VirtualDisk vd, Path f, Results r) throws IOException, BufferLengthException {
+		if (verbose) {
+			System.out.format("Reading allocated data of %s image \"%s\".%n", vd.getFormat(), f);
+		}
+		int delayMS = FileWalkerStream.delayFor(ioRate, bufferSize);
+		byte[] buffer = fileBuffer;
+		while (true) {
+			long initial = System.currentTimeMillis();
+			int n = vd.read(buffer, 0, bufferSize);
+			if (n == 0) {
+				break;
+			}
+			// Pad the final block, as FileWalkerStream does at the end of a file.
+			int filled = (n + blockSize - 1) / blockSize * blockSize;
+			Arrays.fill(buffer, n, bufferSize, (byte) 0x0);
+			Results intermediate = new Results(f.toString(), r.getTimestamp());
+			scanBuffer(buffer, filled, intermediate, false);
+			r.feedOtherResults(intermediate, intermediate.getHashes());
+			totals.feedOtherResults(intermediate, null);
+			updateCounters(r);
+			FileWalkerStream.throttle(initial, delayMS);
+			if (n < bufferSize) {
+				break;
+			}
+		}
+		recordAllocation(r, vd.getVirtualSize(), vd.getAllocatedBytes());
+	}
+	
+	/**
+	 * Update the hash counter, and the block counter if there is one, from the results of the file
+	 * being scanned.
+	 * 
+	 * @param r Results object for the file.
+	 */
+	private void updateCounters(Results r) {
+		hashCounter.setCount(r.getHashes().size());
+		if (blockCounter != null) {
+			blockCounter.setCount(r.get("blocks read"));
+		}
+	}
+	
+	/**
+	 * Record how much of an image is allocated, both for the image and for the totals.
+	 * 
+	 * @param r Results object for the image.
+	 * @param virtual Size of the disk as seen by the guest.
+	 * @param allocated Guest bytes allocated in the image.
+	 */
+	private void recordAllocation(Results r, long virtual, long allocated) {
+		r.setExtra("virtual bytes", String.valueOf(virtual));
+		r.setExtra("allocated bytes", String.valueOf(allocated));
+		r.setExtra("unallocated bytes", String.valueOf(virtual - allocated));
+		virtualBytes += virtual;
+		allocatedBytes += allocated;
+	}
+	
+	/**
+	 * Get the calling thread's read buffer, allocating it if it doesn't exist yet or is the wrong size.
+	 * A thread only ever runs one scan at a time, so the buffer is never shared.
+	 * 
+	 * @return Buffer of bufferSize bytes.
+	 */
+	private byte[] readBuffer() {
+		byte[] buffer = BUFFERS.get();
+		if (buffer == null || buffer.length != bufferSize) {
+			buffer = new byte[bufferSize];
+			BUFFERS.set(buffer);
+		}
+		return buffer;
 	}
 	
 	/**
 	 * Scan a data buffer by splitting it into superblocks. The buffer size is automatically rounded up
-	 * to the next even multiple of the superblock size, making this easy.
+	 * to the next even multiple of the superblock size, making this easy. Only the superblocks that
+	 * hold data are scanned, so the zero fill at the end of the last buffer isn't counted.
+	 * 
+	 * @param b Data buffer to scan. Must have length == bufferSize.
+	 * @param filled Number of bytes at the start of the buffer that hold data.
+	 * @param r Results object to update with scan results.
+	 * @throws BufferLengthException if the buffers are the wrong size.
+	 */
+	void scanBuffer(byte[] b, int filled, Results r) throws BufferLengthException {
+		scanBuffer(b, filled, r, true);
+	}
+	
+	/**
+	 * Scan a data buffer by splitting it into superblocks, optionally leaving the zero padding of
+	 * the last superblock out of the results. Files scanned on their own are padded to a superblock
+	 * boundary, and counting that padding would add up to a superblock less one block of zeros to
+	 * every file.
 	 * 
 	 * @param b Data buffer to scan. Must have length == bufferSize.
+	 * @param filled Number of bytes at the start of the buffer that hold data, including the
+	 *               padding of the last block.
 	 * @param r Results object to update with scan results.
+	 * @param countPadding Whether the rest of the last superblock counts as read, as it does at the
+	 *                     end of a stream.
 	 * @throws BufferLengthException if the buffers are the wrong size.
 	 */
-	private void scanBuffer(byte[] b, Results r) throws BufferLengthException {
+	private void scanBuffer(byte[] b, int filled, Results r, boolean countPadding) throws BufferLengthException {
 		if (b.length != bufferSize) {
 			throw new BufferLengthException(
 					String.format(
 							"Input buffer size is %1$d but data buffer provided is size %2$d.",
 							bufferSize, b.length));
 		}
-		for (int i = 0, j = superblockSize; j <= b.length; i += superblockSize, j += superblockSize) {
-			byte[] segment = Arrays.copyOfRange(b, i, j);
-			scanSuperblock(segment, r);
+		int count = Math.min(b.length, filled + superblockSize - 1) / superblockSize;
+		long length = (countPadding ? (long) count * superblockSize : Math.min(b.length, filled));
+		for (CompressionInfo ci : compressor.feedData(b, 0, count, length)) {
+			r.feedCompressionInfo(ci);
 		}
 	}
 	
 	/**
-	 * Scan a single superblock of data.
+	 * Least common multiple of two sizes.
 	 * 
-	 * @param segment Data buffer to scan. Must be one superblock in length.
-	 * @param r Results object to update with scan results.
-	 * @throws BufferLengthException if the buffers are the wrong size.
+	 * @param a First size.
+	 * @param b Second size.
+	 * @return lcm(a, b), which can be larger than an int.
 	 */
-	private void scanSuperblock(byte[] segment, Results r) throws BufferLengthException {
-		if (segment.length != superblockSize) {
-			throw new BufferLengthException(
-					String.format(
-							"Superblock size is %1$d but data buffer provided is size %2$d.",
-							superblockSize, segment.length));
+	private static long lcm(long a, long b) {
+		long x = a;
+		long y = b;
+		while (y != 0) {
+			long t = x % y;
+			x = y;
+			y = t;
 		}
-		CompressionInfo ci = compressor.feedData(segment);
-		r.feedCompressionInfo(ci);
+		return a / x * b;
 	}
 	
 	/**
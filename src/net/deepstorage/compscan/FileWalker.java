@@ -7,14 +7,26 @@
  */
 package net.deepstorage.compscan;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.NoSuchElementException;
 import java.util.Queue;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import net.deepstorage.compscan.CompScan.ScanMode;
 
@@ -29,6 +41,7 @@ public class FileWalker implements AutoCloseable {
 	private Stream<Path> fileStream;
 	private Iterator<Path> iterator;
 	private Queue<Path> pending;
+	private HardLinkTracker links;
 	private long filesAccessed;
 	private boolean verbose;
 	
@@ -50,18 +63,61 @@ public class FileWalker implements AutoCloseable {
 	 * @param scanMode The ScanMode to use. If NORMAL, the resulting file stream will
 	 *                 contain all regular files. If VMDK, the file stream will contain
 	 *                 only those files whose extensions are in CompScan.VALID_EXTENSIONS.
+	 *                 If DEVICE, the file stream will contain only root itself, which may
+	 *                 be a block device or an image file.
 	 * @param verbose Whether or not to enable verbose console logging.
 	 * @throws IOException if the file stream couldn't be opened.
 	 */
 	public FileWalker(Path root, ScanMode scanMode, boolean verbose) throws IOException {
+		this(root, scanMode, null, verbose);
+	}
+	
+	/**
+	 * Create a new FileScanner beginning at root with file extension white-listing and hard link
+	 * detection.
+	 * 
+	 * @param root Path to the root of the datastore to scan.
+	 * @param scanMode The ScanMode to use, as for FileWalker(Path, ScanMode, boolean).
+	 * @param links HardLinkTracker deciding which hard links to hand out, or null to hand out all.
+	 * @param verbose Whether or not to enable verbose console logging.
+	 * @throws IOException if the file stream couldn't be opened.
+	 */
+	public FileWalker(Path root, ScanMode scanMode, HardLinkTracker links, boolean verbose) throws IOException {
+		this(root, scanMode, links, null, verbose);
+	}
+	
+	/**
+	 * Create a new FileScanner beginning at root with file extension white-listing, hard link
+	 * detection and include/exclude rules.
+	 * 
+	 * @param root Path to the root of the datastore to scan.
+	 * @param scanMode The ScanMode to use, as for FileWalker(Path, ScanMode, boolean).
+	 * @param links HardLinkTracker deciding which hard links to hand out, or null to hand out all.
+	 * @param filter WalkFilter applied during the walk, or null to walk everything. Ignored in DEVICE mode.
+	 * @param verbose Whether or not to enable verbose console logging.
+	 * @throws IOException if the file stream couldn't be opened.
+	 */
+	public FileWalker(Path root, ScanMode scanMode, HardLinkTracker links, WalkFilter filter, boolean verbose)
+			throws IOException {
 		this.root = root;
 		this.verbose = verbose;
 		
-		if (scanMode == ScanMode.VMDK) {
+		if (filter != null && scanMode != ScanMode.DEVICE) {
+			// Files.walk can't skip a directory, so walk by hand to prune excluded ones unlisted.
+			PrunedWalk walk = new PrunedWalk(root, scanMode, filter);
+			fileStream = StreamSupport.stream(Spliterators.spliteratorUnknownSize(walk, Spliterator.ORDERED), false)
+					.onClose(walk::close);
+		} else if (scanMode == ScanMode.VMDK) {
 			fileStream = Files.walk(this.root).filter(f -> isVMDK(f));
+		} else if (scanMode == ScanMode.DEVICE) {
+			fileStream = Stream.of(this.root);
 		} else {
 			fileStream = Files.walk(this.root).filter(f -> Files.isRegularFile(f));
 		}
+		if (links != null && scanMode != ScanMode.DEVICE) {
+			fileStream = fileStream.filter(f -> links.admit(f));
+			this.links = links;
+		}
 		
 		iterator = fileStream.iterator();
 		pending = new LinkedList<Path>();
@@ -137,6 +193,15 @@ public class FileWalker implements AutoCloseable {
 		return root;
 	}
 	
+	/**
+	 * Get the hard link tracker deciding which files are handed out.
+	 * 
+	 * @return The HardLinkTracker, or null if hard links aren't tracked.
+	 */
+	public HardLinkTracker getHardLinkTracker() {
+		return links;
+	}
+	
 	/**
 	 * Get the number of files accessed.
 	 * 
@@ -151,13 +216,155 @@ public class FileWalker implements AutoCloseable {
 		fileStream.close();
 	}
 	
+	/**
+	 * A depth-first walk in the same order as Files.walk, that doesn't follow links to directories
+	 * either, but asks a WalkFilter before descending into a directory or handing out a file.
+	 */
+	private static class PrunedWalk implements Iterator<Path>, Closeable {
+		private final ScanMode scanMode;
+		private final WalkFilter filter;
+		private final Deque<DirectoryStream<Path>> streams;
+		private final Deque<Iterator<Path>> iterators;
+		private Path next;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param root Root of the walk.
+		 * @param scanMode NORMAL to hand out regular files, VMDK to hand out virtual disk files.
+		 * @param filter Rules to apply.
+		 * @throws IOException if the root couldn't be read.
+		 */
+		PrunedWalk(Path root, ScanMode scanMode, WalkFilter filter) throws IOException {
+			this.scanMode = scanMode;
+			this.filter = filter;
+			streams = new ArrayDeque<>();
+			iterators = new ArrayDeque<>();
+			next = null;
+			BasicFileAttributes attrs = Files.readAttributes(root, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			if (attrs.isDirectory()) {
+				open(root);
+			} else {
+				consider(root, attrs);
+			}
+		}
+		
+		@Override
+		public boolean hasNext() {
+			advance();
+			return next != null;
+		}
+		
+		@Override
+		public Path next() {
+			advance();
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			Path p = next;
+			next = null;
+			return p;
+		}
+		
+		@Override
+		public void close() {
+			while (!streams.isEmpty()) {
+				closeTop();
+			}
+		}
+		
+		/**
+		 * Walk on until the next file to hand out is found or the walk is over.
+		 * 
+		 * @throws UncheckedIOException if a directory or attributes couldn't be read, as Files.walk does.
+		 */
+		private void advance() throws UncheckedIOException {
+			while (next == null && !iterators.isEmpty()) {
+				Path p;
+				try {
+					if (!iterators.peek().hasNext()) {
+						closeTop();
+						continue;
+					}
+					p = iterators.peek().next();
+				} catch (DirectoryIteratorException e) {
+					throw new UncheckedIOException(e.getCause());
+				}
+				BasicFileAttributes attrs;
+				try {
+					attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				if (attrs.isDirectory()) {
+					if (filter.admitDirectory(p, attrs)) {
+						open(p);
+					}
+				} else {
+					consider(p, attrs);
+				}
+			}
+		}
+		
+		/**
+		 * Hand out a file next if the scan mode selects it and the filter admits it.
+		 * 
+		 * @param f The file.
+		 * @param attrs Its attributes, not following links.
+		 * @throws UncheckedIOException if the attributes of a link's target couldn't be read.
+		 */
+		private void consider(Path f, BasicFileAttributes attrs) throws UncheckedIOException {
+			if (scanMode == ScanMode.VMDK ? !isVMDK(f) : !Files.isRegularFile(f)) {
+				return;
+			}
+			if (attrs.isSymbolicLink()) {
+				try {
+					attrs = Files.readAttributes(f, BasicFileAttributes.class);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			if (filter.admitFile(f, attrs)) {
+				next = f;
+			}
+		}
+		
+		/**
+		 * Start listing a directory.
+		 * 
+		 * @param dir The directory.
+		 * @throws UncheckedIOException if it couldn't be opened.
+		 */
+		private void open(Path dir) throws UncheckedIOException {
+			try {
+				DirectoryStream<Path> ds = Files.newDirectoryStream(dir);
+				streams.push(ds);
+				iterators.push(ds.iterator());
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		
+		/**
+		 * Finish listing the innermost open directory.
+		 */
+		private void closeTop() {
+			iterators.pop();
+			try {
+				streams.pop().close();
+			} catch (IOException e) {
+				// Nothing left to read from it.
+			}
+		}
+	}
+	
 	/**
 	 * Check if path is a valid virtual disk file.
 	 * 
 	 * @param path Path to verify.
 	 * @return True if path is a valid virtual disk file.
 	 */
-	private static Boolean isVMDK(Path path) {
+	static Boolean isVMDK(Path path) {
 		if (path == null) {
 			return false;
 		} else {
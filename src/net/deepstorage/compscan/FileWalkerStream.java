@@ -7,13 +7,24 @@
  */
 package net.deepstorage.compscan;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 /**
  * A filesystem walker data stream for CompScan.
  * 
+ * Files are read through a FileChannel directly into the caller's buffer. The size of each file
+ * is taken when the stream steps to it, so a file that fits in the space left in the buffer is
+ * opened, read in a single call, and closed again without any intermediate buffering. The end of
+ * a file is detected from the size and the read results rather than from InputStream.available().
+ * 
+ * Block devices and other non-regular files are sized through FileChannel.size(). If the channel
+ * can't report a size, the file is read sequentially until a read reports the end of the stream.
+ * 
  * @author Ramon A. Lovato
  * @version 1.0
  */
@@ -21,7 +32,12 @@ public class FileWalkerStream implements AutoCloseable {
 	private final FileWalker walker;
 	private final int blockSize;
 	private final int bufferSize;
-	private BufferedInputStream bs;
+	private Path current;
+	private long currentSize;
+	private long remaining;
+	private FileChannel channel;
+	private ByteBuffer wrapped;
+	private HardLinkTracker.BlockRecorder recorder;
 	private int delayMS;
 	private boolean noStep;
 	
@@ -36,19 +52,39 @@ public class FileWalkerStream implements AutoCloseable {
 	 * @throws IOException if the underlying reader failed.
 	 */
 	public FileWalkerStream(FileWalker walker, int blockSize, int bufferSize, double ioRate, boolean noStep) throws IOException {
+		this(walker, blockSize, bufferSize, ioRate, noStep, null);
+	}
+	
+	/**
+	 * Constructor that resumes from a position saved by getPosition().
+	 * 
+	 * @param walker The FileWalker that backs this stream. Must walk the same files in the same order
+	 *               as the stream the position was taken from.
+	 * @param blockSize Size of one IO block.
+	 * @param bufferSize Size of the internal read buffer.
+	 * @param ioRate Maximum MB/sec we're allowed to perform.
+	 * @param noStep Prohibit stepping to the next file (single-file-only mode).
+	 * @param start Position from which to start, or null to start at the beginning.
+	 * @throws IOException if the underlying reader failed or the files no longer match the position.
+	 */
+	public FileWalkerStream(FileWalker walker, int blockSize, int bufferSize, double ioRate, boolean noStep,
+			Checkpoint.Position start) throws IOException {
 		this.walker = walker;
 		this.blockSize = blockSize;
 		this.bufferSize = bufferSize;
-		bs = null;
-		if (ioRate == CompScan.UNLIMITED) {
-			delayMS = 0;
-		} else {
-			double buffsPerSec = (CompScan.ONE_MB / bufferSize) * ioRate;
-			delayMS = (int) (1000.0 / buffsPerSec);
-		}
+		current = null;
+		remaining = 0L;
+		channel = null;
+		wrapped = null;
+		recorder = null;
+		delayMS = delayFor(ioRate, bufferSize);
 		// Forcibly set this.noStep to false so we can get the first file.
 		this.noStep = false;
-		step();
+		if (start != null) {
+			skipTo(start);
+		} else {
+			step();
+		}
 		this.noStep = noStep;
 	}
 	
@@ -59,29 +95,52 @@ public class FileWalkerStream implements AutoCloseable {
 	 * @throws IOException if an error occured with the underlying file.
 	 */
 	public byte[] getBytes() throws IOException {
-		if (bs == null) {
+		if (current == null) {
 			return new byte[0];
 		}
 		
 		byte[] buffer = new byte[bufferSize];
+		read(buffer);
+		return buffer;
+	}
+	
+	/**
+	 * Fill a caller-supplied buffer with one buffer's worth of bytes from the stream. Each file is
+	 * padded with zeros to the next block boundary, and whatever is left of the buffer once the
+	 * stream runs out of files is cleared.
+	 * 
+	 * @param buffer Buffer to fill. Must be at least bufferSize bytes long.
+	 * @return The number of bytes filled from files, including block padding.
+	 * @throws IOException if an error occured with the underlying file.
+	 */
+	public int read(byte[] buffer) throws IOException {
+		long initial = System.currentTimeMillis();
 		
 		int totalRead = 0;
 		// The call to hasMore() will automatically step forward to the next file as needed.
 		while (totalRead < bufferSize && hasMore()) {
-			int remaining = bufferSize - totalRead;
-			int bytesRead = readThrottled(bs, buffer, totalRead, remaining);
-			if (bytesRead <= 0) {
-				break;
+			int space = bufferSize - totalRead;
+			int wanted = (int) Math.min(space, remaining);
+			if (channel == null) {
+				channel = FileChannel.open(current, StandardOpenOption.READ);
 			}
-			if (bytesRead < remaining) {
-				// Pad to next block boundary.
+			int bytesRead = fill(buffer, totalRead, wanted);
+			remaining -= bytesRead;
+			if (bytesRead < wanted || remaining <= 0) {
+				// End of file. Pad to next block boundary.
 				int remainder = bytesRead % blockSize;
 				if (remainder != 0) {
-					int end = bytesRead + (blockSize - remainder);
-					bytesRead += clearBuffer(bytesRead, end, buffer);
+					int end = totalRead + bytesRead + (blockSize - remainder);
+					bytesRead += clearBuffer(totalRead + bytesRead, end, buffer);
+				}
+				if (recorder != null) {
+					recorder.update(buffer, totalRead, bytesRead);
+					recorder.finish();
 				}
-				// Get the next file if possible.
-				step();
+				// The next call to hasMore() will step to the next file if possible.
+				finishFile();
+			} else if (recorder != null) {
+				recorder.update(buffer, totalRead, bytesRead);
 			}
 			totalRead += bytesRead;
 		}
@@ -90,23 +149,37 @@ public class FileWalkerStream implements AutoCloseable {
 			clearBuffer(totalRead, bufferSize, buffer);
 		}
 		
-		return buffer;
+		throttle(initial, delayMS);
+		return totalRead;
 	}
 	
 	/**
 	 * Check if there's still more data available.
 	 * 
-	 * @return True if either the current file is open and available or if we can open
+	 * @return True if either the current file still has unread data or if we can open
 	 *         another file.
 	 * @throws IOException if an error occured with the underlying file.
 	 */
 	public boolean hasMore() throws IOException {
 		// First, see if we need to advance.
-		if (bs == null || bs.available() <= 0) {
+		if (current == null) {
 			step();
 		}
 		// Then see if we're available.
-		return bs != null && bs.available() > 0;
+		return current != null;
+	}
+	
+	/**
+	 * Get the current position in the stream. Between calls to read(), this is exactly the
+	 * amount of data handed out so far.
+	 * 
+	 * @return The current position.
+	 */
+	public Checkpoint.Position getPosition() {
+		if (current == null) {
+			return new Checkpoint.Position(walker.getFilesAccessed(), 0L, null);
+		}
+		return new Checkpoint.Position(walker.getFilesAccessed() - 1, currentSize - remaining, current.toString());
 	}
 	
 	/**
@@ -119,29 +192,60 @@ public class FileWalkerStream implements AutoCloseable {
 	}
 	
 	/**
-	 * A helper function that reads bytes from a BufferedInputStream into a buffer and throttles
-	 * the read rate if appropriate.
+	 * A helper function that reads from the current file channel until either the requested
+	 * number of bytes has been read or the end of the file is reached.
 	 * 
-	 * @param bs BufferedInputStream from which to read.
 	 * @param buffer Buffer in which to store the read data.
 	 * @param start Offset from beginning of buffer in which to start storing data.
 	 * @param len Maximum number of bytes to read.
-	 * @return The number of bytes read or -1 if the end of stream has been reached.
+	 * @return The number of bytes read. Less than len only if the end of the file was reached.
 	 * @throws IOException if the underlying file read threw one.
 	 */
-	private int readThrottled(BufferedInputStream bs, byte[] buffer, int start, int len) throws IOException {
-		long initial = System.currentTimeMillis();
-		int bytesRead = bs.read(buffer, start, len);
+	private int fill(byte[] buffer, int start, int len) throws IOException {
+		if (wrapped == null || wrapped.array() != buffer) {
+			wrapped = ByteBuffer.wrap(buffer);
+		}
+		wrapped.limit(start + len);
+		wrapped.position(start);
+		while (wrapped.hasRemaining()) {
+			if (channel.read(wrapped) < 0) {
+				break;
+			}
+		}
+		return wrapped.position() - start;
+	}
+	
+	/**
+	 * Compute the minimum time per buffer needed to stay under an IO rate.
+	 * 
+	 * @param ioRate Maximum MB/sec we're allowed to perform.
+	 * @param bufferSize Size of the read buffer.
+	 * @return Delay per buffer in milliseconds (0 = unthrottled).
+	 */
+	static int delayFor(double ioRate, int bufferSize) {
+		if (ioRate == CompScan.UNLIMITED) {
+			return 0;
+		}
+		double buffsPerSec = ((double) CompScan.ONE_MB / bufferSize) * ioRate;
+		return (int) (1000.0 / buffsPerSec);
+	}
+	
+	/**
+	 * Throttle the read rate if appropriate by sleeping out the rest of the per-buffer delay.
+	 * 
+	 * @param initial Time in milliseconds at which the current buffer was started.
+	 * @param delayMS Minimum time per buffer in milliseconds.
+	 */
+	static void throttle(long initial, int delayMS) {
 		long elapsed = System.currentTimeMillis() - initial;
 		// This will always be false if there's no limit, since delayMS will be 0.
-		if (elapsed < delayMS && bytesRead != -1) {
+		if (elapsed < delayMS) {
 			try {
 				Thread.sleep(delayMS-elapsed);
 			} catch (InterruptedException e) {
 				// Do nothing, since we don't really care if it's interrupted.
 			}
 		}
-		return bytesRead;
 	}
 	
 	/**
@@ -169,26 +273,82 @@ public class FileWalkerStream implements AutoCloseable {
 	}
 	
 	/**
-	 * Advance the input stream to point to the next file if it exists. If the underlying FileWalker
-	 * doesn't have a next file, the input stream will be null.
+	 * Close the current file, if any, and mark it as finished.
+	 * 
+	 * @throws IOException if closing the file channel generated an error.
+	 */
+	private void finishFile() throws IOException {
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+		current = null;
+		remaining = 0L;
+		recorder = null;
+	}
+	
+	/**
+	 * Skip the files and bytes before a saved position without reading them.
+	 * 
+	 * @param start Position to skip to.
+	 * @throws IOException if the file at the position isn't the one that was saved.
+	 */
+	private void skipTo(Checkpoint.Position start) throws IOException {
+		for (long i = 0; i < start.filesDone && walker.hasNext(); i++) {
+			walker.next();
+		}
+		step();
+		if (start.offset > 0) {
+			if (current == null || !current.toString().equals(start.current) || start.offset >= currentSize) {
+				throw new IOException(
+						String.format(
+								"Expected to resume in \"%s\" at offset %d, but the datastore has changed.",
+								start.current, start.offset));
+			}
+			if (channel == null) {
+				channel = FileChannel.open(current, StandardOpenOption.READ);
+			}
+			channel.position(start.offset);
+			remaining = currentSize - start.offset;
+		}
+	}
+	
+	/**
+	 * Advance the stream to point to the next nonempty file if it exists. If the underlying FileWalker
+	 * doesn't have a next file, the current file will be null. The file itself is not opened until
+	 * data is actually read from it.
 	 * 
 	 * @throws IOException if the underlying file stream generated an error.
 	 */
 	private void step() throws IOException {
-		if (bs != null) {
-			bs.close();
-		}
-		if (walker.hasNext() && !noStep) {
-			bs = new BufferedInputStream(Files.newInputStream(walker.next()), bufferSize);
-		} else {
-			bs = null;
+		finishFile();
+		while (walker.hasNext() && !noStep) {
+			Path next = walker.next();
+			long size;
+			if (Files.isRegularFile(next)) {
+				size = Files.size(next);
+			} else {
+				// Devices report a zero st_size, so ask the channel instead.
+				channel = FileChannel.open(next, StandardOpenOption.READ);
+				size = channel.size();
+				if (size <= 0) {
+					size = Long.MAX_VALUE;
+				}
+			}
+			HardLinkTracker links = walker.getHardLinkTracker();
+			HardLinkTracker.BlockRecorder nextRecorder = (links != null ? links.recorder(next) : null);
+			if (size > 0) {
+				current = next;
+				currentSize = size;
+				remaining = size;
+				recorder = nextRecorder;
+				break;
+			}
 		}
 	}
 
 	@Override
 	public void close() throws IOException {
-		if (bs != null) {
-			bs.close();
-		}
+		finishFile();
 	}
 }
@@ -0,0 +1,354 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.deepstorage.compscan.CompScan.Results;
+
+/**
+ * Binary export of the block fingerprints of a scan with their repeat counts, so that separate
+ * scans can later be merged to see how they dedupe against each other without rescanning.
+ * 
+ * An export starts with a header: the scan's name, timestamp, compression format, block and
+ * superblock sizes, its counters, and the number of entries in each section. Then come the block
+ * digests in increasing byte order, each followed by its count as a varint. If the export was
+ * made with superblock sizes, a second section follows with the 128-bit superblock fingerprints
+ * in increasing order, each with its count and compressed size. Because both sections are
+ * sorted, any number of exports can be merged in one streaming pass (see FingerprintMerge).
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+public class FingerprintExport {
+	// Default file name of the export, created inside pathOut.
+	public static final String FILE_NAME = "fingerprints.bin";
+	
+	private static final int MAGIC = 0x43534658; // "CSFX"
+	private static final int VERSION = 1;
+	private static final String TMP_SUFFIX = ".tmp";
+	
+	private FingerprintExport() {
+		// Static helpers only.
+	}
+	
+	/**
+	 * Write an export. The file is written under a temporary name and moved into place once
+	 * complete.
+	 * 
+	 * @param target Path of the export.
+	 * @param r Results of the scan, including its hashes.
+	 * @param formatString Compression format string of the scan.
+	 * @param superblocks Superblocks of the scan with their sizes, or null to leave them out.
+	 *                    Sorted by this method.
+	 * @throws IOException if the write failed.
+	 */
+	public static void write(Path target, Results r, String formatString, SuperblockTable superblocks)
+			throws IOException {
+		FingerprintTable hashes = r.getHashes();
+		hashes.sort();
+		if (superblocks != null) {
+			superblocks.sort();
+		}
+		
+		Path tmp = target.resolveSibling(target.getFileName() + TMP_SUFFIX);
+		FileOutputStream fos = new FileOutputStream(tmp.toFile());
+		boolean committed = false;
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(r.getName());
+			out.writeUTF(r.getTimestamp());
+			out.writeUTF(formatString);
+			out.writeInt((int) r.get("block size"));
+			out.writeInt((int) r.get("superblock size"));
+			out.writeInt(hashes.isEmpty() ? 0 : hashes.getDigestLength());
+			Map<String, Long> counters = r.getCounters();
+			out.writeInt(counters.size());
+			for (Map.Entry<String, Long> e : counters.entrySet()) {
+				out.writeUTF(e.getKey());
+				out.writeLong(e.getValue());
+			}
+			out.writeLong(hashes.size());
+			out.writeLong(superblocks == null ? -1L : superblocks.size());
+			// Patched once the block section has been written and the offset is known.
+			out.flush();
+			long offsetPosition = fos.getChannel().position();
+			out.writeLong(0L);
+			
+			hashes.visit((digest, count) -> {
+				out.write(digest);
+				BinaryIO.writeVarLong(out, count);
+			});
+			out.flush();
+			if (superblocks != null) {
+				long offset = fos.getChannel().position();
+				for (int i = 0; i < superblocks.size(); i++) {
+					out.writeLong(superblocks.getHigh(i));
+					out.writeLong(superblocks.getLow(i));
+					BinaryIO.writeVarLong(out, superblocks.getCount(i));
+					BinaryIO.writeVarLong(out, superblocks.getSize(i));
+				}
+				out.flush();
+				ByteBuffer b = ByteBuffer.allocate(Long.BYTES);
+				b.putLong(offset).flip();
+				fos.getChannel().write(b, offsetPosition);
+			}
+			BinaryIO.commit(fos, tmp, target);
+			committed = true;
+		} finally {
+			if (!committed) {
+				// Don't leave a partial export behind.
+				BinaryIO.discard(fos, tmp);
+			}
+		}
+	}
+	
+	/**
+	 * What to export at the end of a scan.
+	 */
+	public static enum ExportMode {
+		// No export (the default).
+		NONE,
+		// Block fingerprints and their counts.
+		BLOCKS,
+		// Block fingerprints, plus superblock fingerprints with their compressed sizes.
+		SIZES;
+	}
+	
+	/**
+	 * Reads an export. The header is read when the export is opened; the block section and the
+	 * superblock section are then read one entry at a time, each through its own stream, so both
+	 * can be read side by side in bounded memory.
+	 */
+	public static class Reader implements Closeable {
+		private final Path path;
+		private final String name;
+		private final String timestamp;
+		private final String formatString;
+		private final int blockSize;
+		private final int superblockSize;
+		private final int digestLength;
+		private final Map<String, Long> counters;
+		private final long blockCount;
+		private final long superblockCount;
+		private final long superblockOffset;
+		private final DataInputStream blocks;
+		private DataInputStream superblocks;
+		private long blocksRead;
+		private long superblocksRead;
+		
+		/**
+		 * Open an export and read its header.
+		 * 
+		 * @param path Path of the export.
+		 * @throws IOException if the file is unreadable or isn't an export.
+		 */
+		public Reader(Path path) throws IOException {
+			this.path = path;
+			FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+			blocks = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+			try {
+				if (blocks.readInt() != MAGIC || blocks.readInt() != VERSION) {
+					throw new IOException(String.format("\"%s\" is not a fingerprint export.", path));
+				}
+				name = blocks.readUTF();
+				timestamp = blocks.readUTF();
+				formatString = blocks.readUTF();
+				blockSize = blocks.readInt();
+				superblockSize = blocks.readInt();
+				digestLength = blocks.readInt();
+				counters = new LinkedHashMap<>();
+				int keys = blocks.readInt();
+				for (int i = 0; i < keys; i++) {
+					counters.put(blocks.readUTF(), blocks.readLong());
+				}
+				blockCount = blocks.readLong();
+				superblockCount = blocks.readLong();
+				superblockOffset = blocks.readLong();
+			} catch (EOFException e) {
+				blocks.close();
+				throw new IOException(String.format("Fingerprint export \"%s\" is truncated.", path), e);
+			} catch (IOException e) {
+				blocks.close();
+				throw e;
+			}
+			superblocks = null;
+			blocksRead = 0L;
+			superblocksRead = 0L;
+		}
+		
+		/**
+		 * Read the next block entry.
+		 * 
+		 * @param digest Buffer of digestLength bytes to read the digest into.
+		 * @return The block's repeat count, or -1 if the section is finished.
+		 * @throws IOException if the read failed.
+		 */
+		public long nextBlock(byte[] digest) throws IOException {
+			if (blocksRead == blockCount) {
+				return -1L;
+			}
+			blocksRead++;
+			blocks.readFully(digest);
+			return BinaryIO.readVarLong(blocks);
+		}
+		
+		/**
+		 * Read the next superblock entry.
+		 * 
+		 * @param entry Array of at least 4 longs that receives the high and low halves of the
+		 *              fingerprint, the repeat count and the compressed size, in that order.
+		 * @return False if the section is finished.
+		 * @throws IOException if the read failed or the export has no superblock section.
+		 */
+		public boolean nextSuperblock(long[] entry) throws IOException {
+			if (!hasSuperblocks()) {
+				throw new IOException(String.format("Fingerprint export \"%s\" has no superblock sizes.", path));
+			}
+			if (superblocksRead == superblockCount) {
+				return false;
+			}
+			if (superblocks == null) {
+				FileChannel channel = FileChannel.open(path, StandardOpenOption.READ).position(superblockOffset);
+				superblocks = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+			}
+			superblocksRead++;
+			entry[0] = superblocks.readLong();
+			entry[1] = superblocks.readLong();
+			entry[2] = BinaryIO.readVarLong(superblocks);
+			entry[3] = BinaryIO.readVarLong(superblocks);
+			return true;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			try {
+				blocks.close();
+			} finally {
+				if (superblocks != null) {
+					superblocks.close();
+				}
+			}
+		}
+		
+		/**
+		 * Getter for the path of the export.
+		 * 
+		 * @return The path.
+		 */
+		public Path getPath() {
+			return path;
+		}
+		
+		/**
+		 * Getter for the name of the scan.
+		 * 
+		 * @return The name.
+		 */
+		public String getName() {
+			return name;
+		}
+		
+		/**
+		 * Getter for the timestamp of the scan.
+		 * 
+		 * @return The timestamp string.
+		 */
+		public String getTimestamp() {
+			return timestamp;
+		}
+		
+		/**
+		 * Getter for the compression format string of the scan.
+		 * 
+		 * @return The format string.
+		 */
+		public String getFormatString() {
+			return formatString;
+		}
+		
+		/**
+		 * Getter for the block size.
+		 * 
+		 * @return Block size in bytes.
+		 */
+		public int getBlockSize() {
+			return blockSize;
+		}
+		
+		/**
+		 * Getter for the superblock size.
+		 * 
+		 * @return Superblock size in bytes.
+		 */
+		public int getSuperblockSize() {
+			return superblockSize;
+		}
+		
+		/**
+		 * Getter for the length of the block digests.
+		 * 
+		 * @return Digest length in bytes, or 0 if the export has no blocks.
+		 */
+		public int getDigestLength() {
+			return digestLength;
+		}
+		
+		/**
+		 * Getter for the counters of the scan.
+		 * 
+		 * @return Map of counter names to values, in totals.csv order.
+		 */
+		public Map<String, Long> getCounters() {
+			return counters;
+		}
+		
+		/**
+		 * Getter for the number of unique blocks in the export.
+		 * 
+		 * @return Number of block entries.
+		 */
+		public long getBlockCount() {
+			return blockCount;
+		}
+		
+		/**
+		 * Check whether the export has superblock sizes.
+		 * 
+		 * @return True if it has a superblock section.
+		 */
+		public boolean hasSuperblocks() {
+			return superblockCount >= 0;
+		}
+		
+		/**
+		 * Getter for the number of unique superblocks in the export.
+		 * 
+		 * @return Number of superblock entries, or -1 if there is no superblock section.
+		 */
+		public long getSuperblockCount() {
+			return superblockCount;
+		}
+	}
+}
@@ -0,0 +1,375 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import net.deepstorage.compscan.CompScan.Results;
+import net.deepstorage.compscan.FingerprintExport.Reader;
+
+/**
+ * The merge subcommand: combines the fingerprint exports of any number of scans into one
+ * totals.csv and hashes.csv, as if the datastores had been scanned together, without reading any
+ * of the data again.
+ * 
+ * The exports are sorted, so the merge is a k-way merge over one stream per export, and only
+ * holds one entry per export in memory. Counters are summed across the scans. Blocks are
+ * deduplicated across all of them, and the histogram in hashes.csv is of the combined counts.
+ * If every export has superblock sizes from the same format and superblock size, the superblocks
+ * are deduplicated too, giving the space the combined data would need after both compression and
+ * superblock dedupe.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+public class FingerprintMerge {
+	private final Path pathOut;
+	private final List<Path> exports;
+	private final boolean overwriteOK;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param pathOut Where to save the output.
+	 * @param exports Fingerprint exports to merge.
+	 * @param overwriteOK Whether overwriting the output files is allowed.
+	 */
+	public FingerprintMerge(Path pathOut, List<Path> exports, boolean overwriteOK) {
+		this.pathOut = pathOut;
+		this.exports = exports;
+		this.overwriteOK = overwriteOK;
+	}
+	
+	/**
+	 * Entry point for the merge subcommand.
+	 * 
+	 * @param args Arguments following "merge": [--overwrite] pathOut export...
+	 */
+	public static void main(String[] args) {
+		FingerprintMerge merge = null;
+		try {
+			merge = parse(args);
+		} catch (IllegalArgumentException ex) {
+			CompScan.printHelp(ex.getMessage());
+			System.exit(1);
+		} catch (IOException ex) {
+			System.err.println(ex.getMessage());
+			System.exit(1);
+		}
+		try {
+			merge.run();
+		} catch (IOException ex) {
+			System.err.format("Unable to merge fingerprint exports.%n%n");
+			ex.printStackTrace();
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Parse the arguments of the merge subcommand. A directory given as an export stands for every
+	 * export saved in it.
+	 * 
+	 * @param args Arguments following "merge".
+	 * @return The configured merge.
+	 * @throws IllegalArgumentException if the arguments are invalid.
+	 * @throws IOException if an export directory couldn't be listed.
+	 */
+	private static FingerprintMerge parse(String[] args) throws IOException {
+		boolean overwriteOK = false;
+		int i = 0;
+		if (i < args.length && args[i].equals("--overwrite")) {
+			overwriteOK = true;
+			i++;
+		}
+		if (args.length - i < 2) {
+			throw new IllegalArgumentException("The merge subcommand requires pathOut and at least one export.");
+		}
+		Path pathOut = Paths.get(args[i++]);
+		if (!Files.isDirectory(pathOut)) {
+			throw new IllegalArgumentException(String.format("Output path \"%s\" is not a directory.", pathOut));
+		}
+		List<Path> exports = new ArrayList<>();
+		for (; i < args.length; i++) {
+			Path p = Paths.get(args[i]);
+			if (Files.isDirectory(p)) {
+				try (DirectoryStream<Path> ds = Files.newDirectoryStream(p, "*" + FingerprintExport.FILE_NAME)) {
+					for (Path f : ds) {
+						exports.add(f);
+					}
+				}
+			} else if (Files.isRegularFile(p)) {
+				exports.add(p);
+			} else {
+				throw new IllegalArgumentException(String.format("Export \"%s\" does not exist.", p));
+			}
+		}
+		if (exports.isEmpty()) {
+			throw new IllegalArgumentException("No fingerprint exports found to merge.");
+		}
+		return new FingerprintMerge(pathOut, exports, overwriteOK);
+	}
+	
+	/**
+	 * Merge the exports and save totals.csv and hashes.csv.
+	 * 
+	 * @throws IOException if an export is unreadable or the exports can't be merged.
+	 */
+	public void run() throws IOException {
+		List<Reader> readers = new ArrayList<>(exports.size());
+		try {
+			for (Path p : exports) {
+				readers.add(new Reader(p));
+			}
+			merge(readers);
+		} finally {
+			for (Reader r : readers) {
+				r.close();
+			}
+		}
+	}
+	
+	/**
+	 * Merge a list of open exports.
+	 * 
+	 * @param readers The exports.
+	 * @throws IOException if an export is unreadable or the exports can't be merged.
+	 */
+	private void merge(List<Reader> readers) throws IOException {
+		Reader first = readers.get(0);
+		int digestLength = 0;
+		boolean superblocks = true;
+		for (Reader r : readers) {
+			if (r.getBlockSize() != first.getBlockSize()) {
+				throw new IOException(
+						String.format("\"%s\" has block size %d, but \"%s\" has %d; blocks can only be merged at the same size.",
+								r.getPath(), r.getBlockSize(), first.getPath(), first.getBlockSize()));
+			}
+			if (r.getDigestLength() != 0) {
+				if (digestLength != 0 && r.getDigestLength() != digestLength) {
+					throw new IOException(String.format("\"%s\" has %d-bit block fingerprints, but the others have %d-bit ones.",
+							r.getPath(), 8 * r.getDigestLength(), 8 * digestLength));
+				}
+				digestLength = r.getDigestLength();
+			}
+			superblocks &= r.hasSuperblocks()
+					&& r.getSuperblockSize() == first.getSuperblockSize()
+					&& r.getFormatString().equals(first.getFormatString());
+		}
+		if (!superblocks) {
+			System.out.format("Not every export has superblock sizes from the same format and superblock size, "
+					+ "so only blocks are merged.%n%n");
+		}
+		
+		Results totals = new Results(pathOut.getFileName().toString(), new Date());
+		List<Results> allResults = new ArrayList<>(readers.size());
+		for (Reader r : readers) {
+			Results row = new Results(r.getName(), r.getTimestamp());
+			for (Map.Entry<String, Long> e : r.getCounters().entrySet()) {
+				row.set(e.getKey(), e.getValue());
+				totals.set(e.getKey(), totals.get(e.getKey()) + e.getValue());
+			}
+			row.setExtra("unique blocks", String.valueOf(r.getBlockCount()));
+			allResults.add(row);
+		}
+		totals.set("block size", first.getBlockSize());
+		totals.set("superblock size", first.getSuperblockSize());
+		
+		HashHistogram histogram = new HashHistogram();
+		long unique = mergeBlocks(readers, digestLength, histogram);
+		totals.setExtra("unique blocks", String.valueOf(unique));
+		if (superblocks) {
+			long[] bytesNeeded = new long[readers.size()];
+			long[] merged = mergeSuperblocks(readers, first.getBlockSize(), bytesNeeded);
+			for (int i = 0; i < readers.size(); i++) {
+				allResults.get(i).setExtra("unique superblocks", String.valueOf(readers.get(i).getSuperblockCount()));
+				allResults.get(i).setExtra("unique superblock bytes needed", String.valueOf(bytesNeeded[i]));
+			}
+			totals.setExtra("unique superblocks", String.valueOf(merged[0]));
+			totals.setExtra("unique superblock bytes needed", String.valueOf(merged[1]));
+		}
+		// Only the totals have these, so they go after every column the rows share.
+		if (digestLength != 0) {
+			CompScan.reportFingerprintBits(totals, unique, 8 * digestLength);
+		}
+		
+		CompScan.writeResults(pathOut, "totals.csv", w -> CompScan.writeVMDKResults(w, allResults, totals), overwriteOK);
+		CompScan.writeResults(pathOut, "hashes.csv", histogram::write, overwriteOK);
+		System.out.format("%n--> Output saved in \"%s\".%n%n", pathOut);
+		PrintWriter out = new PrintWriter(System.out);
+		CompScan.writeVMDKResults(out, allResults, totals);
+		out.println();
+		out.flush();
+	}
+	
+	/**
+	 * Merge the block sections, adding the combined count of each unique block to a histogram.
+	 * 
+	 * @param readers The exports.
+	 * @param digestLength Length of the block digests.
+	 * @param histogram Histogram to add to.
+	 * @return Number of unique blocks across all the exports.
+	 * @throws IOException if an export is unreadable.
+	 */
+	private static long mergeBlocks(List<Reader> readers, int digestLength, HashHistogram histogram)
+			throws IOException {
+		PriorityQueue<BlockCursor> queue = new PriorityQueue<>(Math.max(1, readers.size()),
+				(a, b) -> BinaryIO.compareUnsigned(a.digest, b.digest));
+		for (Reader r : readers) {
+			BlockCursor c = new BlockCursor(r, digestLength);
+			if (c.advance()) {
+				queue.add(c);
+			}
+		}
+		long unique = 0L;
+		byte[] current = new byte[digestLength];
+		while (!queue.isEmpty()) {
+			BlockCursor c = queue.poll();
+			System.arraycopy(c.digest, 0, current, 0, digestLength);
+			long count = 0L;
+			while (true) {
+				count += c.count;
+				if (c.advance()) {
+					queue.add(c);
+				}
+				if (queue.isEmpty() || BinaryIO.compareUnsigned(queue.peek().digest, current) != 0) {
+					break;
+				}
+				c = queue.poll();
+			}
+			histogram.add(count);
+			unique++;
+		}
+		return unique;
+	}
+	
+	/**
+	 * Merge the superblock sections.
+	 * 
+	 * @param readers The exports.
+	 * @param blockSize Block size, to which compressed sizes are rounded up.
+	 * @param bytesNeeded Receives the bytes needed by the unique superblocks of each export.
+	 * @return The number of unique superblocks across all the exports, and the bytes they need.
+	 * @throws IOException if an export is unreadable.
+	 */
+	private static long[] mergeSuperblocks(List<Reader> readers, int blockSize, long[] bytesNeeded)
+			throws IOException {
+		PriorityQueue<SuperblockCursor> queue = new PriorityQueue<>(Math.max(1, readers.size()),
+				(a, b) -> SuperblockTable.compare(a.entry[0], a.entry[1], b.entry[0], b.entry[1]));
+		for (int i = 0; i < readers.size(); i++) {
+			SuperblockCursor c = new SuperblockCursor(readers.get(i), i);
+			if (c.advance()) {
+				queue.add(c);
+			}
+		}
+		long unique = 0L;
+		long bytes = 0L;
+		while (!queue.isEmpty()) {
+			SuperblockCursor c = queue.poll();
+			long hi = c.entry[0];
+			long lo = c.entry[1];
+			// The same contents compressed with the same format always have the same size.
+			long needed = roundUp(c.entry[3], blockSize);
+			while (true) {
+				bytesNeeded[c.index] += needed;
+				if (c.advance()) {
+					queue.add(c);
+				}
+				if (queue.isEmpty() || queue.peek().entry[0] != hi || queue.peek().entry[1] != lo) {
+					break;
+				}
+				c = queue.poll();
+			}
+			unique++;
+			bytes += needed;
+		}
+		return new long[] {unique, bytes};
+	}
+	
+	/**
+	 * Round a compressed size up to a whole number of blocks.
+	 * 
+	 * @param size Size in bytes.
+	 * @param blockSize Block size in bytes.
+	 * @return Bytes in the blocks needed to store size bytes.
+	 */
+	private static long roundUp(long size, int blockSize) {
+		return (size + blockSize - 1) / blockSize * blockSize;
+	}
+	
+	/**
+	 * Current position in the block section of one export.
+	 */
+	private static class BlockCursor {
+		private final Reader reader;
+		private final byte[] digest;
+		private long count;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param reader Export to read.
+		 * @param digestLength Length of the block digests.
+		 */
+		BlockCursor(Reader reader, int digestLength) {
+			this.reader = reader;
+			digest = new byte[digestLength];
+		}
+		
+		/**
+		 * Move to the next entry.
+		 * 
+		 * @return False if there are no more entries.
+		 * @throws IOException if the export is unreadable.
+		 */
+		boolean advance() throws IOException {
+			count = reader.nextBlock(digest);
+			return count >= 0;
+		}
+	}
+	
+	/**
+	 * Current position in the superblock section of one export.
+	 */
+	private static class SuperblockCursor {
+		private final Reader reader;
+		private final int index;
+		private final long[] entry;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param reader Export to read.
+		 * @param index Index of the export in the merge.
+		 */
+		SuperblockCursor(Reader reader, int index) {
+			this.reader = reader;
+			this.index = index;
+			entry = new long[4];
+		}
+		
+		/**
+		 * Move to the next entry.
+		 * 
+		 * @return False if there are no more entries.
+		 * @throws IOException if the export is unreadable.
+		 */
+		boolean advance() throws IOException {
+			return reader.nextSuperblock(entry);
+		}
+	}
+}
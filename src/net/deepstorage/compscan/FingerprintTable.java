@@ -0,0 +1,540 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.function.ObjLongConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+/**
+ * The FingerprintTable counts block fingerprints: SHA-1 digests truncated to their leading 64, 96,
+ * 128 or 160 bits. It is an open-addressing hash table on primitive arrays, which packs each
+ * fingerprint into 64-bit words next to its count, so an entry takes 16 bytes at 64 bits and 32
+ * bytes at 160 bits instead of the hundred-odd bytes of a boxed map entry with a hex string key.
+ * 
+ * Truncating trades memory for the chance that two different blocks share a fingerprint and are
+ * counted as duplicates. The digests are uniformly distributed, so the expected number of such
+ * false merges among n unique blocks is about n^2 / 2^(bits + 1) (see expectedFalseMerges).
+ * 
+ * The arrays are split into segments and indexed by long, so only the heap limits how many
+ * fingerprints the table can hold, not the largest Java array.
+ * 
+ * Once sort() has been called, entries are visited in fingerprint order and the table can't be
+ * added to until it is cleared. The table is not thread-safe.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+public class FingerprintTable {
+	// Full SHA-1 digests.
+	public static final int DEFAULT_BITS = 160;
+	
+	private static final long MIN_CAPACITY = 1L << 2;
+	// Each segment of the arrays is 512 MiB at most.
+	private static final int SEGMENT_BITS = 26;
+	
+	private final int bits;
+	private final int digestLength;
+	private final int stride;
+	private BigArray keys;
+	private BigArray counts;
+	private long size;
+	private boolean sorted;
+	
+	/**
+	 * Constructor for an empty table.
+	 * 
+	 * @param bits Fingerprint width in bits: 64, 96, 128 or 160.
+	 * @throws IllegalArgumentException if bits is not a supported width.
+	 */
+	public FingerprintTable(int bits) throws IllegalArgumentException {
+		this(bits, 0);
+	}
+	
+	/**
+	 * Constructor for an empty table sized for a number of entries.
+	 * 
+	 * @param bits Fingerprint width in bits: 64, 96, 128 or 160.
+	 * @param expected Number of entries the table should hold before it has to grow.
+	 * @throws IllegalArgumentException if bits is not a supported width.
+	 */
+	public FingerprintTable(int bits, long expected) throws IllegalArgumentException {
+		if (!isValidWidth(bits)) {
+			throw new IllegalArgumentException(
+					String.format("Fingerprint width must be 64, 96, 128 or 160 bits -- %d given.", bits));
+		}
+		this.bits = bits;
+		digestLength = bits / 8;
+		stride = (bits + 63) / 64;
+		allocate(expected);
+	}
+	
+	/**
+	 * Check whether a fingerprint width is supported.
+	 * 
+	 * @param bits Fingerprint width in bits.
+	 * @return True for 64, 96, 128 and 160.
+	 */
+	public static boolean isValidWidth(int bits) {
+		return bits == 64 || bits == 96 || bits == 128 || bits == 160;
+	}
+	
+	/**
+	 * Expected number of unique blocks that share a truncated fingerprint with another unique
+	 * block, and so are wrongly counted as its duplicates.
+	 * 
+	 * @param unique Number of unique fingerprints observed.
+	 * @param bits Fingerprint width in bits.
+	 * @return Expected false merges; n (n - 1) / 2^(bits + 1) by the birthday bound.
+	 */
+	public static double expectedFalseMerges(long unique, int bits) {
+		return (double) unique * (unique - 1) / Math.pow(2.0, bits + 1);
+	}
+	
+	/**
+	 * Getter for the fingerprint width.
+	 * 
+	 * @return Width in bits.
+	 */
+	public int getBits() {
+		return bits;
+	}
+	
+	/**
+	 * Getter for the length of the fingerprints as digests.
+	 * 
+	 * @return Length in bytes.
+	 */
+	public int getDigestLength() {
+		return digestLength;
+	}
+	
+	/**
+	 * Getter for the number of distinct fingerprints.
+	 * 
+	 * @return Number of entries.
+	 */
+	public long size() {
+		return size;
+	}
+	
+	/**
+	 * Check whether the table is empty.
+	 * 
+	 * @return True if there are no entries.
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	/**
+	 * Remove every entry and release the memory they took.
+	 */
+	public void clear() {
+		allocate(0);
+	}
+	
+	/**
+	 * Add to the count of a fingerprint, adding it first if it isn't in the table.
+	 * 
+	 * @param digest Digest of at least getDigestLength() bytes, of which the leading
+	 *               getDigestLength() are the fingerprint.
+	 * @param count Number to add; nothing is added if it is zero.
+	 * @throws IllegalArgumentException if the digest is too short.
+	 * @throws IllegalStateException if the table has been sorted.
+	 */
+	public void add(byte[] digest, long count) throws IllegalArgumentException, IllegalStateException {
+		if (digest.length < digestLength) {
+			throw new IllegalArgumentException(
+					String.format("A %d-bit fingerprint needs a digest of at least %d bytes -- %d given.",
+							bits, digestLength, digest.length));
+		}
+		long w0 = word(digest, 0);
+		long w1 = (stride > 1 ? word(digest, 1) : 0L);
+		long w2 = (stride > 2 ? word(digest, 2) : 0L);
+		add(w0, w1, w2, count);
+	}
+	
+	/**
+	 * Add every entry of another table of the same width to this one.
+	 * 
+	 * @param other Table to add.
+	 * @throws IllegalArgumentException if the widths differ.
+	 * @throws IllegalStateException if this table has been sorted.
+	 */
+	public void addAll(FingerprintTable other) throws IllegalArgumentException, IllegalStateException {
+		if (other.bits != bits) {
+			throw new IllegalArgumentException(
+					String.format("Can't combine %d-bit fingerprints with %d-bit ones.", other.bits, bits));
+		}
+		long limit = (other.sorted ? other.size : other.counts.length);
+		for (long i = 0; i < limit; i++) {
+			long count = other.counts.get(i);
+			if (count != 0L) {
+				long k = i * stride;
+				add(other.keys.get(k), (stride > 1 ? other.keys.get(k + 1) : 0L),
+						(stride > 2 ? other.keys.get(k + 2) : 0L), count);
+			}
+		}
+	}
+	
+	/**
+	 * Pack the entries to the front of the table in increasing unsigned order of fingerprint, so
+	 * that forEach and visit go through them in that order. The table can't be added to afterwards,
+	 * until it is cleared.
+	 */
+	public void sort() {
+		if (sorted) {
+			return;
+		}
+		long n = 0;
+		for (long i = 0; i < counts.length; i++) {
+			long count = counts.get(i);
+			if (count != 0L) {
+				if (n != i) {
+					for (int w = 0; w < stride; w++) {
+						keys.set(n * stride + w, keys.get(i * stride + w));
+					}
+					counts.set(n, count);
+					counts.set(i, 0L);
+				}
+				n++;
+			}
+		}
+		quicksort(0, n - 1);
+		sorted = true;
+	}
+	
+	/**
+	 * Visit every entry, in fingerprint order if the table has been sorted.
+	 * 
+	 * @param action Called once per entry with the digest and its count. The digest array is reused
+	 *               between calls.
+	 */
+	public void forEach(ObjLongConsumer<byte[]> action) {
+		byte[] digest = new byte[digestLength];
+		long limit = (sorted ? size : counts.length);
+		for (long i = 0; i < limit; i++) {
+			long count = counts.get(i);
+			if (count != 0L) {
+				for (int b = 0; b < digestLength; b++) {
+					digest[b] = (byte) (keys.get(i * stride + b / 8) >>> (56 - 8 * (b % 8)));
+				}
+				action.accept(digest, count);
+			}
+		}
+	}
+	
+	/**
+	 * Visit every entry with a visitor that can fail, such as one writing the entries out. Otherwise
+	 * the same as forEach.
+	 * 
+	 * @param visitor Called once per entry. The digest array is reused between calls.
+	 * @throws IOException if the visitor throws.
+	 */
+	public void visit(EntryVisitor visitor) throws IOException {
+		try {
+			forEach((digest, count) -> {
+				try {
+					visitor.visit(digest, count);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+	
+	/**
+	 * Stream the counts of all entries in parallel, for building histograms.
+	 * 
+	 * @return Parallel stream of the repeat counts.
+	 */
+	public LongStream counts() {
+		return counts.stream(sorted ? size : counts.length).parallel().filter(c -> c != 0L);
+	}
+	
+	/**
+	 * Replace the arrays with empty ones large enough for a number of entries.
+	 * 
+	 * @param expected Number of entries the table should hold before it has to grow.
+	 */
+	private void allocate(long expected) {
+		long capacity = MIN_CAPACITY;
+		while (3 * capacity < 4 * (expected + 1)) {
+			capacity *= 2;
+		}
+		keys = new BigArray(capacity * stride);
+		counts = new BigArray(capacity);
+		size = 0;
+		sorted = false;
+	}
+	
+	/**
+	 * Add to the count of a fingerprint given as words.
+	 * 
+	 * @param w0 First 64 bits.
+	 * @param w1 Next 64 bits, or 0 if unused.
+	 * @param w2 Last 32 bits in the high half, or 0 if unused.
+	 * @param count Number to add.
+	 * @throws IllegalStateException if the table has been sorted.
+	 */
+	private void add(long w0, long w1, long w2, long count) throws IllegalStateException {
+		if (sorted) {
+			throw new IllegalStateException("FingerprintTable can't be added to after sorting.");
+		}
+		if (count == 0L) {
+			return;
+		}
+		// Grows at three quarters full: the table holds every unique block of the scan, so memory
+		// matters more than the few extra probes.
+		if (4 * (size + 1) > 3 * counts.length) {
+			grow();
+		}
+		long slot = find(w0, w1, w2);
+		long current = counts.get(slot);
+		if (current == 0L) {
+			long k = slot * stride;
+			keys.set(k, w0);
+			if (stride > 1) {
+				keys.set(k + 1, w1);
+			}
+			if (stride > 2) {
+				keys.set(k + 2, w2);
+			}
+			size++;
+		}
+		counts.set(slot, current + count);
+	}
+	
+	/**
+	 * Find the slot holding a fingerprint, or the empty slot where it belongs.
+	 * 
+	 * @param w0 First 64 bits.
+	 * @param w1 Next 64 bits, or 0 if unused.
+	 * @param w2 Last 32 bits in the high half, or 0 if unused.
+	 * @return Slot index.
+	 */
+	private long find(long w0, long w1, long w2) {
+		long mask = counts.length - 1;
+		// The fingerprint is a cryptographic hash, so its leading bits make a good slot.
+		long slot = Long.rotateLeft(w0, 32) & mask;
+		while (counts.get(slot) != 0L && !matches(slot, w0, w1, w2)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+	
+	/**
+	 * Check whether a slot holds a fingerprint.
+	 * 
+	 * @param slot Slot index.
+	 * @param w0 First 64 bits.
+	 * @param w1 Next 64 bits, or 0 if unused.
+	 * @param w2 Last 32 bits in the high half, or 0 if unused.
+	 * @return True if the fingerprints are equal.
+	 */
+	private boolean matches(long slot, long w0, long w1, long w2) {
+		long k = slot * stride;
+		return keys.get(k) == w0 && (stride < 2 || keys.get(k + 1) == w1) && (stride < 3 || keys.get(k + 2) == w2);
+	}
+	
+	/**
+	 * Double the capacity of the table.
+	 */
+	private void grow() {
+		BigArray oldKeys = keys;
+		BigArray oldCounts = counts;
+		long capacity = 2 * oldCounts.length;
+		keys = new BigArray(capacity * stride);
+		counts = new BigArray(capacity);
+		for (long i = 0; i < oldCounts.length; i++) {
+			long count = oldCounts.get(i);
+			if (count != 0L) {
+				long k = i * stride;
+				long w0 = oldKeys.get(k);
+				long w1 = (stride > 1 ? oldKeys.get(k + 1) : 0L);
+				long w2 = (stride > 2 ? oldKeys.get(k + 2) : 0L);
+				long slot = find(w0, w1, w2);
+				keys.set(slot * stride, w0);
+				if (stride > 1) {
+					keys.set(slot * stride + 1, w1);
+				}
+				if (stride > 2) {
+					keys.set(slot * stride + 2, w2);
+				}
+				counts.set(slot, count);
+			}
+		}
+	}
+	
+	/**
+	 * Read one word of a fingerprint from a digest, big-endian, so that unsigned word order is
+	 * digest byte order. Bytes past the fingerprint width are left as zero.
+	 * 
+	 * @param digest The digest.
+	 * @param w Word index.
+	 * @return The word.
+	 */
+	private long word(byte[] digest, int w) {
+		long v = 0L;
+		int end = Math.min(digestLength, 8 * w + 8);
+		for (int b = 8 * w; b < 8 * w + 8; b++) {
+			v = (v << 8) | (b < end ? digest[b] & 0xFFL : 0L);
+		}
+		return v;
+	}
+	
+	/**
+	 * Sort a range of the packed entries by fingerprint. Fingerprints are uniformly distributed,
+	 * so the middle element is as good a pivot as any.
+	 * 
+	 * @param from First index of the range.
+	 * @param to Last index of the range, inclusive.
+	 */
+	private void quicksort(long from, long to) {
+		long[] pivot = new long[stride];
+		while (from < to) {
+			long mid = (from + to) >>> 1;
+			for (int w = 0; w < stride; w++) {
+				pivot[w] = keys.get(mid * stride + w);
+			}
+			long i = from;
+			long j = to;
+			while (i <= j) {
+				while (compare(i, pivot) < 0) {
+					i++;
+				}
+				while (compare(j, pivot) > 0) {
+					j--;
+				}
+				if (i <= j) {
+					swap(i++, j--);
+				}
+			}
+			// Recurse into the smaller half and loop on the larger, to bound the stack depth.
+			if (j - from < to - i) {
+				quicksort(from, j);
+				from = i;
+			} else {
+				quicksort(i, to);
+				to = j;
+			}
+		}
+	}
+	
+	/**
+	 * Compare a packed entry with a fingerprint as unsigned numbers.
+	 * 
+	 * @param i Index of the entry.
+	 * @param other Words of the other fingerprint.
+	 * @return Negative, zero or positive as the entry is less than, equal to or greater than other.
+	 */
+	private int compare(long i, long[] other) {
+		long k = i * stride;
+		for (int w = 0; w < stride; w++) {
+			int c = Long.compareUnsigned(keys.get(k + w), other[w]);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return 0;
+	}
+	
+	/**
+	 * Swap two packed entries.
+	 * 
+	 * @param a Index of the first entry.
+	 * @param b Index of the second entry.
+	 */
+	private void swap(long a, long b) {
+		for (int w = 0; w < stride; w++) {
+			long t = keys.get(a * stride + w);
+			keys.set(a * stride + w, keys.get(b * stride + w));
+			keys.set(b * stride + w, t);
+		}
+		long c = counts.get(a);
+		counts.set(a, counts.get(b));
+		counts.set(b, c);
+	}
+	
+	/**
+	 * A long array indexed by long, made of segments of up to 2^SEGMENT_BITS elements so that it
+	 * can be larger than a Java array.
+	 */
+	private static final class BigArray {
+		private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+		
+		private final long[][] segments;
+		final long length;
+		
+		/**
+		 * Constructor for a zeroed array.
+		 * 
+		 * @param length Number of elements.
+		 */
+		BigArray(long length) {
+			this.length = length;
+			segments = new long[(int) ((length + SEGMENT_MASK) >>> SEGMENT_BITS)][];
+			for (int s = 0; s < segments.length; s++) {
+				segments[s] = new long[(int) Math.min(length - ((long) s << SEGMENT_BITS), SEGMENT_MASK + 1)];
+			}
+		}
+		
+		/**
+		 * Get an element.
+		 * 
+		 * @param i Index.
+		 * @return The element.
+		 */
+		long get(long i) {
+			return segments[(int) (i >>> SEGMENT_BITS)][(int) (i & SEGMENT_MASK)];
+		}
+		
+		/**
+		 * Set an element.
+		 * 
+		 * @param i Index.
+		 * @param v New value.
+		 */
+		void set(long i, long v) {
+			segments[(int) (i >>> SEGMENT_BITS)][(int) (i & SEGMENT_MASK)] = v;
+		}
+		
+		/**
+		 * Stream the leading elements.
+		 * 
+		 * @param limit Number of elements to stream.
+		 * @return Sequential stream of elements 0 to limit - 1.
+		 */
+		LongStream stream(long limit) {
+			return IntStream.range(0, segments.length).mapToObj(s -> s).flatMapToLong(s -> {
+				long start = (long) s << SEGMENT_BITS;
+				return Arrays.stream(segments[s], 0, (int) Math.max(0L, Math.min(segments[s].length, limit - start)));
+			});
+		}
+	}
+	
+	/**
+	 * Callback for visiting the entries of a table.
+	 */
+	public interface EntryVisitor {
+		/**
+		 * Visit one entry.
+		 * 
+		 * @param digest The fingerprint as a digest of getDigestLength() bytes.
+		 * @param count Number of times it was seen.
+		 * @throws IOException if the visitor fails to write.
+		 */
+		void visit(byte[] digest, long count) throws IOException;
+	}
+}
@@ -0,0 +1,171 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.deepstorage.compscan.CompScan.Results;
+
+/**
+ * Breaks the results of a scan down by top-level directory, file extension and/or owner, for
+ * chargeback, in the same pass as the scan.
+ * 
+ * Each group keeps its own counters and a HyperLogLog of its block fingerprints, so memory stays
+ * bounded however many blocks a group has. The unique block count of a group, and with it its
+ * dedupe factor, is therefore an estimate; every other column is exact. Blocks shared between
+ * groups count as unique in each of them.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+public class GroupReport {
+	// Name of the group report, created inside pathOut.
+	public static final String FILE_NAME = "groups.csv";
+	
+	private final Path root;
+	private final List<String> keys;
+	private final List<Integer> depths;
+	private final Map<String, Group> groups;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param root Root of the scan, which directories are taken relative to.
+	 * @param spec Comma-separated list of groupings: dir:N (the first N directory levels below
+	 *             root), ext (the lower-case file extension) and owner (the file's owner).
+	 * @throws IllegalArgumentException if spec is invalid.
+	 */
+	public GroupReport(Path root, String spec) throws IllegalArgumentException {
+		this.root = root;
+		keys = new ArrayList<>();
+		depths = new ArrayList<>();
+		for (String s : spec.split(",")) {
+			int depth = 0;
+			if (s.startsWith("dir:")) {
+				try {
+					depth = Integer.parseInt(s.substring(4));
+				} catch (NumberFormatException ex) {
+					depth = 0;
+				}
+				if (depth < 1) {
+					throw new IllegalArgumentException("Directory grouping dir:N requires a positive depth N.");
+				}
+				s = "dir";
+			} else if (!s.equals("ext") && !s.equals("owner")) {
+				throw new IllegalArgumentException(
+						String.format("Unknown grouping \"%s\"; use dir:N, ext or owner.", s));
+			}
+			if (keys.contains(s)) {
+				throw new IllegalArgumentException(String.format("Grouping \"%s\" given twice.", s));
+			}
+			keys.add(s);
+			depths.add(depth);
+		}
+		groups = new TreeMap<>();
+	}
+	
+	/**
+	 * Add the results of one file to each of its groups.
+	 * 
+	 * @param f Path to the file.
+	 * @param r Results of the file, with its hashes.
+	 */
+	public void add(Path f, Results r) {
+		for (int i = 0; i < keys.size(); i++) {
+			String name = keys.get(i) + "=" + valueOf(f, keys.get(i), depths.get(i));
+			Group g = groups.get(name);
+			if (g == null) {
+				g = new Group(new Results(name, r.getTimestamp()));
+				g.results.set("block size", r.get("block size"));
+				g.results.set("superblock size", r.get("superblock size"));
+				groups.put(name, g);
+			}
+			g.results.feedOtherResults(r, null);
+			g.results.incrementFilesRead();
+			HyperLogLog unique = g.unique;
+			r.getHashes().forEach((digest, count) -> unique.add(digest));
+		}
+	}
+	
+	/**
+	 * Write the report, one row per group in the totals.csv format, sorted by grouping and group.
+	 * 
+	 * @param w Writer to write to; should be buffered.
+	 * @throws IOException if an IO error occurred.
+	 */
+	public void write(Writer w) throws IOException {
+		boolean first = true;
+		for (Group g : groups.values()) {
+			long unique = g.unique.estimate();
+			long blocks = g.results.get("blocks read");
+			g.results.setExtra("estimated unique blocks", String.valueOf(unique));
+			g.results.setExtra("estimated dedupe factor",
+					String.valueOf(blocks == 0 ? 0.0 : Math.min(1.0, (double) unique / blocks)));
+			if (first) {
+				w.write(g.results.makeHeadingString());
+				first = false;
+			}
+			w.write(System.lineSeparator());
+			w.write(g.results.makeValueString());
+		}
+	}
+	
+	/**
+	 * Find the group a file belongs to for one grouping.
+	 * 
+	 * @param f Path to the file.
+	 * @param key Grouping.
+	 * @param depth Number of directory levels, for the dir grouping.
+	 * @return Name of the group.
+	 */
+	private String valueOf(Path f, String key, int depth) {
+		switch (key) {
+		case "dir":
+			Path dir = (f.startsWith(root) ? root.relativize(f).getParent() : null);
+			if (dir == null) {
+				return ".";
+			}
+			return dir.subpath(0, Math.min(depth, dir.getNameCount())).toString().replace('\\', '/');
+		case "ext":
+			String name = f.getFileName().toString();
+			int dot = name.lastIndexOf('.');
+			return (dot > 0 && dot < name.length() - 1 ? name.substring(dot + 1).toLowerCase() : "(none)");
+		default:
+			try {
+				return Files.getOwner(f).getName();
+			} catch (IOException | UnsupportedOperationException ex) {
+				return "(unknown)";
+			}
+		}
+	}
+	
+	/**
+	 * The counters and fingerprint estimate of one group.
+	 */
+	private static class Group {
+		private final Results results;
+		private final HyperLogLog unique;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param results Empty results for the group.
+		 */
+		Group(Results results) {
+			this.results = results;
+			unique = new HyperLogLog();
+		}
+	}
+}
@@ -0,0 +1,351 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Detects files that are hard links to an inode already seen during the walk.
+ * 
+ * Only files with more than one link are tracked, so trees without hard links cost one attribute
+ * read per file and no memory. Seen inodes are kept as (device, inode) pairs in an open-addressing
+ * table of primitive longs.
+ * 
+ * Under the COUNT policy, the block fingerprints of each inode with more than one link are recorded
+ * while its first link is read, so that the repeated links can be added to the results, hashes
+ * included, without being read again. This costs one extra SHA-1 pass and one fingerprint per block
+ * over the first links only.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+public class HardLinkTracker {
+	private static final int INITIAL_CAPACITY = 1 << 10;
+	
+	private final HardLinkPolicy policy;
+	private final int blockSize;
+	private final int fingerprintBits;
+	private long[] devices;
+	private long[] inodes;
+	private boolean[] used;
+	private long[] references;
+	private FingerprintTable[] fingerprints;
+	private int size;
+	private final Map<Path, long[]> unread;
+	private long repeats;
+	private long repeatBytes;
+	private boolean supported;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param policy What to do with repeated links.
+	 * @param blockSize Size of one block, for recording the fingerprints of first links.
+	 * @param fingerprintBits Width of the recorded fingerprints; must match the scan's.
+	 */
+	public HardLinkTracker(HardLinkPolicy policy, int blockSize, int fingerprintBits) {
+		this.policy = policy;
+		this.blockSize = blockSize;
+		this.fingerprintBits = fingerprintBits;
+		devices = new long[INITIAL_CAPACITY];
+		inodes = new long[INITIAL_CAPACITY];
+		used = new boolean[INITIAL_CAPACITY];
+		references = new long[INITIAL_CAPACITY];
+		fingerprints = new FingerprintTable[INITIAL_CAPACITY];
+		size = 0;
+		unread = new HashMap<>();
+		repeats = 0L;
+		repeatBytes = 0L;
+		supported = true;
+	}
+	
+	/**
+	 * Decide whether a regular file should be read. Repeated links are recorded as references.
+	 * 
+	 * @param path Regular file found by the walk.
+	 * @return False if the file is a repeated link and should not be read.
+	 */
+	public boolean admit(Path path) {
+		if (policy == HardLinkPolicy.READ || !supported) {
+			return true;
+		}
+		Map<String, Object> attrs;
+		try {
+			attrs = Files.readAttributes(path, "unix:dev,ino,nlink,size");
+		} catch (UnsupportedOperationException | IllegalArgumentException e) {
+			// No inode numbers on this platform, so there is nothing to track.
+			supported = false;
+			return true;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		if (((Number) attrs.get("nlink")).intValue() < 2) {
+			return true;
+		}
+		long dev = ((Number) attrs.get("dev")).longValue();
+		long ino = ((Number) attrs.get("ino")).longValue();
+		if (add(dev, ino)) {
+			if (policy == HardLinkPolicy.COUNT) {
+				unread.put(path, new long[] {dev, ino});
+			}
+			return true;
+		}
+		references[indexOf(dev, ino)]++;
+		repeats++;
+		repeatBytes += ((Number) attrs.get("size")).longValue();
+		return false;
+	}
+	
+	/**
+	 * Start recording the block fingerprints of a file, if it is the first link of an inode whose
+	 * repeated links will be counted.
+	 * 
+	 * @param path File about to be read.
+	 * @return BlockRecorder to feed the file's data to, or null if the file doesn't need one.
+	 */
+	public BlockRecorder recorder(Path path) {
+		long[] inode = unread.remove(path);
+		if (inode == null) {
+			return null;
+		}
+		return new BlockRecorder(inode[0], inode[1]);
+	}
+	
+	/**
+	 * Get the policy.
+	 * 
+	 * @return What is done with repeated links.
+	 */
+	public HardLinkPolicy getPolicy() {
+		return policy;
+	}
+	
+	/**
+	 * Get the number of repeated links that were not read.
+	 * 
+	 * @return Number of repeated links.
+	 */
+	public long getRepeats() {
+		return repeats;
+	}
+	
+	/**
+	 * Get the total size of the repeated links that were not read.
+	 * 
+	 * @return Logical bytes referenced by repeated links.
+	 */
+	public long getRepeatBytes() {
+		return repeatBytes;
+	}
+	
+	/**
+	 * Record the hard link counters as extra columns. Under the COUNT policy, the repeated links are
+	 * also added to the counters as references that dedupe completely against the first link: their
+	 * blocks, padded as the scan pads every file, count as bytes and blocks read, and their
+	 * fingerprints are counted once more per reference. A reference isn't compressed separately, so
+	 * the compressed counters grow in proportion and the compression factors are unchanged.
+	 * 
+	 * @param r Results object to update. Must hold the rest of the scan.
+	 */
+	public void report(CompScan.Results r) {
+		if (policy == HardLinkPolicy.READ) {
+			return;
+		}
+		r.setExtra("hard link repeats", String.valueOf(repeats));
+		if (policy == HardLinkPolicy.COUNT) {
+			r.setExtra("hard link reference bytes", String.valueOf(repeatBytes));
+			addReferences(r);
+		}
+	}
+	
+	/**
+	 * Add the blocks and fingerprints of the repeated links to the results.
+	 * 
+	 * @param r Results object to update.
+	 */
+	private void addReferences(CompScan.Results r) {
+		FingerprintTable added = new FingerprintTable(fingerprintBits);
+		long blocks = 0L;
+		for (int i = 0; i < used.length; i++) {
+			if (references[i] > 0L && fingerprints[i] != null) {
+				long n = references[i];
+				blocks += n * fingerprints[i].counts().sum();
+				fingerprints[i].forEach((digest, count) -> added.add(digest, n * count));
+			}
+		}
+		long bytesRead = r.get("bytes read");
+		if (blocks == 0L || bytesRead == 0L) {
+			return;
+		}
+		double scale = (double) (blocks * blockSize) / bytesRead;
+		for (String k : new String[] {"compressed bytes", "compressed blocks", "actual bytes needed"}) {
+			r.set(k, r.get(k) + Math.round(r.get(k) * scale));
+		}
+		r.set("bytes read", bytesRead + blocks * blockSize);
+		r.set("blocks read", r.get("blocks read") + blocks);
+		r.updateHashes(added);
+	}
+	
+	/**
+	 * Add a (device, inode) pair to the set.
+	 * 
+	 * @param dev Device number.
+	 * @param ino Inode number.
+	 * @return True if the pair was not already present.
+	 */
+	private boolean add(long dev, long ino) {
+		if (2 * (size + 1) > used.length) {
+			grow();
+		}
+		int i = indexOf(dev, ino);
+		if (used[i]) {
+			return false;
+		}
+		used[i] = true;
+		devices[i] = dev;
+		inodes[i] = ino;
+		size++;
+		return true;
+	}
+	
+	/**
+	 * Find the slot of a (device, inode) pair.
+	 * 
+	 * @param dev Device number.
+	 * @param ino Inode number.
+	 * @return Index of the pair, or of the free slot where it belongs if it isn't present.
+	 */
+	private int indexOf(long dev, long ino) {
+		int mask = used.length - 1;
+		for (int i = slot(dev, ino) & mask; ; i = (i + 1) & mask) {
+			if (!used[i] || (devices[i] == dev && inodes[i] == ino)) {
+				return i;
+			}
+		}
+	}
+	
+	/**
+	 * Double the table size and rehash.
+	 */
+	private void grow() {
+		long[] oldDevices = devices;
+		long[] oldInodes = inodes;
+		boolean[] oldUsed = used;
+		long[] oldReferences = references;
+		FingerprintTable[] oldFingerprints = fingerprints;
+		devices = new long[oldUsed.length * 2];
+		inodes = new long[oldUsed.length * 2];
+		used = new boolean[oldUsed.length * 2];
+		references = new long[oldUsed.length * 2];
+		fingerprints = new FingerprintTable[oldUsed.length * 2];
+		size = 0;
+		for (int i = 0; i < oldUsed.length; i++) {
+			if (oldUsed[i]) {
+				add(oldDevices[i], oldInodes[i]);
+				int j = indexOf(oldDevices[i], oldInodes[i]);
+				references[j] = oldReferences[i];
+				fingerprints[j] = oldFingerprints[i];
+			}
+		}
+	}
+	
+	/**
+	 * Hash a (device, inode) pair.
+	 * 
+	 * @param dev Device number.
+	 * @param ino Inode number.
+	 * @return Hash code.
+	 */
+	private static int slot(long dev, long ino) {
+		long h = ino * 0x9E3779B97F4A7C15L + dev;
+		h ^= (h >>> 32);
+		h *= 0xC2B2AE3D27D4EB4FL;
+		return (int) (h ^ (h >>> 29));
+	}
+	
+	/**
+	 * Hashes the blocks of a first link as it is read, the same way the Compressor does, and keeps
+	 * the fingerprints for its repeated links once the whole file has been fed.
+	 */
+	public class BlockRecorder {
+		private final long dev;
+		private final long ino;
+		private final MessageDigest digest;
+		private final FingerprintTable blocks;
+		private int filled;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param dev Device number of the file.
+		 * @param ino Inode number of the file.
+		 */
+		private BlockRecorder(long dev, long ino) {
+			this.dev = dev;
+			this.ino = ino;
+			try {
+				digest = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				// Every Java platform is required to support SHA-1.
+				throw new IllegalStateException(e);
+			}
+			blocks = new FingerprintTable(fingerprintBits);
+			filled = 0;
+		}
+		
+		/**
+		 * Feed the next part of the file.
+		 * 
+		 * @param b Buffer holding the data.
+		 * @param off Start of the data in b.
+		 * @param len Number of bytes.
+		 */
+		public void update(byte[] b, int off, int len) {
+			while (len > 0) {
+				int n = Math.min(len, blockSize - filled);
+				digest.update(b, off, n);
+				filled += n;
+				off += n;
+				len -= n;
+				if (filled == blockSize) {
+					blocks.add(digest.digest(), 1L);
+					filled = 0;
+				}
+			}
+		}
+		
+		/**
+		 * Pad the last block with zeros, as FileWalkerStream does, and keep the fingerprints.
+		 */
+		public void finish() {
+			if (filled > 0) {
+				update(new byte[blockSize - filled], 0, blockSize - filled);
+			}
+			fingerprints[indexOf(dev, ino)] = blocks;
+		}
+	}
+	
+	/**
+	 * What to do with files that are hard links to an inode already seen.
+	 */
+	public static enum HardLinkPolicy {
+		// Read every link (the default).
+		READ,
+		// Don't read repeated links and leave them out of the results.
+		SKIP,
+		// Don't read repeated links, but report them as fully deduplicated references.
+		COUNT;
+	}
+}
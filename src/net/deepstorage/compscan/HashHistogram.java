@@ -0,0 +1,170 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.stream.LongStream;
+
+/**
+ * The HashHistogram counts how many unique blocks repeat each number of times, which is what
+ * hashes.csv reports. It is built with a parallel reduction over the repeat counts of the hash
+ * map: each thread fills its own histogram and the partial histograms are merged at the end.
+ * 
+ * Small repeat counts, which is nearly all of them, are tallied in a dense array indexed by the
+ * count. Larger counts are rare (there can be at most one per DENSE blocks read), so they are
+ * appended to a growable array and sorted once when the histogram is written. Nothing is boxed.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+public class HashHistogram {
+	private static final int DENSE = 1 << 12;
+	
+	private final long[] dense;
+	private long[] sparse;
+	private int sparseCount;
+	
+	/**
+	 * Constructor for an empty histogram.
+	 */
+	public HashHistogram() {
+		dense = new long[DENSE];
+		sparse = new long[0];
+		sparseCount = 0;
+	}
+	
+	/**
+	 * Build the histogram of a stream of repeat counts, in parallel if the stream is.
+	 * 
+	 * @param repeats Number of times each unique block was seen.
+	 * @return The histogram.
+	 */
+	public static HashHistogram of(LongStream repeats) {
+		return repeats.collect(HashHistogram::new, HashHistogram::add, HashHistogram::merge);
+	}
+	
+	/**
+	 * Count one unique block.
+	 * 
+	 * @param repeats Number of times the block was seen.
+	 */
+	public void add(long repeats) {
+		if (repeats >= 0 && repeats < DENSE) {
+			dense[(int) repeats]++;
+			return;
+		}
+		if (sparseCount == sparse.length) {
+			sparse = Arrays.copyOf(sparse, Math.max(16, 2 * sparseCount));
+		}
+		sparse[sparseCount++] = repeats;
+	}
+	
+	/**
+	 * Count several unique blocks that were all seen the same number of times.
+	 * 
+	 * @param repeats Number of times each block was seen.
+	 * @param blocks Number of blocks.
+	 */
+	public void add(long repeats, long blocks) {
+		if (repeats >= 0 && repeats < DENSE) {
+			dense[(int) repeats] += blocks;
+			return;
+		}
+		for (long i = 0; i < blocks; i++) {
+			add(repeats);
+		}
+	}
+	
+	/**
+	 * Add another histogram into this one.
+	 * 
+	 * @param other Histogram to merge.
+	 */
+	public void merge(HashHistogram other) {
+		for (int i = 0; i < DENSE; i++) {
+			dense[i] += other.dense[i];
+		}
+		for (int i = 0; i < other.sparseCount; i++) {
+			add(other.sparse[i]);
+		}
+	}
+	
+	/**
+	 * Visit the histogram in increasing order of repeat count, skipping empty buckets.
+	 * 
+	 * @param visitor Called with each repeat count and the number of blocks with that count.
+	 * @throws IOException if the visitor throws it.
+	 */
+	public void forEach(BucketVisitor visitor) throws IOException {
+		Arrays.sort(sparse, 0, sparseCount);
+		int s = 0;
+		// Repeat counts are never negative, but keep the output sorted regardless.
+		while (s < sparseCount && sparse[s] < 0) {
+			s = visitRun(s, visitor);
+		}
+		for (int i = 0; i < DENSE; i++) {
+			if (dense[i] != 0) {
+				visitor.visit(i, dense[i]);
+			}
+		}
+		while (s < sparseCount) {
+			s = visitRun(s, visitor);
+		}
+	}
+	
+	/**
+	 * Visit one run of equal values in the sorted sparse array.
+	 * 
+	 * @param start Index of the start of the run.
+	 * @param visitor Visitor to call.
+	 * @return Index just past the end of the run.
+	 * @throws IOException if the visitor throws it.
+	 */
+	private int visitRun(int start, BucketVisitor visitor) throws IOException {
+		int end = start + 1;
+		while (end < sparseCount && sparse[end] == sparse[start]) {
+			end++;
+		}
+		visitor.visit(sparse[start], end - start);
+		return end;
+	}
+	
+	/**
+	 * Write the histogram in the hashes.csv format: a heading, then one line per repeat count
+	 * giving the number of blocks before the number of repeats.
+	 * 
+	 * @param w Writer to write to; should be buffered.
+	 * @throws IOException if an IO error occurred.
+	 */
+	public void write(Writer w) throws IOException {
+		w.write("number of blocks,number of repeats");
+		forEach((repeats, blocks) -> {
+			w.write(System.lineSeparator());
+			w.write(Long.toString(blocks));
+			w.write(',');
+			w.write(Long.toString(repeats));
+		});
+	}
+	
+	/**
+	 * Callback for visiting the buckets of a histogram.
+	 */
+	@FunctionalInterface
+	public interface BucketVisitor {
+		/**
+		 * Visit one bucket.
+		 * 
+		 * @param repeats Repeat count.
+		 * @param blocks Number of unique blocks with that repeat count.
+		 * @throws IOException if an IO error occurred.
+		 */
+		void visit(long repeats, long blocks) throws IOException;
+	}
+}
@@ -0,0 +1,81 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan;
+
+/**
+ * Estimates the number of distinct block fingerprints in a fixed amount of memory.
+ * 
+ * The fingerprints are SHA-1 digests, so their leading 64 bits are already uniformly distributed
+ * and are used as the hash directly. With 2^14 one-byte registers the estimate takes 16 KB and has
+ * a standard error of about 0.8%. Small counts use linear counting, which is close to exact.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+public class HyperLogLog {
+	private static final int PRECISION = 14;
+	private static final int REGISTERS = 1 << PRECISION;
+	private static final double ALPHA = 0.7213 / (1.0 + 1.079 / REGISTERS);
+	
+	private final byte[] registers;
+	
+	/**
+	 * Constructor for an empty estimator.
+	 */
+	public HyperLogLog() {
+		registers = new byte[REGISTERS];
+	}
+	
+	/**
+	 * Add a fingerprint.
+	 * 
+	 * @param digest Digest of the fingerprint, at least 8 bytes long.
+	 */
+	public void add(byte[] digest) {
+		long hash = 0L;
+		for (int i = 0; i < Long.BYTES; i++) {
+			hash = (hash << 8) | (digest[i] & 0xFFL);
+		}
+		add(hash);
+	}
+	
+	/**
+	 * Add a uniformly distributed 64-bit hash.
+	 * 
+	 * @param hash The hash.
+	 */
+	public void add(long hash) {
+		int index = (int) (hash >>> (64 - PRECISION));
+		// The marker bit bounds the rank if the remaining bits are all zero.
+		int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+		if (rank > registers[index]) {
+			registers[index] = (byte) rank;
+		}
+	}
+	
+	/**
+	 * Estimate the number of distinct hashes added.
+	 * 
+	 * @return The estimate.
+	 */
+	public long estimate() {
+		double sum = 0.0;
+		int zeros = 0;
+		for (byte r : registers) {
+			sum += 1.0 / (1L << r);
+			if (r == 0) {
+				zeros++;
+			}
+		}
+		double e = ALPHA * REGISTERS * REGISTERS / sum;
+		if (e <= 2.5 * REGISTERS && zeros > 0) {
+			e = REGISTERS * Math.log((double) REGISTERS / zeros);
+		}
+		return Math.round(e);
+	}
+}
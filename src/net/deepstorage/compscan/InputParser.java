@@ -10,14 +10,22 @@ package net.deepstorage.compscan;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Queue;
 
 import net.deepstorage.compscan.CompScan.ScanMode;
+import net.deepstorage.compscan.FingerprintExport.ExportMode;
+import net.deepstorage.compscan.HardLinkTracker.HardLinkPolicy;
 
 /**
  * CLI parser for CompScan.
@@ -46,11 +54,32 @@ public class InputParser {
 	private int superblockSize;
 	private String formatString;
 	private int bufferSize;
+	private boolean bufferSizeSet;
 	private boolean overwriteOK;
 	private Compressor compressor;
 	private boolean printHashes;
 	private boolean verbose;
 	private boolean printUsage;
+	private double sampleFraction;
+	private long sampleSeed;
+	private double checkpointMinutes;
+	private boolean resume;
+	private Path cachePath;
+	private HardLinkPolicy hardLinkPolicy;
+	private double entropyThreshold;
+	private int sizeCacheEntries;
+	private ExportMode exportMode;
+	private int coordinatorPort;
+	private boolean progress;
+	private String groupBy;
+	private List<String> includes;
+	private List<String> excludes;
+	private long minSize;
+	private long maxSize;
+	private long modifiedAfter;
+	private long modifiedBefore;
+	private boolean oneFileSystem;
+	private int fingerprintBits;
 	
 	/**
 	 * Constructor.
@@ -64,10 +93,31 @@ public class InputParser {
 		scanMode = ScanMode.NORMAL;
 		ioRate = compScan.getIORate();
 		bufferSize = CompScan.ONE_MB;
+		bufferSizeSet = false;
 		overwriteOK = false;
 		printHashes = false;
 		verbose = false;
 		printUsage = false;
+		sampleFraction = CompScan.FULL_SCAN;
+		sampleSeed = 0L;
+		checkpointMinutes = CompScan.NO_CHECKPOINTS;
+		resume = false;
+		cachePath = null;
+		hardLinkPolicy = HardLinkPolicy.READ;
+		entropyThreshold = CompScan.NO_ENTROPY_SKIP;
+		sizeCacheEntries = CompScan.DEFAULT_SIZE_CACHE_ENTRIES;
+		exportMode = ExportMode.NONE;
+		coordinatorPort = CompScan.NO_COORDINATOR;
+		progress = false;
+		groupBy = null;
+		includes = new ArrayList<>();
+		excludes = new ArrayList<>();
+		minSize = WalkFilter.NO_MINIMUM;
+		maxSize = WalkFilter.NO_MAXIMUM;
+		modifiedAfter = WalkFilter.NO_MINIMUM;
+		modifiedBefore = WalkFilter.NO_MAXIMUM;
+		oneFileSystem = false;
+		fingerprintBits = FingerprintTable.DEFAULT_BITS;
 		
 		for (String s : POSITIONAL_ARGS) {
 			if (!assigned.containsKey(s)) {
@@ -103,9 +153,50 @@ public class InputParser {
 		}
 		
 		checkPositionals();
+		checkDeviceMode();
+		if (sampleFraction != CompScan.FULL_SCAN && scanMode == ScanMode.VMDK) {
+			throw new IllegalArgumentException("--sample cannot be combined with --vmdk.");
+		}
+		if ((checkpointMinutes != CompScan.NO_CHECKPOINTS || resume)
+				&& (scanMode == ScanMode.VMDK || sampleFraction != CompScan.FULL_SCAN)) {
+			throw new IllegalArgumentException("--checkpoint and --resume cannot be combined with --vmdk or --sample.");
+		}
+		if (cachePath != null && (scanMode != ScanMode.NORMAL || sampleFraction != CompScan.FULL_SCAN
+				|| checkpointMinutes != CompScan.NO_CHECKPOINTS || resume)) {
+			throw new IllegalArgumentException(
+					"--cache cannot be combined with --vmdk, --device, --sample, --checkpoint or --resume.");
+		}
+		if (coordinatorPort != CompScan.NO_COORDINATOR && (scanMode == ScanMode.VMDK
+				|| sampleFraction != CompScan.FULL_SCAN || checkpointMinutes != CompScan.NO_CHECKPOINTS || resume
+				|| cachePath != null || exportMode == ExportMode.SIZES)) {
+			throw new IllegalArgumentException(
+					"--coordinator cannot be combined with --vmdk, --sample, --checkpoint, --resume, --cache or --export sizes.");
+		}
+		if (groupBy != null && (scanMode != ScanMode.NORMAL || sampleFraction != CompScan.FULL_SCAN
+				|| checkpointMinutes != CompScan.NO_CHECKPOINTS || resume || cachePath != null
+				|| coordinatorPort != CompScan.NO_COORDINATOR)) {
+			throw new IllegalArgumentException(
+					"--group-by cannot be combined with --vmdk, --device, --sample, --checkpoint, --resume, --cache or --coordinator.");
+		}
+		if (hardLinkPolicy == HardLinkPolicy.COUNT && (scanMode == ScanMode.VMDK
+				|| sampleFraction != CompScan.FULL_SCAN || checkpointMinutes != CompScan.NO_CHECKPOINTS || resume
+				|| cachePath != null || coordinatorPort != CompScan.NO_COORDINATOR)) {
+			// Repeated links are counted from fingerprints recorded while their first link is read.
+			throw new IllegalArgumentException(
+					"--hardlinks count cannot be combined with --vmdk, --sample, --checkpoint, --resume, --cache or --coordinator.");
+		}
+		GroupReport groupReport = (groupBy != null ? new GroupReport(pathIn, groupBy) : null);
+		WalkFilter walkFilter = makeWalkFilter();
+		if (exportMode == ExportMode.SIZES && (cachePath != null || resume)) {
+			// Superblocks of cached files and of the scan before the checkpoint are never fed to the compressor.
+			throw new IllegalArgumentException("--export sizes cannot be combined with --cache or --resume.");
+		}
 		
 		compScan.setup(ioRate, pathIn, pathOut, scanMode, blockSize, superblockSize, bufferSize, overwriteOK,
-				compressor, printHashes, verbose, printUsage);
+				compressor, printHashes, verbose, printUsage, sampleFraction, sampleSeed,
+				checkpointMinutes, resume, cachePath, hardLinkPolicy, entropyThreshold,
+				sizeCacheEntries, exportMode, coordinatorPort, progress, groupReport, walkFilter,
+				fingerprintBits);
 		printConfig();
 	}
 	
@@ -217,6 +308,14 @@ public class InputParser {
 		case "--vmdk":
 			scanMode = ScanMode.VMDK;
 			break;
+		// Raw device mode.
+		case "--device":
+			scanMode = ScanMode.DEVICE;
+			break;
+		// Pre-walk, ETA and progress file.
+		case "--progress":
+			progress = true;
+			break;
 		// IO rate.
 		case "--rate":
 			if (!it.hasNext()) {
@@ -246,6 +345,7 @@ public class InputParser {
 				if (bufferSize < 1) {
 					throw new NumberFormatException();
 				}
+				bufferSizeSet = true;
 			} catch (NumberFormatException ex) {
 				throw new IllegalArgumentException(
 						String.format(
@@ -259,6 +359,214 @@ public class InputParser {
 		case "--hashes":
 			printHashes = true;
 			break;
+		// Sampled scan.
+		case "--sample":
+			if (!it.hasNext()) {
+				throw new IllegalArgumentException(
+						"Reached end of arguments without finding value for sample fraction.");
+			}
+			try {
+				sampleFraction = Double.parseDouble(it.next());
+				if (!(sampleFraction >= SuperblockSampler.MIN_FRACTION && sampleFraction <= 1.0)) {
+					throw new NumberFormatException();
+				}
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException(String.format(
+						"Optional parameter sample requires a fraction of at least %g and at most 1.",
+						SuperblockSampler.MIN_FRACTION));
+			}
+			break;
+		// Checkpoint interval.
+		case "--checkpoint":
+			if (!it.hasNext()) {
+				throw new IllegalArgumentException(
+						"Reached end of arguments without finding value for checkpoint interval.");
+			}
+			try {
+				checkpointMinutes = Double.parseDouble(it.next());
+				if (!(checkpointMinutes > 0.0)) {
+					throw new NumberFormatException();
+				}
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException(
+						"Optional parameter checkpoint requires a positive number of minutes.");
+			}
+			break;
+		// Incremental rescan cache.
+		case "--cache":
+			if (!it.hasNext()) {
+				throw new IllegalArgumentException(
+						"Reached end of arguments without finding value for cache file.");
+			}
+			cachePath = Paths.get(it.next());
+			if (Files.isDirectory(cachePath)) {
+				throw new IllegalArgumentException(
+						String.format("Cache file \"%1$s\" is a directory.", cachePath));
+			}
+			break;
+		// Distributed scan.
+		case "--coordinator":
+			if (!it.hasNext()) {
+				throw new IllegalArgumentException(
+						"Reached end of arguments without finding value for coordinator port.");
+			}
+			try {
+				coordinatorPort = Integer.parseInt(it.next());
+				if (coordinatorPort < 0 || coordinatorPort > 65535) {
+					throw new NumberFormatException();
+				}
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException(
+						"Optional parameter coordinator requires a TCP port from 0 to 65535.");
+			}
+			break;
+		// Entropy prefilter.
+		case "--entropy-skip":
+			if (!it.hasNext()) {
+				throw new IllegalArgumentException(
+						"Reached end of arguments without finding value for entropy threshold.");
+			}
+			try {
+				entropyThreshold = Double.parseDouble(it.next());
+				if (!(entropyThreshold > 0.0 && entropyThreshold <= CompScan.NO_ENTROPY_SKIP)) {
+					throw new NumberFormatException();
+				}
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException(
+						"Optional parameter entropy-skip requires a number of bits per byte greater than 0 and at most 8.");
+			}
+			break;
+		// Superblock size cache.
+		case "--size-cache":
+			if (!it.hasNext()) {
+				throw new IllegalArgumentException(
+						"Reached end of arguments without finding value for size cache entries.");
+			}
+			try {
+				sizeCacheEntries = Integer.parseInt(it.next());
+				if (sizeCacheEntries < 0) {
+					throw new NumberFormatException();
+				}
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException(
+						"Optional parameter size-cache requires a nonnegative number of entries.");
+			}
+			break;
+		// Hard link handling.
+		case "--hardlinks":
+			if (!it.hasNext()) {
+				throw new IllegalArgumentException(
+						"Reached end of arguments without finding value for hard link policy.");
+			}
+			try {
+				hardLinkPolicy = HardLinkPolicy.valueOf(it.next().toUpperCase());
+			} catch (IllegalArgumentException ex) {
+				throw new IllegalArgumentException(
+						"Optional parameter hardlinks requires one of read, skip or count.");
+			}
+			break;
+		// Fingerprint export.
+		case "--export":
+			if (!it.hasNext()) {
+				throw new IllegalArgumentException(
+						"Reached end of arguments without finding value for export mode.");
+			}
+			try {
+				exportMode = ExportMode.valueOf(it.next().toUpperCase());
+				if (exportMode == ExportMode.NONE) {
+					throw new IllegalArgumentException();
+				}
+			} catch (IllegalArgumentException ex) {
+				throw new IllegalArgumentException(
+						"Optional parameter export requires one of blocks or sizes.");
+			}
+			break;
+		// Per-group breakdown.
+		case "--group-by":
+			if (!it.hasNext()) {
+				throw new IllegalArgumentException(
+						"Reached end of arguments without finding value for group-by.");
+			}
+			groupBy = it.next();
+			break;
+		// Walk filters.
+		case "--include":
+		case "--exclude":
+			if (!it.hasNext()) {
+				throw new IllegalArgumentException(
+						String.format("Reached end of arguments without finding value for %s.", arg.substring(2)));
+			}
+			(arg.equals("--include") ? includes : excludes).add(it.next());
+			break;
+		case "--min-size":
+		case "--max-size":
+			if (!it.hasNext()) {
+				throw new IllegalArgumentException(
+						String.format("Reached end of arguments without finding value for %s.", arg.substring(2)));
+			}
+			try {
+				long size = Long.parseLong(it.next());
+				if (size < 0) {
+					throw new NumberFormatException();
+				}
+				if (arg.equals("--min-size")) {
+					minSize = size;
+				} else {
+					maxSize = size;
+				}
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException(
+						String.format("Optional parameter %s requires a nonnegative number of bytes.", arg.substring(2)));
+			}
+			break;
+		case "--modified-after":
+		case "--modified-before":
+			if (!it.hasNext()) {
+				throw new IllegalArgumentException(
+						String.format("Reached end of arguments without finding value for %s.", arg.substring(2)));
+			}
+			long time = parseTime(arg.substring(2), it.next());
+			if (arg.equals("--modified-after")) {
+				modifiedAfter = time;
+			} else {
+				modifiedBefore = time;
+			}
+			break;
+		case "--one-file-system":
+			oneFileSystem = true;
+			break;
+		// Fingerprint width.
+		case "--fingerprint-bits":
+			if (!it.hasNext()) {
+				throw new IllegalArgumentException(
+						"Reached end of arguments without finding value for fingerprint bits.");
+			}
+			try {
+				fingerprintBits = Integer.parseInt(it.next());
+				if (!FingerprintTable.isValidWidth(fingerprintBits)) {
+					throw new NumberFormatException();
+				}
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException(
+						"Optional parameter fingerprint-bits requires one of 64, 96, 128 or 160.");
+			}
+			break;
+		// Resume from checkpoint.
+		case "--resume":
+			resume = true;
+			break;
+		// Sampling seed.
+		case "--seed":
+			if (!it.hasNext()) {
+				throw new IllegalArgumentException(
+						"Reached end of arguments without finding value for seed.");
+			}
+			try {
+				sampleSeed = Long.parseLong(it.next());
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("Optional parameter seed requires an integer.");
+			}
+			break;
 		// Default.
 		default:
 			throw new IllegalArgumentException(
@@ -267,6 +575,58 @@ public class InputParser {
 		}
 	}
 	
+	/**
+	 * Parse a date or date and time in the local time zone.
+	 * 
+	 * @param name Name of the optional parameter, for the error message.
+	 * @param value yyyy-MM-dd or yyyy-MM-ddTHH:mm[:ss].
+	 * @return Milliseconds since the epoch.
+	 * @throws IllegalArgumentException if the value isn't a valid date.
+	 */
+	private static long parseTime(String name, String value) throws IllegalArgumentException {
+		try {
+			LocalDateTime t = (value.contains("T") ? LocalDateTime.parse(value) : LocalDate.parse(value).atStartOfDay());
+			return t.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+		} catch (DateTimeParseException ex) {
+			throw new IllegalArgumentException(
+					String.format("Optional parameter %s requires a date as yyyy-MM-dd or yyyy-MM-ddTHH:mm:ss -- \"%s\" given.",
+							name, value));
+		}
+	}
+	
+	/**
+	 * Build the walk filter from the filter options.
+	 * 
+	 * @return The filter, or null if no filter option was given.
+	 * @throws IllegalArgumentException if a pattern or range is invalid.
+	 */
+	private WalkFilter makeWalkFilter() throws IllegalArgumentException {
+		WalkFilter filter = new WalkFilter(pathIn);
+		for (String p : includes) {
+			filter.addInclude(p);
+		}
+		for (String p : excludes) {
+			filter.addExclude(p);
+		}
+		if (minSize > maxSize) {
+			throw new IllegalArgumentException("--min-size cannot be larger than --max-size.");
+		}
+		filter.setSizeRange(minSize, maxSize);
+		if (modifiedAfter >= modifiedBefore) {
+			throw new IllegalArgumentException("--modified-after must be earlier than --modified-before.");
+		}
+		filter.setModifiedRange(modifiedAfter, modifiedBefore);
+		filter.setOneFileSystem(oneFileSystem);
+		if (!filter.isActive()) {
+			return null;
+		}
+		if (scanMode == ScanMode.DEVICE) {
+			throw new IllegalArgumentException(
+					"--include, --exclude, --min-size, --max-size, --modified-after, --modified-before and --one-file-system cannot be combined with --device.");
+		}
+		return filter;
+	}
+	
 	/**
 	 * Check that all positional arguments were assigned.
 	 */
@@ -285,6 +645,25 @@ public class InputParser {
 		}
 	}
 	
+	/**
+	 * Check that the input path can be scanned in DEVICE mode and pick the larger default
+	 * read buffer for it.
+	 */
+	private void checkDeviceMode() {
+		if (scanMode != ScanMode.DEVICE) {
+			return;
+		}
+		if (Files.isDirectory(pathIn)) {
+			throw new IllegalArgumentException(
+					String.format(
+							"Input path \"%1$s\" is a directory; --device requires a block device or image file.",
+							pathIn));
+		}
+		if (!bufferSizeSet) {
+			bufferSize = CompScan.DEVICE_BUFFER_SIZE;
+		}
+	}
+	
 	/**
 	 * Print the current configuration.
 	 */
@@ -301,7 +680,10 @@ public class InputParser {
 				"    - overwriteOK:       %8$s%n" +
 				"    - printHashes:       %9$s%n" +
 				"    - formatString:      %10$s%n" +
-				"    - verbose:           %11$s%n",
+				"    - verbose:           %11$s%n" +
+				"    - sampleFraction:    %12$s%n" +
+				"    - entropySkip:       %13$s%n" +
+				"    - fingerprintBits:   %14$d%n",
 				(ioRate == CompScan.UNLIMITED ? "UNLIMITED" : Double.toString(ioRate)),
 				pathIn,
 				pathOut,
@@ -312,7 +694,10 @@ public class InputParser {
 				Boolean.toString(overwriteOK),
 				Boolean.toString(printHashes),
 				formatString,
-				Boolean.toString(verbose)
+				Boolean.toString(verbose),
+				(sampleFraction == CompScan.FULL_SCAN ? "FULL" : sampleFraction + " (seed " + sampleSeed + ")"),
+				(entropyThreshold == CompScan.NO_ENTROPY_SKIP ? "NEVER" : "above " + entropyThreshold + " bits/byte"),
+				fingerprintBits
 				);
 		System.out.println(setupString);
 	}
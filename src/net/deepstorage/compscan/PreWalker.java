@@ -0,0 +1,205 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.deepstorage.compscan.CompScan.ScanMode;
+
+/**
+ * Walks the dataset ahead of the scan, reading only metadata, to find out how many bytes the scan
+ * will read, so that the progress output can show the percentage done and an ETA. Like "bytes
+ * read", each file counts as its size padded to a whole number of blocks, and the final total is
+ * padded to a whole number of superblocks, as the end of the stream is.
+ * 
+ * The walk runs in the background alongside the scan, listing directories in parallel. It selects
+ * files the same way FileWalker does, but doesn't detect hard links and counts virtual disk images
+ * at their file size rather than their allocated size, so the total can be an overestimate.
+ * Unreadable directories and files are skipped.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+public class PreWalker extends Thread {
+	private final Path root;
+	private final ScanMode scanMode;
+	private final int blockSize;
+	private final int superblockSize;
+	private final WalkFilter filter;
+	private final LongAdder bytes;
+	private final LongAdder files;
+	private volatile boolean done;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param root Path to the root of the datastore to scan.
+	 * @param scanMode The ScanMode of the scan, which decides which files are counted.
+	 * @param blockSize Block size of the scan, to which each file is padded.
+	 * @param superblockSize Superblock size of the scan, to which the stream is padded.
+	 * @param filter The WalkFilter of the scan, or null if it walks everything.
+	 */
+	public PreWalker(Path root, ScanMode scanMode, int blockSize, int superblockSize, WalkFilter filter) {
+		super("CompScan pre-walk");
+		setDaemon(true);
+		this.root = root;
+		this.scanMode = scanMode;
+		this.blockSize = blockSize;
+		this.superblockSize = superblockSize;
+		this.filter = (scanMode != ScanMode.DEVICE ? filter : null);
+		bytes = new LongAdder();
+		files = new LongAdder();
+		done = false;
+	}
+	
+	@Override
+	public void run() {
+		try {
+			if (scanMode == ScanMode.DEVICE) {
+				// Block devices report a size of 0 through their attributes.
+				try (FileChannel channel = FileChannel.open(root, StandardOpenOption.READ)) {
+					add(channel.size());
+				} catch (IOException e) {
+					// Leave the total unknown.
+				}
+			} else if (Files.isDirectory(root)) {
+				// Listing directories mostly waits on the filesystem, so use more threads than cores.
+				ForkJoinPool pool = new ForkJoinPool(Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+				try {
+					pool.invoke(new DirectoryTask(root));
+				} finally {
+					pool.shutdown();
+				}
+			} else {
+				count(root);
+			}
+		} finally {
+			done = true;
+		}
+	}
+	
+	/**
+	 * Getter for the number of bytes found so far.
+	 * 
+	 * @return Total size of the files counted so far.
+	 */
+	public long getBytes() {
+		// Checked first, so that a finished walk's sum is complete.
+		boolean finished = done;
+		long sum = bytes.sum();
+		return (finished ? (sum + superblockSize - 1) / superblockSize * superblockSize : sum);
+	}
+	
+	/**
+	 * Getter for the number of files found so far.
+	 * 
+	 * @return Number of files counted so far.
+	 */
+	public long getFiles() {
+		return files.sum();
+	}
+	
+	/**
+	 * Check whether the walk has finished, so that getBytes is the final total.
+	 * 
+	 * @return True if the walk has finished.
+	 */
+	public boolean isDone() {
+		return done;
+	}
+	
+	/**
+	 * Count a file the scan will read.
+	 * 
+	 * @param size Size of the file, which the scan reads padded to a whole number of blocks.
+	 */
+	private void add(long size) {
+		bytes.add((size + blockSize - 1) / blockSize * blockSize);
+		files.increment();
+	}
+	
+	/**
+	 * Count a file if the scan will read it.
+	 * 
+	 * @param f Path to the file. Symbolic links are followed, as FileWalker does for files.
+	 */
+	private void count(Path f) {
+		if (scanMode == ScanMode.VMDK ? !FileWalker.isVMDK(f) : !Files.isRegularFile(f)) {
+			return;
+		}
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(f, BasicFileAttributes.class);
+			if (filter == null || filter.admitFile(f, attrs)) {
+				add(attrs.size());
+			}
+		} catch (IOException e) {
+			// The scan will skip or fail on it too.
+		}
+	}
+	
+	/**
+	 * Counts the files in one directory and forks a task for each subdirectory.
+	 */
+	private class DirectoryTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Path dir;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param dir Directory to count.
+		 */
+		DirectoryTask(Path dir) {
+			this.dir = dir;
+		}
+		
+		@Override
+		protected void compute() {
+			List<DirectoryTask> subtasks = new ArrayList<>();
+			try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+				for (Path f : ds) {
+					BasicFileAttributes attrs;
+					try {
+						attrs = Files.readAttributes(f, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+					} catch (IOException e) {
+						continue;
+					}
+					// Like Files.walk, don't descend into symbolic links to directories.
+					if (attrs.isDirectory()) {
+						if (filter == null || filter.admitDirectory(f, attrs)) {
+							subtasks.add(new DirectoryTask(f));
+						}
+					} else if (attrs.isRegularFile() && scanMode != ScanMode.VMDK) {
+						if (filter == null || filter.admitFile(f, attrs)) {
+							add(attrs.size());
+						}
+					} else {
+						count(f);
+					}
+				}
+			} catch (IOException | DirectoryIteratorException | UncheckedIOException e) {
+				// Unreadable directory; the scan can't read it either.
+			}
+			invokeAll(subtasks);
+		}
+	}
+}
@@ -35,6 +35,31 @@ public class SHA1Encoder {
         return buf.toString();
     } 
  
+    /**
+     * Convert a hex digest back into its raw bytes.
+     * 
+     * @param hex Lowercase or uppercase hex string with an even number of digits.
+     * @return The raw digest bytes.
+     */
+    public static byte[] toBytes(String hex) {
+        byte[] data = new byte[hex.length() / 2];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ((Character.digit(hex.charAt(2 * i), 16) << 4)
+                    | Character.digit(hex.charAt(2 * i + 1), 16));
+        }
+        return data;
+    }
+    
+    /**
+     * Convert raw digest bytes into the hex form used as hash keys.
+     * 
+     * @param data Raw digest bytes.
+     * @return Lowercase hex string.
+     */
+    public static String toHex(byte[] data) {
+        return convertToHex(data);
+    }
+ 
     public static String encode(byte[] input) throws NoSuchAlgorithmException, UnsupportedEncodingException  { 
 	    MessageDigest md;
 	    md = MessageDigest.getInstance("SHA-1");
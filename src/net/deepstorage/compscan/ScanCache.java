@@ -0,0 +1,315 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.deepstorage.compscan.CompScan.Results;
+
+/**
+ * A persistent per-file cache of scan results for incremental rescans.
+ * 
+ * Each entry is keyed by path, size, modification time and file key (inode), and holds the file's
+ * counters and block fingerprints. Loading a cache only reads the entry headers into an in-memory
+ * index; the fingerprints of a file are read back with a positional read when the file turns out
+ * to be unchanged. During a scan a new cache is written next to the old one, copying the entries of
+ * unchanged files verbatim, and it replaces the old cache atomically when the scan is done. Files
+ * that have disappeared drop out of the cache at that point.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+public class ScanCache implements AutoCloseable {
+	private static final int MAGIC = 0x43534343; // "CSCC"
+	private static final int VERSION = 4;
+	private static final String TMP_SUFFIX = ".tmp";
+	// Per-file counters stored in each entry, in order.
+	private static final String[] COUNTERS = {
+			"bytes read",
+			"blocks read",
+			"superblocks read",
+			"compressed bytes",
+			"compressed blocks",
+			"actual bytes needed"
+	};
+	
+	private final Path path;
+	private final Path tmp;
+	private final String config;
+	private final Map<String, Entry> index;
+	private FileChannel old;
+	private FileOutputStream fos;
+	private DataOutputStream out;
+	private long hits;
+	private long hitBytes;
+	
+	/**
+	 * Open a cache, loading the index of the existing cache file if there is one.
+	 * 
+	 * @param path Cache file.
+	 * @param config Description of the scan configuration. Entries written under a different
+	 *               configuration are ignored.
+	 * @throws IOException if the new cache file couldn't be created.
+	 */
+	public ScanCache(Path path, String config) throws IOException {
+		this.path = path;
+		this.config = config;
+		tmp = path.resolveSibling(path.getFileName() + TMP_SUFFIX);
+		index = new HashMap<>();
+		old = null;
+		hits = 0L;
+		hitBytes = 0L;
+		if (Files.isRegularFile(path)) {
+			loadIndex();
+		}
+		fos = new FileOutputStream(tmp.toFile());
+		out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeUTF(config);
+	}
+	
+	/**
+	 * Read the entry headers of the existing cache file.
+	 * 
+	 * @throws IOException if the file is unreadable.
+	 */
+	private void loadIndex() throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				System.err.format("Ignoring unrecognized cache file \"%s\".%n", path);
+				return;
+			}
+			long position = 8L;
+			String savedConfig = in.readUTF();
+			position += 2 + utfLength(savedConfig);
+			if (!savedConfig.equals(config)) {
+				System.err.format("Ignoring cache file \"%s\" written with a different configuration.%n", path);
+				return;
+			}
+			while (true) {
+				String file;
+				try {
+					file = in.readUTF();
+				} catch (EOFException e) {
+					break;
+				}
+				long start = position;
+				long size = in.readLong();
+				long modified = in.readLong();
+				String fileKey = in.readUTF();
+				int payload = in.readInt();
+				long headerLength = 2 + utfLength(file) + 16 + 2 + utfLength(fileKey) + 4;
+				index.put(file, new Entry(size, modified, fileKey, start, headerLength, payload));
+				in.skipBytes(payload);
+				position += headerLength + payload;
+			}
+		}
+		old = FileChannel.open(path, StandardOpenOption.READ);
+	}
+	
+	/**
+	 * Look up an unchanged file and, if found, add its cached contribution to the results and
+	 * carry its entry over to the new cache.
+	 * 
+	 * @param f File to look up.
+	 * @param attrs Current attributes of the file.
+	 * @param r Results object to which the cached counters and fingerprints are added.
+	 * @return True on a hit; false if the file has to be scanned.
+	 * @throws IOException if the cache couldn't be read or written.
+	 */
+	public boolean replay(Path f, BasicFileAttributes attrs, Results r) throws IOException {
+		Entry e = index.get(f.toString());
+		if (e == null || e.size != attrs.size() || e.modified != modifiedOf(attrs)
+				|| !e.fileKey.equals(fileKeyOf(attrs))) {
+			return false;
+		}
+		
+		ByteBuffer bb = ByteBuffer.allocate((int) e.headerLength + e.payload);
+		while (bb.hasRemaining()) {
+			if (old.read(bb, e.start + bb.position()) < 0) {
+				throw new EOFException(String.format("Cache file \"%s\" is truncated.", path));
+			}
+		}
+		byte[] raw = bb.array();
+		DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(raw, (int) e.headerLength, e.payload));
+		for (String k : COUNTERS) {
+			r.set(k, r.get(k) + BinaryIO.readVarLong(in));
+		}
+		byte[] digest = new byte[in.readUnsignedByte()];
+		long n = BinaryIO.readVarLong(in);
+		for (long i = 0; i < n; i++) {
+			in.readFully(digest);
+			r.updateHash(digest, BinaryIO.readVarLong(in));
+		}
+		
+		out.write(raw);
+		index.remove(f.toString());
+		hits++;
+		hitBytes += attrs.size();
+		return true;
+	}
+	
+	/**
+	 * Add the results of a freshly scanned file to the new cache.
+	 * 
+	 * @param f File that was scanned.
+	 * @param attrs Attributes of the file taken before it was scanned.
+	 * @param r Results of scanning only this file.
+	 * @throws IOException if the cache couldn't be written.
+	 */
+	public void store(Path f, BasicFileAttributes attrs, Results r) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream payload = new DataOutputStream(bytes);
+		for (String k : COUNTERS) {
+			BinaryIO.writeVarLong(payload, r.get(k));
+		}
+		FingerprintTable hashes = r.getHashes();
+		payload.writeByte(hashes.isEmpty() ? 0 : hashes.getDigestLength());
+		BinaryIO.writeVarLong(payload, hashes.size());
+		hashes.visit((digest, count) -> {
+			payload.write(digest);
+			BinaryIO.writeVarLong(payload, count);
+		});
+		
+		out.writeUTF(f.toString());
+		out.writeLong(attrs.size());
+		out.writeLong(modifiedOf(attrs));
+		out.writeUTF(fileKeyOf(attrs));
+		out.writeInt(bytes.size());
+		bytes.writeTo(out);
+	}
+	
+	/**
+	 * Get the number of files served from the cache.
+	 * 
+	 * @return Number of cache hits.
+	 */
+	public long getHits() {
+		return hits;
+	}
+	
+	/**
+	 * Get the number of bytes that didn't have to be read thanks to the cache.
+	 * 
+	 * @return Total size of the files served from the cache.
+	 */
+	public long getHitBytes() {
+		return hitBytes;
+	}
+	
+	/**
+	 * Replace the old cache file with the new one. Only call once the scan has completed.
+	 * 
+	 * @throws IOException if the new cache couldn't be saved.
+	 */
+	public void commit() throws IOException {
+		out.flush();
+		closeOld();
+		BinaryIO.commit(fos, tmp, path);
+		out = null;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		closeOld();
+		if (out != null) {
+			// Not committed, so discard the partial new cache.
+			out.close();
+			out = null;
+			Files.deleteIfExists(tmp);
+		}
+	}
+	
+	/**
+	 * Close the old cache file.
+	 * 
+	 * @throws IOException if closing failed.
+	 */
+	private void closeOld() throws IOException {
+		if (old != null) {
+			old.close();
+			old = null;
+		}
+	}
+	
+	/**
+	 * Get the modification time used in cache keys.
+	 * 
+	 * @param attrs File attributes.
+	 * @return Modification time in nanoseconds since the epoch.
+	 */
+	private static long modifiedOf(BasicFileAttributes attrs) {
+		return attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Get the file key (device and inode on Unix) used in cache keys.
+	 * 
+	 * @param attrs File attributes.
+	 * @return String form of the file key, or the empty string if the platform has none.
+	 */
+	private static String fileKeyOf(BasicFileAttributes attrs) {
+		Object key = attrs.fileKey();
+		return (key == null ? "" : key.toString());
+	}
+	
+	/**
+	 * Get the length of a string in modified UTF-8, as written by DataOutput.writeUTF.
+	 * 
+	 * @param s String to measure.
+	 * @return Encoded length in bytes, excluding the 2-byte length prefix.
+	 */
+	private static int utfLength(String s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			length += (c >= 0x0001 && c <= 0x007F ? 1 : (c <= 0x07FF ? 2 : 3));
+		}
+		return length;
+	}
+	
+	/**
+	 * Index entry for one cached file.
+	 */
+	private static class Entry {
+		final long size;
+		final long modified;
+		final String fileKey;
+		final long start;
+		final long headerLength;
+		final int payload;
+		
+		Entry(long size, long modified, String fileKey, long start, long headerLength, int payload) {
+			this.size = size;
+			this.modified = modified;
+			this.fileKey = fileKey;
+			this.start = start;
+			this.headerLength = headerLength;
+			this.payload = payload;
+		}
+	}
+}
@@ -0,0 +1,421 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import net.deepstorage.compscan.CompScan.Results;
+import net.deepstorage.compscan.Compressor.BufferLengthException;
+import net.deepstorage.compscan.FileScanner.NoNextFileException;
+
+/**
+ * The serve subcommand: a long-running process that runs scans submitted over HTTP, so that
+ * frequent small scans don't each pay for JVM startup, codec lookup and JIT warm-up.
+ * 
+ * A job is a POST to /scan whose body holds the usual command line arguments, one per line. It
+ * runs on one of a fixed pool of threads, which keep their read buffers between jobs, writes its
+ * output files to pathOut as a command line scan would, and answers with its totals (and, in
+ * VMDK mode, each disk's results) as JSON. GET /status reports the job counters. The service only
+ * listens on the loopback interface, since the jobs read and write local paths.
+ * 
+ * Loopback alone doesn't keep out web pages open in a local browser, which can POST a plain text
+ * body to any port without the answer ever being readable to them. So at startup the service
+ * writes a random token to a file only its user can read, and every request must carry it in the
+ * X-CompScan-Token header: a browser can't send a custom header cross-origin without a CORS
+ * preflight, which the service never approves. Requests with an Origin header, which only
+ * browsers send, are refused outright.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+public class ScanService {
+	// Default TCP port of the service.
+	public static final int DEFAULT_PORT = 7078;
+	
+	// Header that must carry the token.
+	public static final String TOKEN_HEADER = "X-CompScan-Token";
+	// Default file the token is written to.
+	public static final Path DEFAULT_TOKEN_FILE = Paths.get(System.getProperty("user.home"), ".compscan-service-token");
+	
+	// Extra values that can be written to JSON as numbers.
+	private static final Pattern NUMBER = Pattern.compile("-?\\d+(\\.\\d+)?([eE][-+]?\\d+)?");
+	
+	private final int port;
+	private final int threads;
+	private final Path tokenFile;
+	private byte[] token;
+	private final AtomicLong submitted;
+	private final AtomicLong running;
+	private final AtomicLong succeeded;
+	private final AtomicLong failed;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param port Port to listen on (0 = any free port).
+	 * @param threads Number of jobs to run at once.
+	 * @param tokenFile File to write the access token to.
+	 */
+	public ScanService(int port, int threads, Path tokenFile) {
+		this.port = port;
+		this.threads = threads;
+		this.tokenFile = tokenFile;
+		submitted = new AtomicLong();
+		running = new AtomicLong();
+		succeeded = new AtomicLong();
+		failed = new AtomicLong();
+	}
+	
+	/**
+	 * Entry point for the serve subcommand.
+	 * 
+	 * @param args Arguments following "serve": [--port PORT] [--threads N] [--token-file FILE]
+	 */
+	public static void main(String[] args) {
+		ScanService service = null;
+		try {
+			service = parse(args);
+		} catch (IllegalArgumentException ex) {
+			CompScan.printHelp(ex.getMessage());
+			System.exit(1);
+		}
+		try {
+			service.start();
+		} catch (IOException ex) {
+			System.err.format("Unable to start the scan service.%n%n");
+			ex.printStackTrace();
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Parse the arguments of the serve subcommand.
+	 * 
+	 * @param args Arguments following "serve".
+	 * @return The configured service.
+	 * @throws IllegalArgumentException if the arguments are invalid.
+	 */
+	private static ScanService parse(String[] args) throws IllegalArgumentException {
+		int port = DEFAULT_PORT;
+		int threads = Runtime.getRuntime().availableProcessors();
+		Path tokenFile = DEFAULT_TOKEN_FILE;
+		for (int i = 0; i < args.length; i += 2) {
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException(
+						String.format("Reached end of arguments without finding value for %s.", args[i]));
+			}
+			try {
+				switch (args[i]) {
+				case "--port":
+					port = Integer.parseInt(args[i + 1]);
+					if (port < 0 || port > 65535) {
+						throw new NumberFormatException();
+					}
+					break;
+				case "--threads":
+					threads = Integer.parseInt(args[i + 1]);
+					if (threads < 1) {
+						throw new NumberFormatException();
+					}
+					break;
+				case "--token-file":
+					tokenFile = Paths.get(args[i + 1]);
+					break;
+				default:
+					throw new IllegalArgumentException(String.format("Unrecognized serve option \"%s\".", args[i]));
+				}
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException(
+						String.format("Optional parameter %s requires a valid number -- \"%s\" given.",
+								args[i], args[i + 1]));
+			}
+		}
+		return new ScanService(port, threads, tokenFile);
+	}
+	
+	/**
+	 * Start listening. Jobs are served until the process is killed.
+	 * 
+	 * @throws IOException if the port couldn't be opened or the token file couldn't be written.
+	 */
+	public void start() throws IOException {
+		writeToken();
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		// Requests queue up in the pool once every thread is busy with a job.
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		server.setExecutor(pool);
+		server.createContext("/scan", this::handleScan);
+		server.createContext("/status", this::handleStatus);
+		server.start();
+		System.out.format("Scan service listening on %s:%d with %d threads; access token in \"%s\".%n",
+				server.getAddress().getHostString(), server.getAddress().getPort(), threads, tokenFile);
+	}
+	
+	/**
+	 * Generate a new access token and write it to the token file, readable by the owner only.
+	 * Any token from an earlier run stops working.
+	 * 
+	 * @throws IOException if the file couldn't be written.
+	 */
+	private void writeToken() throws IOException {
+		byte[] random = new byte[32];
+		new SecureRandom().nextBytes(random);
+		String hex = SHA1Encoder.toHex(random);
+		token = hex.getBytes(StandardCharsets.US_ASCII);
+		// Recreated rather than truncated, so the permissions are ours even if the file existed.
+		Files.deleteIfExists(tokenFile);
+		try {
+			Files.createFile(tokenFile, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} catch (UnsupportedOperationException e) {
+			// Not a POSIX file system; the file gets the default permissions of its directory.
+			Files.createFile(tokenFile);
+		}
+		Files.write(tokenFile, (hex + System.lineSeparator()).getBytes(StandardCharsets.US_ASCII));
+	}
+	
+	/**
+	 * Check that a request comes from a client that could read the token file, and not from a web
+	 * page. Refuses the request if not.
+	 * 
+	 * @param exchange The request.
+	 * @return True if the request may go ahead.
+	 * @throws IOException if the refusal couldn't be sent.
+	 */
+	private boolean authorize(HttpExchange exchange) throws IOException {
+		if (exchange.getRequestHeaders().containsKey("Origin")) {
+			respond(exchange, 403, error("Requests from web pages are not accepted."));
+			return false;
+		}
+		String given = exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+		if (given == null || !MessageDigest.isEqual(given.trim().getBytes(StandardCharsets.US_ASCII), token)) {
+			respond(exchange, 401, error(String.format("The %s header must hold the token from \"%s\".",
+					TOKEN_HEADER, tokenFile)));
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Run one scan job.
+	 * 
+	 * @param exchange The request.
+	 * @throws IOException if the response couldn't be sent.
+	 */
+	private void handleScan(HttpExchange exchange) throws IOException {
+		try {
+			if (!authorize(exchange)) {
+				return;
+			}
+			if (!exchange.getRequestMethod().equals("POST")) {
+				respond(exchange, 405, error("Scans must be submitted with POST."));
+				return;
+			}
+			List<String> args = new ArrayList<>();
+			for (String line : readBody(exchange.getRequestBody()).split("\r?\n")) {
+				if (!line.isEmpty()) {
+					args.add(line);
+				}
+			}
+			if (args.contains("-h") || args.contains("--help")) {
+				respond(exchange, 400, error("--help is not available in the scan service."));
+				return;
+			}
+			submitted.incrementAndGet();
+			running.incrementAndGet();
+			long start = System.currentTimeMillis();
+			int status;
+			String json;
+			try {
+				CompScan cs = new CompScan(args.toArray(new String[args.size()]));
+				cs.setQuiet(true);
+				Results totals = cs.scan();
+				StringBuilder sb = new StringBuilder();
+				sb.append("{\"elapsed ms\":").append(System.currentTimeMillis() - start);
+				sb.append(",\"totals\":");
+				appendResults(sb, totals);
+				if (cs.getDiskResults() != null) {
+					sb.append(",\"disks\":[");
+					String separator = "";
+					for (Results r : cs.getDiskResults()) {
+						sb.append(separator);
+						appendResults(sb, r);
+						separator = ",";
+					}
+					sb.append(']');
+				}
+				sb.append('}');
+				status = 200;
+				json = sb.toString();
+				succeeded.incrementAndGet();
+			} catch (IllegalArgumentException ex) {
+				status = 400;
+				json = error(ex.getMessage());
+				failed.incrementAndGet();
+			} catch (IOException | BufferLengthException | NoNextFileException | RuntimeException ex) {
+				System.err.format("Scan job %s failed.%n", args);
+				ex.printStackTrace();
+				status = 500;
+				json = error(ex.toString());
+				failed.incrementAndGet();
+			} finally {
+				running.decrementAndGet();
+			}
+			respond(exchange, status, json);
+		} finally {
+			exchange.close();
+		}
+	}
+	
+	/**
+	 * Report the job counters.
+	 * 
+	 * @param exchange The request.
+	 * @throws IOException if the response couldn't be sent.
+	 */
+	private void handleStatus(HttpExchange exchange) throws IOException {
+		try {
+			if (!authorize(exchange)) {
+				return;
+			}
+			respond(exchange, 200, String.format(
+					"{\"threads\":%d,\"submitted\":%d,\"running\":%d,\"succeeded\":%d,\"failed\":%d}",
+					threads, submitted.get(), running.get(), succeeded.get(), failed.get()));
+		} finally {
+			exchange.close();
+		}
+	}
+	
+	/**
+	 * Read a request body as UTF-8.
+	 * 
+	 * @param in Request body.
+	 * @return The body.
+	 * @throws IOException if the read failed.
+	 */
+	private static String readBody(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] b = new byte[4096];
+		int n;
+		while ((n = in.read(b)) > 0) {
+			out.write(b, 0, n);
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Send a JSON response.
+	 * 
+	 * @param exchange The request.
+	 * @param status HTTP status code.
+	 * @param json Body of the response.
+	 * @throws IOException if the response couldn't be sent.
+	 */
+	private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+		byte[] body = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+	
+	/**
+	 * Build an error response.
+	 * 
+	 * @param message Error message.
+	 * @return JSON object holding the message.
+	 */
+	private static String error(String message) {
+		return "{\"error\":" + quote(String.valueOf(message)) + "}";
+	}
+	
+	/**
+	 * Append a Results object as a JSON object with the same names and values as its CSV columns.
+	 * 
+	 * @param sb Builder to append to.
+	 * @param r Results to append.
+	 */
+	private static void appendResults(StringBuilder sb, Results r) {
+		sb.append("{\"name\":").append(quote(r.getName()));
+		sb.append(",\"timestamp\":").append(quote(r.getTimestamp()));
+		for (Map.Entry<String, Long> e : r.getCounters().entrySet()) {
+			sb.append(',').append(quote(e.getKey())).append(':').append(e.getValue());
+		}
+		sb.append(",\"raw compression factor\":").append(r.getRawCompressionFactor());
+		sb.append(",\"superblock compression factor\":").append(r.getSuperblockCompressionFactor());
+		for (Map.Entry<String, String> e : r.getExtras().entrySet()) {
+			String v = e.getValue();
+			sb.append(',').append(quote(e.getKey())).append(':')
+					.append(v != null && NUMBER.matcher(v).matches() ? v : quote(v));
+		}
+		sb.append('}');
+	}
+	
+	/**
+	 * Quote a string for JSON.
+	 * 
+	 * @param s String to quote, or null.
+	 * @return The quoted string, or null.
+	 */
+	private static String quote(String s) {
+		if (s == null) {
+			return "null";
+		}
+		StringBuilder sb = new StringBuilder(s.length() + 2);
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					sb.append(String.format("\\u%04x", (int) c));
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		return sb.append('"').toString();
+	}
+}
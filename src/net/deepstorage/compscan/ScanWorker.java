@@ -0,0 +1,278 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+
+import net.deepstorage.compscan.CompScan.Results;
+import net.deepstorage.compscan.Compressor.BufferLengthException;
+import net.deepstorage.compscan.Compressor.CompressionInfo;
+
+/**
+ * The worker subcommand: connects to a Coordinator, takes the scan configuration from it, and
+ * scans the work units it hands out until it says there are none left. Each unit is read into the
+ * buffer the same way FileWalkerStream would read that part of the stream, so the superblocks are
+ * identical to a single-process scan's.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+public class ScanWorker {
+	private final String host;
+	private final int port;
+	private int blockSize;
+	private int superblockSize;
+	private int bufferSize;
+	private int delayMS;
+	private Compressor compressor;
+	private SizeCache sizeCache;
+	private byte[] buffer;
+	private ByteBuffer wrapped;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param host Host of the coordinator.
+	 * @param port Port of the coordinator.
+	 */
+	public ScanWorker(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+	
+	/**
+	 * Entry point for the worker subcommand.
+	 * 
+	 * @param args Arguments following "worker": HOST[:PORT]
+	 */
+	public static void main(String[] args) {
+		if (args.length != 1) {
+			CompScan.printHelp("The worker subcommand requires the coordinator's HOST[:PORT].");
+			System.exit(1);
+		}
+		String host = args[0];
+		int port = Coordinator.DEFAULT_PORT;
+		int colon = host.lastIndexOf(':');
+		if (colon >= 0) {
+			try {
+				port = Integer.parseInt(host.substring(colon + 1));
+			} catch (NumberFormatException ex) {
+				CompScan.printHelp(String.format("Invalid coordinator port in \"%s\".", args[0]));
+				System.exit(1);
+			}
+			host = host.substring(0, colon);
+		}
+		try {
+			new ScanWorker(host, port).run();
+		} catch (IOException | BufferLengthException ex) {
+			System.err.format("Worker failed.%n%n");
+			ex.printStackTrace();
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Connect to the coordinator and scan units until it has no more.
+	 * 
+	 * @throws IOException if the connection or a read failed.
+	 * @throws BufferLengthException if the buffer is the wrong size.
+	 */
+	public void run() throws IOException, BufferLengthException {
+		try (Socket socket = new Socket(host, port)) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+			out.writeInt(Coordinator.MAGIC);
+			out.writeInt(Coordinator.VERSION);
+			out.flush();
+			if (in.readInt() != Coordinator.MAGIC || in.readInt() != Coordinator.VERSION) {
+				throw new IOException(String.format("%s:%d is not a CompScan coordinator of this version.", host, port));
+			}
+			blockSize = in.readInt();
+			superblockSize = in.readInt();
+			bufferSize = in.readInt();
+			String formatString = in.readUTF();
+			double entropyThreshold = in.readDouble();
+			int sizeCacheEntries = in.readInt();
+			int fingerprintBits = in.readInt();
+			delayMS = FileWalkerStream.delayFor(in.readDouble(), bufferSize);
+			buffer = new byte[bufferSize];
+			wrapped = ByteBuffer.wrap(buffer);
+			
+			compressor = new Compressor(blockSize, superblockSize, formatString);
+			try {
+				compressor.setEntropyThreshold(entropyThreshold);
+				compressor.setFingerprintBits(fingerprintBits);
+				sizeCache = (sizeCacheEntries != CompScan.NO_SIZE_CACHE ? new SizeCache(sizeCacheEntries) : null);
+				compressor.setSizeCache(sizeCache);
+				System.out.format("Connected to coordinator %s:%d.%n", host, port);
+				
+				long units = 0L;
+				// The coordinator may also just hang up once the scan is over.
+				while (in.read() == Coordinator.UNIT) {
+					WorkUnit unit = WorkUnit.read(in);
+					if (scan(unit, out)) {
+						units++;
+					}
+					out.flush();
+				}
+				System.out.format("Coordinator finished; %d work units scanned.%n", units);
+			} finally {
+				compressor.close();
+			}
+		}
+	}
+	
+	/**
+	 * Scan one unit and send its result, or the error if it couldn't be read.
+	 * 
+	 * @param unit The unit.
+	 * @param out Stream to the coordinator.
+	 * @return False if the unit couldn't be read.
+	 * @throws IOException if the send failed.
+	 * @throws BufferLengthException if the buffer is the wrong size.
+	 */
+	private boolean scan(WorkUnit unit, DataOutputStream out) throws IOException, BufferLengthException {
+		Results r = new Results("unit " + unit.getId(), new Date());
+		long[][] before = compressor.getEntropyCounts();
+		long hits = (sizeCache != null ? sizeCache.getHits() : 0L);
+		long misses = (sizeCache != null ? sizeCache.getMisses() : 0L);
+		try {
+			read(unit, r);
+		} catch (IOException e) {
+			// Report it rather than hanging up, or the coordinator would just hand the unit on.
+			System.err.format("Couldn't scan work unit %d: %s%n", unit.getId(), e);
+			out.writeByte(Coordinator.ERROR);
+			out.writeLong(unit.getId());
+			out.writeUTF(String.valueOf(e));
+			return false;
+		}
+		
+		long[][] after = compressor.getEntropyCounts();
+		out.writeByte(Coordinator.RESULT);
+		out.writeLong(unit.getId());
+		Map<String, Long> counters = r.getCounters();
+		out.writeInt(counters.size());
+		for (Map.Entry<String, Long> e : counters.entrySet()) {
+			out.writeUTF(e.getKey());
+			out.writeLong(e.getValue());
+		}
+		out.writeInt(after[0].length);
+		for (int i = 0; i < after[0].length; i++) {
+			out.writeLong(after[0][i] - before[0][i]);
+			out.writeLong(after[1][i] - before[1][i]);
+		}
+		out.writeLong(sizeCache != null ? sizeCache.getHits() - hits : 0L);
+		out.writeLong(sizeCache != null ? sizeCache.getMisses() - misses : 0L);
+		FingerprintTable hashes = r.getHashes();
+		out.writeInt(hashes.isEmpty() ? 0 : hashes.getDigestLength());
+		out.writeLong(hashes.size());
+		hashes.visit((digest, count) -> {
+			out.write(digest);
+			BinaryIO.writeVarLong(out, count);
+		});
+		return true;
+	}
+	
+	/**
+	 * Read a unit into the buffer and scan it, as FileWalkerStream would read that part of the
+	 * stream.
+	 * 
+	 * @param unit The unit.
+	 * @param r Results object to update.
+	 * @throws IOException if a read failed.
+	 * @throws BufferLengthException if the buffer is the wrong size.
+	 */
+	private void read(WorkUnit unit, Results r) throws IOException, BufferLengthException {
+		int filled = 0;
+		for (WorkUnit.Segment s : unit.getSegments()) {
+			try (FileChannel channel = FileChannel.open(Paths.get(s.path), StandardOpenOption.READ)) {
+				long pos = s.offset;
+				long left = s.length;
+				while (left > 0) {
+					int wanted = (int) Math.min(left, bufferSize - filled);
+					int n = fill(channel, pos, filled, wanted);
+					if (n < wanted) {
+						// The file shrank since the coordinator sized it; keep the stream aligned.
+						Arrays.fill(buffer, filled + n, filled + wanted, (byte) 0x0);
+					}
+					filled += wanted;
+					pos += wanted;
+					left -= wanted;
+					if (filled == bufferSize) {
+						scanBuffer(filled, r);
+						filled = 0;
+					}
+				}
+			}
+			if (s.endOfFile) {
+				// Pad to the next block boundary, as FileWalkerStream does at the end of a file.
+				int padding = (int) ((blockSize - s.length % blockSize) % blockSize);
+				Arrays.fill(buffer, filled, filled + padding, (byte) 0x0);
+				filled += padding;
+				if (filled == bufferSize) {
+					scanBuffer(filled, r);
+					filled = 0;
+				}
+			}
+		}
+		if (filled > 0) {
+			Arrays.fill(buffer, filled, bufferSize, (byte) 0x0);
+			scanBuffer(filled, r);
+		}
+	}
+	
+	/**
+	 * Read from a file at a position until the requested number of bytes has been read or the
+	 * end of the file is reached.
+	 * 
+	 * @param channel File to read.
+	 * @param pos Position in the file.
+	 * @param start Offset in the buffer at which to store the data.
+	 * @param len Maximum number of bytes to read.
+	 * @return The number of bytes read. Less than len only if the end of the file was reached.
+	 * @throws IOException if the read failed.
+	 */
+	private int fill(FileChannel channel, long pos, int start, int len) throws IOException {
+		wrapped.limit(start + len);
+		wrapped.position(start);
+		while (wrapped.hasRemaining()) {
+			if (channel.read(wrapped, pos + wrapped.position() - start) < 0) {
+				break;
+			}
+		}
+		return wrapped.position() - start;
+	}
+	
+	/**
+	 * Scan the superblocks holding data at the start of the buffer, as FileScanner.scanBuffer does.
+	 * 
+	 * @param filled Number of bytes at the start of the buffer that hold data.
+	 * @param r Results object to update.
+	 * @throws BufferLengthException if the buffer is the wrong size.
+	 */
+	private void scanBuffer(int filled, Results r) throws BufferLengthException {
+		long initial = System.currentTimeMillis();
+		int count = Math.min(buffer.length, filled + superblockSize - 1) / superblockSize;
+		for (CompressionInfo ci : compressor.feedData(buffer, 0, count)) {
+			r.feedCompressionInfo(ci);
+		}
+		FileWalkerStream.throttle(initial, delayMS);
+	}
+}
@@ -0,0 +1,154 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan;
+
+import net.deepstorage.compscan.CompScan.Results;
+
+/**
+ * The SizeCache remembers the compressed size of recently seen superblocks, keyed by a 128-bit
+ * fingerprint of the superblock's contents, so that repeated superblocks (cloned VMs, zeroed
+ * ranges, template images) are only compressed once. Every superblock is compressed independently,
+ * so a cached size is exactly what compressing the superblock again would give.
+ * 
+ * The cache is bounded and set-associative: a fingerprint maps to one set of WAYS entries, and
+ * each set is replaced in CLOCK order, giving a second chance to entries that were hit since the
+ * hand last passed them. All state is in primitive arrays.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+public class SizeCache {
+	private static final int WAYS = 8;
+	
+	private final long[] high;
+	private final long[] low;
+	private final int[] sizes;
+	private final boolean[] used;
+	private final boolean[] referenced;
+	private final byte[] hands;
+	private final int setMask;
+	private long hits;
+	private long misses;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param entries Maximum number of superblock sizes to remember; rounded down to a power of two,
+	 * with a minimum of one set.
+	 */
+	public SizeCache(int entries) {
+		int sets = Math.max(1, Integer.highestOneBit(Math.max(1, entries / WAYS)));
+		setMask = sets - 1;
+		high = new long[sets * WAYS];
+		low = new long[sets * WAYS];
+		sizes = new int[sets * WAYS];
+		used = new boolean[sets * WAYS];
+		referenced = new boolean[sets * WAYS];
+		hands = new byte[sets];
+		hits = 0L;
+		misses = 0L;
+	}
+	
+	/**
+	 * Look up the compressed size of a superblock.
+	 * 
+	 * @param hi High 64 bits of the fingerprint.
+	 * @param lo Low 64 bits of the fingerprint.
+	 * @return The cached size, or -1 if the superblock isn't cached.
+	 */
+	public synchronized int get(long hi, long lo) {
+		int base = set(hi, lo) * WAYS;
+		for (int i = base; i < base + WAYS; i++) {
+			if (used[i] && high[i] == hi && low[i] == lo) {
+				referenced[i] = true;
+				hits++;
+				return sizes[i];
+			}
+		}
+		misses++;
+		return -1;
+	}
+	
+	/**
+	 * Remember the compressed size of a superblock, evicting the set's next unreferenced entry if
+	 * the set is full.
+	 * 
+	 * @param hi High 64 bits of the fingerprint.
+	 * @param lo Low 64 bits of the fingerprint.
+	 * @param size Compressed size.
+	 */
+	public synchronized void put(long hi, long lo, int size) {
+		int s = set(hi, lo);
+		int base = s * WAYS;
+		int victim = -1;
+		for (int i = base; i < base + WAYS; i++) {
+			if (!used[i]) {
+				victim = i;
+				break;
+			}
+			if (high[i] == hi && low[i] == lo) {
+				// Another thread got here first.
+				return;
+			}
+		}
+		if (victim < 0) {
+			int hand = hands[s];
+			while (referenced[base + hand]) {
+				referenced[base + hand] = false;
+				hand = (hand + 1) % WAYS;
+			}
+			victim = base + hand;
+			hands[s] = (byte) ((hand + 1) % WAYS);
+		}
+		used[victim] = true;
+		referenced[victim] = false;
+		high[victim] = hi;
+		low[victim] = lo;
+		sizes[victim] = size;
+	}
+	
+	/**
+	 * Get the number of lookups that found a size.
+	 * 
+	 * @return Cache hits.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+	
+	/**
+	 * Get the number of lookups that found nothing.
+	 * 
+	 * @return Cache misses.
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+	
+	/**
+	 * Record the hit and miss counts as extra columns.
+	 * 
+	 * @param r Results object to update.
+	 */
+	public synchronized void report(Results r) {
+		r.setExtra("size cache hits", String.valueOf(hits));
+		r.setExtra("size cache misses", String.valueOf(misses));
+	}
+	
+	/**
+	 * Pick the set for a fingerprint. The fingerprint is a cryptographic hash, so its low bits
+	 * are already uniform.
+	 * 
+	 * @param hi High 64 bits of the fingerprint.
+	 * @param lo Low 64 bits of the fingerprint.
+	 * @return Set index.
+	 */
+	private int set(long hi, long lo) {
+		return (int) lo & setMask;
+	}
+}
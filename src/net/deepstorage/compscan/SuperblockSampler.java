@@ -0,0 +1,303 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import net.deepstorage.compscan.CompScan.MutableCounter;
+import net.deepstorage.compscan.CompScan.Results;
+import net.deepstorage.compscan.CompScan.ScanMode;
+import net.deepstorage.compscan.Compressor.BufferLengthException;
+import net.deepstorage.compscan.Compressor.CompressionInfo;
+
+/**
+ * Estimates the compressibility of a datastore from a random subset of its superblocks.
+ * 
+ * The sampler lays the files out exactly as FileWalkerStream would, each file padded to the next
+ * block boundary and packed back to back, and divides the resulting superblocks into strata of
+ * 1/fraction consecutive superblocks. One superblock is picked at random from each stratum and read
+ * with positional reads; files that don't intersect a picked superblock are never opened. The
+ * counters are then extrapolated to the whole datastore and a 95% confidence interval is reported
+ * for the compression factors.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+public class SuperblockSampler {
+	// Two-sided 95% normal quantile.
+	private static final double Z_95 = 1.959964;
+	// Smallest fraction whose stratum size still fits in an int.
+	public static final double MIN_FRACTION = 1.0 / Integer.MAX_VALUE;
+	
+	private final Path root;
+	private final ScanMode scanMode;
+	private final int blockSize;
+	private final int superblockSize;
+	private final int stratumSize;
+	private final Random random;
+	private final Compressor compressor;
+	private final MutableCounter hashCounter;
+	private final HardLinkTracker links;
+	private WalkFilter filter;
+	private final boolean verbose;
+	private final byte[] superblock;
+	private final ByteBuffer wrapped;
+	
+	private long stratum;
+	private long target;
+	private long sampled;
+	private double actualMean;
+	private double actualM2;
+	private double compressedMean;
+	private double compressedM2;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param root Root of the datastore to scan.
+	 * @param scanMode ScanMode to use. Must be NORMAL or DEVICE.
+	 * @param fraction Fraction of the superblocks to read, in [MIN_FRACTION, 1].
+	 * @param seed Seed for the random choice of superblocks.
+	 * @param compressor Compressor to use.
+	 * @param hashCounter MutableCounter used for tracking the number of currently active unique hashes.
+	 * @param links HardLinkTracker for the walk, or null to sample every link.
+	 * @param verbose Whether or not to enable verbose logging.
+	 */
+	public SuperblockSampler(Path root, ScanMode scanMode, double fraction, long seed, Compressor compressor,
+			MutableCounter hashCounter, HardLinkTracker links, boolean verbose) {
+		if (!(fraction >= MIN_FRACTION && fraction <= 1.0)) {
+			throw new IllegalArgumentException(String.format(
+					"Sample fraction (%g) must be in the range [%g, 1].", fraction, MIN_FRACTION));
+		}
+		this.root = root;
+		this.scanMode = scanMode;
+		this.compressor = compressor;
+		this.hashCounter = hashCounter;
+		this.links = links;
+		filter = null;
+		this.verbose = verbose;
+		blockSize = compressor.getBlockSize();
+		superblockSize = compressor.getSuperblockSize();
+		stratumSize = (int) Math.max(1L, Math.round(1.0 / fraction));
+		random = new Random(seed);
+		superblock = new byte[superblockSize];
+		wrapped = ByteBuffer.wrap(superblock);
+	}
+	
+	/**
+	 * Apply include/exclude rules during the walk.
+	 * 
+	 * @param filter WalkFilter to apply, or null to walk everything.
+	 */
+	public void setWalkFilter(WalkFilter filter) {
+		this.filter = filter;
+	}
+	
+	/**
+	 * Get the fraction of superblocks actually sampled, after rounding to whole strata.
+	 * 
+	 * @return 1 / stratum size.
+	 */
+	public double getEffectiveFraction() {
+		return 1.0 / stratumSize;
+	}
+	
+	/**
+	 * Sample the datastore and store the extrapolated results.
+	 * 
+	 * @param r Results object to update with the extrapolated scan data.
+	 * @return The number of superblocks sampled.
+	 * @throws IOException if an IO error occurs.
+	 * @throws BufferLengthException if the buffer is the wrong size.
+	 * @throws NoNextFileException if root contains no scannable data.
+	 */
+	public long sample(Results r) throws IOException, BufferLengthException, FileScanner.NoNextFileException {
+		stratum = 0L;
+		target = pickTarget();
+		sampled = 0L;
+		
+		long offset = 0L;
+		try (FileWalker fw = new FileWalker(root, scanMode, links, filter, verbose)) {
+			while (fw.hasNext()) {
+				Path f = fw.next();
+				offset = sampleFile(f, offset, r);
+				r.set("files read", fw.getFilesAccessed());
+			}
+		}
+		if (offset == 0L) {
+			throw new FileScanner.NoNextFileException(
+					String.format(
+							"Sampler with root \"%s\" found no scannable data.", root));
+		}
+		// The last superblock may end in the zero fill after the final file.
+		if (target * superblockSize < offset) {
+			feedSuperblock(r);
+		}
+		
+		extrapolate(r, (offset + superblockSize - 1) / superblockSize);
+		return sampled;
+	}
+	
+	/**
+	 * Sample the superblocks that intersect one file.
+	 * 
+	 * @param f File to sample.
+	 * @param offset Offset of the file in the padded stream of all files.
+	 * @param r Results object to update with the raw sample data.
+	 * @return Offset of the next file in the padded stream.
+	 * @throws IOException if an IO error occurs.
+	 * @throws BufferLengthException if the buffer is the wrong size.
+	 */
+	private long sampleFile(Path f, long offset, Results r) throws IOException, BufferLengthException {
+		FileChannel channel = null;
+		try {
+			long size;
+			if (Files.isRegularFile(f)) {
+				size = Files.size(f);
+			} else {
+				channel = FileChannel.open(f, StandardOpenOption.READ);
+				size = channel.size();
+				if (size <= 0) {
+					throw new IOException(
+							String.format("Sampling requires a sized target, but \"%s\" reports no size.", f));
+				}
+			}
+			long end = offset + (size + blockSize - 1) / blockSize * blockSize;
+			
+			while (target * superblockSize < end) {
+				long start = target * superblockSize;
+				long lo = Math.max(start, offset);
+				long hi = Math.min(start + superblockSize, offset + size);
+				if (lo < hi) {
+					if (channel == null) {
+						channel = FileChannel.open(f, StandardOpenOption.READ);
+					}
+					readAt(channel, lo - offset, (int) (lo - start), (int) (hi - lo));
+				}
+				if (start + superblockSize > end) {
+					// The superblock continues into the next file.
+					break;
+				}
+				feedSuperblock(r);
+			}
+			return end;
+		} finally {
+			if (channel != null) {
+				channel.close();
+			}
+		}
+	}
+	
+	/**
+	 * Read part of a superblock with a positional read.
+	 * 
+	 * @param channel Channel from which to read.
+	 * @param position Position in the file from which to read.
+	 * @param start Offset in the superblock buffer at which to store the data.
+	 * @param len Number of bytes to read.
+	 * @throws IOException if the read failed.
+	 */
+	private void readAt(FileChannel channel, long position, int start, int len) throws IOException {
+		wrapped.limit(start + len);
+		wrapped.position(start);
+		while (wrapped.hasRemaining()) {
+			int n = channel.read(wrapped, position + wrapped.position() - start);
+			if (n < 0) {
+				// The file shrank since it was sized; the rest stays zero.
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Compress the assembled superblock, record it, and move on to the next stratum.
+	 * 
+	 * @param r Results object to update with the raw sample data.
+	 * @throws BufferLengthException if the buffer is the wrong size.
+	 */
+	private void feedSuperblock(Results r) throws BufferLengthException {
+		CompressionInfo ci = compressor.feedData(superblock);
+		r.feedCompressionInfo(ci);
+		hashCounter.setCount(r.getHashes().size());
+		
+		// Welford's running mean and variance of the per-superblock factors.
+		sampled++;
+		double actual = ((double) ci.actualBytes) / superblockSize;
+		double delta = actual - actualMean;
+		actualMean += delta / sampled;
+		actualM2 += delta * (actual - actualMean);
+		double compressed = ((double) ci.compressedBytes) / superblockSize;
+		delta = compressed - compressedMean;
+		compressedMean += delta / sampled;
+		compressedM2 += delta * (compressed - compressedMean);
+		
+		Arrays.fill(superblock, (byte) 0x0);
+		stratum++;
+		target = pickTarget();
+	}
+	
+	/**
+	 * Pick a random superblock in the current stratum.
+	 * 
+	 * @return Index of the superblock to sample next.
+	 */
+	private long pickTarget() {
+		return stratum * stratumSize + random.nextInt(stratumSize);
+	}
+	
+	/**
+	 * Scale the sample counters up to the whole datastore and add the confidence intervals.
+	 * 
+	 * @param r Results object holding the raw sample data.
+	 * @param population Total number of superblocks in the datastore.
+	 */
+	private void extrapolate(Results r, long population) {
+		double scale = ((double) population) / sampled;
+		r.set("bytes read", population * superblockSize);
+		r.set("blocks read", population * (superblockSize / blockSize));
+		r.set("superblocks read", population);
+		r.set("compressed bytes", Math.round(r.get("compressed bytes") * scale));
+		r.set("compressed blocks", Math.round(r.get("compressed blocks") * scale));
+		r.set("actual bytes needed", Math.round(r.get("compressed blocks") * (double) blockSize));
+		
+		r.setExtra("sample fraction", String.valueOf(getEffectiveFraction()));
+		r.setExtra("sampled superblocks", String.valueOf(sampled));
+		double[] raw = interval(compressedMean, compressedM2, population);
+		double[] sb = interval(actualMean, actualM2, population);
+		r.setExtra("raw compression factor ci95 low", String.valueOf(raw[0]));
+		r.setExtra("raw compression factor ci95 high", String.valueOf(raw[1]));
+		r.setExtra("superblock compression factor ci95 low", String.valueOf(sb[0]));
+		r.setExtra("superblock compression factor ci95 high", String.valueOf(sb[1]));
+	}
+	
+	/**
+	 * Compute a 95% confidence interval for a mean. The simple-random-sampling variance is used with
+	 * a finite population correction, which is conservative for a stratified sample.
+	 * 
+	 * @param mean Sample mean.
+	 * @param m2 Sum of squared deviations from the mean.
+	 * @param population Population size.
+	 * @return Lower and upper bound.
+	 */
+	private double[] interval(double mean, double m2, long population) {
+		if (sampled < 2) {
+			return new double[] { mean, mean };
+		}
+		double variance = m2 / (sampled - 1);
+		double correction = Math.max(0.0, 1.0 - ((double) sampled) / population);
+		double half = Z_95 * Math.sqrt(variance / sampled * correction);
+		return new double[] { Math.max(0.0, mean - half), mean + half };
+	}
+}
@@ -0,0 +1,258 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan;
+
+/**
+ * The SuperblockTable records every distinct superblock of a scan by its 128-bit fingerprint,
+ * with how many times it was seen and its compressed size, for the fingerprint export. It is an
+ * open-addressing hash table on primitive arrays that doubles when half full. Once the scan is
+ * over, sort() packs the entries to the front of the arrays in fingerprint order so they can be
+ * streamed out.
+ * 
+ * The table is not thread-safe; Compressor only adds to it while holding its own lock.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+public class SuperblockTable {
+	private static final int INITIAL_CAPACITY = 1 << 12;
+	
+	private long[] high;
+	private long[] low;
+	private long[] counts;
+	private int[] sizes;
+	private int size;
+	private boolean sorted;
+	
+	/**
+	 * Constructor.
+	 */
+	public SuperblockTable() {
+		clear();
+	}
+	
+	/**
+	 * Remove every entry.
+	 */
+	public void clear() {
+		high = new long[INITIAL_CAPACITY];
+		low = new long[INITIAL_CAPACITY];
+		counts = new long[INITIAL_CAPACITY];
+		sizes = new int[INITIAL_CAPACITY];
+		size = 0;
+		sorted = false;
+	}
+	
+	/**
+	 * Count one superblock.
+	 * 
+	 * @param hi High 64 bits of the fingerprint.
+	 * @param lo Low 64 bits of the fingerprint.
+	 * @param compressedSize Compressed size of the superblock.
+	 * @throws IllegalStateException if the table has already been sorted.
+	 */
+	public void add(long hi, long lo, int compressedSize) {
+		if (sorted) {
+			throw new IllegalStateException("SuperblockTable can't be added to after sorting.");
+		}
+		if (2 * (size + 1) > counts.length) {
+			grow();
+		}
+		int slot = find(hi, lo);
+		if (counts[slot] == 0L) {
+			high[slot] = hi;
+			low[slot] = lo;
+			sizes[slot] = compressedSize;
+			size++;
+		}
+		counts[slot]++;
+	}
+	
+	/**
+	 * Getter for the number of distinct superblocks.
+	 * 
+	 * @return Number of entries.
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Pack the entries into indexes 0 to size() - 1 in increasing unsigned order of fingerprint.
+	 * The table can't be added to afterwards, until it is cleared.
+	 */
+	public void sort() {
+		if (sorted) {
+			return;
+		}
+		int n = 0;
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] != 0L) {
+				high[n] = high[i];
+				low[n] = low[i];
+				counts[n] = counts[i];
+				sizes[n] = sizes[i];
+				n++;
+			}
+		}
+		quicksort(0, n - 1);
+		sorted = true;
+	}
+	
+	/**
+	 * Getter for the high half of a fingerprint after sorting.
+	 * 
+	 * @param i Entry index.
+	 * @return High 64 bits of the fingerprint.
+	 */
+	public long getHigh(int i) {
+		return high[i];
+	}
+	
+	/**
+	 * Getter for the low half of a fingerprint after sorting.
+	 * 
+	 * @param i Entry index.
+	 * @return Low 64 bits of the fingerprint.
+	 */
+	public long getLow(int i) {
+		return low[i];
+	}
+	
+	/**
+	 * Getter for the number of times a superblock was seen after sorting.
+	 * 
+	 * @param i Entry index.
+	 * @return Repeat count.
+	 */
+	public long getCount(int i) {
+		return counts[i];
+	}
+	
+	/**
+	 * Getter for the compressed size of a superblock after sorting.
+	 * 
+	 * @param i Entry index.
+	 * @return Compressed size in bytes.
+	 */
+	public int getSize(int i) {
+		return sizes[i];
+	}
+	
+	/**
+	 * Find the slot holding a fingerprint, or the empty slot where it belongs.
+	 * 
+	 * @param hi High 64 bits of the fingerprint.
+	 * @param lo Low 64 bits of the fingerprint.
+	 * @return Slot index.
+	 */
+	private int find(long hi, long lo) {
+		int mask = counts.length - 1;
+		// The fingerprint is already a cryptographic hash, so its low bits make a good slot.
+		int slot = (int) lo & mask;
+		while (counts[slot] != 0L && (high[slot] != hi || low[slot] != lo)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+	
+	/**
+	 * Double the capacity of the table.
+	 */
+	private void grow() {
+		long[] oldHigh = high;
+		long[] oldLow = low;
+		long[] oldCounts = counts;
+		int[] oldSizes = sizes;
+		int capacity = 2 * oldCounts.length;
+		high = new long[capacity];
+		low = new long[capacity];
+		counts = new long[capacity];
+		sizes = new int[capacity];
+		for (int i = 0; i < oldCounts.length; i++) {
+			if (oldCounts[i] != 0L) {
+				int slot = find(oldHigh[i], oldLow[i]);
+				high[slot] = oldHigh[i];
+				low[slot] = oldLow[i];
+				counts[slot] = oldCounts[i];
+				sizes[slot] = oldSizes[i];
+			}
+		}
+	}
+	
+	/**
+	 * Sort a range of the packed entries by fingerprint. Fingerprints are uniformly distributed,
+	 * so the middle element is as good a pivot as any.
+	 * 
+	 * @param from First index of the range.
+	 * @param to Last index of the range, inclusive.
+	 */
+	private void quicksort(int from, int to) {
+		while (from < to) {
+			int mid = (from + to) >>> 1;
+			long pivotHigh = high[mid];
+			long pivotLow = low[mid];
+			int i = from;
+			int j = to;
+			while (i <= j) {
+				while (compare(high[i], low[i], pivotHigh, pivotLow) < 0) {
+					i++;
+				}
+				while (compare(high[j], low[j], pivotHigh, pivotLow) > 0) {
+					j--;
+				}
+				if (i <= j) {
+					swap(i++, j--);
+				}
+			}
+			// Recurse into the smaller half and loop on the larger, to bound the stack depth.
+			if (j - from < to - i) {
+				quicksort(from, j);
+				from = i;
+			} else {
+				quicksort(i, to);
+				to = j;
+			}
+		}
+	}
+	
+	/**
+	 * Swap two packed entries.
+	 * 
+	 * @param a Index of the first entry.
+	 * @param b Index of the second entry.
+	 */
+	private void swap(int a, int b) {
+		long h = high[a];
+		high[a] = high[b];
+		high[b] = h;
+		long l = low[a];
+		low[a] = low[b];
+		low[b] = l;
+		long c = counts[a];
+		counts[a] = counts[b];
+		counts[b] = c;
+		int s = sizes[a];
+		sizes[a] = sizes[b];
+		sizes[b] = s;
+	}
+	
+	/**
+	 * Compare two fingerprints as unsigned 128-bit numbers.
+	 * 
+	 * @param hiA High half of the first fingerprint.
+	 * @param loA Low half of the first fingerprint.
+	 * @param hiB High half of the second fingerprint.
+	 * @param loB Low half of the second fingerprint.
+	 * @return Negative, zero or positive as the first is less than, equal to or greater than the second.
+	 */
+	public static int compare(long hiA, long loA, long hiB, long loB) {
+		int c = Long.compareUnsigned(hiA, hiB);
+		return (c != 0 ? c : Long.compareUnsigned(loA, loB));
+	}
+}
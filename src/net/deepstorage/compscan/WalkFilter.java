@@ -0,0 +1,258 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Include and exclude rules that are applied while the dataset is walked, so that excluded
+ * directories are pruned without ever being listed.
+ * 
+ * Patterns use the PathMatcher syntax: "glob:" or "regex:" followed by the pattern, with glob
+ * assumed if neither is given. A pattern containing '/' is matched against the path relative to
+ * the root of the scan; any other pattern is matched against the file or directory name alone,
+ * so "--exclude .snapshot" prunes every .snapshot directory. Excludes apply to directories and
+ * files; includes, sizes and modification times only to files.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+public class WalkFilter {
+	// Symbolic constants for an open size or modification time range.
+	public static final long NO_MINIMUM = Long.MIN_VALUE;
+	public static final long NO_MAXIMUM = Long.MAX_VALUE;
+	
+	private final Path root;
+	private final List<Rule> includes;
+	private final List<Rule> excludes;
+	private long minSize;
+	private long maxSize;
+	private long modifiedAfter;
+	private long modifiedBefore;
+	private boolean oneFileSystem;
+	private Object rootDevice;
+	
+	/**
+	 * Constructor for a filter that admits everything.
+	 * 
+	 * @param root Root of the scan.
+	 */
+	public WalkFilter(Path root) {
+		this.root = root;
+		includes = new ArrayList<>();
+		excludes = new ArrayList<>();
+		minSize = NO_MINIMUM;
+		maxSize = NO_MAXIMUM;
+		modifiedAfter = NO_MINIMUM;
+		modifiedBefore = NO_MAXIMUM;
+		oneFileSystem = false;
+		rootDevice = null;
+	}
+	
+	/**
+	 * Only admit files matching this pattern or another include pattern.
+	 * 
+	 * @param pattern Glob or regex pattern.
+	 * @throws IllegalArgumentException if the pattern is invalid.
+	 */
+	public void addInclude(String pattern) throws IllegalArgumentException {
+		includes.add(new Rule(pattern));
+	}
+	
+	/**
+	 * Skip files and prune directories matching this pattern.
+	 * 
+	 * @param pattern Glob or regex pattern.
+	 * @throws IllegalArgumentException if the pattern is invalid.
+	 */
+	public void addExclude(String pattern) throws IllegalArgumentException {
+		excludes.add(new Rule(pattern));
+	}
+	
+	/**
+	 * Only admit files within a size range.
+	 * 
+	 * @param minSize Smallest size in bytes (NO_MINIMUM = any).
+	 * @param maxSize Largest size in bytes (NO_MAXIMUM = any).
+	 */
+	public void setSizeRange(long minSize, long maxSize) {
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+	}
+	
+	/**
+	 * Only admit files last modified within a time range.
+	 * 
+	 * @param modifiedAfter Earliest modification time in milliseconds since the epoch, inclusive (NO_MINIMUM = any).
+	 * @param modifiedBefore Latest modification time in milliseconds since the epoch, exclusive (NO_MAXIMUM = any).
+	 */
+	public void setModifiedRange(long modifiedAfter, long modifiedBefore) {
+		this.modifiedAfter = modifiedAfter;
+		this.modifiedBefore = modifiedBefore;
+	}
+	
+	/**
+	 * Don't descend into directories on other filesystems than the root, such as other mounts and
+	 * automounted network shares.
+	 * 
+	 * @param oneFileSystem Whether to stay on the root's filesystem.
+	 */
+	public void setOneFileSystem(boolean oneFileSystem) {
+		this.oneFileSystem = oneFileSystem;
+	}
+	
+	/**
+	 * Check whether any rule has been set.
+	 * 
+	 * @return False if the filter admits everything.
+	 */
+	public boolean isActive() {
+		return !includes.isEmpty() || !excludes.isEmpty() || minSize != NO_MINIMUM || maxSize != NO_MAXIMUM
+				|| modifiedAfter != NO_MINIMUM || modifiedBefore != NO_MAXIMUM || oneFileSystem;
+	}
+	
+	/**
+	 * Decide whether to descend into a directory below the root.
+	 * 
+	 * @param dir The directory.
+	 * @param attrs Its attributes, not following links.
+	 * @return True if the directory should be walked.
+	 * @throws UncheckedIOException if the directory's filesystem couldn't be determined.
+	 */
+	public boolean admitDirectory(Path dir, BasicFileAttributes attrs) throws UncheckedIOException {
+		if (matchesAny(excludes, dir)) {
+			return false;
+		}
+		return !oneFileSystem || deviceOf(dir).equals(getRootDevice());
+	}
+	
+	/**
+	 * Decide whether to scan a file.
+	 * 
+	 * @param f The file.
+	 * @param attrs Its attributes, following links.
+	 * @return True if the file should be scanned.
+	 */
+	public boolean admitFile(Path f, BasicFileAttributes attrs) {
+		if (matchesAny(excludes, f) || (!includes.isEmpty() && !matchesAny(includes, f))) {
+			return false;
+		}
+		long modified = attrs.lastModifiedTime().toMillis();
+		return attrs.size() >= minSize && attrs.size() <= maxSize
+				&& modified >= modifiedAfter && modified < modifiedBefore;
+	}
+	
+	/**
+	 * Describe the rules, so that checkpoints can tell whether they were taken with the same ones.
+	 * 
+	 * @return Canonical description of the rules.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Rule r : includes) {
+			sb.append("+").append(r.pattern).append(' ');
+		}
+		for (Rule r : excludes) {
+			sb.append("-").append(r.pattern).append(' ');
+		}
+		sb.append(String.format("size %d..%d modified %d..%d%s", minSize, maxSize, modifiedAfter, modifiedBefore,
+				(oneFileSystem ? " one-file-system" : "")));
+		return sb.toString();
+	}
+	
+	/**
+	 * Check a path against a list of rules.
+	 * 
+	 * @param rules Rules to check.
+	 * @param p Path below the root.
+	 * @return True if any rule matches.
+	 */
+	private boolean matchesAny(List<Rule> rules, Path p) {
+		if (rules.isEmpty()) {
+			return false;
+		}
+		Path relative = (p.startsWith(root) ? root.relativize(p) : p);
+		Path name = p.getFileName();
+		for (Rule r : rules) {
+			if (r.matcher.matches(r.wholePath ? relative : name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Get the device of the root, looking it up the first time.
+	 * 
+	 * @return Device identifier of the root.
+	 * @throws UncheckedIOException if it couldn't be determined.
+	 */
+	private synchronized Object getRootDevice() throws UncheckedIOException {
+		if (rootDevice == null) {
+			rootDevice = deviceOf(root);
+		}
+		return rootDevice;
+	}
+	
+	/**
+	 * Identify the filesystem a path is on: the device number where there is one, and the
+	 * FileStore otherwise.
+	 * 
+	 * @param p Path to a directory.
+	 * @return An identifier that is equal for paths on the same filesystem.
+	 * @throws UncheckedIOException if the path couldn't be read.
+	 */
+	private static Object deviceOf(Path p) throws UncheckedIOException {
+		try {
+			try {
+				return Files.getAttribute(p, "unix:dev", LinkOption.NOFOLLOW_LINKS);
+			} catch (UnsupportedOperationException | IllegalArgumentException e) {
+				return Files.getFileStore(p);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * One include or exclude pattern.
+	 */
+	private static class Rule {
+		private final String pattern;
+		private final PathMatcher matcher;
+		private final boolean wholePath;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param pattern Glob or regex pattern, with or without the syntax prefix.
+		 * @throws IllegalArgumentException if the pattern is invalid.
+		 */
+		Rule(String pattern) throws IllegalArgumentException {
+			String syntax = (pattern.startsWith("glob:") || pattern.startsWith("regex:") ? pattern : "glob:" + pattern);
+			this.pattern = syntax;
+			try {
+				matcher = FileSystems.getDefault().getPathMatcher(syntax);
+			} catch (PatternSyntaxException e) {
+				throw new IllegalArgumentException(String.format("Invalid pattern \"%s\": %s", pattern, e.getDescription()));
+			}
+			wholePath = syntax.substring(syntax.indexOf(':') + 1).contains("/");
+		}
+	}
+}
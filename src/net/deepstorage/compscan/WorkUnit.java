@@ -0,0 +1,129 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A work unit of a distributed scan: one contiguous range of the stream a single-process scan
+ * would read, given as the pieces of files that make it up.
+ * 
+ * A single-process scan reads the files one after another, pads each to a block boundary, and
+ * cuts the result into superblocks, so superblocks can span files. A work unit always starts on a
+ * superblock boundary of that stream and, unless it is the last one, ends on one too, so a worker
+ * sees exactly the superblocks the single-process scan would have seen.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+public class WorkUnit {
+	private final long id;
+	private final List<Segment> segments;
+	
+	/**
+	 * Constructor for an empty unit.
+	 * 
+	 * @param id Identifier of the unit, unique within a scan.
+	 */
+	public WorkUnit(long id) {
+		this.id = id;
+		segments = new ArrayList<>();
+	}
+	
+	/**
+	 * Add the next piece of a file to the unit.
+	 * 
+	 * @param path Path of the file.
+	 * @param offset Offset in the file at which to start reading. Must be a multiple of the block size.
+	 * @param length Number of bytes to read.
+	 * @param endOfFile Whether the piece runs to the end of the file, which is then padded to a block boundary.
+	 */
+	public void add(String path, long offset, long length, boolean endOfFile) {
+		segments.add(new Segment(path, offset, length, endOfFile));
+	}
+	
+	/**
+	 * Getter for the identifier.
+	 * 
+	 * @return The unit's identifier.
+	 */
+	public long getId() {
+		return id;
+	}
+	
+	/**
+	 * Getter for the pieces of files in the unit.
+	 * 
+	 * @return The segments, in stream order.
+	 */
+	public List<Segment> getSegments() {
+		return segments;
+	}
+	
+	/**
+	 * Serialize the unit.
+	 * 
+	 * @param out Destination.
+	 * @throws IOException if the write failed.
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeLong(id);
+		out.writeInt(segments.size());
+		for (Segment s : segments) {
+			out.writeUTF(s.path);
+			out.writeLong(s.offset);
+			out.writeLong(s.length);
+			out.writeBoolean(s.endOfFile);
+		}
+	}
+	
+	/**
+	 * Deserialize a unit written by write.
+	 * 
+	 * @param in Source.
+	 * @return The unit.
+	 * @throws IOException if the read failed.
+	 */
+	public static WorkUnit read(DataInput in) throws IOException {
+		WorkUnit unit = new WorkUnit(in.readLong());
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			unit.add(in.readUTF(), in.readLong(), in.readLong(), in.readBoolean());
+		}
+		return unit;
+	}
+	
+	/**
+	 * A contiguous piece of one file.
+	 */
+	public static class Segment {
+		public final String path;
+		public final long offset;
+		public final long length;
+		public final boolean endOfFile;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param path Path of the file.
+		 * @param offset Offset in the file at which to start reading.
+		 * @param length Number of bytes to read.
+		 * @param endOfFile Whether the piece runs to the end of the file.
+		 */
+		public Segment(String path, long offset, long length, boolean endOfFile) {
+			this.path = path;
+			this.offset = offset;
+			this.length = length;
+			this.endOfFile = endOfFile;
+		}
+	}
+}
@@ -0,0 +1,82 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan.compress;
+
+/**
+ * Little-endian access to byte arrays, shared by the LZ-family codecs.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+final class Bytes {
+	/**
+	 * Not instantiable.
+	 */
+	private Bytes() {
+	}
+	
+	/**
+	 * Read a little-endian int.
+	 * 
+	 * @param b Array to read from.
+	 * @param i Index of the first byte.
+	 * @return The int at i.
+	 */
+	static int readInt(byte[] b, int i) {
+		return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | b[i + 3] << 24;
+	}
+	
+	/**
+	 * Read a little-endian long.
+	 * 
+	 * @param b Array to read from.
+	 * @param i Index of the first byte.
+	 * @return The long at i.
+	 */
+	static long readLong(byte[] b, int i) {
+		return (readInt(b, i) & 0xFFFFFFFFL) | (long) readInt(b, i + 4) << 32;
+	}
+	
+	/**
+	 * Count how many bytes match going forward from two positions in the same array.
+	 * 
+	 * @param b Array to compare in.
+	 * @param i First position.
+	 * @param j Second position, greater than i.
+	 * @param limit Index at which j must stop.
+	 * @return Number of equal bytes, at most limit - j.
+	 */
+	static int matchLength(byte[] b, int i, int j, int limit) {
+		int start = j;
+		while (j + 8 <= limit) {
+			long diff = readLong(b, i) ^ readLong(b, j);
+			if (diff != 0) {
+				return j - start + (Long.numberOfTrailingZeros(diff) >>> 3);
+			}
+			i += 8;
+			j += 8;
+		}
+		while (j < limit && b[i] == b[j]) {
+			i++;
+			j++;
+		}
+		return j - start;
+	}
+	
+	/**
+	 * Write a little-endian short.
+	 * 
+	 * @param b Array to write to.
+	 * @param i Index of the first byte.
+	 * @param v Value to write; only the low 16 bits are used.
+	 */
+	static void writeShort(byte[] b, int i, int v) {
+		b[i] = (byte) v;
+		b[i + 1] = (byte) (v >>> 8);
+	}
+}
@@ -0,0 +1,207 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan.compress;
+
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import net.deepstorage.compscan.CompressionInterface;
+
+/**
+ * Raw Deflate (RFC 1951) through java.util.zip. The level and strategy are given as options in the
+ * format string: "Deflate" is level 6, "Deflate:1" through "Deflate:9" select the level, and
+ * "Deflate:9:filtered" or "Deflate:1:huffman" also select the strategy.
+ * 
+ * Each instance owns one Deflater, which is reset between superblocks rather than recreated, and
+ * one output buffer, so an instance must not be shared between threads.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+public class Deflate implements CompressionInterface {
+	public static final int DEFAULT_LEVEL = 6;
+	// Room kept free at the end of the output buffer for a container trailer.
+	protected static final int TRAILER_ROOM = 8;
+	private static final int SIZE_CHUNK = 4096;
+	
+	private final Deflater deflater;
+	private byte[] out;
+	
+	/**
+	 * Constructor for the default level and strategy.
+	 */
+	public Deflate() {
+		this(DEFAULT_LEVEL, Deflater.DEFAULT_STRATEGY);
+	}
+	
+	/**
+	 * Constructor for format string options.
+	 * 
+	 * @param options "LEVEL" or "LEVEL:STRATEGY", where LEVEL is 1-9 and STRATEGY is one of default,
+	 * filtered or huffman.
+	 * @throws IllegalArgumentException if the options are invalid.
+	 */
+	public Deflate(String options) throws IllegalArgumentException {
+		this(parseLevel(options), parseStrategy(options));
+	}
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param level Compression level, 1-9.
+	 * @param strategy One of the Deflater strategy constants.
+	 */
+	protected Deflate(int level, int strategy) {
+		deflater = new Deflater(level, true);
+		deflater.setStrategy(strategy);
+		out = new byte[0];
+	}
+	
+	@Override
+	public byte[] compress(byte[] data, int blockSize) {
+		int bound = data.length + (data.length >>> 12) + 64 + TRAILER_ROOM;
+		if (out.length < bound) {
+			out = new byte[bound];
+		}
+		
+		int n = writeHeader(out);
+		start(data, 0, data.length);
+		while (!deflater.finished()) {
+			if (n + TRAILER_ROOM == out.length) {
+				out = Arrays.copyOf(out, 2 * out.length);
+			}
+			n += deflater.deflate(out, n, out.length - TRAILER_ROOM - n);
+		}
+		n = writeTrailer(data, 0, data.length, out, n);
+		return Arrays.copyOf(out, n);
+	}
+	
+	@Override
+	public int compressedSize(byte[] data, int offset, int length, int blockSize, int limit) {
+		if (out.length < SIZE_CHUNK) {
+			out = new byte[SIZE_CHUNK];
+		}
+		// The output is drained a chunk at a time and discarded, so the count can stop at the limit.
+		long size = getHeaderLength() + getTrailerLength();
+		start(data, offset, length);
+		while (!deflater.finished()) {
+			size += deflater.deflate(out, 0, SIZE_CHUNK);
+			if (size > limit) {
+				return limit + 1;
+			}
+		}
+		return (int) size;
+	}
+	
+	@Override
+	public void close() {
+		// The Deflater's zlib stream lives in native memory.
+		deflater.end();
+	}
+	
+	/**
+	 * Reset the Deflater and give it the input for one superblock.
+	 * 
+	 * @param data Buffer holding the data.
+	 * @param offset Start of the data.
+	 * @param length Length of the data.
+	 */
+	private void start(byte[] data, int offset, int length) {
+		deflater.reset();
+		deflater.setInput(data, offset, length);
+		deflater.finish();
+	}
+	
+	/**
+	 * Get the length of the header a container format writes before the Deflate stream.
+	 * 
+	 * @return Header length in bytes; none for raw Deflate.
+	 */
+	protected int getHeaderLength() {
+		return 0;
+	}
+	
+	/**
+	 * Get the length of the trailer a container format writes after the Deflate stream.
+	 * 
+	 * @return Trailer length in bytes, at most TRAILER_ROOM; none for raw Deflate.
+	 */
+	protected int getTrailerLength() {
+		return 0;
+	}
+	
+	/**
+	 * Write the header of a container format around the Deflate stream.
+	 * 
+	 * @param out Output buffer, at least 64 bytes long.
+	 * @return Number of header bytes written; none for raw Deflate.
+	 */
+	protected int writeHeader(byte[] out) {
+		return 0;
+	}
+	
+	/**
+	 * Write the trailer of a container format around the Deflate stream.
+	 * 
+	 * @param data Buffer holding the uncompressed data.
+	 * @param offset Start of the data.
+	 * @param length Length of the data.
+	 * @param out Output buffer with at least TRAILER_ROOM bytes free after pos.
+	 * @param pos End of the Deflate stream in out.
+	 * @return End of the output; pos for raw Deflate.
+	 */
+	protected int writeTrailer(byte[] data, int offset, int length, byte[] out, int pos) {
+		return pos;
+	}
+	
+	/**
+	 * Parse the level from the format string options.
+	 * 
+	 * @param options Format string options.
+	 * @return Compression level.
+	 * @throws IllegalArgumentException if the level is not 1-9.
+	 */
+	private static int parseLevel(String options) throws IllegalArgumentException {
+		String level = options.split(":", 2)[0];
+		try {
+			int l = Integer.parseInt(level);
+			if (l >= 1 && l <= 9) {
+				return l;
+			}
+		} catch (NumberFormatException ex) {
+			// Fall through.
+		}
+		throw new IllegalArgumentException(
+				String.format("Deflate level \"%s\" must be an integer from 1 to 9.", level));
+	}
+	
+	/**
+	 * Parse the strategy from the format string options.
+	 * 
+	 * @param options Format string options.
+	 * @return Deflater strategy constant.
+	 * @throws IllegalArgumentException if the strategy is unknown.
+	 */
+	private static int parseStrategy(String options) throws IllegalArgumentException {
+		String[] parts = options.split(":", 2);
+		if (parts.length < 2) {
+			return Deflater.DEFAULT_STRATEGY;
+		}
+		switch (parts[1].toLowerCase()) {
+		case "default":
+			return Deflater.DEFAULT_STRATEGY;
+		case "filtered":
+			return Deflater.FILTERED;
+		case "huffman":
+			return Deflater.HUFFMAN_ONLY;
+		default:
+			throw new IllegalArgumentException(
+					String.format("Deflate strategy \"%s\" must be one of default, filtered or huffman.", parts[1]));
+		}
+	}
+}
@@ -0,0 +1,86 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan.compress;
+
+import java.util.zip.CRC32;
+
+/**
+ * GZIP (RFC 1952): each superblock becomes a gzip member with the minimal 10-byte header and the
+ * 8-byte CRC-32/length trailer around its Deflate stream. Takes the same options as Deflate,
+ * e.g. "GZIP:9".
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+public class GZIP extends Deflate {
+	private static final byte[] HEADER = {
+			0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff
+	};
+	private static final int TRAILER_LENGTH = 8;
+	
+	private final CRC32 crc;
+	
+	/**
+	 * Constructor for the default level and strategy.
+	 */
+	public GZIP() {
+		super();
+		crc = new CRC32();
+	}
+	
+	/**
+	 * Constructor for format string options.
+	 * 
+	 * @param options "LEVEL" or "LEVEL:STRATEGY", as for Deflate.
+	 * @throws IllegalArgumentException if the options are invalid.
+	 */
+	public GZIP(String options) throws IllegalArgumentException {
+		super(options);
+		crc = new CRC32();
+	}
+	
+	@Override
+	protected int getHeaderLength() {
+		return HEADER.length;
+	}
+	
+	@Override
+	protected int getTrailerLength() {
+		return TRAILER_LENGTH;
+	}
+	
+	@Override
+	protected int writeHeader(byte[] out) {
+		System.arraycopy(HEADER, 0, out, 0, HEADER.length);
+		return HEADER.length;
+	}
+	
+	@Override
+	protected int writeTrailer(byte[] data, int offset, int length, byte[] out, int pos) {
+		crc.reset();
+		crc.update(data, offset, length);
+		pos = writeIntLE(out, pos, (int) crc.getValue());
+		return writeIntLE(out, pos, length);
+	}
+	
+	/**
+	 * Write a little-endian int.
+	 * 
+	 * @param out Output buffer.
+	 * @param pos Position to write at.
+	 * @param v Value to write.
+	 * @return Position after the value.
+	 */
+	private static int writeIntLE(byte[] out, int pos, int v) {
+		out[pos] = (byte) v;
+		out[pos + 1] = (byte) (v >>> 8);
+		out[pos + 2] = (byte) (v >>> 16);
+		out[pos + 3] = (byte) (v >>> 24);
+		return pos + 4;
+	}
+}
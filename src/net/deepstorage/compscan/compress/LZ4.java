@@ -0,0 +1,214 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan.compress;
+
+import java.util.Arrays;
+
+import net.deepstorage.compscan.CompressionInterface;
+
+/**
+ * LZ4 block format compressor. This follows the reference LZ4_compress_default (acceleration 1,
+ * 16KB hash table, 4-byte hashes below 64KB and 5-byte hashes above), so the output is a valid
+ * LZ4 block of the size the reference library would produce for the same superblock.
+ * 
+ * The hash table and output buffer are reused from one call to the next, so an instance must not
+ * be shared between threads. compressedSize skips copying the literals and gives up once the
+ * output passes the limit.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+public class LZ4 implements CompressionInterface {
+	private static final int MIN_MATCH = 4;
+	// A match must start at least this many bytes before the end of the block.
+	private static final int MF_LIMIT = 12;
+	// The last bytes of a block are always literals.
+	private static final int LAST_LITERALS = 5;
+	private static final int MAX_DISTANCE = 65535;
+	private static final int SKIP_TRIGGER = 6;
+	private static final int ML_BITS = 4;
+	private static final int RUN_MASK = (1 << (8 - ML_BITS)) - 1;
+	private static final int ML_MASK = (1 << ML_BITS) - 1;
+	// Blocks shorter than this use 16-bit table entries, twice as many of them.
+	private static final int LIMIT_64K = 65536 + MF_LIMIT - 1;
+	private static final int HASH_LOG = 12;
+	
+	private final int[] table;
+	private byte[] out;
+	private boolean store;
+	
+	/**
+	 * Constructor.
+	 */
+	public LZ4() {
+		table = new int[1 << (HASH_LOG + 1)];
+		out = new byte[0];
+	}
+	
+	@Override
+	public byte[] compress(byte[] data, int blockSize) {
+		int n = encode(data, 0, data.length, Integer.MAX_VALUE, true);
+		return Arrays.copyOf(out, n);
+	}
+	
+	@Override
+	public int compressedSize(byte[] data, int offset, int length, int blockSize, int limit) {
+		return encode(data, offset, length, limit, false);
+	}
+	
+	/**
+	 * Compress part of a buffer into the output buffer.
+	 * 
+	 * @param data Buffer holding the data.
+	 * @param offset Start of the data.
+	 * @param length Length of the data.
+	 * @param limit Output size in bytes above which to give up.
+	 * @param store Whether to copy the literals to the output or only count them.
+	 * @return Size of the output in bytes, or limit + 1 if it would be larger than limit.
+	 */
+	private int encode(byte[] data, int offset, int length, int limit, boolean store) {
+		int bound = length + length / 255 + 16;
+		if (out.length < bound) {
+			out = new byte[bound];
+		}
+		boolean small = length < LIMIT_64K;
+		// Empty slots point at the start of the data, as in the reference implementation.
+		Arrays.fill(table, 0, small ? 1 << (HASH_LOG + 1) : 1 << HASH_LOG, offset);
+		this.store = store;
+		int end = offset + length;
+		
+		int op = 0;
+		int anchor = offset;
+		if (length >= MF_LIMIT + 1) {
+			int mfLimitPlusOne = end - MF_LIMIT + 1;
+			int matchLimit = end - LAST_LITERALS;
+			table[hash(data, offset, small)] = offset;
+			int ip = offset + 1;
+			int forwardH = hash(data, ip, small);
+			
+			search:
+			while (true) {
+				// Find a match, skipping ahead faster the longer nothing is found.
+				int match;
+				int forwardIp = ip;
+				int step = 1;
+				int searchMatchNb = 1 << SKIP_TRIGGER;
+				do {
+					int h = forwardH;
+					ip = forwardIp;
+					forwardIp += step;
+					step = searchMatchNb++ >>> SKIP_TRIGGER;
+					if (forwardIp > mfLimitPlusOne) {
+						break search;
+					}
+					match = table[h];
+					forwardH = hash(data, forwardIp, small);
+					table[h] = ip;
+				} while (match + MAX_DISTANCE < ip || Bytes.readInt(data, match) != Bytes.readInt(data, ip));
+				
+				// Extend the match backwards.
+				while (ip > anchor && match > offset && data[ip - 1] == data[match - 1]) {
+					ip--;
+					match--;
+				}
+				
+				int token = op++;
+				op = writeLiterals(data, anchor, ip - anchor, token, op);
+				
+				while (true) {
+					Bytes.writeShort(out, op, ip - match);
+					op += 2;
+					int matchLength = Bytes.matchLength(data, match + MIN_MATCH, ip + MIN_MATCH, matchLimit);
+					ip += matchLength + MIN_MATCH;
+					if (matchLength >= ML_MASK) {
+						out[token] += ML_MASK;
+						op = writeLength(matchLength - ML_MASK, op);
+					} else {
+						out[token] += matchLength;
+					}
+					anchor = ip;
+					if (op > limit) {
+						return limit + 1;
+					}
+					if (ip >= mfLimitPlusOne) {
+						break search;
+					}
+					
+					table[hash(data, ip - 2, small)] = ip - 2;
+					// Try for another match straight away, without literals in between.
+					int h = hash(data, ip, small);
+					match = table[h];
+					table[h] = ip;
+					if (match + MAX_DISTANCE < ip || Bytes.readInt(data, match) != Bytes.readInt(data, ip)) {
+						break;
+					}
+					token = op++;
+					out[token] = 0;
+				}
+				forwardH = hash(data, ++ip, small);
+			}
+		}
+		
+		int token = op++;
+		op = writeLiterals(data, anchor, end - anchor, token, op);
+		return (op > limit ? limit + 1 : op);
+	}
+	
+	/**
+	 * Write the literal length into a token and copy the literals.
+	 * 
+	 * @param data Input block.
+	 * @param start Index of the first literal.
+	 * @param length Number of literals.
+	 * @param token Index of the sequence token in the output.
+	 * @param op Output position after the token.
+	 * @return Output position after the literals.
+	 */
+	private int writeLiterals(byte[] data, int start, int length, int token, int op) {
+		if (length >= RUN_MASK) {
+			out[token] = (byte) (RUN_MASK << ML_BITS);
+			op = writeLength(length - RUN_MASK, op);
+		} else {
+			out[token] = (byte) (length << ML_BITS);
+		}
+		if (store) {
+			System.arraycopy(data, start, out, op, length);
+		}
+		return op + length;
+	}
+	
+	/**
+	 * Write the extension bytes of a literal or match length.
+	 * 
+	 * @param length Length remaining after the token's nibble.
+	 * @param op Output position.
+	 * @return Output position after the extension bytes.
+	 */
+	private int writeLength(int length, int op) {
+		for (; length >= 255; length -= 255) {
+			out[op++] = (byte) 255;
+		}
+		out[op++] = (byte) length;
+		return op;
+	}
+	
+	/**
+	 * Hash the bytes at a position.
+	 * 
+	 * @param data Input block.
+	 * @param i Position to hash.
+	 * @param small Whether the block uses the 64KB table layout.
+	 * @return Table index.
+	 */
+	private static int hash(byte[] data, int i, boolean small) {
+		if (small) {
+			return (Bytes.readInt(data, i) * -1640531535) >>> (32 - (HASH_LOG + 1));
+		}
+		return (int) (((Bytes.readLong(data, i) << 24) * 889523592379L) >>> (64 - HASH_LOG));
+	}
+}
@@ -7,51 +7,176 @@
  */
 package net.deepstorage.compscan.compress;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.Arrays;
 
 import net.deepstorage.compscan.CompressionInterface;
 
 /**
- * A simple LZW implementation.
+ * LZW with variable-width codes in the style of Unix compress: codes start at 9 bits and grow to
+ * 16, code 256 clears the dictionary when it fills up, and the codes are bit-packed LSB first, so
+ * the length of the output is the true compressed size.
  * 
- * @see https://rosettacode.org/wiki/LZW_compression#Java
+ * The dictionary is an open-addressing table of (prefix code, byte) pairs on primitive arrays.
+ * Entries are tagged with a generation number, so clearing the dictionary between superblocks
+ * is a single increment rather than a pass over the table. All state is reused from one call to
+ * the next, so an instance must not be shared between threads. compressedSize runs the same
+ * encoder but only counts the bits, and gives up as soon as the limit is passed.
+ * 
+ * @author Ramon A. Lovato
  * @version 1.0
  */
-public class LZW implements CompressionInterface {	
+public class LZW implements CompressionInterface {
+	private static final int MIN_WIDTH = 9;
+	private static final int MAX_WIDTH = 16;
+	private static final int MAX_CODES = 1 << MAX_WIDTH;
+	private static final int CLEAR_CODE = 256;
+	private static final int FIRST_CODE = 257;
+	// Twice the maximum number of entries keeps the load factor at or below one half.
+	private static final int MAX_TABLE_BITS = MAX_WIDTH + 1;
+	private static final int MIN_TABLE_BITS = 10;
+	
+	// Each slot packs generation (24 bits), key (24 bits) and code (16 bits) so a probe touches one word.
+	private static final int GENERATION_SHIFT = 40;
+	private static final int KEY_SHIFT = 16;
+	private static final int MAX_GENERATION = (1 << 24) - 1;
+	
+	private final long[] table;
+	private int generation;
+	private int nextCode;
+	private int width;
+	private byte[] out;
+	private int outPos;
+	private long bitBuffer;
+	private int bitCount;
+	private long bits;
+	private boolean store;
+	
+	/**
+	 * Constructor.
+	 */
+	public LZW() {
+		table = new long[1 << MAX_TABLE_BITS];
+		generation = 0;
+		out = new byte[0];
+	}
+	
 	@Override
 	public byte[] compress(byte[] data, int blockSize) {
-		// Build the dictionary.
-        int dictSize = 256;
-        Map<String,Byte> dictionary = new HashMap<String,Byte>();
-        for (int i = 0; i < 256; i++)
-            dictionary.put("" + (byte) i, (byte) i);
- 
-        String w = "";
-        List<Byte> result = new ArrayList<Byte>();
-        for (byte b : data) {
-            String wb = w + b;
-            if (dictionary.containsKey(wb))
-                w = wb;
-            else {
-                result.add(dictionary.get(w));
-                // Add wc to the dictionary.
-                dictionary.put(wb, (byte) dictSize++);
-                w = "" + b;
-            }
-        }
- 
-        // Output the code for w.
-        if (!w.equals(""))
-            result.add(dictionary.get(w));
-        
-        byte[] output = new byte[result.size()];
-        for (int i = 0; i < output.length; i++) {
-        	output[i] = result.get(i);
-        }
-        return output;
-    }
-
+		int bound = 2 * data.length + 2 * (data.length >>> 15) + 16;
+		if (out.length < bound) {
+			out = new byte[bound];
+		}
+		int n = encode(data, 0, data.length, Integer.MAX_VALUE, true);
+		return Arrays.copyOf(out, n);
+	}
+	
+	@Override
+	public int compressedSize(byte[] data, int offset, int length, int blockSize, int limit) {
+		return encode(data, offset, length, limit, false);
+	}
+	
+	/**
+	 * Run the encoder over part of a buffer.
+	 * 
+	 * @param data Buffer holding the data.
+	 * @param offset Start of the data.
+	 * @param length Length of the data.
+	 * @param limit Output size in bytes above which to give up.
+	 * @param store Whether to write the codes to the output buffer or only count them.
+	 * @return Size of the output in bytes, or limit + 1 if it would be larger than limit.
+	 */
+	private int encode(byte[] data, int offset, int length, int limit, boolean store) {
+		if (length == 0) {
+			return 0;
+		}
+		this.store = store;
+		outPos = 0;
+		bitBuffer = 0L;
+		bitCount = 0;
+		bits = 0L;
+		long limitBits = 8L * limit;
+		clear();
+		// A superblock can add at most one entry per byte, so only use as much of the table as that
+		// needs; a small table stays in cache.
+		int tableBits = Math.max(MIN_TABLE_BITS,
+				Math.min(MAX_TABLE_BITS, 33 - Integer.numberOfLeadingZeros(length - 1)));
+		int shift = 32 - tableBits;
+		int mask = (1 << tableBits) - 1;
+		
+		int end = offset + length;
+		int w = data[offset] & 0xFF;
+		for (int i = offset + 1; i < end; i++) {
+			int c = data[i] & 0xFF;
+			int key = (w << 8) | c;
+			long tagged = ((long) generation << GENERATION_SHIFT) | ((long) key << KEY_SHIFT);
+			int slot = (key * 0x9E3779B1) >>> shift;
+			long entry;
+			boolean found = false;
+			while ((entry = table[slot]) >>> GENERATION_SHIFT == generation) {
+				if ((entry & ~0xFFFFL) == tagged) {
+					found = true;
+					break;
+				}
+				slot = (slot + 1) & mask;
+			}
+			if (found) {
+				w = (int) entry & 0xFFFF;
+				continue;
+			}
+			
+			emit(w);
+			if (bits > limitBits) {
+				return limit + 1;
+			}
+			if (nextCode < MAX_CODES) {
+				table[slot] = tagged | nextCode++;
+				if (nextCode > (1 << width) && width < MAX_WIDTH) {
+					width++;
+				}
+			} else {
+				// Dictionary is full: tell the decoder to start over.
+				emit(CLEAR_CODE);
+				clear();
+			}
+			w = c;
+		}
+		emit(w);
+		if (store && bitCount > 0) {
+			out[outPos++] = (byte) bitBuffer;
+		}
+		return (int) ((bits + 7) >>> 3);
+	}
+	
+	/**
+	 * Empty the dictionary and return to the minimum code width.
+	 */
+	private void clear() {
+		generation++;
+		if (generation > MAX_GENERATION) {
+			// The generations wrapped around, so old entries could look current again.
+			Arrays.fill(table, 0L);
+			generation = 1;
+		}
+		nextCode = FIRST_CODE;
+		width = MIN_WIDTH;
+	}
+	
+	/**
+	 * Append a code at the current width to the output.
+	 * 
+	 * @param code Code to write.
+	 */
+	private void emit(int code) {
+		bits += width;
+		if (!store) {
+			return;
+		}
+		bitBuffer |= (long) code << bitCount;
+		bitCount += width;
+		while (bitCount >= 8) {
+			out[outPos++] = (byte) bitBuffer;
+			bitBuffer >>>= 8;
+			bitCount -= 8;
+		}
+	}
 }
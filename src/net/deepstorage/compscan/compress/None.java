@@ -21,5 +21,10 @@ public class None implements CompressionInterface {
 		// TODO Auto-generated method stub
 		return data;
 	}
+	
+	@Override
+	public int compressedSize(byte[] data, int offset, int length, int blockSize, int limit) {
+		return length;
+	}
 
 }
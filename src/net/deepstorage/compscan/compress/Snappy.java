@@ -0,0 +1,252 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan.compress;
+
+import java.util.Arrays;
+
+import net.deepstorage.compscan.CompressionInterface;
+
+/**
+ * Snappy raw format compressor. This follows the reference snappy::Compress: the input is split
+ * into 64KB fragments compressed independently, each with a hash table sized to the fragment, so
+ * the output is a valid Snappy stream of the size the reference library would produce.
+ * 
+ * The hash table and output buffer are reused from one call to the next, so an instance must not
+ * be shared between threads. compressedSize skips copying the literals and gives up once
+ * the output passes the limit.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+public class Snappy implements CompressionInterface {
+	private static final int BLOCK_SIZE = 1 << 16;
+	private static final int MAX_HASH_TABLE_SIZE = 1 << 14;
+	private static final int MIN_HASH_TABLE_SIZE = 1 << 8;
+	// Fragments end in at least this many literal-scanned bytes so reads never run past the end.
+	private static final int INPUT_MARGIN = 15;
+	private static final int LITERAL = 0;
+	private static final int COPY_1_BYTE_OFFSET = 1;
+	private static final int COPY_2_BYTE_OFFSET = 2;
+	
+	private final int[] table;
+	private byte[] out;
+	private boolean store;
+	
+	/**
+	 * Constructor.
+	 */
+	public Snappy() {
+		table = new int[MAX_HASH_TABLE_SIZE];
+		out = new byte[0];
+	}
+	
+	@Override
+	public byte[] compress(byte[] data, int blockSize) {
+		int n = encode(data, 0, data.length, Integer.MAX_VALUE, true);
+		return Arrays.copyOf(out, n);
+	}
+	
+	@Override
+	public int compressedSize(byte[] data, int offset, int length, int blockSize, int limit) {
+		return encode(data, offset, length, limit, false);
+	}
+	
+	/**
+	 * Compress part of a buffer into the output buffer.
+	 * 
+	 * @param data Buffer holding the data.
+	 * @param offset Start of the data.
+	 * @param length Length of the data.
+	 * @param limit Output size in bytes above which to give up.
+	 * @param store Whether to copy the literals to the output or only count them.
+	 * @return Size of the output in bytes, or limit + 1 if it would be larger than limit.
+	 */
+	private int encode(byte[] data, int offset, int length, int limit, boolean store) {
+		int bound = 32 + length + length / 6;
+		if (out.length < bound) {
+			out = new byte[bound];
+		}
+		this.store = store;
+		
+		// Preamble: uncompressed length as a varint.
+		int op = 0;
+		int v = length;
+		while ((v & ~0x7F) != 0) {
+			out[op++] = (byte) (v | 0x80);
+			v >>>= 7;
+		}
+		out[op++] = (byte) v;
+		
+		int end = offset + length;
+		for (int start = offset; start < end && op <= limit; start += BLOCK_SIZE) {
+			op = compressFragment(data, start, Math.min(BLOCK_SIZE, end - start), op, limit);
+		}
+		return (op > limit ? limit + 1 : op);
+	}
+	
+	/**
+	 * Compress one fragment of at most 64KB.
+	 * 
+	 * @param data Input buffer.
+	 * @param base Start of the fragment.
+	 * @param length Length of the fragment.
+	 * @param op Output position.
+	 * @param limit Output size above which to give up.
+	 * @return Output position after the fragment, or past limit if it gave up.
+	 */
+	private int compressFragment(byte[] data, int base, int length, int op, int limit) {
+		int tableSize = MIN_HASH_TABLE_SIZE;
+		while (tableSize < MAX_HASH_TABLE_SIZE && tableSize < length) {
+			tableSize <<= 1;
+		}
+		int shift = 32 - Integer.numberOfTrailingZeros(tableSize);
+		Arrays.fill(table, 0, tableSize, 0);
+		
+		int ip = base;
+		int end = base + length;
+		int nextEmit = base;
+		if (length >= INPUT_MARGIN) {
+			int ipLimit = end - INPUT_MARGIN;
+			int nextHash = hash(Bytes.readInt(data, ++ip), shift);
+			
+			search:
+			while (true) {
+				// Scan forward for a 4-byte match, skipping faster the longer nothing is found.
+				int skip = 32;
+				int nextIp = ip;
+				int candidate;
+				do {
+					ip = nextIp;
+					int h = nextHash;
+					int bytesBetweenHashLookups = skip >>> 5;
+					skip += bytesBetweenHashLookups;
+					nextIp = ip + bytesBetweenHashLookups;
+					if (nextIp > ipLimit) {
+						break search;
+					}
+					nextHash = hash(Bytes.readInt(data, nextIp), shift);
+					candidate = base + table[h];
+					table[h] = ip - base;
+				} while (Bytes.readInt(data, ip) != Bytes.readInt(data, candidate));
+				
+				op = emitLiteral(data, nextEmit, ip - nextEmit, op);
+				if (op > limit) {
+					return op;
+				}
+				
+				// Emit copies for as long as the next position also matches.
+				long inputBytes;
+				int candidateBytes;
+				do {
+					int matchStart = ip;
+					int matched = 4 + Bytes.matchLength(data, candidate + 4, ip + 4, end);
+					ip += matched;
+					op = emitCopy(matchStart - candidate, matched, op);
+					nextEmit = ip;
+					if (ip >= ipLimit) {
+						break search;
+					}
+					inputBytes = Bytes.readLong(data, ip - 1);
+					table[hash((int) inputBytes, shift)] = ip - base - 1;
+					int curHash = hash((int) (inputBytes >>> 8), shift);
+					candidate = base + table[curHash];
+					candidateBytes = Bytes.readInt(data, candidate);
+					table[curHash] = ip - base;
+				} while ((int) (inputBytes >>> 8) == candidateBytes);
+				
+				nextHash = hash((int) (inputBytes >>> 16), shift);
+				ip++;
+			}
+		}
+		
+		if (nextEmit < end) {
+			op = emitLiteral(data, nextEmit, end - nextEmit, op);
+		}
+		return op;
+	}
+	
+	/**
+	 * Write a literal element.
+	 * 
+	 * @param data Input buffer.
+	 * @param start Index of the first literal.
+	 * @param length Number of literals, at least 1.
+	 * @param op Output position.
+	 * @return Output position after the literals.
+	 */
+	private int emitLiteral(byte[] data, int start, int length, int op) {
+		int n = length - 1;
+		if (n < 60) {
+			out[op++] = (byte) (LITERAL | (n << 2));
+		} else {
+			int tagPos = op++;
+			int count = 0;
+			while (n > 0) {
+				out[op++] = (byte) n;
+				n >>>= 8;
+				count++;
+			}
+			out[tagPos] = (byte) (LITERAL | ((59 + count) << 2));
+		}
+		if (store) {
+			System.arraycopy(data, start, out, op, length);
+		}
+		return op + length;
+	}
+	
+	/**
+	 * Write one or more copy elements for a match.
+	 * 
+	 * @param offset Distance back to the match.
+	 * @param length Length of the match, at least 4.
+	 * @param op Output position.
+	 * @return Output position after the copies.
+	 */
+	private int emitCopy(int offset, int length, int op) {
+		while (length >= 68) {
+			op = emitCopyLessThan64(offset, 64, op);
+			length -= 64;
+		}
+		if (length > 64) {
+			op = emitCopyLessThan64(offset, 60, op);
+			length -= 60;
+		}
+		return emitCopyLessThan64(offset, length, op);
+	}
+	
+	/**
+	 * Write a single copy element.
+	 * 
+	 * @param offset Distance back to the match.
+	 * @param length Length of the copy, 4 to 64.
+	 * @param op Output position.
+	 * @return Output position after the copy.
+	 */
+	private int emitCopyLessThan64(int offset, int length, int op) {
+		if (length < 12 && offset < 2048) {
+			out[op++] = (byte) (COPY_1_BYTE_OFFSET | ((length - 4) << 2) | ((offset >>> 8) << 5));
+			out[op++] = (byte) offset;
+		} else {
+			out[op++] = (byte) (COPY_2_BYTE_OFFSET | ((length - 1) << 2));
+			Bytes.writeShort(out, op, offset);
+			op += 2;
+		}
+		return op;
+	}
+	
+	/**
+	 * Hash four bytes.
+	 * 
+	 * @param bytes Bytes to hash, little-endian.
+	 * @param shift 32 minus the log of the table size.
+	 * @return Table index.
+	 */
+	private static int hash(int bytes, int shift) {
+		return (bytes * 0x1e35a7bd) >>> shift;
+	}
+}
@@ -0,0 +1,124 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan.vdisk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+/**
+ * A VHD image. Dynamic and differencing disks are read through the block allocation table, skipping
+ * each block's sector bitmap and every unallocated block. Fixed disks are read up to the footer.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+public class DynamicVHD extends VirtualDisk {
+	private static final byte[] FOOTER_COOKIE = { 'c', 'o', 'n', 'e', 'c', 't', 'i', 'x' };
+	private static final byte[] HEADER_COOKIE = { 'c', 'x', 's', 'p', 'a', 'r', 's', 'e' };
+	private static final int FOOTER_SIZE = 512;
+	private static final int HEADER_SIZE = 1024;
+	private static final long SECTOR = 512L;
+	private static final int DISK_TYPE_FIXED = 2;
+	private static final long UNALLOCATED = 0xFFFFFFFFL;
+	
+	private final boolean fixed;
+	private final long blockSize;
+	private final long bitmapSize;
+	private final int[] bat;
+	private int block;
+	
+	/**
+	 * Check for the footer cookie at the end of the file.
+	 * 
+	 * @param channel Channel to check.
+	 * @return True if the file is a VHD.
+	 * @throws IOException if the read failed.
+	 */
+	static boolean matches(FileChannel channel) throws IOException {
+		return hasSignature(channel, channel.size() - FOOTER_SIZE, FOOTER_COOKIE)
+				// Some tools write a 511-byte footer.
+				|| hasSignature(channel, channel.size() - (FOOTER_SIZE - 1), FOOTER_COOKIE);
+	}
+	
+	/**
+	 * Parse the footer, dynamic header and block allocation table.
+	 * 
+	 * @param path Image file.
+	 * @param channel Open channel to the image file.
+	 * @throws IOException if the metadata is unreadable.
+	 */
+	DynamicVHD(Path path, FileChannel channel) throws IOException {
+		super(path, channel);
+		long footerOffset = (hasSignature(channel, channel.size() - FOOTER_SIZE, FOOTER_COOKIE) ?
+				channel.size() - FOOTER_SIZE : channel.size() - (FOOTER_SIZE - 1));
+		ByteBuffer footer = readAt(footerOffset, (int) (channel.size() - footerOffset), ByteOrder.BIG_ENDIAN);
+		virtualSize = footer.getLong(48);
+		fixed = (footer.getInt(60) == DISK_TYPE_FIXED);
+		block = 0;
+		
+		if (fixed) {
+			blockSize = 0L;
+			bitmapSize = 0L;
+			bat = null;
+			return;
+		}
+		
+		long headerOffset = footer.getLong(16);
+		if (!hasSignature(channel, headerOffset, HEADER_COOKIE)) {
+			throw new IOException(String.format("VHD dynamic header in \"%s\" is missing.", path));
+		}
+		ByteBuffer header = readAt(headerOffset, HEADER_SIZE, ByteOrder.BIG_ENDIAN);
+		long tableOffset = header.getLong(16);
+		int entries = header.getInt(28);
+		blockSize = header.getInt(32) & 0xFFFFFFFFL;
+		if (blockSize == 0 || blockSize % SECTOR != 0 || entries < 0) {
+			throw new IOException(String.format("VHD dynamic header in \"%s\" is corrupt.", path));
+		}
+		// One bit per sector, padded to a whole number of sectors.
+		long bitmapBytes = (blockSize / SECTOR + 7) / 8;
+		bitmapSize = (bitmapBytes + SECTOR - 1) / SECTOR * SECTOR;
+		bat = new int[entries];
+		readAt(tableOffset, entries * 4, ByteOrder.BIG_ENDIAN).asIntBuffer().get(bat);
+	}
+	
+	@Override
+	public String getFormat() {
+		return (fixed ? "VHD (fixed)" : "VHD (dynamic)");
+	}
+	
+	@Override
+	protected boolean nextRun() throws IOException {
+		if (fixed) {
+			if (block++ > 0) {
+				return false;
+			}
+			long length = Math.min(virtualSize, channel.size() - FOOTER_SIZE);
+			allocatedBytes += length;
+			setRun(0L, length);
+			return true;
+		}
+		while (block < bat.length) {
+			long guestOffset = block * blockSize;
+			long entry = bat[block++] & 0xFFFFFFFFL;
+			if (guestOffset >= virtualSize) {
+				return false;
+			}
+			if (entry == UNALLOCATED) {
+				continue;
+			}
+			long length = Math.min(blockSize, virtualSize - guestOffset);
+			allocatedBytes += length;
+			setRun(entry * SECTOR + bitmapSize, length);
+			return true;
+		}
+		return false;
+	}
+}
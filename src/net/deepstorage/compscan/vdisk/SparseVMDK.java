@@ -0,0 +1,202 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan.vdisk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A hosted sparse VMDK extent ("KDMV"), as used by monolithicSparse, twoGbMaxExtentSparse and
+ * streamOptimized disks. Grains are located through the grain directory and grain tables; grains
+ * whose table entry is empty are unallocated. Compressed grains in streamOptimized disks are
+ * inflated one at a time.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+public class SparseVMDK extends VirtualDisk {
+	private static final byte[] MAGIC = { 'K', 'D', 'M', 'V' };
+	private static final long SECTOR = 512L;
+	private static final long GD_AT_END = 0xFFFFFFFFFFFFFFFFL;
+	private static final int FLAG_ZEROED_GTE = 1 << 2;
+	private static final int FLAG_COMPRESSED = 1 << 16;
+	// A marker is a 64-bit LBA followed by a 32-bit size.
+	private static final int MARKER_SIZE = 12;
+	
+	private final long grainBytes;
+	private final int gtesPerGT;
+	private final boolean zeroedGTEs;
+	private final boolean compressed;
+	private final int[] directory;
+	private final ByteBuffer table;
+	private long grain;
+	private boolean tableLoaded;
+	private final byte[] grainBuffer;
+	private final Inflater inflater;
+	
+	/**
+	 * Check for the sparse extent magic number.
+	 * 
+	 * @param channel Channel to check.
+	 * @return True if the file is a hosted sparse extent.
+	 * @throws IOException if the read failed.
+	 */
+	static boolean matches(FileChannel channel) throws IOException {
+		return hasSignature(channel, 0L, MAGIC);
+	}
+	
+	/**
+	 * Parse the header and grain directory.
+	 * 
+	 * @param path Image file.
+	 * @param channel Open channel to the image file.
+	 * @throws IOException if the header or grain directory is unreadable.
+	 */
+	SparseVMDK(Path path, FileChannel channel) throws IOException {
+		super(path, channel);
+		ByteBuffer header = readAt(0L, (int) SECTOR, ByteOrder.LITTLE_ENDIAN);
+		if (header.getLong(56) == GD_AT_END) {
+			// streamOptimized disks keep the real header in a footer just before the end-of-stream marker.
+			header = readAt(channel.size() - 2 * SECTOR, (int) SECTOR, ByteOrder.LITTLE_ENDIAN);
+		}
+		int flags = header.getInt(8);
+		long capacity = header.getLong(12);
+		long grainSectors = header.getLong(20);
+		gtesPerGT = header.getInt(44);
+		long gdOffset = header.getLong(56);
+		if (grainSectors <= 0 || gtesPerGT <= 0 || gdOffset <= 0 || gdOffset == GD_AT_END) {
+			throw new IOException(String.format("Sparse VMDK header in \"%s\" is corrupt.", path));
+		}
+		
+		virtualSize = capacity * SECTOR;
+		grainBytes = grainSectors * SECTOR;
+		zeroedGTEs = (flags & FLAG_ZEROED_GTE) != 0;
+		compressed = (flags & FLAG_COMPRESSED) != 0;
+		
+		long grains = (capacity + grainSectors - 1) / grainSectors;
+		int tables = (int) ((grains + gtesPerGT - 1) / gtesPerGT);
+		directory = new int[tables];
+		readAt(gdOffset * SECTOR, tables * 4, ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(directory);
+		table = ByteBuffer.allocate(gtesPerGT * 4).order(ByteOrder.LITTLE_ENDIAN);
+		grain = 0L;
+		tableLoaded = false;
+		
+		if (compressed) {
+			if (grainBytes > Integer.MAX_VALUE) {
+				throw new IOException(String.format("Grain size in \"%s\" is too large.", path));
+			}
+			grainBuffer = new byte[(int) grainBytes];
+			inflater = new Inflater();
+		} else {
+			grainBuffer = null;
+			inflater = null;
+		}
+	}
+	
+	@Override
+	public String getFormat() {
+		return (compressed ? "VMDK (streamOptimized)" : "VMDK (sparse)");
+	}
+	
+	@Override
+	protected boolean nextRun() throws IOException {
+		while (grain * grainBytes < virtualSize) {
+			int gd = (int) (grain / gtesPerGT);
+			int gt = (int) (grain % gtesPerGT);
+			if (directory[gd] == 0) {
+				// No grain table, so the whole table's worth of grains is unallocated.
+				grain = (long) (gd + 1) * gtesPerGT;
+				tableLoaded = false;
+				continue;
+			}
+			if (gt == 0 || !tableLoaded) {
+				table.clear();
+				readFully((directory[gd] & 0xFFFFFFFFL) * SECTOR, table);
+				tableLoaded = true;
+			}
+			long entry = table.getInt(gt * 4) & 0xFFFFFFFFL;
+			long guestOffset = grain * grainBytes;
+			grain++;
+			if (grain % gtesPerGT == 0) {
+				tableLoaded = false;
+			}
+			if (entry == 0 || (entry == 1 && zeroedGTEs)) {
+				continue;
+			}
+			
+			long length = Math.min(grainBytes, virtualSize - guestOffset);
+			allocatedBytes += length;
+			if (compressed) {
+				inflateGrain(entry * SECTOR, (int) length);
+				setRun(0L, length);
+			} else {
+				setRun(entry * SECTOR, length);
+			}
+			return true;
+		}
+		return false;
+	}
+	
+	@Override
+	protected boolean canMergeRuns() {
+		return !compressed;
+	}
+	
+	@Override
+	protected void readRun(long position, byte[] b, int off, int len) throws IOException {
+		if (compressed) {
+			System.arraycopy(grainBuffer, (int) position, b, off, len);
+		} else {
+			super.readRun(position, b, off, len);
+		}
+	}
+	
+	/**
+	 * Inflate one compressed grain into the grain buffer.
+	 * 
+	 * @param markerOffset File offset of the grain marker.
+	 * @param length Number of guest bytes the grain holds.
+	 * @throws IOException if the grain is unreadable.
+	 */
+	private void inflateGrain(long markerOffset, int length) throws IOException {
+		int size = readAt(markerOffset + 8, 4, ByteOrder.LITTLE_ENDIAN).getInt(0);
+		ByteBuffer data = readAt(markerOffset + MARKER_SIZE, size, ByteOrder.LITTLE_ENDIAN);
+		inflater.reset();
+		inflater.setInput(data.array(), 0, size);
+		try {
+			int n = 0;
+			while (n < length && !inflater.finished()) {
+				int m = inflater.inflate(grainBuffer, n, length - n);
+				if (m == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				n += m;
+			}
+			// A short grain is padded with zeros, as the guest would read it.
+			for (int i = n; i < length; i++) {
+				grainBuffer[i] = 0x0;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException(
+					String.format("Compressed grain at offset %d in \"%s\" is corrupt.", markerOffset, path), e);
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (inflater != null) {
+			inflater.end();
+		}
+		super.close();
+	}
+}
@@ -0,0 +1,219 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan.vdisk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * A VHDX image. Payload blocks are located through the BAT region; blocks that are not fully or
+ * partially present are unallocated. The sector bitmap entries interleaved in the BAT are skipped.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+public class VHDX extends VirtualDisk {
+	private static final byte[] FILE_SIGNATURE = { 'v', 'h', 'd', 'x', 'f', 'i', 'l', 'e' };
+	private static final byte[] HEADER_SIGNATURE = { 'h', 'e', 'a', 'd' };
+	private static final byte[] REGION_SIGNATURE = { 'r', 'e', 'g', 'i' };
+	private static final byte[] METADATA_SIGNATURE = { 'm', 'e', 't', 'a', 'd', 'a', 't', 'a' };
+	private static final long KB_64 = 64L * 1024;
+	private static final long[] HEADER_OFFSETS = { 1 * KB_64, 2 * KB_64 };
+	private static final long[] REGION_OFFSETS = { 3 * KB_64, 4 * KB_64 };
+	// GUIDs as they appear on disk (the first three fields are little-endian).
+	private static final byte[] BAT_GUID = guid("2DC27766-F623-4200-9D64-115E9BFD4A08");
+	private static final byte[] METADATA_GUID = guid("8B7CA206-4790-4B9A-B8FE-575F050F886E");
+	private static final byte[] FILE_PARAMETERS_GUID = guid("CAA16737-FA36-4D43-B3B6-33F0AA44E76B");
+	private static final byte[] VIRTUAL_DISK_SIZE_GUID = guid("2FA54224-CD1B-4876-B211-5DBED83BF4B8");
+	private static final byte[] LOGICAL_SECTOR_SIZE_GUID = guid("8141BF1D-A96F-4709-BA47-F233A8FAAB5F");
+	private static final int PAYLOAD_BLOCK_FULLY_PRESENT = 6;
+	private static final int PAYLOAD_BLOCK_PARTIALLY_PRESENT = 7;
+	// Sectors covered by one sector bitmap block.
+	private static final long SECTORS_PER_BITMAP = 1L << 23;
+	
+	private final long blockSize;
+	private final long chunkRatio;
+	private final long blocks;
+	private final long batOffset;
+	private final ByteBuffer batPage;
+	private long batPageStart;
+	private long block;
+	
+	/**
+	 * Check for the file type identifier.
+	 * 
+	 * @param channel Channel to check.
+	 * @return True if the file is a VHDX.
+	 * @throws IOException if the read failed.
+	 */
+	static boolean matches(FileChannel channel) throws IOException {
+		return hasSignature(channel, 0L, FILE_SIGNATURE);
+	}
+	
+	/**
+	 * Parse the headers, region table and metadata.
+	 * 
+	 * @param path Image file.
+	 * @param channel Open channel to the image file.
+	 * @throws IOException if the metadata is unreadable.
+	 */
+	VHDX(Path path, FileChannel channel) throws IOException {
+		super(path, channel);
+		
+		// Use the current header, i.e. the valid one with the higher sequence number.
+		ByteBuffer header = null;
+		for (long offset : HEADER_OFFSETS) {
+			if (hasSignature(channel, offset, HEADER_SIGNATURE)) {
+				ByteBuffer candidate = readAt(offset, 80, ByteOrder.LITTLE_ENDIAN);
+				if (header == null || Long.compareUnsigned(candidate.getLong(8), header.getLong(8)) > 0) {
+					header = candidate;
+				}
+			}
+		}
+		if (header == null) {
+			throw new IOException(String.format("VHDX in \"%s\" has no valid header.", path));
+		}
+		byte[] logGuid = new byte[16];
+		((ByteBuffer) header.duplicate().position(48)).get(logGuid);
+		if (!Arrays.equals(logGuid, new byte[16])) {
+			System.err.format("Warning: \"%s\" has a log that was never replayed; results may be stale.%n", path);
+		}
+		
+		long bat = -1L;
+		long metadata = -1L;
+		for (long offset : REGION_OFFSETS) {
+			if (!hasSignature(channel, offset, REGION_SIGNATURE)) {
+				continue;
+			}
+			ByteBuffer regions = readAt(offset, (int) KB_64, ByteOrder.LITTLE_ENDIAN);
+			int count = regions.getInt(8);
+			for (int i = 0; i < count && 16 + (i + 1) * 32 <= regions.capacity(); i++) {
+				int e = 16 + i * 32;
+				if (guidAt(regions, e, BAT_GUID)) {
+					bat = regions.getLong(e + 16);
+				} else if (guidAt(regions, e, METADATA_GUID)) {
+					metadata = regions.getLong(e + 16);
+				}
+			}
+			break;
+		}
+		if (bat < 0 || metadata < 0 || !hasSignature(channel, metadata, METADATA_SIGNATURE)) {
+			throw new IOException(String.format("VHDX region table in \"%s\" is corrupt.", path));
+		}
+		batOffset = bat;
+		
+		ByteBuffer table = readAt(metadata, (int) KB_64, ByteOrder.LITTLE_ENDIAN);
+		int entries = table.getShort(10) & 0xFFFF;
+		long size = -1L;
+		long blockBytes = -1L;
+		long sectorSize = -1L;
+		for (int i = 0; i < entries && 32 + (i + 1) * 32 <= table.capacity(); i++) {
+			int e = 32 + i * 32;
+			long item = metadata + (table.getInt(e + 16) & 0xFFFFFFFFL);
+			if (guidAt(table, e, FILE_PARAMETERS_GUID)) {
+				blockBytes = readAt(item, 4, ByteOrder.LITTLE_ENDIAN).getInt(0) & 0xFFFFFFFFL;
+			} else if (guidAt(table, e, VIRTUAL_DISK_SIZE_GUID)) {
+				size = readAt(item, 8, ByteOrder.LITTLE_ENDIAN).getLong(0);
+			} else if (guidAt(table, e, LOGICAL_SECTOR_SIZE_GUID)) {
+				sectorSize = readAt(item, 4, ByteOrder.LITTLE_ENDIAN).getInt(0) & 0xFFFFFFFFL;
+			}
+		}
+		if (size < 0 || blockBytes <= 0 || sectorSize <= 0) {
+			throw new IOException(String.format("VHDX metadata in \"%s\" is incomplete.", path));
+		}
+		virtualSize = size;
+		blockSize = blockBytes;
+		chunkRatio = SECTORS_PER_BITMAP * sectorSize / blockSize;
+		blocks = (virtualSize + blockSize - 1) / blockSize;
+		batPage = ByteBuffer.allocate((int) KB_64).order(ByteOrder.LITTLE_ENDIAN);
+		batPageStart = -1L;
+		block = 0L;
+	}
+	
+	@Override
+	public String getFormat() {
+		return "VHDX";
+	}
+	
+	@Override
+	protected boolean nextRun() throws IOException {
+		while (block < blocks) {
+			long guestOffset = block * blockSize;
+			// Every chunkRatio payload entries are followed by one sector bitmap entry.
+			long entry = batEntry(block + block / chunkRatio);
+			block++;
+			int state = (int) (entry & 0x7);
+			if (state != PAYLOAD_BLOCK_FULLY_PRESENT && state != PAYLOAD_BLOCK_PARTIALLY_PRESENT) {
+				continue;
+			}
+			long length = Math.min(blockSize, virtualSize - guestOffset);
+			allocatedBytes += length;
+			setRun((entry >>> 20) << 20, length);
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Read one BAT entry, paging the BAT in 64 KiB at a time.
+	 * 
+	 * @param index Entry index.
+	 * @return The raw entry.
+	 * @throws IOException if the BAT is unreadable.
+	 */
+	private long batEntry(long index) throws IOException {
+		long byteOffset = index * 8;
+		long pageStart = byteOffset - byteOffset % KB_64;
+		if (pageStart != batPageStart) {
+			batPage.clear();
+			readFully(batOffset + pageStart, batPage);
+			batPageStart = pageStart;
+		}
+		return batPage.getLong((int) (byteOffset - pageStart));
+	}
+	
+	/**
+	 * Check whether a GUID in a buffer matches.
+	 * 
+	 * @param bb Buffer.
+	 * @param offset Offset of the GUID.
+	 * @param guid Expected on-disk bytes.
+	 * @return True if they match.
+	 */
+	private static boolean guidAt(ByteBuffer bb, int offset, byte[] guid) {
+		for (int i = 0; i < guid.length; i++) {
+			if (bb.get(offset + i) != guid[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Convert a GUID string to its on-disk byte layout.
+	 * 
+	 * @param s GUID in the usual 8-4-4-4-12 form.
+	 * @return The 16 on-disk bytes.
+	 */
+	private static byte[] guid(String s) {
+		String hex = s.replace("-", "");
+		byte[] be = new byte[16];
+		for (int i = 0; i < 16; i++) {
+			be[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		// Data1 (4 bytes), Data2 and Data3 (2 bytes each) are stored little-endian.
+		return new byte[] {
+				be[3], be[2], be[1], be[0], be[5], be[4], be[7], be[6],
+				be[8], be[9], be[10], be[11], be[12], be[13], be[14], be[15]
+		};
+	}
+}
@@ -0,0 +1,289 @@
+/**
+ * CompScan - a tool for estimating the compressibility of a dataset.
+ * 
+ * Copyright (c) 2016 DeepStorage, LLC (deepstorage.net) and Ramon A. Lovato (ramonalovato.com).
+ * 
+ * See the file LICENSE for copying permission.
+ */
+package net.deepstorage.compscan.vdisk;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A virtual disk image whose allocation tables have been parsed, so that only the guest data
+ * actually allocated in the image is read.
+ * 
+ * Subclasses walk their allocation tables lazily and hand out the allocated guest data as a series
+ * of runs in the container file, in guest order. Adjacent runs are merged so the container is read
+ * with large sequential reads. Metadata and unallocated regions are never read.
+ * 
+ * @author Ramon A. Lovato
+ * @version 1.0
+ */
+public abstract class VirtualDisk implements AutoCloseable {
+	protected final Path path;
+	protected final FileChannel channel;
+	protected long virtualSize;
+	protected long allocatedBytes;
+	
+	private long runPosition;
+	private long runRemaining;
+	private long pendingPosition;
+	private long pendingLength;
+	private boolean exhausted;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param path Image file.
+	 * @param channel Open channel to the image file. Closed by close().
+	 */
+	protected VirtualDisk(Path path, FileChannel channel) {
+		this.path = path;
+		this.channel = channel;
+		virtualSize = 0L;
+		allocatedBytes = 0L;
+		runPosition = 0L;
+		runRemaining = 0L;
+		pendingLength = 0L;
+		exhausted = false;
+	}
+	
+	/**
+	 * Open an image and parse its allocation tables if it is in a recognized sparse format.
+	 * 
+	 * @param path Image file.
+	 * @return The parsed VirtualDisk, or null if the file isn't a recognized sparse or dynamic image
+	 *         and should be read as raw data.
+	 * @throws IOException if the file couldn't be read or its tables are corrupt.
+	 */
+	public static VirtualDisk open(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			VirtualDisk vd = null;
+			if (SparseVMDK.matches(channel)) {
+				vd = new SparseVMDK(path, channel);
+			} else if (VHDX.matches(channel)) {
+				vd = new VHDX(path, channel);
+			} else if (DynamicVHD.matches(channel)) {
+				vd = new DynamicVHD(path, channel);
+			}
+			if (vd == null) {
+				channel.close();
+			}
+			return vd;
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Get the name of the image format.
+	 * 
+	 * @return Format name.
+	 */
+	public abstract String getFormat();
+	
+	/**
+	 * Get the size of the disk as seen by the guest.
+	 * 
+	 * @return Virtual size in bytes.
+	 */
+	public long getVirtualSize() {
+		return virtualSize;
+	}
+	
+	/**
+	 * Get the number of guest bytes allocated in the image. Only complete once the whole image
+	 * has been read.
+	 * 
+	 * @return Allocated guest bytes read so far.
+	 */
+	public long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+	
+	/**
+	 * Read allocated guest data into a buffer.
+	 * 
+	 * @param b Destination buffer.
+	 * @param off Offset in the buffer.
+	 * @param len Maximum number of bytes to read.
+	 * @return Number of bytes read. Less than len only once all allocated data has been read.
+	 * @throws IOException if the image couldn't be read.
+	 */
+	public int read(byte[] b, int off, int len) throws IOException {
+		int total = 0;
+		while (total < len) {
+			if (runRemaining == 0 && !nextMergedRun()) {
+				break;
+			}
+			int n = (int) Math.min(len - total, runRemaining);
+			readRun(runPosition, b, off + total, n);
+			runPosition += n;
+			runRemaining -= n;
+			total += n;
+		}
+		return total;
+	}
+	
+	/**
+	 * Advance to the next run of allocated guest data. Implementations set the run with setRun and
+	 * add the run's length to allocatedBytes.
+	 * 
+	 * @return False once there are no more runs.
+	 * @throws IOException if the allocation tables couldn't be read.
+	 */
+	protected abstract boolean nextRun() throws IOException;
+	
+	/**
+	 * Record the run found by nextRun.
+	 * 
+	 * @param position Position of the run; a file offset unless readRun is overridden.
+	 * @param length Length of the run in guest bytes.
+	 */
+	protected void setRun(long position, long length) {
+		pendingPosition = position;
+		pendingLength = length;
+	}
+	
+	/**
+	 * Whether two consecutive runs may be merged into one. Runs that are contiguous in the file can
+	 * be merged unless a subclass reads runs some other way.
+	 * 
+	 * @return True if contiguous runs may be merged.
+	 */
+	protected boolean canMergeRuns() {
+		return true;
+	}
+	
+	/**
+	 * Read part of a run. By default runs are read directly from the container file.
+	 * 
+	 * @param position Position within the run's address space.
+	 * @param b Destination buffer.
+	 * @param off Offset in the buffer.
+	 * @param len Number of bytes to read.
+	 * @throws IOException if the read failed.
+	 */
+	protected void readRun(long position, byte[] b, int off, int len) throws IOException {
+		readFully(position, ByteBuffer.wrap(b, off, len));
+	}
+	
+	/**
+	 * Fetch the next run, merging runs that are contiguous in the file.
+	 * 
+	 * @return False once there are no more runs.
+	 * @throws IOException if the allocation tables couldn't be read.
+	 */
+	private boolean nextMergedRun() throws IOException {
+		if (pendingLength == 0 && (exhausted || !fetch())) {
+			return false;
+		}
+		runPosition = pendingPosition;
+		runRemaining = pendingLength;
+		pendingLength = 0;
+		while (canMergeRuns() && fetch()) {
+			if (pendingPosition != runPosition + runRemaining) {
+				break;
+			}
+			runRemaining += pendingLength;
+			pendingLength = 0;
+		}
+		return true;
+	}
+	
+	/**
+	 * Fetch one run from the subclass into the pending slot.
+	 * 
+	 * @return False if there are no more runs.
+	 * @throws IOException if the allocation tables couldn't be read.
+	 */
+	private boolean fetch() throws IOException {
+		if (exhausted) {
+			return false;
+		}
+		pendingLength = 0;
+		while (pendingLength == 0) {
+			if (!nextRun()) {
+				exhausted = true;
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Read a structure from the container file.
+	 * 
+	 * @param position File offset.
+	 * @param length Number of bytes.
+	 * @param order Byte order of the structure.
+	 * @return A buffer holding the structure, positioned at 0.
+	 * @throws IOException if the file is too short.
+	 */
+	protected ByteBuffer readAt(long position, int length, ByteOrder order) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(length).order(order);
+		readFully(position, bb);
+		bb.flip();
+		return bb;
+	}
+	
+	/**
+	 * Fill a buffer with a positional read.
+	 * 
+	 * @param position File offset.
+	 * @param bb Buffer to fill.
+	 * @throws IOException if the file ends first.
+	 */
+	protected void readFully(long position, ByteBuffer bb) throws IOException {
+		long p = position;
+		while (bb.hasRemaining()) {
+			int n = channel.read(bb, p);
+			if (n < 0) {
+				throw new EOFException(
+						String.format("Unexpected end of \"%s\" at offset %d.", path, p));
+			}
+			p += n;
+		}
+	}
+	
+	/**
+	 * Check whether the file starts with the given signature at the given offset.
+	 * 
+	 * @param channel Channel to check.
+	 * @param position File offset.
+	 * @param signature Expected bytes.
+	 * @return True if the bytes match.
+	 * @throws IOException if the read failed.
+	 */
+	protected static boolean hasSignature(FileChannel channel, long position, byte[] signature) throws IOException {
+		if (position < 0 || channel.size() < position + signature.length) {
+			return false;
+		}
+		ByteBuffer bb = ByteBuffer.allocate(signature.length);
+		while (bb.hasRemaining()) {
+			if (channel.read(bb, position + bb.position()) < 0) {
+				return false;
+			}
+		}
+		for (int i = 0; i < signature.length; i++) {
+			if (bb.get(i) != signature[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}